@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.io.File;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the microbenchmarks with allocation profiling (the JMH "gc" profiler
+ * reports the bytes allocated per operation). The storage benchmarks are
+ * repeated with 1, 2, 4, ... threads up to the given maximum; the others run
+ * single-threaded. Results are written as JSON to the results directory.
+ * <p>
+ * Usage: BenchmarkRunner [regex [max_threads [results_dir]]]
+ * @author Danila Klimenko
+ */
+public class BenchmarkRunner {
+    
+    public static void main(String[] args) throws RunnerException {
+        String  include = (args.length > 0) ? args[0] : ".*";
+        int     max_threads = (args.length > 1) ? Integer.parseInt(args[1]) :
+                              Runtime.getRuntime().availableProcessors();
+        File    results = new File((args.length > 2) ? args[2] : "bench/results");
+        String  storage = StorageBenchmark.class.getName();
+        
+        results.mkdirs();
+        
+        run(options(include, new File(results, "single-threaded.json"))
+                .exclude(storage)
+                .threads(1));
+        
+        for (int threads = 1; threads <= max_threads; threads *= 2) {
+            run(options(include, new File(results, "storage-" + threads + "-threads.json"))
+                    .exclude("^(?!" + storage.replace(".", "\\.") + "\\.)")
+                    .threads(threads));
+        }
+    }
+    
+    private static ChainedOptionsBuilder options(String include, File result) {
+        return new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath());
+    }
+    
+    private static void run(ChainedOptionsBuilder options) throws RunnerException {
+        try {
+            new Runner(options.build()).run();
+        } catch (NoBenchmarksException e) {
+            // The include pattern selects none of these benchmarks
+        }
+    }
+}
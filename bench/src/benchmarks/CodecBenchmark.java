@@ -0,0 +1,85 @@
+package benchmarks;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageRaw;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of KVMessageRaw.marshal() and unmarshal() across value sizes, for
+ * single messages and for batches.
+ * @author Danila Klimenko
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    private static final int BATCH_ENTRIES = 16;
+    
+    @Param({"0", "100", "1024", "16384", "122880"})
+    public int valueSize;
+    
+    private KVMessage   message;
+    private byte[]      encoded;
+    private KVMessage   batch;
+    private byte[]      encoded_batch;
+    
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder(this.valueSize);
+        for (int i = 0; i < this.valueSize; ++i) {
+            builder.append((char) ('a' + i % 26));
+        }
+        String value = (this.valueSize > 0) ? builder.toString() : null;
+        
+        this.message = new KVMessageRaw(StatusType.PUT, "benchmark-key", value);
+        this.encoded = KVMessageRaw.marshal(this.message);
+        
+        // Batches are bounded by the frame size like single messages
+        String entry_value = (value != null) ? value.substring(0, this.valueSize / BATCH_ENTRIES) : null;
+        List<KVMessageBatch.Entry> entries = new ArrayList<KVMessageBatch.Entry>();
+        for (int i = 0; i < BATCH_ENTRIES; ++i) {
+            entries.add(KVMessageBatch.Entry.put("benchmark-key" + i, entry_value));
+        }
+        this.batch = new KVMessageBatch(StatusType.TRANSACTION, null, null, entries);
+        this.encoded_batch = KVMessageRaw.marshal(this.batch);
+    }
+    
+    @Benchmark
+    public byte[] marshal() {
+        return KVMessageRaw.marshal(this.message);
+    }
+    
+    @Benchmark
+    public KVMessage unmarshal() throws ParseException {
+        return KVMessageRaw.unmarshal(this.encoded);
+    }
+    
+    @Benchmark
+    public byte[] marshalBatch() {
+        return KVMessageRaw.marshal(this.batch);
+    }
+    
+    @Benchmark
+    public KVMessage unmarshalBatch() throws ParseException {
+        return KVMessageRaw.unmarshal(this.encoded_batch);
+    }
+}
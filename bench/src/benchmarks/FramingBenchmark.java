@@ -0,0 +1,62 @@
+package benchmarks;
+
+import common.messages.NetworkMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the NetworkMessage framing over in-memory streams, so that
+ * the cost of the sockets does not hide the cost of the framing itself.
+ * @author Danila Klimenko
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    
+    @Param({"16", "1024", "16384", "131072"})
+    public int frameSize;
+    
+    private NetworkMessage          message;
+    private ByteArrayOutputStream   output;
+    private ByteArrayInputStream    input;
+    
+    @Setup
+    public void setUp() throws IOException {
+        this.message = new NetworkMessage(new byte[this.frameSize]);
+        this.output = new ByteArrayOutputStream(this.frameSize + 16);
+        
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        this.message.writeTo(frame);
+        this.input = new ByteArrayInputStream(frame.toByteArray());
+    }
+    
+    @Benchmark
+    public int write() throws IOException {
+        this.output.reset();
+        this.message.writeTo(this.output);
+        return this.output.size();
+    }
+    
+    @Benchmark
+    public NetworkMessage read() throws IOException {
+        this.input.reset();
+        return NetworkMessage.readFrom(this.input);
+    }
+}
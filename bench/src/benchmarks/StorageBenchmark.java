@@ -0,0 +1,104 @@
+package benchmarks;
+
+import app_kvServer.KVDataStorage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of KVDataStorage under contention. The storage is shared by all
+ * benchmark threads; BenchmarkRunner repeats these benchmarks with 1 to N
+ * threads.
+ * @author Danila Klimenko
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageBenchmark {
+    
+    @Param({"1000", "100000"})
+    public int keys;
+    
+    @Param({"100", "10240"})
+    public int valueSize;
+    
+    private KVDataStorage   storage;
+    private String[]        key_names;
+    private String          value;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.storage = new KVDataStorage();
+        this.key_names = new String[this.keys];
+        
+        StringBuilder builder = new StringBuilder(this.valueSize);
+        for (int i = 0; i < this.valueSize; ++i) {
+            builder.append((char) ('a' + i % 26));
+        }
+        this.value = builder.toString();
+        
+        for (int i = 0; i < this.keys; ++i) {
+            this.key_names[i] = "key" + i;
+            this.storage.put(this.key_names[i], this.value);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.storage.shutDown();
+    }
+    
+    /**
+     * Per-thread source of keys, so that threads do not contend on it.
+     */
+    @State(Scope.Thread)
+    public static class KeyChooser {
+        private final Random random = new Random();
+        
+        int next(int keys) {
+            return this.random.nextInt(keys);
+        }
+        
+        boolean nextIsRead() {
+            return this.random.nextInt(10) != 0;
+        }
+    }
+    
+    @Benchmark
+    public String get(KeyChooser chooser) {
+        return this.storage.get(this.key_names[chooser.next(this.keys)]);
+    }
+    
+    @Benchmark
+    public String put(KeyChooser chooser) {
+        return this.storage.put(this.key_names[chooser.next(this.keys)], this.value);
+    }
+    
+    /**
+     * 90% 'get' and 10% 'put' requests.
+     */
+    @Benchmark
+    public String mixed(KeyChooser chooser) {
+        String key = this.key_names[chooser.next(this.keys)];
+        
+        if (chooser.nextIsRead()) {
+            return this.storage.get(key);
+        }
+        return this.storage.put(key, this.value);
+    }
+}
@@ -91,12 +91,16 @@ public class KVClient {
                     output = "Value stored successfully. Value is '" + message.getValue() + "'.";
                 else if (message.getStatus() == KVMessage.StatusType.PUT_UPDATE)
                     output = "Value updated successfully. Updated value is '" + message.getValue() + "'.";
+                else if (message.getStatus() == KVMessage.StatusType.SERVER_THROTTLED)
+                    output = "Server is busy, retry in " + message.getValue() + " ms.";
                 else
                     output = "Error occured: " + message.getValue();
             } else if (inputMessage[0].compareToIgnoreCase("get") == 0) {
                 KVMessage message = objKVStoreClient.get(inputMessage[1]);
                 if (message.getStatus() == KVMessage.StatusType.GET_SUCCESS)
                     output = "Stored value is '" + message.getValue() + "'.";
+                else if (message.getStatus() == KVMessage.StatusType.SERVER_THROTTLED)
+                    output = "Server is busy, retry in " + message.getValue() + " ms.";
                 else
                     output = "Error occured: " + message.getValue();
             }
@@ -0,0 +1,435 @@
+package app_kvLoad;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+import java.io.BufferedInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.Socket;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for KVServer, in the spirit of YCSB. Opens a number of
+ * connections which send 'get' and 'put' requests drawn from a Workload for a
+ * given time, and reports the throughput and the latency percentiles as JSON.
+ * <p>
+ * The requests are sent as plain KVMessageRaw frames, without the routing of
+ * the KVStore library, so the measurement covers the server alone.
+ * @author Danila Klimenko
+ */
+public class LoadGenerator {
+    private static final long   RECONNECT_INTERVAL = 100; // milliseconds
+    private static final long   MAX_PARK_TIME = 10000000; // nanoseconds
+    
+    private final Workload  workload;
+    private final String    host;
+    private final int       port;
+    private final int       connections;
+    private final long      seed;
+    
+    /**
+     * Main constructor.
+     * @param workload The workload to generate
+     * @param host Address of the KVServer
+     * @param port Port of the KVServer
+     * @param connections Number of concurrent connections
+     * @param seed Seed for the random choices of all connections
+     */
+    public LoadGenerator(Workload workload, String host, int port, int connections, long seed) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("Invalid number of connections: " + connections + ".");
+        }
+        
+        this.workload = workload;
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.seed = seed;
+    }
+    
+    /**
+     * Writes every key of the workload once, so that 'get' requests find
+     * their keys. The keys are split among the connections.
+     * @throws IOException Thrown if a connection fails
+     * @throws InterruptedException Thrown if the calling thread is interrupted
+     */
+    public void preload() throws IOException, InterruptedException {
+        final List<IOException> errors = new ArrayList<IOException>();
+        List<Thread>            loaders = new ArrayList<Thread>();
+        
+        for (int i = 0; i < this.connections; ++i) {
+            final int first = i;
+            
+            Thread loader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random      random = new Random(seed - first);
+                    Connection  connection = new Connection();
+                    try {
+                        for (long key = first; key < workload.getKeyCount(); key += connections) {
+                            connection.request(new KVMessageRaw(StatusType.PUT,
+                                    workload.keyAt(key), workload.nextValue(random)));
+                        }
+                    } catch (IOException e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        connection.close();
+                    }
+                }
+            }, "Preload-" + i);
+            loader.start();
+            loaders.add(loader);
+        }
+        
+        for (Thread loader : loaders) {
+            loader.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+    
+    /**
+     * Runs the workload.
+     * @param warmupSeconds Time before the measurement starts
+     * @param seconds Length of the measured interval
+     * @return The report of the measured interval
+     * @throws InterruptedException Thrown if the calling thread is interrupted
+     */
+    public LoadReport run(int warmupSeconds, int seconds) throws InterruptedException {
+        LoadReport  report = new LoadReport(this.workload, this.connections, seconds);
+        long        start = System.nanoTime();
+        long        measure_from = start + warmupSeconds * 1000000000L;
+        long        end = measure_from + seconds * 1000000000L;
+        
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < this.connections; ++i) {
+            Thread worker = new Thread(new Worker(new Random(this.seed + i), report,
+                                                  start, measure_from, end), "Load-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        report.setDuration(Math.min(System.nanoTime(), end) - measure_from);
+        
+        return report;
+    }
+    
+    /**
+     * Connection to the KVServer sending one request at a time.
+     */
+    private class Connection {
+        private Socket          socket;
+        private InputStream     input;
+        private OutputStream    output;
+        
+        KVMessage request(KVMessage kvmsg) throws IOException {
+            if (this.socket == null) {
+                Socket new_socket = new Socket(host, port);
+                new_socket.setTcpNoDelay(true);
+                this.input = new BufferedInputStream(new_socket.getInputStream());
+                this.output = new_socket.getOutputStream();
+                this.socket = new_socket;
+            }
+            
+            try {
+                new NetworkMessage(KVMessageRaw.marshal(kvmsg)).writeTo(this.output);
+                return KVMessageRaw.unmarshal(NetworkMessage.readFrom(this.input).getData());
+            } catch (ParseException e) {
+                this.close();
+                throw new IOException("Invalid reply: " + e.getMessage());
+            } catch (IOException e) {
+                this.close();
+                throw e;
+            }
+        }
+        
+        void close() {
+            if (this.socket == null) {
+                return;
+            }
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Nothing to do: the connection is abandoned anyway
+            }
+            this.socket = null;
+        }
+    }
+    
+    /**
+     * Request loop of a single connection.
+     */
+    private class Worker implements Runnable {
+        private final Random        random;
+        private final LoadReport    report;
+        private final long          start;
+        private final long          measure_from;
+        private final long          end;
+        
+        Worker(Random random, LoadReport report, long start, long measureFrom, long end) {
+            this.random = random;
+            this.report = report;
+            this.start = start;
+            this.measure_from = measureFrom;
+            this.end = end;
+        }
+        
+        @Override
+        public void run() {
+            Connection  connection = new Connection();
+            long        next = this.start;
+            
+            while (true) {
+                // The schedule is kept even when the server falls behind: late
+                // requests are sent immediately and charged for their delay
+                long interval = workload.nextInterval(this.random, connections);
+                long scheduled;
+                if (interval > 0) {
+                    scheduled = next;
+                    next += interval;
+                    awaitTime(Math.min(scheduled, this.end));
+                } else {
+                    scheduled = System.nanoTime();
+                }
+                if (scheduled >= this.end || System.nanoTime() >= this.end) {
+                    break;
+                }
+                
+                boolean     read = workload.nextIsRead(this.random);
+                String      key = workload.nextKey(this.random);
+                KVMessage   kvmsg = new KVMessageRaw(read ? StatusType.GET : StatusType.PUT, key,
+                                                     read ? null : workload.nextValue(this.random));
+                
+                long sent = System.nanoTime();
+                KVMessage reply;
+                try {
+                    reply = connection.request(kvmsg);
+                } catch (IOException e) {
+                    if (scheduled >= this.measure_from) {
+                        this.report.recordFailure();
+                    }
+                    LockSupport.parkNanos(RECONNECT_INTERVAL * 1000000L);
+                    continue;
+                }
+                long done = System.nanoTime();
+                
+                if (scheduled >= this.measure_from) {
+                    this.report.record(read, outcomeOf(reply), done - this.measure_from,
+                                       done - scheduled, done - sent);
+                }
+            }
+            
+            connection.close();
+        }
+    }
+    
+    private static LoadReport.Outcome outcomeOf(KVMessage reply) {
+        switch (reply.getStatus()) {
+            case GET_SUCCESS:
+            case PUT_SUCCESS:
+            case PUT_UPDATE:
+                return LoadReport.Outcome.SUCCESS;
+            case GET_ERROR:
+                return LoadReport.Outcome.NOT_FOUND;
+            case SERVER_THROTTLED:
+                return LoadReport.Outcome.THROTTLED;
+            default:
+                return LoadReport.Outcome.ERROR;
+        }
+    }
+    
+    private static void awaitTime(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(Math.min(remaining, MAX_PARK_TIME));
+        }
+    }
+    
+    /**
+     * Main entry point for the load generator.
+     * @param args Array of command line arguments (see printUsage())
+     */
+    public static void main(String[] args) {
+        double  read_proportion = 0.95;
+        long    keys = 100000;
+        Workload.KeyDistribution key_distribution = Workload.KeyDistribution.ZIPFIAN;
+        double  theta = ZipfianGenerator.DEFAULT_THETA;
+        Workload.SizeDistribution size_distribution = Workload.SizeDistribution.FIXED;
+        int     min_size = 1024;
+        int     max_size = 1024;
+        Workload.ArrivalMode arrival = Workload.ArrivalMode.CLOSED;
+        double  rate = 0;
+        int     connections = 8;
+        int     warmup = 5;
+        int     duration = 30;
+        boolean preload = true;
+        long    seed = System.nanoTime();
+        String  output = null;
+        List<String> positional = new ArrayList<String>();
+        
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String option = args[i];
+                
+                if (!option.startsWith("-") || option.length() != 2) {
+                    positional.add(option);
+                    continue;
+                }
+                if (option.equals("-h")) {
+                    printUsage();
+                    System.exit(1);
+                }
+                if (option.equals("-n")) {
+                    preload = false;
+                    continue;
+                }
+                if (++i >= args.length) {
+                    throw new ParseException("Option " + option + " requires an argument.", 0);
+                }
+                String argument = args[i];
+                
+                try {
+                    switch (option.charAt(1)) {
+                        case 'r':
+                            read_proportion = Double.parseDouble(argument);
+                            break;
+                        case 'k':
+                            keys = Long.parseLong(argument);
+                            break;
+                        case 'D':
+                            key_distribution = Workload.KeyDistribution.valueOf(argument.toUpperCase());
+                            break;
+                        case 'z':
+                            theta = Double.parseDouble(argument);
+                            break;
+                        case 'v':
+                            // "size", "min-max" or "distribution:min-max"
+                            int colon = argument.indexOf(':');
+                            String range = argument.substring(colon + 1);
+                            int dash = range.indexOf('-');
+                            min_size = Integer.parseInt((dash < 0) ? range : range.substring(0, dash));
+                            max_size = Integer.parseInt((dash < 0) ? range : range.substring(dash + 1));
+                            size_distribution = (colon >= 0) ?
+                                    Workload.SizeDistribution.valueOf(argument.substring(0, colon).toUpperCase()) :
+                                    (dash < 0) ? Workload.SizeDistribution.FIXED :
+                                    Workload.SizeDistribution.UNIFORM;
+                            break;
+                        case 'm':
+                            arrival = Workload.ArrivalMode.valueOf(argument.toUpperCase());
+                            break;
+                        case 'R':
+                            rate = Double.parseDouble(argument);
+                            break;
+                        case 'c':
+                            connections = Integer.parseInt(argument);
+                            break;
+                        case 'w':
+                            warmup = Integer.parseInt(argument);
+                            break;
+                        case 'd':
+                            duration = Integer.parseInt(argument);
+                            break;
+                        case 's':
+                            seed = Long.parseLong(argument);
+                            break;
+                        case 'o':
+                            output = argument;
+                            break;
+                        default:
+                            throw new ParseException("Unknown option: " + option + ".", 0);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid argument of " + option + ": " + argument + ".", 0);
+                }
+            }
+            
+            if (positional.size() != 2) {
+                throw new ParseException("Server address and port are required.", 0);
+            }
+        } catch (ParseException e) {
+            System.out.println("Error! " + e.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        
+        try {
+            Workload workload = new Workload(read_proportion, keys, key_distribution, theta,
+                                             size_distribution, min_size, max_size, arrival, rate);
+            LoadGenerator generator = new LoadGenerator(workload, positional.get(0),
+                    Integer.parseInt(positional.get(1)), connections, seed);
+            
+            if (preload) {
+                System.err.println("Loading " + keys + " keys...");
+                generator.preload();
+            }
+            System.err.println("Running for " + warmup + "+" + duration + " seconds...");
+            String json = generator.run(warmup, duration).toJson();
+            
+            if (output == null) {
+                System.out.println(json);
+            } else {
+                Writer writer = new FileWriter(output);
+                try {
+                    writer.write(json);
+                    writer.write('\n');
+                } finally {
+                    writer.close();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error! " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Error! Load generation failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+        
+        System.exit(0);
+    }
+    
+    /**
+     * Prints the usage information.
+     */
+    private static void printUsage() {
+        System.out.println(
+                  "Usage: LoadGenerator [-r reads] [-k keys] [-D uniform|zipfian] [-z theta]\n"
+                + "                     [-v [dist:]min[-max]] [-m closed|open] [-R rate]\n"
+                + "                     [-c connections] [-w seconds] [-d seconds] [-n]\n"
+                + "                     [-s seed] [-o file] <host> <port>\n"
+                + "    -r reads        - Fraction of 'get' requests (default: 0.95).\n"
+                + "    -k keys         - Number of distinct keys (default: 100000).\n"
+                + "    -D distribution - Popularity of the keys (default: zipfian).\n"
+                + "    -z theta        - Skew of the Zipfian distributions (default: 0.99).\n"
+                + "    -v sizes        - Value sizes in characters, up to 122880: a fixed size,\n"
+                + "                      a uniform range min-max, or fixed|uniform|zipfian:min-max\n"
+                + "                      (default: 1024).\n"
+                + "    -m mode         - Closed loop, or open loop with Poisson arrivals\n"
+                + "                      (default: closed).\n"
+                + "    -R rate         - Target rate in requests per second over all connections\n"
+                + "                      (required in open mode; default: as fast as possible).\n"
+                + "    -c connections  - Number of concurrent connections (default: 8).\n"
+                + "    -w seconds      - Warm-up time, not measured (default: 5).\n"
+                + "    -d seconds      - Measured time (default: 30).\n"
+                + "    -n              - Do not write all keys before the run.\n"
+                + "    -s seed         - Seed of the random choices.\n"
+                + "    -o file         - Write the JSON report to a file (default: standard output)."
+        );
+    }
+}
@@ -0,0 +1,222 @@
+package app_kvLoad;
+
+import common.metrics.LatencyHistogram;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Results of a load generator run: throughput, outcome counts and latency
+ * distributions per operation, collected concurrently by all connections.
+ * <p>
+ * Two latencies are recorded for every request. The service time is measured
+ * from the moment the request is sent. The response time is measured from the
+ * moment the request was scheduled to be sent; when the server stalls, the
+ * requests which queue up behind the stall are charged for the wait, so the
+ * stall is not hidden from the percentiles (coordinated omission correction).
+ * In a closed loop without a target rate both are the same.
+ * @author Danila Klimenko
+ */
+public class LoadReport {
+    private static final double[]   PERCENTILES = {
+        0, 10, 25, 50, 75, 90, 95, 99, 99.5, 99.9, 99.95, 99.99, 99.999, 100
+    };
+    
+    private final Workload          workload;
+    private final int               connections;
+    private final OperationStats    reads;
+    private final OperationStats    writes;
+    private final AtomicLong        failures;
+    private final AtomicLongArray   timeline;
+    private volatile long           duration;
+    
+    /**
+     * Main constructor.
+     * @param workload The workload being measured
+     * @param connections Number of client connections
+     * @param seconds Length of the measured interval in seconds
+     */
+    public LoadReport(Workload workload, int connections, int seconds) {
+        this.workload = workload;
+        this.connections = connections;
+        this.reads = new OperationStats();
+        this.writes = new OperationStats();
+        this.failures = new AtomicLong();
+        this.timeline = new AtomicLongArray(Math.max(1, seconds));
+        this.duration = 0;
+    }
+    
+    /**
+     * Records an answered request.
+     * @param read True for a 'get' request
+     * @param outcome Outcome of the request
+     * @param elapsed Time since the start of the measured interval, in
+     *          nanoseconds
+     * @param responseTime Time since the request was scheduled, in nanoseconds
+     * @param serviceTime Time since the request was sent, in nanoseconds
+     */
+    public void record(boolean read, Outcome outcome, long elapsed, long responseTime,
+                       long serviceTime) {
+        (read ? this.reads : this.writes).record(outcome, responseTime / 1000, serviceTime / 1000);
+        
+        int second = (int) (elapsed / 1000000000L);
+        if (second >= 0 && second < this.timeline.length()) {
+            this.timeline.incrementAndGet(second);
+        }
+    }
+    
+    /**
+     * Records a request which failed because the connection broke.
+     */
+    public void recordFailure() {
+        this.failures.incrementAndGet();
+    }
+    
+    /**
+     * Sets the actual length of the measured interval.
+     * @param nanos The length in nanoseconds
+     */
+    public void setDuration(long nanos) {
+        this.duration = nanos;
+    }
+    
+    /**
+     * Returns the number of answered requests.
+     * @return The number of 'get' and 'put' requests
+     */
+    public long getOperations() {
+        return this.reads.count.get() + this.writes.count.get();
+    }
+    
+    /**
+     * Returns the number of requests answered with an error.
+     * @return The number of errors, missing keys excluded
+     */
+    public long getErrors() {
+        return this.reads.errors.get() + this.writes.errors.get();
+    }
+    
+    /**
+     * Returns the number of requests refused by the rate limits of the server.
+     * @return The number of throttled requests
+     */
+    public long getThrottled() {
+        return this.reads.throttled.get() + this.writes.throttled.get();
+    }
+    
+    /**
+     * Returns the number of requests which got no answer.
+     * @return The number of failures
+     */
+    public long getFailures() {
+        return this.failures.get();
+    }
+    
+    /**
+     * Returns the throughput over the measured interval.
+     * @return Answered requests per second
+     */
+    public double getThroughput() {
+        return (this.duration > 0) ? this.getOperations() * 1e9 / this.duration : 0;
+    }
+    
+    /**
+     * Returns a percentile of the response time of one operation.
+     * @param read True for 'get' requests, false for 'put' requests
+     * @param percentile The percentile, between 0 and 100
+     * @return The response time in microseconds
+     */
+    public long getPercentile(boolean read, double percentile) {
+        return (read ? this.reads : this.writes).response.getPercentile(percentile);
+    }
+    
+    /**
+     * Formats the report as a JSON object.
+     * @return The JSON text
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        
+        json.append("{\n  \"workload\": {").append(this.workload.toJson())
+            .append(", \"connections\": ").append(this.connections).append("},\n")
+            .append("  \"duration_s\": ").append(format(this.duration / 1e9)).append(",\n")
+            .append("  \"operations\": ").append(this.getOperations()).append(",\n")
+            .append("  \"throughput_ops\": ").append(format(this.getThroughput())).append(",\n")
+            .append("  \"failures\": ").append(this.failures.get()).append(",\n")
+            .append("  \"read\": ").append(this.reads.toJson()).append(",\n")
+            .append("  \"write\": ").append(this.writes.toJson()).append(",\n")
+            .append("  \"timeline_ops\": [");
+        
+        for (int i = 0; i < this.timeline.length(); ++i) {
+            json.append((i > 0) ? ", " : "").append(this.timeline.get(i));
+        }
+        json.append("]\n}");
+        
+        return json.toString();
+    }
+    
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+    
+    /**
+     * Outcome of an answered request.
+     */
+    public enum Outcome {
+        SUCCESS,    /* Value read or written */
+        NOT_FOUND,  /* The key of a 'get' request does not exist */
+        THROTTLED,  /* Request over the rate limit of the server */
+        ERROR       /* Request refused by the server */
+    }
+    
+    /**
+     * Statistics of one type of operation.
+     */
+    private static class OperationStats {
+        final AtomicLong        count = new AtomicLong();
+        final AtomicLong        not_found = new AtomicLong();
+        final AtomicLong        throttled = new AtomicLong();
+        final AtomicLong        errors = new AtomicLong();
+        final AtomicLong        total_micros = new AtomicLong();
+        final LatencyHistogram  response = new LatencyHistogram();
+        final LatencyHistogram  service = new LatencyHistogram();
+        
+        void record(Outcome outcome, long responseMicros, long serviceMicros) {
+            this.count.incrementAndGet();
+            if (outcome == Outcome.NOT_FOUND) {
+                this.not_found.incrementAndGet();
+            } else if (outcome == Outcome.THROTTLED) {
+                this.throttled.incrementAndGet();
+            } else if (outcome == Outcome.ERROR) {
+                this.errors.incrementAndGet();
+            }
+            this.total_micros.addAndGet(responseMicros);
+            this.response.record(responseMicros);
+            this.service.record(serviceMicros);
+        }
+        
+        String toJson() {
+            long count = this.count.get();
+            
+            return "{\"count\": " + count +
+                   ", \"not_found\": " + this.not_found.get() +
+                   ", \"throttled\": " + this.throttled.get() +
+                   ", \"errors\": " + this.errors.get() +
+                   ", \"mean_us\": " + format((count > 0) ? (double) this.total_micros.get() / count : 0) +
+                   ", \"response_time_us\": " + percentilesToJson(this.response) +
+                   ", \"service_time_us\": " + percentilesToJson(this.service) + "}";
+        }
+        
+        private static String percentilesToJson(LatencyHistogram histogram) {
+            long[]          counts = histogram.getCounts();
+            StringBuilder   json = new StringBuilder("{");
+            
+            for (int i = 0; i < PERCENTILES.length; ++i) {
+                String label = Double.toString(PERCENTILES[i]).replaceAll("\\.0$", "");
+                json.append((i > 0) ? ", " : "").append("\"p").append(label).append("\": ")
+                    .append(LatencyHistogram.percentile(counts, PERCENTILES[i]));
+            }
+            return json.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package app_kvLoad;
+
+import java.util.Random;
+
+/**
+ * Description of a synthetic workload: the mix of operations, the popularity
+ * of the keys, the sizes of the written values and the arrival process of the
+ * requests.
+ * @author Danila Klimenko
+ */
+public class Workload {
+    /**
+     * Largest value accepted by the KVServer.
+     */
+    public static final int     MAX_VALUE_SIZE = 120 * 1024;
+    
+    private static final String KEY_PREFIX = "user";
+    private static final int    VALUE_POOL_SIZE = 2 * MAX_VALUE_SIZE;
+    
+    /**
+     * Popularity of the keys.
+     */
+    public enum KeyDistribution {
+        UNIFORM,    /* Every key is equally likely */
+        ZIPFIAN     /* A few keys receive most requests */
+    }
+    
+    /**
+     * Distribution of the sizes of written values.
+     */
+    public enum SizeDistribution {
+        FIXED,      /* Every value has the maximal size */
+        UNIFORM,    /* Sizes are uniformly distributed between the bounds */
+        ZIPFIAN     /* Small values are much more frequent than large ones */
+    }
+    
+    /**
+     * Arrival process of the requests.
+     */
+    public enum ArrivalMode {
+        CLOSED,     /* Each connection sends its next request once the previous one is answered */
+        OPEN        /* Requests arrive at Poisson-distributed times, independent of the replies */
+    }
+    
+    private final double            read_proportion;
+    private final long              key_count;
+    private final KeyDistribution   key_distribution;
+    private final double            zipfian_theta;
+    private final SizeDistribution  size_distribution;
+    private final int               min_value_size;
+    private final int               max_value_size;
+    private final ArrivalMode       arrival_mode;
+    private final double            target_rate;
+    private final ZipfianGenerator  key_generator;
+    private final ZipfianGenerator  size_generator;
+    private final String            value_pool;
+    
+    /**
+     * Main constructor.
+     * @param readProportion Fraction of 'get' requests, between 0 and 1 (the
+     *          rest are 'put' requests)
+     * @param keyCount Number of distinct keys
+     * @param keyDistribution Popularity of the keys
+     * @param zipfianTheta Skew of the Zipfian distributions
+     * @param sizeDistribution Distribution of the value sizes
+     * @param minValueSize Smallest value size in characters
+     * @param maxValueSize Largest value size in characters
+     * @param arrivalMode Arrival process of the requests
+     * @param targetRate Total request rate in requests per second (required in
+     *          open mode; 0 runs a closed loop as fast as possible)
+     * @throws IllegalArgumentException Thrown if a parameter is out of range
+     */
+    public Workload(double readProportion, long keyCount, KeyDistribution keyDistribution,
+                    double zipfianTheta, SizeDistribution sizeDistribution, int minValueSize,
+                    int maxValueSize, ArrivalMode arrivalMode, double targetRate) {
+        if (!(readProportion >= 0 && readProportion <= 1)) {
+            throw new IllegalArgumentException("Invalid read proportion: " + readProportion + ".");
+        }
+        if (keyCount < 1) {
+            throw new IllegalArgumentException("Invalid number of keys: " + keyCount + ".");
+        }
+        if (minValueSize < 1 || maxValueSize < minValueSize || maxValueSize > MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Invalid value sizes: " + minValueSize + "-" +
+                                               maxValueSize + ".");
+        }
+        if (targetRate < 0 || (arrivalMode == ArrivalMode.OPEN && targetRate == 0)) {
+            throw new IllegalArgumentException("Invalid request rate: " + targetRate + ".");
+        }
+        
+        this.read_proportion = readProportion;
+        this.key_count = keyCount;
+        this.key_distribution = keyDistribution;
+        this.zipfian_theta = zipfianTheta;
+        this.size_distribution = sizeDistribution;
+        this.min_value_size = minValueSize;
+        this.max_value_size = maxValueSize;
+        this.arrival_mode = arrivalMode;
+        this.target_rate = targetRate;
+        
+        this.key_generator = (keyDistribution == KeyDistribution.ZIPFIAN) ?
+                new ZipfianGenerator(keyCount, zipfianTheta, true) : null;
+        this.size_generator = (sizeDistribution == SizeDistribution.ZIPFIAN) ?
+                new ZipfianGenerator(maxValueSize - minValueSize + 1, zipfianTheta, false) : null;
+        
+        // Values are slices of a random printable string, so that they do not
+        // compress better than real data
+        Random          random = new Random(0);
+        StringBuilder   pool = new StringBuilder(VALUE_POOL_SIZE);
+        for (int i = 0; i < VALUE_POOL_SIZE; ++i) {
+            pool.append((char) (' ' + 1 + random.nextInt('~' - ' ')));
+        }
+        this.value_pool = pool.toString();
+    }
+    
+    /**
+     * Draws the type of the next request.
+     * @param random The source of randomness
+     * @return True for a 'get' request, false for a 'put' request
+     */
+    public boolean nextIsRead(Random random) {
+        return random.nextDouble() < this.read_proportion;
+    }
+    
+    /**
+     * Draws the key of the next request.
+     * @param random The source of randomness
+     * @return The key
+     */
+    public String nextKey(Random random) {
+        long index = (this.key_generator != null) ? this.key_generator.next(random) :
+                     (long) (random.nextDouble() * this.key_count);
+        return keyAt(index);
+    }
+    
+    /**
+     * Returns the key with the given index.
+     * @param index The index, between 0 and the number of keys
+     * @return The key
+     */
+    public String keyAt(long index) {
+        return KEY_PREFIX + index;
+    }
+    
+    /**
+     * Draws the value of the next 'put' request.
+     * @param random The source of randomness
+     * @return The value
+     */
+    public String nextValue(Random random) {
+        int size;
+        
+        switch (this.size_distribution) {
+            case FIXED:
+                size = this.max_value_size;
+                break;
+            case UNIFORM:
+                size = this.min_value_size +
+                       random.nextInt(this.max_value_size - this.min_value_size + 1);
+                break;
+            default:
+                size = this.min_value_size + (int) this.size_generator.next(random);
+                break;
+        }
+        
+        int offset = random.nextInt(VALUE_POOL_SIZE - size + 1);
+        return this.value_pool.substring(offset, offset + size);
+    }
+    
+    /**
+     * Returns the time between two consecutive requests of one connection.
+     * @param random The source of randomness
+     * @param connections Number of connections sharing the request rate
+     * @return The interval in nanoseconds, or 0 in a closed loop without a
+     *          target rate
+     */
+    public long nextInterval(Random random, int connections) {
+        if (this.target_rate == 0) {
+            return 0;
+        }
+        
+        double mean = 1e9 * connections / this.target_rate;
+        if (this.arrival_mode == ArrivalMode.CLOSED) {
+            return (long) mean;
+        }
+        return (long) (-mean * Math.log(1.0 - random.nextDouble()));
+    }
+    
+    /**
+     * Getter method for the number of keys.
+     * @return The number of keys
+     */
+    public long getKeyCount() {
+        return this.key_count;
+    }
+    
+    /**
+     * Getter method for the arrival mode.
+     * @return The arrival mode
+     */
+    public ArrivalMode getArrivalMode() {
+        return this.arrival_mode;
+    }
+    
+    /**
+     * Describes the workload as the members of a JSON object.
+     * @return The JSON members, without the enclosing braces
+     */
+    public String toJson() {
+        return "\"read_proportion\": " + this.read_proportion +
+               ", \"keys\": " + this.key_count +
+               ", \"key_distribution\": \"" + this.key_distribution.name().toLowerCase() + "\"" +
+               ", \"zipfian_theta\": " + this.zipfian_theta +
+               ", \"value_size_distribution\": \"" +
+                        this.size_distribution.name().toLowerCase() + "\"" +
+               ", \"min_value_size\": " + this.min_value_size +
+               ", \"max_value_size\": " + this.max_value_size +
+               ", \"arrival\": \"" + this.arrival_mode.name().toLowerCase() + "\"" +
+               ", \"target_rate\": " + this.target_rate;
+    }
+}
@@ -0,0 +1,116 @@
+package app_kvLoad;
+
+import java.util.Random;
+
+/**
+ * Generator of Zipf-distributed ranks in [0, items), following the algorithm
+ * of Gray et al. ("Quickly Generating Billion-Record Synthetic Databases")
+ * used by YCSB. Rank 0 is the most popular one.
+ * <p>
+ * In scrambled mode the ranks are spread over the whole range by hashing, so
+ * that the popular items are not clustered at its beginning.
+ * @author Danila Klimenko
+ */
+public class ZipfianGenerator {
+    /**
+     * The skew used by YCSB.
+     */
+    public static final double  DEFAULT_THETA = 0.99;
+    
+    private static final long   FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long   FNV_PRIME = 0x100000001B3L;
+    
+    private final long      items;
+    private final double    theta;
+    private final double    zeta_n;
+    private final double    alpha;
+    private final double    eta;
+    private final double    half_pow_theta;
+    private final boolean   scrambled;
+    
+    /**
+     * Main constructor. Takes O(items) time to compute the normalization
+     * constant.
+     * @param items Number of items
+     * @param theta The skew, between 0 (exclusive) and 1 (exclusive)
+     * @param scrambled True to spread the popular items over the range
+     * @throws IllegalArgumentException Thrown if a parameter is out of range
+     */
+    public ZipfianGenerator(long items, double theta, boolean scrambled) {
+        if (items < 1) {
+            throw new IllegalArgumentException("Invalid number of items: " + items + ".");
+        }
+        if (!(theta > 0 && theta < 1)) {
+            throw new IllegalArgumentException("Invalid Zipfian skew: " + theta + ".");
+        }
+        
+        this.items = items;
+        this.theta = theta;
+        this.scrambled = scrambled;
+        this.zeta_n = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1.0 - Math.pow(2.0 / items, 1.0 - theta)) /
+                   (1.0 - zeta(Math.min(2, items), theta) / this.zeta_n);
+        this.half_pow_theta = 1.0 + Math.pow(0.5, theta);
+    }
+    
+    /**
+     * Getter method for the number of items.
+     * @return The number of items
+     */
+    public long getItems() {
+        return this.items;
+    }
+    
+    /**
+     * Getter method for the skew.
+     * @return The skew
+     */
+    public double getTheta() {
+        return this.theta;
+    }
+    
+    /**
+     * Draws the next item.
+     * @param random The source of randomness
+     * @return An item in [0, items)
+     */
+    public long next(Random random) {
+        double  u = random.nextDouble();
+        double  uz = u * this.zeta_n;
+        long    rank;
+        
+        if (uz < 1.0) {
+            rank = 0;
+        } else if (uz < this.half_pow_theta) {
+            rank = 1;
+        } else {
+            rank = (long) (this.items * Math.pow(this.eta * u - this.eta + 1.0, this.alpha));
+        }
+        rank = Math.min(rank, this.items - 1);
+        
+        if (!this.scrambled) {
+            return rank;
+        }
+        return (fnvHash(rank) & Long.MAX_VALUE) % this.items;
+    }
+    
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        
+        for (long i = 1; i <= n; ++i) {
+            sum += 1.0 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+    
+    private static long fnvHash(long value) {
+        long hash = FNV_OFFSET_BASIS;
+        
+        for (int i = 0; i < 8; ++i) {
+            hash ^= (value >>> (i * 8)) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,72 @@
+package app_kvServer;
+
+import common.messages.KVMessageBatch;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a stream of entries into batches of a bounded size, for transfers
+ * of many keys which have to be sent in several frames. A batch is completed
+ * before the entry which would take it over the limit, so a batch only
+ * exceeds the limit if it consists of a single large entry. Sizes are those
+ * of the marshalled entries.
+ * @author Danila Klimenko
+ */
+public class BatchBuilder {
+    private final int                       limit;
+    private List<KVMessageBatch.Entry>      entries;
+    private int                             bytes;
+    private int                             completed_bytes;
+    
+    /**
+     * Main constructor.
+     * @param limit Maximal size of a batch, in bytes
+     */
+    public BatchBuilder(int limit) {
+        this.limit = limit;
+        this.entries = new ArrayList<KVMessageBatch.Entry>();
+        this.bytes = 0;
+        this.completed_bytes = 0;
+    }
+    
+    /**
+     * Adds an entry to the current batch, or to a new one if it does not fit.
+     * @param entry The entry
+     * @return The completed batch if the entry started a new one, otherwise
+     *          null
+     */
+    public List<KVMessageBatch.Entry> add(KVMessageBatch.Entry entry) {
+        int                         size = entry.getEncodedSize();
+        List<KVMessageBatch.Entry>  completed = null;
+        
+        if (!this.entries.isEmpty() && this.bytes + size > this.limit) {
+            completed = this.finish();
+        }
+        this.entries.add(entry);
+        this.bytes += size;
+        
+        return completed;
+    }
+    
+    /**
+     * Completes the current batch.
+     * @return The entries of the batch, possibly none
+     */
+    public List<KVMessageBatch.Entry> finish() {
+        List<KVMessageBatch.Entry> completed = this.entries;
+        
+        this.completed_bytes = this.bytes;
+        this.entries = new ArrayList<KVMessageBatch.Entry>();
+        this.bytes = 0;
+        return completed;
+    }
+    
+    /**
+     * Returns the size of the batch completed last.
+     * @return The size of the batch last returned by add() or finish(), in
+     *          bytes
+     */
+    public int getCompletedBytes() {
+        return this.completed_bytes;
+    }
+}
@@ -0,0 +1,223 @@
+package app_kvServer;
+
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ordered log of the changes applied to the key-value storage (change data
+ * capture). Each committed write is recorded under its sequence number in a
+ * fixed-size ring buffer, so appending never blocks and never allocates beyond
+ * the change itself. Consumers read at their own pace; a consumer which falls
+ * behind by more than the capacity of the log loses its position and has to
+ * resynchronize.
+ * <p>
+ * The log keeps the values as they were written, neither compressed nor
+ * shared, so besides the number of commits it also bounds their total size:
+ * once it is exceeded, the oldest commits are dropped early.
+ * @author Danila Klimenko
+ */
+public class ChangeLog {
+    /**
+     * Cursor value meaning "the current end of the log".
+     */
+    public static final long    TAIL = -1;
+    
+    private static final int    SIZEOF_ENTRY_OVERHEAD = 32;
+    
+    private final AtomicReferenceArray<Commit>  ring;
+    private final int                           mask;
+    private final long                          max_bytes;
+    private long                                bytes; // Only changed by the appending writer
+    private volatile long                       first_seq;
+    private volatile long                       last_seq;
+    private volatile int                        waiting;
+    
+    /**
+     * Main constructor.
+     * @param capacity Number of commits retained, rounded up to a power of two
+     * @param maxBytes Approximate size limit for the retained commits; the
+     *          last commit is always retained
+     */
+    public ChangeLog(int capacity, long maxBytes) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        
+        this.ring = new AtomicReferenceArray<Commit>(size);
+        this.mask = size - 1;
+        this.max_bytes = maxBytes;
+        this.bytes = 0;
+        this.first_seq = 1;
+        this.last_seq = 0;
+        this.waiting = 0;
+    }
+    
+    /**
+     * Returns the sequence number of the last appended commit.
+     * @return The sequence number
+     */
+    public long getLastSequence() {
+        return this.last_seq;
+    }
+    
+    /**
+     * Records a commit. Commits must be appended in sequence number order,
+     * which the storage guarantees by appending within its commit section.
+     * @param seq Sequence number of the commit
+     * @param keys Modified keys
+     * @param values New values, as strings or in encoded form (null means
+     *          'delete'); encoded values are only decoded when they are read
+     */
+    void append(long seq, String[] keys, Object[] values) {
+        Commit  commit = new Commit(seq, keys, values);
+        Commit  overwritten = this.ring.getAndSet((int) seq & this.mask, commit);
+        long    first = Math.max(this.first_seq, seq - this.mask);
+        
+        if (overwritten != null) {
+            this.bytes -= overwritten.bytes;
+        }
+        this.bytes += commit.bytes;
+        
+        // Dropping the oldest commits until the rest fits
+        for (; this.bytes > this.max_bytes && first < seq; ++first) {
+            Commit dropped = this.ring.get((int) first & this.mask);
+            if (dropped != null && dropped.seq == first) {
+                this.ring.set((int) first & this.mask, null);
+                this.bytes -= dropped.bytes;
+            }
+        }
+        
+        this.first_seq = first;
+        this.last_seq = seq;
+    }
+    
+    /**
+     * Wakes up consumers waiting for new commits. Called by writers after
+     * leaving the commit section; costs a single volatile read if nobody waits.
+     */
+    void signal() {
+        if (this.waiting > 0) {
+            synchronized (this) {
+                this.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Reads the changes following the given position. Blocks until at least
+     * one change is available or the timeout elapses.
+     * @param after Sequence number of the last change already seen by the
+     *          consumer (0 to read from the beginning, TAIL to skip everything
+     *          logged so far)
+     * @param maxBytes Approximate size limit for the returned changes; at least
+     *          one commit is always returned if available
+     * @param timeout Maximum time to wait for new changes, in milliseconds
+     * @return The changes in order; each entry is a PUT (null value for a
+     *          deletion) with the sequence number of its commit as version
+     * @throws ChangeLogTruncatedException Thrown if the requested changes are
+     *          no longer retained
+     * @throws InterruptedException Thrown if the waiting thread is interrupted
+     */
+    public List<KVMessageBatch.Entry> read(long after, int maxBytes, long timeout)
+            throws ChangeLogTruncatedException, InterruptedException {
+        List<KVMessageBatch.Entry> changes = new ArrayList<KVMessageBatch.Entry>();
+        
+        if (after == TAIL) {
+            return changes;
+        }
+        
+        awaitSequence(after + 1, timeout);
+        
+        long    last = this.last_seq;
+        int     bytes = 0;
+        
+        for (long seq = after + 1; seq <= last; ++seq) {
+            Commit commit = this.ring.get((int) seq & this.mask);
+            
+            if (commit == null || commit.seq != seq) {
+                throw new ChangeLogTruncatedException(seq, this.first_seq);
+            }
+            
+            if (!changes.isEmpty() && bytes + commit.bytes > maxBytes) {
+                break;
+            }
+            bytes += commit.bytes;
+            
+            for (int i = 0; i < commit.keys.length; ++i) {
+                changes.add(new KVMessageBatch.Entry(StatusType.PUT, commit.keys[i],
+                                                     commit.value(i), seq));
+            }
+        }
+        
+        return changes;
+    }
+    
+    /**
+     * Blocks until the log contains the given sequence number.
+     * @param seq The sequence number to wait for
+     * @param timeout Maximum time to wait, in milliseconds
+     * @return True if the sequence number was reached
+     * @throws InterruptedException Thrown if the waiting thread is interrupted
+     */
+    public boolean awaitSequence(long seq, long timeout) throws InterruptedException {
+        if (this.last_seq >= seq) {
+            return true;
+        }
+        
+        long deadline = System.currentTimeMillis() + timeout;
+        
+        synchronized (this) {
+            ++this.waiting;
+            try {
+                long remaining = timeout;
+                while (this.last_seq < seq && remaining > 0) {
+                    this.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } finally {
+                --this.waiting;
+            }
+        }
+        
+        return this.last_seq >= seq;
+    }
+    
+    /**
+     * A single logged commit.
+     */
+    private static class Commit {
+        final long      seq;
+        final String[]  keys;
+        final Object[]  values;
+        final int       bytes;
+        
+        Commit(long seq, String[] keys, Object[] values) {
+            this.seq = seq;
+            this.keys = keys;
+            this.values = values;
+            this.bytes = size(keys, values);
+        }
+        
+        static int size(String[] keys, Object[] values) {
+            int size = 0;
+            for (int i = 0; i < keys.length; ++i) {
+                size += SIZEOF_ENTRY_OVERHEAD + keys[i].length();
+                if (values[i] instanceof byte[]) {
+                    size += ((byte[]) values[i]).length;
+                } else if (values[i] != null) {
+                    size += ((String) values[i]).length();
+                }
+            }
+            return size;
+        }
+        
+        String value(int i) {
+            Object value = this.values[i];
+            return (value instanceof byte[]) ? new String((byte[]) value) : (String) value;
+        }
+    }
+}
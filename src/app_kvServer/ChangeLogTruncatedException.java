@@ -0,0 +1,31 @@
+package app_kvServer;
+
+/**
+ * Exception thrown when a change log consumer requests changes which have
+ * already been overwritten.
+ * @author Danila Klimenko
+ */
+public class ChangeLogTruncatedException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    private final long  oldest_available;
+    
+    /**
+     * Main constructor.
+     * @param requested The first sequence number requested
+     * @param oldestAvailable The oldest sequence number still retained
+     */
+    public ChangeLogTruncatedException(long requested, long oldestAvailable) {
+        super("Changes starting at " + requested + " are no longer available; " +
+              "oldest retained change is " + oldestAvailable + ".");
+        this.oldest_available = oldestAvailable;
+    }
+    
+    /**
+     * Getter method for the oldest retained sequence number.
+     * @return The sequence number
+     */
+    public long getOldestAvailable() {
+        return this.oldest_available;
+    }
+}
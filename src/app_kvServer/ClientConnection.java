@@ -1,14 +1,33 @@
 package app_kvServer;
 
+import common.messages.ChecksumException;
+import common.messages.CompressedValue;
+import common.messages.FrameCompressor;
 import common.messages.KVMessage;
 import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageCompressed;
+import common.messages.KVMessageEncoded;
 import common.messages.KVMessageRaw;
+import common.messages.KVMessageSlice;
 import common.messages.NetworkMessage;
+import common.messages.Protocol;
+import common.metadata.HashRing;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.Lock;
 import logger.LogSetup;
 import org.apache.log4j.Logger;
 
@@ -18,13 +37,39 @@ import org.apache.log4j.Logger;
  */
 public class ClientConnection implements Runnable {
     private static final Logger logger = LogSetup.getLogger();
+    private static final int    CDC_BATCH_BYTES = 64 * 1024;
+    private static final long   CDC_WAIT_TIME = 2000; // milliseconds
+    private static final int    MAX_PENDING_NOTIFICATIONS = 1024;
+    private static final int    MAX_KEY_LENGTH = 20;
+    private static final String WATCH_PREFIX = "prefix";
+    private static final StatusType[] STATUS_TYPES = StatusType.values();
+    private static final String[] PHASE_NAMES = { "read", "decode", "storage", "encode", "write" };
+    private static final boolean[] ERROR_STATUS = errorStatuses();
     
     private final Socket        client_socket;
     private final KVServer      master;
     private volatile boolean    online;
     private InputStream         input;
-    private OutputStream        output;
-
+    private volatile OutputStream output;
+    private final Object        output_lock;
+    private volatile FrameCompressor compressor; // Null while frames are not compressed
+    private FrameCompressor     negotiated; // Takes effect after the reply to the handshake
+    private volatile boolean    checksummed; // Frames carry checksums once the client sent one
+    private boolean             negotiated_checksums; // Takes effect after the reply to the handshake
+    private int                 protocol_version; // 0 until the handshake
+    
+    private final Set<String>   watched_keys;
+    private final Set<String>   watched_prefixes;
+    private final BlockingQueue<KVMessage> notifications;
+    private Thread              notifier;
+    
+    // Phase boundaries of the current request, for the slow-request log
+    private final long[]        phases;
+    private RequestScheduler.Lane slot; // Held by the current request, or null
+    
+    private final ClientStatistics  statistics;
+    private final ClientStatistics  address_statistics;
+    
     /**
      * Main constructor.
      * @param clientSocket An open socket for interaction with client
@@ -36,6 +81,22 @@ public class ClientConnection implements Runnable {
         this.online = true;
         this.input = null;
         this.output = null;
+        this.output_lock = new Object();
+        this.compressor = null;
+        this.negotiated = null;
+        this.checksummed = false;
+        this.negotiated_checksums = false;
+        this.protocol_version = 0;
+        this.watched_keys = new HashSet<String>();
+        this.watched_prefixes = new HashSet<String>();
+        this.notifications = new ArrayBlockingQueue<KVMessage>(MAX_PENDING_NOTIFICATIONS);
+        this.notifier = null;
+        this.phases = new long[PHASE_NAMES.length + 1];
+        this.slot = null;
+        this.statistics = new ClientStatistics(clientSocket.getInetAddress().getHostAddress() +
+                                               ":" + clientSocket.getPort());
+        this.address_statistics = master.addressConnected(clientSocket.getInetAddress());
+        this.statistics.connectionOpened();
     }
     
     /**
@@ -45,61 +106,163 @@ public class ClientConnection implements Runnable {
     public void run() {
         try {
             output = client_socket.getOutputStream();
-            input = client_socket.getInputStream();
-
+            input = new BufferedInputStream(client_socket.getInputStream());
+            
             while (this.online) {
                 try {
                     // Receive client's query
-                    NetworkMessage  netmsg = NetworkMessage.readFrom(input);
-                    KVMessage       kvmsg, kvmsg_reply;
+                    this.awaitRequest();
+                    
+                    long[] phases = this.phases;
+                    phases[0] = System.nanoTime();
+                    
+                    RequestEvents.FrameRead read_event = new RequestEvents.FrameRead();
+                    read_event.begin();
+                    NetworkMessage  netmsg = NetworkMessage.readFrom(input, this.checksummed);
+                    if (netmsg.hasChecksum()) {
+                        this.checksummed = true;
+                    }
+                    byte[]          data = this.decompress(netmsg);
+                    KVMessage       kvmsg = null, kvmsg_reply;
+                    read_event.finish(frameType(data), data.length);
+                    phases[1] = System.nanoTime();
+                    phases[2] = 0;
                     
                     // Process query
                     try {
-                        kvmsg = KVMessageRaw.unmarshal(netmsg.getData());
+                        RequestEvents.Unmarshal unmarshal_event = new RequestEvents.Unmarshal();
+                        unmarshal_event.begin();
+                        kvmsg = KVMessageSlice.unmarshal(data);
+                        unmarshal_event.finish(kvmsg.getStatus(), data.length);
                         
-                        logger.info("Received a '" + kvmsg.getStatus().name() + "' request from '" +
-                                    client_socket.getInetAddress() + "' with {key='" + kvmsg.getKey() +
-                                    "'; value='" + kvmsg.getValue() + "'}.");
+                        // Values of up to 120 KB are not copied into messages nobody reads
+                        if (logger.isInfoEnabled()) {
+                            logger.info("Received a '" + kvmsg.getStatus().name() + "' request from '" +
+                                        client_socket.getInetAddress() + "' with {key='" + kvmsg.getKey() +
+                                        "'; value='" + kvmsg.getValue() + "'}.");
+                        }
                         
-                        kvmsg_reply = this.parseKVMessage(kvmsg);
+                        phases[2] = System.nanoTime();
                         
+                        if (isForegroundRequest(kvmsg)) {
+                            kvmsg_reply = this.serveForeground(kvmsg, netmsg.getFrameSize(), phases[0]);
+                            phases[3] = System.nanoTime();
+                            this.master.getLatencyHistogram().record((phases[3] - phases[2]) / 1000);
+                        } else {
+                            kvmsg_reply = this.parseKVMessage(kvmsg);
+                            phases[3] = System.nanoTime();
+                        }
+                    
                     } catch (ParseException e) {
                         String report = "Warning! Received KVMessage is invalid: " + e.getMessage();
                         
                         logger.warn(report);
                         kvmsg_reply = new KVMessageRaw(StatusType.PROTOCOL_ERROR, StatusType.PROTOCOL_ERROR.name(), report);
+                        
+                        phases[3] = System.nanoTime();
+                        if (phases[2] == 0) {
+                            phases[2] = phases[3];
+                        }
                     }
                     
                     // Send reply
-                    logger.info("Replying with '" + kvmsg_reply.getStatus().name() + "': {key='" +
-                                kvmsg_reply.getKey() + "'; value='" + kvmsg_reply.getValue() + "'}.");
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Replying with '" + kvmsg_reply.getStatus().name() + "': {key='" +
+                                    kvmsg_reply.getKey() + "'; value='" + kvmsg_reply.getValue() + "'}.");
+                    }
+                    
+                    NetworkMessage reply = this.encode(kvmsg_reply);
+                    phases[4] = System.nanoTime();
+                    this.write(kvmsg_reply, reply);
+                    phases[5] = System.nanoTime();
+                    
+                    if (this.negotiated != null) {
+                        this.compressor = this.negotiated;
+                        this.negotiated = null;
+                    }
+                    if (this.negotiated_checksums) {
+                        this.checksummed = true;
+                        this.negotiated_checksums = false;
+                    }
                     
-                    netmsg = new NetworkMessage(KVMessageRaw.marshal(kvmsg_reply));
-                    netmsg.writeTo(output);
+                    boolean error = ERROR_STATUS[kvmsg_reply.getStatus().ordinal()];
+                    this.statistics.recordRequest(netmsg.getFrameSize(), phases[5] - phases[0], error);
+                    this.address_statistics.recordRequest(netmsg.getFrameSize(), phases[5] - phases[0], error);
                     
+                    long threshold = this.master.getSlowRequestThreshold();
+                    if (threshold > 0 && phases[5] - phases[0] > threshold * 1000) {
+                        this.logSlowRequest(phases, frameType(data), kvmsg, kvmsg_reply);
+                    }
+                
+                } catch (ChecksumException e) {
+                    // The frame boundaries cannot be trusted any more
+                    logger.error("Error! Received a corrupt frame from '" + client_socket.getInetAddress() +
+                                 "', closing the connection: " + e.getMessage());
+                    this.master.recordCorruptFrame();
+                    this.online = false;
+                
                 } catch (IOException e) {
                     logger.error("Error! Connection lost: " + e.getMessage());
                     this.online = false;
                 }
             }
-
+        
         } catch (IOException e) {
             logger.error("Error! Connection could not be established: " + e.getMessage());
-
+        
         } finally {
-
+            
             this.closeConnection();
             
+            this.statistics.connectionClosed();
+            this.address_statistics.connectionClosed();
             this.master.clientTerminated(this);
         }
     }
     
+    /**
+     * Queues a change notification for a watched key. Never blocks: if the
+     * client does not keep up, pending notifications are replaced by a single
+     * overflow message.
+     * @param notification The notification message
+     */
+    public void pushNotification(KVMessage notification) {
+        if (this.online && !this.notifications.offer(notification)) {
+            this.pushOverflow();
+        }
+    }
+    
+    /**
+     * Discards the pending notifications and tells the client that some
+     * notifications were lost.
+     */
+    public void pushOverflow() {
+        this.notifications.clear();
+        this.notifications.offer(new KVMessageRaw(StatusType.WATCH_OVERFLOW, "",
+                                 "Notifications were dropped; re-read the watched keys."));
+    }
+    
+    /**
+     * Getter method for the resource usage of this connection.
+     * @return Statistics of the connection
+     */
+    public ClientStatistics getStatistics() {
+        return this.statistics;
+    }
+    
     /**
      * Closes connection and frees all associated resources.
      */
     public void closeConnection() {
         this.online = false;
         
+        this.unwatchAll();
+        
+        FrameCompressor compressor = this.compressor;
+        if (compressor != null) {
+            compressor.end();
+        }
+        
         try {
             if (this.input != null) {
                 this.input.close();
@@ -117,35 +280,727 @@ public class ClientConnection implements Runnable {
         }
     }
     
+    /**
+     * Sends a message to the client. Used both for replies and for pushed
+     * notifications, which are sent from a separate thread.
+     * @param kvmsg The message to be sent
+     * @throws IOException Thrown if the connection is broken
+     */
+    private void send(KVMessage kvmsg) throws IOException {
+        this.write(kvmsg, this.encode(kvmsg));
+    }
+    
+    /**
+     * Encodes a message into a frame, compressed if the client asked for it,
+     * and with a checksum if the client sends frames with checksums.
+     * @param kvmsg The message to be sent
+     * @return The frame
+     * @throws IOException Thrown if the message is too large for a frame
+     */
+    private NetworkMessage encode(KVMessage kvmsg) throws IOException {
+        RequestEvents.Marshal marshal_event = new RequestEvents.Marshal();
+        marshal_event.begin();
+        FrameCompressor compressor = this.compressor;
+        NetworkMessage  netmsg;
+        if (kvmsg instanceof KVMessageEncoded) {
+            netmsg = ((KVMessageEncoded) kvmsg).getFrame();
+        } else if (compressor != null) {
+            netmsg = compressor.compress(kvmsg);
+        } else {
+            netmsg = new NetworkMessage(KVMessageRaw.marshal(kvmsg));
+        }
+        if (this.checksummed) {
+            netmsg = netmsg.withChecksum();
+        }
+        marshal_event.finish(kvmsg.getStatus(), netmsg.getLength());
+        return netmsg;
+    }
+    
+    /**
+     * Serves a 'get' request from the response cache, adding the reply to the
+     * cache if it is not there yet.
+     * @param key The key
+     * @return The encoded reply, or null if the request is to be served
+     *          without the cache
+     */
+    private KVMessage getCached(String key) {
+        KVDataStorage   storage = this.master.getDataStorage();
+        ResponseCache   cache = storage.getResponseCache();
+        long            version = storage.getVersion(key);
+        
+        if (version == 0) {
+            return null;
+        }
+        
+        NetworkMessage frame = cache.get(key, version);
+        if (frame != null) {
+            return KVMessageEncoded.of(StatusType.GET_SUCCESS, key, frame);
+        }
+        
+        // Read after the version, so the value is at least as new as it: a
+        // newer value is cached under an older version, which is never served
+        byte[] value = storage.getBytes(key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            KVMessageEncoded reply = KVMessageEncoded.encode(KVMessageSlice.of(StatusType.GET_SUCCESS, key, value));
+            cache.put(key, version, reply.getFrame());
+            return reply;
+        } catch (IOException e) {
+            return null; // Too large for a frame: fails the usual way
+        }
+    }
+    
+    /**
+     * Writes an encoded message to the client.
+     * @param kvmsg The message to be sent
+     * @param netmsg The frame of the message
+     * @throws IOException Thrown if the connection is broken
+     */
+    private void write(KVMessage kvmsg, NetworkMessage netmsg) throws IOException {
+        synchronized (this.output_lock) {
+            OutputStream os = this.output;
+            if (os == null) {
+                throw new IOException("Connection is closed.");
+            }
+            
+            RequestEvents.SocketWrite write_event = new RequestEvents.SocketWrite();
+            write_event.begin();
+            netmsg.writeTo(os);
+            write_event.finish(kvmsg.getStatus(), netmsg.getLength());
+        }
+        this.statistics.recordSent(netmsg.getFrameSize());
+        this.address_statistics.recordSent(netmsg.getFrameSize());
+    }
+    
+    /**
+     * Returns the contents of a received frame.
+     * @param netmsg The frame
+     * @return The marshalled request
+     * @throws IOException Thrown if the frame is compressed without the client
+     *          having asked for compression, or if it is corrupt
+     */
+    private byte[] decompress(NetworkMessage netmsg) throws IOException {
+        FrameCompressor compressor = this.compressor;
+        
+        if (compressor != null) {
+            return compressor.decompress(netmsg);
+        }
+        if (netmsg.isCompressed()) {
+            throw new IOException("Received a compressed frame, but compression was not negotiated.");
+        }
+        return netmsg.getData();
+    }
+    
+    /**
+     * Blocks until the first byte of the next request arrives, without
+     * consuming it, so that the time spent reading a request does not include
+     * the time the client was idle.
+     * @throws IOException Thrown if the connection is closed or broken
+     */
+    private void awaitRequest() throws IOException {
+        this.input.mark(1);
+        if (this.input.read() < 0) {
+            throw new EOFException();
+        }
+        this.input.reset();
+    }
+    
+    /**
+     * Writes one line to the slow-request log: the time spent in each phase of
+     * the request, in microseconds, followed by what the request was about.
+     * @param phases The times at which the phases started, and the time at
+     *          which the last one ended
+     * @param type Type of the request frame
+     * @param kvmsg The request, or null if it could not be decoded
+     * @param reply The reply
+     */
+    private void logSlowRequest(long[] phases, StatusType type, KVMessage kvmsg, KVMessage reply) {
+        StringBuilder   line = new StringBuilder("Slow request: total=");
+        String          value = (kvmsg != null && kvmsg.getValue() != null) ?
+                                kvmsg.getValue() : reply.getValue();
+        
+        line.append((phases[PHASE_NAMES.length] - phases[0]) / 1000).append("us");
+        for (int i = 0; i < PHASE_NAMES.length; ++i) {
+            line.append(' ').append(PHASE_NAMES[i]).append('=')
+                .append((phases[i + 1] - phases[i]) / 1000).append("us");
+        }
+        line.append(" op=").append(type)
+            .append(" status=").append(reply.getStatus())
+            .append(" key='").append((kvmsg != null) ? kvmsg.getKey() : null).append('\'')
+            .append(" value_size=").append((value != null) ? value.length() : 0)
+            .append(" client=").append(this.statistics.getName());
+        
+        logger.warn(line.toString());
+    }
+    
+    /**
+     * Determines which replies count as failed requests: all the error
+     * statuses except the ones reporting that a key to get or delete does not
+     * exist, which are ordinary outcomes.
+     * @return Flags indexed by the ordinal of the status
+     */
+    private static boolean[] errorStatuses() {
+        boolean[] error = new boolean[STATUS_TYPES.length];
+        
+        for (StatusType type : STATUS_TYPES) {
+            error[type.ordinal()] = type.name().endsWith("_ERROR") &&
+                                    type != StatusType.GET_ERROR && type != StatusType.DELETE_ERROR;
+        }
+        return error;
+    }
+    
+    /**
+     * Returns the message type of a frame without decoding it.
+     * @param data The frame payload
+     * @return The type, or null if the frame is empty or the type is invalid
+     */
+    private static StatusType frameType(byte[] data) {
+        return (data.length > 0 && (data[0] & 0xFF) < STATUS_TYPES.length) ?
+                STATUS_TYPES[data[0] & 0xFF] : null;
+    }
+    
+    /**
+     * Serves a request on behalf of a client: checks it against the rate
+     * limits, then waits for the turn of this client in the lane of the
+     * request to execute it. The slot is only held while the request is
+     * executed; reading the request and writing the reply happen outside.
+     * <p>
+     * A request carrying a deadline is dropped if the deadline passed before
+     * the request got its turn, since the client no longer waits for it.
+     * @param kvmsg The request
+     * @param size Size of the request frame
+     * @param received Time at which the request started to arrive
+     * @return The reply, SERVER_THROTTLED if the request exceeds a rate limit,
+     *          or DEADLINE_EXCEEDED if it expired
+     * @throws ParseException Thrown if the request is invalid
+     */
+    private KVMessage serveForeground(KVMessage kvmsg, int size, long received) throws ParseException {
+        String  key = (kvmsg.getKey() != null) ? kvmsg.getKey() : "";
+        long    timeout = ((KVMessageRaw) kvmsg).getTimeout();
+        long    deadline = (timeout > 0) ? received + timeout * 1000000 : 0;
+        
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            return this.expired(key, timeout);
+        }
+        
+        long retry = this.master.getRateLimiter().admit(this.client_socket.getInetAddress());
+        if (retry > 0) {
+            return new KVMessageRaw(StatusType.SERVER_THROTTLED, key, Long.toString(retry));
+        }
+        
+        this.slot = this.master.getScheduler().acquire(this.address_statistics,
+                                                       RequestScheduler.Lane.of(kvmsg, size), size);
+        try {
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                return this.expired(key, timeout);
+            }
+            return this.parseKVMessage(kvmsg);
+        } finally {
+            this.releaseSlot();
+        }
+    }
+    
+    /**
+     * Returns the execution slot of the current request, if it holds one. A
+     * request waiting for other servers returns it early, so that a large
+     * write does not hold up the requests queued behind it meanwhile.
+     */
+    private void releaseSlot() {
+        if (this.slot != null) {
+            this.master.getScheduler().release(this.slot);
+            this.slot = null;
+        }
+    }
+    
+    /**
+     * Waits until the backups acknowledged the last write, without holding
+     * an execution slot.
+     */
+    private void awaitReplication() {
+        this.releaseSlot();
+        this.master.awaitReplication();
+    }
+    
+    /**
+     * Counts an expired request and builds the reply to it.
+     * @param key The key of the request
+     * @param timeout The timeout the request was sent with
+     * @return DEADLINE_EXCEEDED
+     */
+    private KVMessage expired(String key, long timeout) {
+        this.master.recordExpiredRequest();
+        return new KVMessageRaw(StatusType.DEADLINE_EXCEEDED, key,
+                                "Request expired after " + timeout + " ms before it was executed.");
+    }
+    
+    /**
+     * Registers or removes a watch for this client.
+     * @param key The key or the key prefix
+     * @param prefix True if the key is a prefix
+     * @param watch True to register the watch, false to remove it
+     */
+    private synchronized void updateWatch(String key, boolean prefix, boolean watch) {
+        WatchRegistry   registry = this.master.getWatchRegistry();
+        Set<String>     watched = prefix ? this.watched_prefixes : this.watched_keys;
+        
+        if (watch) {
+            if (watched.add(key)) {
+                registry.watch(this, key, prefix);
+            }
+            if (this.notifier == null) {
+                this.notifier = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverNotifications();
+                    }
+                });
+                this.notifier.start();
+            }
+        } else if (watched.remove(key)) {
+            registry.unwatch(this, key, prefix);
+        }
+    }
+    
+    /**
+     * Removes all the watches of this client.
+     */
+    private synchronized void unwatchAll() {
+        WatchRegistry registry = this.master.getWatchRegistry();
+        
+        for (String key : this.watched_keys) {
+            registry.unwatch(this, key, false);
+        }
+        for (String prefix : this.watched_prefixes) {
+            registry.unwatch(this, prefix, true);
+        }
+        this.watched_keys.clear();
+        this.watched_prefixes.clear();
+        
+        if (this.notifier != null) {
+            this.notifier.interrupt();
+        }
+    }
+    
+    /**
+     * Main loop of the notifier thread: sends queued notifications to the
+     * client until the connection is closed.
+     */
+    private void deliverNotifications() {
+        try {
+            while (this.online) {
+                this.send(this.notifications.take());
+            }
+        } catch (InterruptedException e) {
+            // Connection is being closed
+        } catch (IOException e) {
+            logger.error("Error! Unable to deliver notification: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Applies replication traffic from the primary server.
+     * @param kvmsg The replication message
+     * @return REPLICA_ACK with the new position of this backup, or
+     *          REPLICA_ERROR if this server is not a backup
+     * @throws ParseException Thrown if the message is malformed
+     */
+    private KVMessage handleReplication(KVMessage kvmsg) throws ParseException {
+        ReplicaState replica = this.master.getReplicaState();
+        
+        if (replica == null) {
+            return new KVMessageRaw(StatusType.REPLICA_ERROR, "", "Server is not a backup.");
+        }
+        
+        long[]  header = parseNumbers(kvmsg.getValue(), 2);
+        long    position;
+        
+        switch (kvmsg.getStatus()) {
+            case REPLICA_HELLO:
+                position = replica.hello(header[0]);
+                break;
+            
+            case REPLICATE:
+                position = replica.applyChanges(header[0], header[1],
+                                                ((KVMessageBatch) kvmsg).getEntries());
+                break;
+            
+            default:
+                String phase = kvmsg.getKey();
+                position = replica.applySnapshot(header[0], header[1],
+                        ReplicationManager.SNAPSHOT_FIRST.equals(phase) ||
+                                ReplicationManager.SNAPSHOT_ONLY.equals(phase),
+                        ReplicationManager.SNAPSHOT_LAST.equals(phase) ||
+                                ReplicationManager.SNAPSHOT_ONLY.equals(phase),
+                        ((KVMessageBatch) kvmsg).getEntries());
+                break;
+        }
+        
+        return new KVMessageRaw(StatusType.REPLICA_ACK, "", Long.toString(position));
+    }
+    
+    /**
+     * Checks a bounded-staleness read against the position of this backup. The
+     * value of such a 'get' request carries the maximal number of the primary's
+     * changes the client accepts to miss.
+     * @param kvmsg The 'get' request
+     * @return REPLICA_STALE with the applied and the primary's sequence numbers
+     *          if this backup is too far behind, or null if it may serve the read
+     * @throws ParseException Thrown if the staleness bound is malformed
+     */
+    private KVMessage checkStaleness(KVMessage kvmsg) throws ParseException {
+        ReplicaState    replica = this.master.getReplicaState();
+        long            max_lag = parseNumbers(kvmsg.getValue(), 1)[0];
+        
+        if (replica.getLag() <= max_lag) {
+            return null;
+        }
+        return new KVMessageRaw(StatusType.REPLICA_STALE, kvmsg.getKey(),
+                                replica.getAppliedSequence() + " " + replica.getPrimarySequence());
+    }
+    
+    /**
+     * Handles the requests which a member of a consensus group serves through
+     * the Raft log, and the Raft traffic between the members.
+     * @param kvmsg The request
+     * @return The reply, or null if the request is served as usual
+     * @throws ParseException Thrown if the message is malformed
+     */
+    private KVMessage handleConsensus(KVMessage kvmsg) throws ParseException {
+        RaftNode    raft = this.master.getRaft();
+        long[]      header;
+        
+        switch (kvmsg.getStatus()) {
+            case PUT:
+                // Waits for a majority of the group, without holding a slot
+                this.releaseSlot();
+                return raft.submit(kvmsg.getKey(), kvmsg.getValue());
+            
+            case GET:
+                this.releaseSlot();
+                return raft.read(kvmsg.getKey());
+            
+            case TRANSACTION:
+                return new KVMessageRaw(StatusType.TRANSACTION_ERROR, "",
+                                        "Transactions are not supported by a consensus group.");
+            
+            case RAFT_APPEND:
+                header = parseNumbers(kvmsg.getValue(), 4);
+                return raft.handleAppend(kvmsg.getKey(), header[0], header[1], header[2], header[3],
+                                         ((KVMessageBatch) kvmsg).getEntries());
+            
+            case RAFT_VOTE:
+                header = parseNumbers(kvmsg.getValue(), 3);
+                return raft.handleVote(kvmsg.getKey(), header[0], header[1], header[2]);
+            
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Handles the traffic of a key range transfer between servers.
+     * @param kvmsg The rebalancing message
+     * @return REBALANCE_ACK, or REBALANCE_ERROR if the request is refused
+     * @throws ParseException Thrown if the message is malformed
+     */
+    private KVMessage handleRebalancing(KVMessage kvmsg) throws ParseException {
+        Rebalancer rebalancer = this.master.getRebalancer();
+        
+        try {
+            switch (kvmsg.getStatus()) {
+                case REBALANCE_START:
+                    HashRing ring;
+                    try {
+                        ring = HashRing.parse(kvmsg.getValue());
+                    } catch (IllegalArgumentException e) {
+                        throw new ParseException(e.getMessage(), 0);
+                    }
+                    rebalancer.startTransfer(kvmsg.getKey(), ring);
+                    break;
+                
+                case REBALANCE_DATA:
+                    rebalancer.receive(kvmsg.getKey(), ((KVMessageBatch) kvmsg).getEntries());
+                    break;
+                
+                default:
+                    rebalancer.commit(kvmsg.getKey());
+                    break;
+            }
+        } catch (IllegalStateException e) {
+            return new KVMessageRaw(StatusType.REBALANCE_ERROR, "", e.getMessage());
+        }
+        
+        return new KVMessageRaw(StatusType.REBALANCE_ACK, "", null);
+    }
+    
+    /**
+     * Checks whether the keys of a request belong to this server. A
+     * transaction is routed by its first key and must not touch keys of other
+     * servers.
+     * @param kvmsg The request
+     * @return SERVER_NOT_RESPONSIBLE carrying the current ring metadata,
+     *          TRANSACTION_ERROR for a transaction spanning several servers,
+     *          or null if the request can be served here
+     */
+    private KVMessage checkResponsibility(KVMessage kvmsg) {
+        HashRing ring = this.master.getMetadata();
+        if (ring == null) {
+            return null;
+        }
+        
+        switch (kvmsg.getStatus()) {
+            case PUT:
+            case GET:
+                if (kvmsg.getKey() != null && !this.master.isResponsible(kvmsg.getKey())) {
+                    return new KVMessageRaw(StatusType.SERVER_NOT_RESPONSIBLE, kvmsg.getKey(),
+                                            ring.serialize());
+                }
+                return null;
+            
+            case TRANSACTION:
+                List<KVMessageBatch.Entry> operations = ((KVMessageBatch) kvmsg).getEntries();
+                for (int i = 0; i < operations.size(); ++i) {
+                    String key = operations.get(i).key;
+                    if (key == null || this.master.isResponsible(key)) {
+                        continue;
+                    }
+                    if (i == 0) {
+                        return new KVMessageRaw(StatusType.SERVER_NOT_RESPONSIBLE, key,
+                                                ring.serialize());
+                    }
+                    return new KVMessageRaw(StatusType.TRANSACTION_ERROR, key,
+                                            "Keys of a transaction must belong to one server.");
+                }
+                return null;
+            
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Answers the handshake opening a connection: agrees on the highest
+     * version both sides speak, and grants the requested features which the
+     * server offers. The features are used in both directions once the reply
+     * has been sent, and for the rest of the connection.
+     * @param version Highest version spoken by the client
+     * @param features Requested features and compression threshold
+     * @return HELLO_SUCCESS with the agreed version and the granted features
+     * @throws ParseException Thrown if the handshake is malformed, or if it
+     *          was already made
+     */
+    private KVMessage negotiateProtocol(String version, String features) throws ParseException {
+        int     requested = Protocol.parseVersion(version);
+        int[]   options = Protocol.parseFeatures(features);
+        
+        if (this.protocol_version != 0 || this.compressor != null || this.negotiated != null) {
+            throw new ParseException("Protocol was already negotiated.", 0);
+        }
+        
+        int granted = options[0] & this.master.getProtocolFeatures();
+        this.protocol_version = Math.min(requested, Protocol.VERSION);
+        if ((granted & Protocol.FEATURE_COMPRESSION) != 0) {
+            this.negotiated = new FrameCompressor(options[1]);
+        }
+        this.negotiated_checksums = (granted & Protocol.FEATURE_CHECKSUMS) != 0;
+        
+        return new KVMessageRaw(StatusType.HELLO_SUCCESS, Integer.toString(this.protocol_version),
+                                Protocol.formatFeatures(granted, options[1]));
+    }
+    
+    /**
+     * Answers the compression handshake of a client. Frames are compressed
+     * in both directions once the reply has been sent, and for the rest of
+     * the connection.
+     * @param codec Name of the codec requested by the client
+     * @param threshold Size above which frames are compressed
+     * @return COMPRESSION_SUCCESS, or COMPRESSION_ERROR if the codec is not
+     *          supported or compression is already enabled
+     * @throws ParseException Thrown if the threshold is invalid
+     */
+    private KVMessage negotiateCompression(String codec, String threshold) throws ParseException {
+        long size = parseNumbers(threshold, 1)[0];
+        
+        if (size < 0 || size > NetworkMessage.MAX_MESSAGE_SIZE) {
+            throw new ParseException("Invalid compression threshold: '" + threshold + "'.", 0);
+        }
+        if (!FrameCompressor.CODEC.equals(codec)) {
+            return new KVMessageRaw(StatusType.COMPRESSION_ERROR, (codec != null) ? codec : "",
+                                    "Unsupported codec; supported: '" + FrameCompressor.CODEC + "'.");
+        }
+        if (this.compressor != null || this.negotiated != null) {
+            return new KVMessageRaw(StatusType.COMPRESSION_ERROR, codec, "Compression is already enabled.");
+        }
+        
+        this.negotiated = new FrameCompressor((int) size);
+        return new KVMessageRaw(StatusType.COMPRESSION_SUCCESS, codec, Long.toString(size));
+    }
+    
+    /**
+     * Checks whether a request is served on behalf of a client, as opposed to
+     * long polls and server-to-server traffic.
+     * @param kvmsg The request
+     * @return True for 'put', 'get' and transactions
+     */
+    private static boolean isForegroundRequest(KVMessage kvmsg) {
+        return kvmsg.getStatus() == StatusType.PUT || kvmsg.getStatus() == StatusType.GET ||
+               kvmsg.getStatus() == StatusType.TRANSACTION;
+    }
+    
+    /**
+     * Checks whether a message carries a value, without decoding it.
+     * @param kvmsg The message
+     * @return True if the value is not null
+     */
+    private static boolean hasValue(KVMessage kvmsg) {
+        if (kvmsg instanceof KVMessageSlice) {
+            return ((KVMessageSlice) kvmsg).hasValue();
+        }
+        return kvmsg.getValue() != null;
+    }
+    
+    /**
+     * Checks whether a request modifies the data.
+     * @param kvmsg The request
+     * @return True for 'put', 'delete', and transactions containing them
+     */
+    private static boolean isWriteRequest(KVMessage kvmsg) {
+        if (kvmsg.getStatus() == StatusType.PUT) {
+            return true;
+        }
+        if (kvmsg.getStatus() == StatusType.TRANSACTION) {
+            for (KVMessageBatch.Entry op : ((KVMessageBatch) kvmsg).getEntries()) {
+                if (op.op == StatusType.PUT) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Parses a string of space-separated numbers.
+     * @param str The string
+     * @param count Minimal number of values expected (missing values are 0)
+     * @return Array of parsed values
+     * @throws ParseException Thrown if the string is malformed
+     */
+    private static long[] parseNumbers(String str, int count) throws ParseException {
+        String[]    tokens = (str != null) ? str.trim().split("\\s+") : new String[0];
+        long[]      numbers = new long[Math.max(count, tokens.length)];
+        
+        try {
+            for (int i = 0; i < tokens.length; ++i) {
+                numbers[i] = Long.parseLong(tokens[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid numeric header: '" + str + "'.", 0);
+        }
+        
+        return numbers;
+    }
+    
+    /**
+     * Formats a socket address as "host:port".
+     * @param address The address
+     * @return The address string
+     */
+    static String formatAddress(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+    
     /**
      * Parses the query received from client, updates or requests data from the
-     * key-value data storage, and generates a reply-message.
+     * key-value data storage, and generates a reply-message. Writes to a
+     * partitioned server hold the ownership lock, so that key ranges cannot be
+     * handed over while a write is in progress.
      * @param kvmsg Client's query in a form of KVMessage
      * @return KVMessage representing the reply for the client
      * @throws ParseException Thrown if client's query contains illegal data
      */
     private KVMessage parseKVMessage(KVMessage kvmsg) throws ParseException {
+        if (this.master.getMetadata() == null || !isWriteRequest(kvmsg)) {
+            return this.processRequest(kvmsg);
+        }
+        
+        Lock ownership = this.master.getRebalancer().getOwnershipLock();
+        ownership.lock();
+        try {
+            return this.processRequest(kvmsg);
+        } finally {
+            ownership.unlock();
+        }
+    }
+    
+    /**
+     * Executes a client's query.
+     * @param kvmsg Client's query in a form of KVMessage
+     * @return KVMessage representing the reply for the client
+     * @throws ParseException Thrown if client's query contains illegal data
+     */
+    private KVMessage processRequest(KVMessage kvmsg) throws ParseException {
         StatusType  type = kvmsg.getStatus();
         String      key = kvmsg.getKey();
-        String      value = kvmsg.getValue();
+        boolean     has_value = hasValue(kvmsg);
+        // Values of 'put' and 'get' requests are passed on without being decoded
+        String      value = (type == StatusType.PUT || type == StatusType.GET) ? null : kvmsg.getValue();
         
         StatusType  return_type = null;
         String      return_value = null;
+        List<KVMessageBatch.Entry> return_entries = null;
+        
+        if (this.master.getRaft() != null) {
+            KVMessage reply = this.handleConsensus(kvmsg);
+            if (reply != null) {
+                return reply;
+            }
+        }
+        
+        if (this.master.getReplicaState() != null && isWriteRequest(kvmsg)) {
+            return new KVMessageRaw(StatusType.SERVER_WRITE_LOCK, (key != null) ? key : "",
+                                    formatAddress(this.master.getReplicaState().getPrimary()));
+        }
+        
+        if (this.master.getReplicaState() != null && type == StatusType.GET && has_value) {
+            KVMessage stale = this.checkStaleness(kvmsg);
+            if (stale != null) {
+                return stale;
+            }
+        }
+        
+        KVMessage redirect = this.checkResponsibility(kvmsg);
+        if (redirect != null) {
+            return redirect;
+        }
         
         switch (type) {
             case PUT:
-                if (value != null) { // Performing put operation
+                if (has_value) { // Performing put operation
                     try {
+                        if (kvmsg instanceof KVMessageSlice) {
+                            KVMessageSlice  request = (KVMessageSlice) kvmsg;
+                            boolean         updated = this.master.getDataStorage().putBytes(
+                                                        key, request.getValueBytes());
+                            
+                            // Semi-synchronous replication, as for the other writes below
+                            this.awaitReplication();
+                            
+                            // Return the value form the client query, as it was received
+                            return request.reply(updated ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS);
+                        }
+                        value = kvmsg.getValue();
                         return_value = this.master.getDataStorage().put(key, value);
                         return_type = (return_value == null) ?
                                         StatusType.PUT_SUCCESS : StatusType.PUT_UPDATE;
                         return_value = value; // Return the value form the client query
-                        
+                    
                     } catch (IllegalArgumentException e) {
                         return_type = StatusType.PUT_ERROR;
                         return_value = e.getMessage();
                     }
-                    
+                
                 } else { // Performing delete operation
                     return_value = this.master.getDataStorage().delete(key);
                     if (return_value == null) {
@@ -156,21 +1011,139 @@ public class ClientConnection implements Runnable {
                     }
                 }
                 break;
-                
+            
             case GET:
-                return_value = this.master.getDataStorage().get(key);
-                if (return_value == null) {
+                if (this.compressor != null) {
+                    // Sent without being decompressed and compressed again
+                    CompressedValue compressed = this.master.getDataStorage().getCompressed(key);
+                    if (compressed != null) {
+                        return new KVMessageCompressed(StatusType.GET_SUCCESS, key, compressed);
+                    }
+                } else if (!this.checksummed && this.master.getDataStorage().getResponseCache().isEnabled()) {
+                    KVMessage cached = this.getCached(key);
+                    if (cached != null) {
+                        return cached;
+                    }
+                }
+                byte[] encoded = this.master.getDataStorage().getBytes(key);
+                if (encoded == null) {
                     return_type = StatusType.GET_ERROR;
                     return_value = "Requested key is not found or invalid.";
                 } else {
-                    return_type = StatusType.GET_SUCCESS;
+                    return KVMessageSlice.of(StatusType.GET_SUCCESS, key, encoded);
                 }
                 break;
+            
+            case TRANSACTION:
+                try {
+                    return_entries = this.master.getDataStorage().transaction(
+                                        ((KVMessageBatch) kvmsg).getEntries());
+                    return_type = StatusType.TRANSACTION_SUCCESS;
+                    
+                    // Reply with the new version, if anything was modified
+                    for (KVMessageBatch.Entry result : return_entries) {
+                        if (result.op == StatusType.PUT) {
+                            return_value = Long.toString(result.version);
+                            break;
+                        }
+                    }
                 
+                } catch (VersionConflictException e) {
+                    return_type = StatusType.TRANSACTION_ERROR;
+                    key = e.getKey();
+                    return_value = e.getMessage();
+                
+                } catch (IllegalArgumentException e) {
+                    return_type = StatusType.TRANSACTION_ERROR;
+                    return_value = e.getMessage();
+                }
+                break;
+            
+            case CDC_FETCH:
+                long after;
+                try {
+                    after = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Invalid change log position: '" + value + "'.", 0);
+                }
+                
+                try {
+                    ChangeLog change_log = this.master.getDataStorage().getChangeLog();
+                    
+                    if (after == ChangeLog.TAIL) {
+                        after = change_log.getLastSequence();
+                    }
+                    
+                    return_entries = change_log.read(after, CDC_BATCH_BYTES, CDC_WAIT_TIME);
+                    return_type = StatusType.CDC_BATCH;
+                    return_value = Long.toString(return_entries.isEmpty() ?
+                                    after : return_entries.get(return_entries.size() - 1).version);
+                
+                } catch (ChangeLogTruncatedException e) {
+                    return_type = StatusType.CDC_TRUNCATED;
+                    return_value = e.getMessage();
+                
+                } catch (InterruptedException e) {
+                    return_type = StatusType.CDC_BATCH;
+                    return_value = Long.toString(after);
+                    return_entries = new ArrayList<KVMessageBatch.Entry>();
+                }
+                break;
+            
+            case WATCH:
+            case UNWATCH:
+                if (key == null && WATCH_PREFIX.equals(value)) {
+                    key = ""; // Empty prefix: watching all keys
+                }
+                if (key == null || key.length() > MAX_KEY_LENGTH) {
+                    return_type = StatusType.WATCH_ERROR;
+                    return_value = "Illegal key: '" + key + "'.";
+                } else if (value != null && !value.equals(WATCH_PREFIX)) {
+                    return_type = StatusType.WATCH_ERROR;
+                    return_value = "Illegal watch mode: '" + value + "'.";
+                } else {
+                    this.updateWatch(key, value != null, type == StatusType.WATCH);
+                    return_type = StatusType.WATCH_SUCCESS;
+                    return_value = value;
+                }
+                break;
+            
+            case HELLO:
+                return this.negotiateProtocol(key, value);
+            
+            case COMPRESSION:
+                return this.negotiateCompression(key, value);
+            
+            case GET_METADATA:
+                HashRing ring = this.master.getMetadata();
+                return new KVMessageRaw(StatusType.METADATA, "",
+                                        (ring != null) ? ring.serialize() : null);
+            
+            case REPLICA_HELLO:
+            case REPLICATE:
+            case REPLICA_SNAPSHOT:
+                return this.handleReplication(kvmsg);
+            
+            case REBALANCE_START:
+            case REBALANCE_DATA:
+            case REBALANCE_COMMIT:
+                return this.handleRebalancing(kvmsg);
+            
             default:
                 throw new ParseException("Message type '" + type + "' is not a valid request.", 0);
         }
         
-        return new KVMessageRaw(return_type, key, return_value);
+        // Semi-synchronous replication: confirm writes once the backups have them
+        if (return_type == StatusType.PUT_SUCCESS || return_type == StatusType.PUT_UPDATE ||
+                return_type == StatusType.DELETE_SUCCESS ||
+                (return_type == StatusType.TRANSACTION_SUCCESS && return_value != null)) {
+            this.awaitReplication();
+        }
+        
+        if (return_entries != null) {
+            return new KVMessageBatch(return_type, key, return_value, return_entries);
+        }
+        
+        return new KVMessageRaw(return_type, (key != null) ? key : "", return_value);
     }
 }
@@ -0,0 +1,153 @@
+package app_kvServer;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resource usage of a single client connection, or of all the connections
+ * from one remote address. The counters are lock-free, so recording costs a
+ * few atomic increments and the statistics of an address can be shared by all
+ * its connections.
+ * @author Danila Klimenko
+ */
+public class ClientStatistics {
+    /**
+     * Orders statistics by decreasing cumulative service time.
+     */
+    public static final Comparator<ClientStatistics> BY_SERVICE_TIME = new Comparator<ClientStatistics>() {
+        @Override
+        public int compare(ClientStatistics a, ClientStatistics b) {
+            long x = a.getServiceTime();
+            long y = b.getServiceTime();
+            return (x > y) ? -1 : (x < y) ? 1 : 0;
+        }
+    };
+    
+    private final String        name;
+    private final AtomicInteger connections;
+    private final AtomicLong    requests;
+    private final AtomicLong    bytes_in;
+    private final AtomicLong    bytes_out;
+    private final AtomicLong    errors;
+    private final AtomicLong    service_time;
+    
+    /**
+     * Main constructor.
+     * @param name The connection or the address the statistics belong to
+     */
+    public ClientStatistics(String name) {
+        this.name = name;
+        this.connections = new AtomicInteger();
+        this.requests = new AtomicLong();
+        this.bytes_in = new AtomicLong();
+        this.bytes_out = new AtomicLong();
+        this.errors = new AtomicLong();
+        this.service_time = new AtomicLong();
+    }
+    
+    /**
+     * Records a served request.
+     * @param bytesIn Size of the request frame
+     * @param serviceTime Time from reading the request until the reply was
+     *          written, in nanoseconds
+     * @param error True if the request failed
+     */
+    public void recordRequest(int bytesIn, long serviceTime, boolean error) {
+        this.requests.incrementAndGet();
+        this.bytes_in.addAndGet(bytesIn);
+        this.service_time.addAndGet(serviceTime);
+        if (error) {
+            this.errors.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Records a frame sent to the client, either a reply or a notification.
+     * @param bytesOut Size of the frame
+     */
+    public void recordSent(int bytesOut) {
+        this.bytes_out.addAndGet(bytesOut);
+    }
+    
+    /**
+     * Records a connection being opened.
+     */
+    public void connectionOpened() {
+        this.connections.incrementAndGet();
+    }
+    
+    /**
+     * Records a connection being closed.
+     */
+    public void connectionClosed() {
+        this.connections.decrementAndGet();
+    }
+    
+    /**
+     * Getter method for the name of the connection or the address.
+     * @return The name
+     */
+    public String getName() {
+        return this.name;
+    }
+    
+    /**
+     * Getter method for the number of open connections.
+     * @return The number of connections
+     */
+    public int getConnections() {
+        return this.connections.get();
+    }
+    
+    /**
+     * Getter method for the number of served requests.
+     * @return The number of requests
+     */
+    public long getRequests() {
+        return this.requests.get();
+    }
+    
+    /**
+     * Getter method for the number of bytes received.
+     * @return The number of bytes
+     */
+    public long getBytesIn() {
+        return this.bytes_in.get();
+    }
+    
+    /**
+     * Getter method for the number of bytes sent.
+     * @return The number of bytes
+     */
+    public long getBytesOut() {
+        return this.bytes_out.get();
+    }
+    
+    /**
+     * Getter method for the number of failed requests.
+     * @return The number of errors
+     */
+    public long getErrors() {
+        return this.errors.get();
+    }
+    
+    /**
+     * Getter method for the cumulative service time.
+     * @return The service time in nanoseconds
+     */
+    public long getServiceTime() {
+        return this.service_time.get();
+    }
+    
+    /**
+     * Formats the statistics as a row of the 'clients' report.
+     * @return The row
+     */
+    @Override
+    public String toString() {
+        return String.format("%-32s %5d %10d %12d %12d %8d %12.1f", this.name, this.getConnections(),
+                             this.getRequests(), this.getBytesIn(), this.getBytesOut(),
+                             this.getErrors(), this.getServiceTime() / 1e6);
+    }
+}
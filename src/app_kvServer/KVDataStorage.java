@@ -1,31 +1,130 @@
 package app_kvServer;
 
-import java.util.HashMap;
+import common.messages.CompressedValue;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.metrics.LatencyHistogram;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
 
 /**
  * Class responsible for storing the key-value data.
+ * <p>
+ * The storage is multi-versioned: every write creates a new version of the key
+ * stamped with a global sequence number, and readers see the state as of a
+ * snapshot sequence number. Readers therefore never take locks and never block
+ * writers. Writers serialize per key on a fixed set of striped locks, so that
+ * multi-key transactions only lock the stripes of the keys they touch; the new
+ * versions are then published under a short commit section which assigns the
+ * sequence number. Versions no longer visible to any reader are removed by a
+ * background garbage collector.
+ * <p>
+ * Values above a size threshold may be kept in compressed form. They are
+ * compressed before any lock is taken, and only decompressed when they are
+ * read as strings; getCompressed() returns them as they are stored.
+ * Identical values may also be shared: they are looked up by content in a
+ * pool counting the versions which refer to them, and the garbage collector
+ * drops the references of the versions it removes.
  * @author Danila Klimenko
  */
 public class KVDataStorage {
+    private static final Logger logger = LogSetup.getLogger();
+    
     private static final int    MAX_KEY_LENGTH = 20;
     private static final int    MAX_VALUE_LENGTH = 120 * 1024;
+    private static final int    LOCK_STRIPES = 64;
+    private static final long   GC_INTERVAL = 500; // milliseconds
+    static final int            DEFAULT_CHANGE_LOG_CAPACITY = 16 * 1024;
+    static final long           DEFAULT_CHANGE_LOG_BYTES = 64 * 1024 * 1024;
+    private static final int    CLEAR_BATCH_SIZE = 1024;
+    private static final int    MIN_SHARED_LENGTH = 128; // Smaller values cost less than their pool entry
     
-    private final Map<String, String>       storage;
-    private final ReentrantReadWriteLock    rw_lock;
-    private final Lock                      read_lock;
-    private final Lock                      write_lock;
+    private final ConcurrentMap<String, Record> storage;
+    private final ReentrantLock[]               stripes;
+    private final Object                        commit_lock;
+    private volatile long                       stable_seq;
+    private final TreeMap<Long, Integer>        pinned_snapshots;
+    private final ConcurrentLinkedQueue<String> gc_queue;
+    private final Thread                        gc_thread;
+    private final ChangeLog                     change_log;
+    private volatile boolean                    online;
+    private volatile int                        compression_threshold;
+    private volatile boolean                    deduplicated;
+    private final ValuePool                     value_pool;
+    private final ResponseCache                 response_cache;
     
     /**
-     * Main parameterless constructor.
+     * Main parameterless constructor. Starts the garbage collector thread.
      */
     public KVDataStorage() {
-        this.storage = new HashMap<String, String>();
-        this.rw_lock = new ReentrantReadWriteLock();
-        this.read_lock = this.rw_lock.readLock();
-        this.write_lock = this.rw_lock.writeLock();
+        this(DEFAULT_CHANGE_LOG_CAPACITY);
+    }
+    
+    /**
+     * Constructor with an explicit change log size. Starts the garbage
+     * collector thread.
+     * @param changeLogCapacity Number of commits retained in the change log
+     */
+    public KVDataStorage(int changeLogCapacity) {
+        this(changeLogCapacity, DEFAULT_CHANGE_LOG_BYTES);
+    }
+    
+    /**
+     * Constructor with an explicit change log size and size limit. Starts the
+     * garbage collector thread.
+     * @param changeLogCapacity Number of commits retained in the change log
+     * @param changeLogBytes Approximate size limit for the values retained in
+     *          the change log, in bytes
+     */
+    public KVDataStorage(int changeLogCapacity, long changeLogBytes) {
+        this.storage = new ConcurrentHashMap<String, Record>();
+        this.stripes = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.commit_lock = new Object();
+        this.stable_seq = 0;
+        this.pinned_snapshots = new TreeMap<Long, Integer>();
+        this.gc_queue = new ConcurrentLinkedQueue<String>();
+        this.change_log = new ChangeLog(changeLogCapacity, changeLogBytes);
+        this.online = true;
+        this.compression_threshold = -1;
+        this.deduplicated = false;
+        this.value_pool = new ValuePool();
+        this.response_cache = new ResponseCache();
+        
+        this.gc_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (online) {
+                    try {
+                        Thread.sleep(GC_INTERVAL);
+                        collectGarbage();
+                    } catch (InterruptedException e) {
+                        // Woken up by shutDown()
+                    } catch (RuntimeException e) {
+                        logger.error("Error! Version garbage collection failed: " + e.getMessage());
+                    }
+                }
+            }
+        }, "KVDataStorage-GC");
+        this.gc_thread.setDaemon(true);
+        this.gc_thread.start();
     }
     
     /**
@@ -38,24 +137,60 @@ public class KVDataStorage {
      */
     public String put(String key, String value) throws IllegalArgumentException {
         // Verify arguments
-        if (key == null || key.length() > MAX_KEY_LENGTH) {
-            throw new IllegalArgumentException("Illegal key: '" + key + "'.");
-        }
-        if (value == null || value.length() > MAX_VALUE_LENGTH) {
-            throw new IllegalArgumentException("Illegal value: '" + key + "'.");
-        }
+        verifyKey(key);
+        verifyValue(key, value);
+        
+        Version prev = this.write(key, value, value.length());
+        return (prev != null) ? prev.value() : null;
+    }
+    
+    /**
+     * Variant of the 'put' command for values in encoded form, which are
+     * stored as they are instead of being decoded.
+     * @param key The key
+     * @param value The bytes of the value; must not be modified afterwards
+     * @return True if the key was present in the key-value storage
+     * @throws IllegalArgumentException Thrown if key or value are illegal
+     */
+    public boolean putBytes(String key, byte[] value) throws IllegalArgumentException {
+        // Verify arguments
+        verifyKey(key);
+        verifyValue(key, value);
+        
+        Version prev = this.write(key, value, value.length);
+        return prev != null && prev.data != null;
+    }
+    
+    /**
+     * Writes a single value.
+     * @param key The key
+     * @param value The value, as a string or in encoded form
+     * @param size Size of the value, for the storage events
+     * @return The version replaced, or null if there was none
+     */
+    private Version write(String key, Object value, int size) {
+        RequestEvents.StorageOperation event = new RequestEvents.StorageOperation();
+        event.begin();
+        
+        Object data = this.encode(value);
         
         // Put (key,value) pair into storage
-        String prev_value = null;
+        ReentrantLock stripe = stripeOf(key);
         
-        write_lock.lock();
+        long requested = event.lockRequested();
+        stripe.lock();
+        event.lockAcquired(requested);
         try {
-            prev_value = storage.put(key, value);
+            Record  record = recordOf(key);
+            Version prev = record.head;
+            
+            commit(new Record[] { record }, new Object[] { value }, new Object[] { data });
+            
+            return prev;
         } finally {
-            write_lock.unlock();
+            stripe.unlock();
+            event.finish(StatusType.PUT, size);
         }
-        
-        return prev_value;
     }
     
     /**
@@ -69,20 +204,78 @@ public class KVDataStorage {
             return null;
         }
         
-        String value = null;
+        RequestEvents.StorageOperation event = new RequestEvents.StorageOperation();
+        event.begin();
         
-        read_lock.lock();
-        try {
-            value = storage.get(key);
-        } finally {
-            read_lock.unlock();
+        Version version = readLatest(key);
+        
+        String value = (version != null) ? version.value() : null;
+        event.finish(StatusType.GET, (value != null) ? value.length() : 0);
+        return value;
+    }
+    
+    /**
+     * Variant of the 'get' command returning the value in encoded form, so
+     * that a value stored as bytes is not decoded.
+     * @param key The key to look for
+     * @return The bytes of the value associated with the given key, which must
+     *          not be modified, or null, if the key was not present in the
+     *          key-value storage.
+     */
+    public byte[] getBytes(String key) {
+        if (key == null || key.length() > MAX_KEY_LENGTH) {
+            return null;
         }
         
+        RequestEvents.StorageOperation event = new RequestEvents.StorageOperation();
+        event.begin();
+        
+        Version version = readLatest(key);
+        
+        byte[] value = (version != null) ? version.bytes() : null;
+        event.finish(StatusType.GET, (value != null) ? value.length : 0);
         return value;
     }
     
     /**
-     * Method implementing the 'get' command.
+     * Variant of the 'get' command for values stored in compressed form.
+     * @param key The key to look for
+     * @return The compressed value associated with the given key, or null, if
+     *          the key was not present or its value is not compressed.
+     */
+    public CompressedValue getCompressed(String key) {
+        if (key == null || key.length() > MAX_KEY_LENGTH) {
+            return null;
+        }
+        
+        RequestEvents.StorageOperation event = new RequestEvents.StorageOperation();
+        event.begin();
+        
+        Version         version = readLatest(key);
+        Object          data = (version != null) ? version.stored() : null;
+        CompressedValue value = (data instanceof CompressedValue) ? (CompressedValue) data : null;
+        
+        event.finish(StatusType.GET, (value != null) ? value.getCompressedSize() : 0);
+        return value;
+    }
+    
+    /**
+     * Returns the version of the current value of a key.
+     * @param key The key to look for
+     * @return The sequence number of the commit which wrote the value, or 0 if
+     *          the key is not present
+     */
+    public long getVersion(String key) {
+        if (key == null || key.length() > MAX_KEY_LENGTH) {
+            return 0;
+        }
+        
+        Version version = readLatest(key);
+        return (version != null) ? version.seq : 0;
+    }
+    
+    /**
+     * Method implementing the 'delete' command.
      * @param key The key to look for
      * @return The value previously associated with the given key, or null, if
      *          the key was not present in the key-value storage.
@@ -92,16 +285,182 @@ public class KVDataStorage {
             return null;
         }
         
-        String deleted_value = null;
+        RequestEvents.StorageOperation event = new RequestEvents.StorageOperation();
+        event.begin();
+        
+        ReentrantLock stripe = stripeOf(key);
         
-        write_lock.lock();
+        long requested = event.lockRequested();
+        stripe.lock();
+        event.lockAcquired(requested);
         try {
-            deleted_value = storage.remove(key);
+            Record record = storage.get(key);
+            if (record == null || record.head == null || record.head.data == null) {
+                return null;
+            }
+            
+            String deleted_value = record.head.value();
+            commit(new Record[] { record }, new String[] { null }, new Object[] { null });
+            
+            return deleted_value;
         } finally {
-            write_lock.unlock();
+            stripe.unlock();
+            event.finish("DELETE", 0);
+        }
+    }
+    
+    /**
+     * Method implementing the 'transaction' command. Either all operations are
+     * applied, or none of them is. Only the lock stripes of the keys involved
+     * are taken, always in ascending order, so concurrent transactions cannot
+     * deadlock and operations on unrelated keys proceed in parallel. All new
+     * versions are published at once, so readers never see a partial batch.
+     * <p>
+     * Version preconditions are evaluated against the state preceding the
+     * transaction. All modified keys receive the same new version. A
+     * transaction without modifications is executed on a snapshot and takes no
+     * locks at all.
+     * @param operations List of operations: PUT (null value means 'delete')
+     *          or GET (version check and read)
+     * @return One entry per operation: the value and version read for GET, the
+     *          new version for PUT
+     * @throws IllegalArgumentException Thrown if an operation is illegal
+     * @throws VersionConflictException Thrown if a version precondition fails
+     */
+    public List<KVMessageBatch.Entry> transaction(List<KVMessageBatch.Entry> operations)
+            throws IllegalArgumentException, VersionConflictException {
+        // Verify arguments and collect the lock stripes
+        SortedSet<Integer>  stripe_ids = new TreeSet<Integer>();
+        boolean             modifies = false;
+        int                 size = 0;
+        
+        for (KVMessageBatch.Entry op : operations) {
+            verifyKey(op.key);
+            if (op.op == StatusType.PUT) {
+                if (op.value != null) {
+                    verifyValue(op.key, op.value);
+                    size += op.value.length();
+                }
+                modifies = true;
+            } else if (op.op != StatusType.GET) {
+                throw new IllegalArgumentException("Illegal operation: '" + op.op + "'.");
+            }
+            stripe_ids.add(stripeIndex(op.key));
+        }
+        
+        RequestEvents.StorageOperation event = new RequestEvents.StorageOperation();
+        event.begin();
+        
+        if (!modifies) {
+            Snapshot snapshot = this.openSnapshot();
+            try {
+                return readAll(operations, snapshot.sequence);
+            } finally {
+                snapshot.close();
+                event.finish(StatusType.TRANSACTION, size);
+            }
         }
         
-        return deleted_value;
+        Object[]    encoded = new Object[operations.size()];
+        boolean     committed = false;
+        for (int i = 0; i < encoded.length; ++i) {
+            KVMessageBatch.Entry op = operations.get(i);
+            encoded[i] = (op.op == StatusType.PUT) ? this.encode(op.value) : null;
+        }
+        
+        // Lock all involved stripes in ascending order
+        List<ReentrantLock> locked = new ArrayList<ReentrantLock>(stripe_ids.size());
+        try {
+            long requested = event.lockRequested();
+            for (Integer id : stripe_ids) {
+                stripes[id].lock();
+                locked.add(stripes[id]);
+            }
+            event.lockAcquired(requested);
+            
+            // Check all preconditions and read before applying anything
+            List<KVMessageBatch.Entry> results = readAll(operations, Long.MAX_VALUE);
+            
+            // Apply the operations
+            List<Record>    records = new ArrayList<Record>();
+            List<String>    values = new ArrayList<String>();
+            List<Object>    data = new ArrayList<Object>();
+            
+            for (int i = 0; i < operations.size(); ++i) {
+                KVMessageBatch.Entry op = operations.get(i);
+                if (op.op == StatusType.PUT) {
+                    records.add(recordOf(op.key));
+                    values.add(op.value);
+                    data.add(encoded[i]);
+                }
+            }
+            
+            long version = commit(records.toArray(new Record[records.size()]),
+                                  values.toArray(new String[values.size()]), data.toArray());
+            committed = true;
+            
+            for (int i = 0; i < results.size(); ++i) {
+                KVMessageBatch.Entry op = operations.get(i);
+                if (op.op == StatusType.PUT) {
+                    results.set(i, new KVMessageBatch.Entry(StatusType.PUT, op.key, op.value, version));
+                }
+            }
+            
+            return results;
+        
+        } finally {
+            for (ReentrantLock stripe : locked) {
+                stripe.unlock();
+            }
+            if (!committed) {
+                for (Object value : encoded) {
+                    this.release(value);
+                }
+            }
+            event.finish(StatusType.TRANSACTION, size);
+        }
+    }
+    
+    /**
+     * Opens a consistent read-only view of the storage. Writers are never
+     * blocked by an open snapshot, but versions visible to it are retained
+     * until it is closed, so snapshots should be closed as soon as possible.
+     * @return New snapshot pinned at the latest committed sequence number
+     */
+    public Snapshot openSnapshot() {
+        synchronized (this.pinned_snapshots) {
+            long    seq = this.stable_seq;
+            Integer count = this.pinned_snapshots.get(seq);
+            
+            this.pinned_snapshots.put(seq, (count == null) ? 1 : count + 1);
+            
+            return new Snapshot(seq);
+        }
+    }
+    
+    /**
+     * Returns the sequence number of the latest committed write.
+     * @return The sequence number
+     */
+    public long getSequence() {
+        return this.stable_seq;
+    }
+    
+    /**
+     * Returns the log of changes applied to the storage.
+     * @return The change log
+     */
+    public ChangeLog getChangeLog() {
+        return this.change_log;
+    }
+    
+    /**
+     * Getter method for the cache of encoded replies, which is kept free of
+     * replies for modified keys.
+     * @return The response cache
+     */
+    public ResponseCache getResponseCache() {
+        return this.response_cache;
     }
     
     /**
@@ -109,6 +468,632 @@ public class KVDataStorage {
      * @return A string containing all stored key-value data
      */
     public String dump() {
-        return storage.toString();
+        Snapshot snapshot = this.openSnapshot();
+        try {
+            return snapshot.scan("").toString();
+        } finally {
+            snapshot.close();
+        }
+    }
+    
+    /**
+     * Deletes all the keys. Deletions are applied in batches, each of them
+     * atomically, so readers may observe a partially cleared storage.
+     */
+    public void clear() {
+        List<KVMessageBatch.Entry>  batch = new ArrayList<KVMessageBatch.Entry>();
+        Snapshot                    snapshot = this.openSnapshot();
+        
+        try {
+            for (KVMessageBatch.Entry entry : snapshot) {
+                batch.add(KVMessageBatch.Entry.delete(entry.key));
+                if (batch.size() >= CLEAR_BATCH_SIZE) {
+                    this.transaction(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                this.transaction(batch);
+            }
+        } catch (VersionConflictException e) {
+            // Cannot happen: no preconditions are used
+            throw new IllegalStateException(e);
+        } finally {
+            snapshot.close();
+        }
+    }
+    
+    /**
+     * Sets the size above which values are stored in compressed form. Applies
+     * to values written afterwards.
+     * @param threshold Size of the value in characters, or -1 to store all
+     *          values as they are
+     */
+    public void setCompressionThreshold(int threshold) {
+        this.compression_threshold = threshold;
+    }
+    
+    /**
+     * Getter method for the compression threshold.
+     * @return Size of the value in characters, or -1 if values are not
+     *          compressed
+     */
+    public int getCompressionThreshold() {
+        return this.compression_threshold;
+    }
+    
+    /**
+     * Turns the sharing of identical values on or off. Applies to values
+     * written afterwards.
+     * @param deduplicated True to store identical values only once
+     */
+    public void setDeduplication(boolean deduplicated) {
+        this.deduplicated = deduplicated;
+    }
+    
+    /**
+     * Checks whether identical values are stored only once.
+     * @return True if values are shared
+     */
+    public boolean isDeduplicated() {
+        return this.deduplicated;
+    }
+    
+    /**
+     * Returns the number of distinct values shared through the pool, including
+     * values only referred to by versions not yet collected.
+     * @return The number of shared values
+     */
+    public int getSharedValueCount() {
+        return this.value_pool.size();
+    }
+    
+    /**
+     * Returns the number of records, including deleted keys whose versions
+     * were not collected yet.
+     * @return The number of records
+     */
+    public int getRecordCount() {
+        return this.storage.size();
+    }
+    
+    /**
+     * Returns a human-readable report of the space taken by the current
+     * values: their total size as written, the size actually stored once
+     * shared values are counted only once and compressed values at their
+     * compressed size, and the distribution of the sizes of the compressed
+     * values, followed by the usage of the response cache. Scans all keys.
+     * @return The report
+     */
+    public String getStorageReport() {
+        LatencyHistogram            sizes = new LatencyHistogram();
+        Map<Object, Boolean>        distinct = new IdentityHashMap<Object, Boolean>();
+        long                        values = 0, shared = 0, raw_bytes = 0, stored_bytes = 0;
+        long                        seq = this.stable_seq;
+        
+        for (Record record : this.storage.values()) {
+            Version version = record.versionAt(seq);
+            
+            if (version == null || version == Version.PRUNED || version.data == null) {
+                continue;
+            }
+            
+            Object  data = version.stored();
+            boolean first = distinct.put(data, Boolean.TRUE) == null;
+            
+            ++values;
+            if (version.data instanceof ValuePool.Entry) {
+                ++shared;
+            }
+            if (data instanceof CompressedValue) {
+                CompressedValue compressed = (CompressedValue) data;
+                
+                raw_bytes += compressed.getLength();
+                if (first) {
+                    stored_bytes += compressed.getCompressedSize();
+                    sizes.record(compressed.getCompressedSize());
+                }
+            } else {
+                // Compact strings of ASCII text take one byte per character
+                raw_bytes += sizeOf(data);
+                if (first) {
+                    stored_bytes += sizeOf(data);
+                }
+            }
+        }
+        
+        return String.format("Compression threshold: %s, deduplication: %s%n" +
+                             "Values: %d, shared: %d, distinct: %d, compressed: %d%n" +
+                             "Value bytes: %d written, %d stored (%.2fx)%n" +
+                             "Compressed sizes (bytes): p50 %d  p90 %d  p99 %d  max %d",
+                             (this.compression_threshold >= 0) ?
+                                this.compression_threshold + " characters" : "off",
+                             this.deduplicated ? "on" : "off",
+                             values, shared, distinct.size(), sizes.getCount(), raw_bytes, stored_bytes,
+                             (stored_bytes > 0) ? (double) raw_bytes / stored_bytes : 1.0,
+                             sizes.getPercentile(50), sizes.getPercentile(90),
+                             sizes.getPercentile(99), sizes.getPercentile(100)) +
+               String.format("%n") + this.response_cache.getReport();
+    }
+    
+    /**
+     * Stops the garbage collector thread.
+     */
+    public void shutDown() {
+        this.online = false;
+        this.gc_thread.interrupt();
+    }
+    
+    /**
+     * Removes versions which are no longer visible to any reader, and keys
+     * whose only remaining version is a deletion. Called periodically by the
+     * garbage collector thread.
+     */
+    void collectGarbage() {
+        long horizon;
+        
+        synchronized (this.pinned_snapshots) {
+            horizon = this.pinned_snapshots.isEmpty() ?
+                        this.stable_seq : this.pinned_snapshots.firstKey();
+        }
+        
+        List<String>    deferred = new ArrayList<String>();
+        String          key;
+        
+        while ((key = this.gc_queue.poll()) != null) {
+            ReentrantLock stripe = stripeOf(key);
+            
+            stripe.lock();
+            try {
+                Record record = this.storage.get(key);
+                if (record == null) {
+                    continue;
+                }
+                
+                // Find the newest version visible to the oldest reader
+                Version visible = record.head;
+                while (visible != null && visible.seq > horizon) {
+                    visible = visible.older;
+                }
+                
+                if (visible != null && visible.older != null) {
+                    for (Version pruned = visible.older; pruned != null && pruned != Version.PRUNED;
+                            pruned = pruned.older) {
+                        this.release(pruned.data);
+                    }
+                    visible.older = Version.PRUNED;
+                }
+                
+                if (visible == record.head && visible.data == null) {
+                    this.storage.remove(key);
+                    record.queued = false;
+                } else if (record.head.data == null) {
+                    // A delete not yet visible to the oldest reader: removed later
+                    deferred.add(key);
+                } else if (record.head.older == null || record.head.older == Version.PRUNED) {
+                    record.queued = false;
+                } else {
+                    deferred.add(key);
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+        
+        this.gc_queue.addAll(deferred);
+    }
+    
+    /**
+     * Publishes new versions for the given records. Must be called with the
+     * stripe locks of all records held. The commit section only assigns the
+     * sequence number, links the versions in and records the change in the
+     * change log, so it is kept very short.
+     * @param records Records to update
+     * @param values New values, as strings or in encoded form (null means
+     *          'delete')
+     * @param data New values as they are stored, see encode()
+     * @return The sequence number assigned to the new versions
+     */
+    private long commit(Record[] records, Object[] values, Object[] data) {
+        long        seq;
+        String[]    keys = new String[records.length];
+        
+        for (int i = 0; i < records.length; ++i) {
+            keys[i] = records[i].key;
+        }
+        
+        synchronized (this.commit_lock) {
+            seq = this.stable_seq + 1;
+            
+            for (int i = 0; i < records.length; ++i) {
+                records[i].head = new Version(seq, data[i], records[i].head);
+            }
+            
+            this.change_log.append(seq, keys, values);
+            this.stable_seq = seq;
+        }
+        
+        this.change_log.signal();
+        
+        for (String key : keys) {
+            this.response_cache.invalidate(key);
+        }
+        
+        // Records holding obsolete versions or deletions are left to the
+        // garbage collector
+        for (Record record : records) {
+            if (!record.queued && (record.head.older != null || record.head.data == null)) {
+                record.queued = true;
+                this.gc_queue.add(record.key);
+            }
+        }
+        
+        return seq;
+    }
+    
+    /**
+     * Reads the latest committed version of a key.
+     * @param key The key
+     * @return The version, or null if the key is not present
+     */
+    private Version readLatest(String key) {
+        while (true) {
+            long    seq = this.stable_seq;
+            Record  record = this.storage.get(key);
+            
+            if (record == null) {
+                return null;
+            }
+            
+            Version version = record.versionAt(seq);
+            if (version != Version.PRUNED) {
+                return (version != null && version.data != null) ? version : null;
+            }
+            // The versions this read started from were collected: retry with
+            // a newer sequence number, which is always still available.
+        }
+    }
+    
+    /**
+     * Evaluates version checks and reads the values of the given operations.
+     * @param operations Transaction operations
+     * @param seq Sequence number to read at (Long.MAX_VALUE for the latest
+     *          version, if the stripe locks are held)
+     * @return One entry per operation
+     * @throws VersionConflictException Thrown if a version precondition fails
+     */
+    private List<KVMessageBatch.Entry> readAll(List<KVMessageBatch.Entry> operations, long seq)
+            throws VersionConflictException {
+        List<KVMessageBatch.Entry> results = new ArrayList<KVMessageBatch.Entry>(operations.size());
+        
+        for (KVMessageBatch.Entry op : operations) {
+            Record  record = this.storage.get(op.key);
+            Version version = (record != null) ? record.versionAt(seq) : null;
+            
+            if (version != null && version.data == null) {
+                version = null;
+            }
+            
+            long actual = (version != null) ? version.seq : KVMessageBatch.ABSENT_VERSION;
+            
+            if (op.version != KVMessageBatch.ANY_VERSION && actual != op.version) {
+                throw new VersionConflictException(op.key, op.version, actual);
+            }
+            
+            results.add(new KVMessageBatch.Entry(StatusType.GET, op.key,
+                                (version != null) ? version.value() : null, actual));
+        }
+        
+        return results;
+    }
+    
+    private void releaseSnapshot(long seq) {
+        synchronized (this.pinned_snapshots) {
+            Integer count = this.pinned_snapshots.get(seq);
+            
+            if (count == null || count <= 1) {
+                this.pinned_snapshots.remove(seq);
+            } else {
+                this.pinned_snapshots.put(seq, count - 1);
+            }
+        }
+    }
+    
+    /**
+     * Returns the record of a key, creating it if necessary. Must be called
+     * with the key's stripe lock held.
+     */
+    private Record recordOf(String key) {
+        Record record = this.storage.get(key);
+        
+        if (record == null) {
+            record = new Record(key);
+            this.storage.put(key, record);
+        }
+        
+        return record;
+    }
+    
+    private static void verifyKey(String key) throws IllegalArgumentException {
+        if (key == null || key.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Illegal key: '" + key + "'.");
+        }
+    }
+    
+    private static void verifyValue(String key, String value) throws IllegalArgumentException {
+        if (value == null || value.length() > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Illegal value: '" + key + "'.");
+        }
+    }
+    
+    private static void verifyValue(String key, byte[] value) throws IllegalArgumentException {
+        // Only values encoded with more than one byte per character need to be
+        // decoded to be counted
+        if (value == null || (value.length > MAX_VALUE_LENGTH && new String(value).length() > MAX_VALUE_LENGTH)) {
+            throw new IllegalArgumentException("Illegal value: '" + key + "'.");
+        }
+    }
+    
+    /**
+     * Converts a value into the form it is stored in: a reference to a shared
+     * copy if values are deduplicated, otherwise the value itself, compressed
+     * if it is large enough.
+     * @param value The value as a string or in encoded form (null means
+     *          'delete')
+     * @return A ValuePool.Entry, a CompressedValue, the value, or null
+     */
+    private Object encode(Object value) {
+        if (value == null || !this.deduplicated || sizeOf(value) < MIN_SHARED_LENGTH) {
+            return this.compress(value);
+        }
+        
+        ValuePool.Digest    digest = (value instanceof byte[]) ? ValuePool.digestOf((byte[]) value) :
+                                                                 ValuePool.digestOf((String) value);
+        ValuePool.Entry     entry = this.value_pool.acquire(digest);
+        
+        // An identical value stored before is neither copied nor compressed
+        return (entry != null) ? entry : this.value_pool.add(digest, this.compress(value));
+    }
+    
+    /**
+     * Drops the reference held by a version which is no longer stored.
+     * @param data The value as it was stored, see encode()
+     */
+    private void release(Object data) {
+        if (data instanceof ValuePool.Entry) {
+            this.value_pool.release((ValuePool.Entry) data);
+        }
+    }
+    
+    /**
+     * Compresses a value if it is large enough and gets smaller.
+     * @param value The value as a string or in encoded form (null means
+     *          'delete')
+     * @return A CompressedValue, the value, or null
+     */
+    private Object compress(Object value) {
+        int threshold = this.compression_threshold;
+        
+        if (value != null && threshold >= 0 && sizeOf(value) >= threshold) {
+            CompressedValue compressed = (value instanceof byte[]) ? CompressedValue.compress((byte[]) value) :
+                                                                     CompressedValue.compress((String) value);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        return value;
+    }
+    
+    /**
+     * Returns the size of a value: characters of a string, bytes of an
+     * encoded value.
+     */
+    private static int sizeOf(Object value) {
+        return (value instanceof byte[]) ? ((byte[]) value).length : ((String) value).length();
+    }
+    
+    private ReentrantLock stripeOf(String key) {
+        return stripes[stripeIndex(key)];
+    }
+    
+    private static int stripeIndex(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % LOCK_STRIPES;
+    }
+    
+    /**
+     * A consistent read-only view of the storage as of a sequence number.
+     */
+    public class Snapshot implements Closeable, Iterable<KVMessageBatch.Entry> {
+        private final long  sequence;
+        private boolean     closed;
+        
+        private Snapshot(long sequence) {
+            this.sequence = sequence;
+            this.closed = false;
+        }
+        
+        /**
+         * Returns the sequence number the snapshot is pinned at.
+         * @return The sequence number
+         */
+        public long getSequence() {
+            return this.sequence;
+        }
+        
+        /**
+         * Looks up a key in the snapshot.
+         * @param key The key to look for
+         * @return The value, or null if the key was not present
+         */
+        public String get(String key) {
+            if (key == null || key.length() > MAX_KEY_LENGTH) {
+                return null;
+            }
+            
+            Record  record = storage.get(key);
+            Version version = (record != null) ? record.versionAt(this.sequence) : null;
+            
+            return (version != null) ? version.value() : null;
+        }
+        
+        /**
+         * Returns all keys starting with the given prefix and their values.
+         * @param prefix Key prefix ("" for all keys)
+         * @return Sorted map of the matching keys and values
+         */
+        public SortedMap<String, String> scan(String prefix) {
+            SortedMap<String, String> result = new TreeMap<String, String>();
+            
+            for (KVMessageBatch.Entry entry : this) {
+                if (entry.key.startsWith(prefix)) {
+                    result.put(entry.key, entry.value);
+                }
+            }
+            
+            return result;
+        }
+        
+        /**
+         * Iterates over all keys present in the snapshot, in no particular
+         * order, without copying the data.
+         * @return Iterator over GET entries carrying the key, the value and
+         *          its version
+         */
+        @Override
+        public Iterator<KVMessageBatch.Entry> iterator() {
+            final Iterator<Record> records = storage.values().iterator();
+            
+            return new Iterator<KVMessageBatch.Entry>() {
+                private KVMessageBatch.Entry next = advance();
+                
+                private KVMessageBatch.Entry advance() {
+                    while (records.hasNext()) {
+                        Record  record = records.next();
+                        Version version = record.versionAt(sequence);
+                        
+                        if (version != null && version.data != null) {
+                            return new KVMessageBatch.Entry(StatusType.GET, record.key,
+                                                            version.value(), version.seq);
+                        }
+                    }
+                    return null;
+                }
+                
+                @Override
+                public boolean hasNext() {
+                    return this.next != null;
+                }
+                
+                @Override
+                public KVMessageBatch.Entry next() {
+                    if (this.next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    KVMessageBatch.Entry current = this.next;
+                    this.next = advance();
+                    return current;
+                }
+                
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("Snapshots are read-only.");
+                }
+            };
+        }
+        
+        /**
+         * Releases the snapshot, allowing its versions to be collected.
+         */
+        @Override
+        public synchronized void close() {
+            if (!this.closed) {
+                this.closed = true;
+                releaseSnapshot(this.sequence);
+            }
+        }
+    }
+    
+    /**
+     * A stored key with its chain of versions, newest first.
+     */
+    private static class Record {
+        final String        key;
+        volatile Version    head;
+        boolean             queued; // guarded by the stripe lock
+        
+        Record(String key) {
+            this.key = key;
+            this.head = null;
+            this.queued = false;
+        }
+        
+        /**
+         * Finds the newest version not newer than the given sequence number.
+         * @return The version, null if there is none, or Version.PRUNED if
+         *          the versions needed were already collected
+         */
+        Version versionAt(long seq) {
+            Version version = this.head;
+            
+            while (version != null && version != Version.PRUNED && version.seq > seq) {
+                version = version.older;
+            }
+            
+            return version;
+        }
+    }
+    
+    /**
+     * A single immutable version of a value. A null value marks a deletion.
+     */
+    private static class Version {
+        static final Version PRUNED = new Version(-1, null, null);
+        
+        final long          seq;
+        final Object        data; // The string, its bytes, a CompressedValue, or a ValuePool.Entry
+        volatile Version    older;
+        
+        Version(long seq, Object data, Version older) {
+            this.seq = seq;
+            this.data = data;
+            this.older = older;
+        }
+        
+        /**
+         * Returns the value, decompressing it if necessary.
+         * @return The value, or null for a deletion
+         */
+        String value() {
+            Object stored = this.stored();
+            
+            if (stored instanceof CompressedValue) {
+                return ((CompressedValue) stored).decode();
+            }
+            return (stored instanceof byte[]) ? new String((byte[]) stored) : (String) stored;
+        }
+        
+        /**
+         * Returns the value in encoded form, decompressing it if necessary.
+         * @return The bytes of the value, or null for a deletion
+         */
+        byte[] bytes() {
+            Object stored = this.stored();
+            
+            if (stored instanceof CompressedValue) {
+                return ((CompressedValue) stored).decodeBytes();
+            }
+            return (stored instanceof String) ? ((String) stored).getBytes() : (byte[]) stored;
+        }
+        
+        /**
+         * Returns the value as it is stored, resolving shared values.
+         * @return The string, its bytes, a CompressedValue, or null for a
+         *          deletion
+         */
+        Object stored() {
+            return (this.data instanceof ValuePool.Entry) ? ((ValuePool.Entry) this.data).getData() : this.data;
+        }
     }
 }
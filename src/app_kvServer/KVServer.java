@@ -1,15 +1,28 @@
 package app_kvServer;
 
+import common.messages.Protocol;
+import common.metadata.HashRing;
+import common.metrics.LatencyHistogram;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import logger.LogSetup;
@@ -22,11 +35,36 @@ import org.apache.log4j.Level;
  */
 public class KVServer implements Runnable {
     private static final Logger logger = LogSetup.getLogger();
+    
+    /**
+     * Default latency above which a request is written to the slow-request log.
+     */
+    public static final long    DEFAULT_SLOW_REQUEST_THRESHOLD = 100000; // microseconds
+    
+    private static final int    CLIENT_REPORT_ROWS = 10;
+    private static final int    MIN_ADDRESS_SWEEP_SIZE = 1024; // Addresses kept before idle ones are forgotten
+    
     private final int           port;
     
     private final KVDataStorage         data_storage;
+    private final WatchRegistry         watch_registry;
     private final ServerSocket          server_socket;
     private final Set<ClientConnection> clients;
+    private final ConcurrentMap<InetAddress, ClientStatistics> address_statistics;
+    private int                         address_sweep_size;
+    private ReplicationManager          replication;
+    private ReplicaState                replica_state;
+    private volatile HashRing           metadata;
+    private String                      node_address;
+    private final Rebalancer            rebalancer;
+    private final LatencyHistogram      latency;
+    private RaftNode                    raft;
+    private final RateLimiter           rate_limiter;
+    private final RequestScheduler      scheduler;
+    private final AtomicLong            expired_requests;
+    private final AtomicLong            corrupt_frames;
+    private volatile int                protocol_features;
+    private volatile long               slow_request_threshold;
     private volatile boolean            online;
     
     /**
@@ -35,14 +73,42 @@ public class KVServer implements Runnable {
      * @throws IOException Thrown if server socket cannot be created
      */
     public KVServer(int port) throws IOException {
+        this(port, KVDataStorage.DEFAULT_CHANGE_LOG_CAPACITY);
+    }
+    
+    /**
+     * Constructor taking port number and change log capacity
+     * @param port Port number
+     * @param changeLogCapacity Number of changes retained in the change log
+     * @throws IOException Thrown if server socket cannot be created
+     */
+    public KVServer(int port, int changeLogCapacity) throws IOException {
         this.port = port;
         this.online = false;
+        this.replication = null;
+        this.replica_state = null;
+        this.metadata = null;
+        this.node_address = null;
+        this.rebalancer = new Rebalancer(this);
+        this.latency = new LatencyHistogram();
+        this.raft = null;
+        this.rate_limiter = new RateLimiter();
+        this.scheduler = new RequestScheduler(RequestScheduler.DEFAULT_SLOTS_PER_PROCESSOR *
+                                              Runtime.getRuntime().availableProcessors(),
+                                              RequestScheduler.DEFAULT_QUANTUM);
+        this.expired_requests = new AtomicLong();
+        this.corrupt_frames = new AtomicLong();
+        this.protocol_features = Protocol.SUPPORTED_FEATURES;
+        this.slow_request_threshold = DEFAULT_SLOW_REQUEST_THRESHOLD;
         
         logger.info("Initializing server ...");
         this.server_socket = new ServerSocket(this.port);
         
-        this.data_storage = new KVDataStorage();
+        this.data_storage = new KVDataStorage(changeLogCapacity);
+        this.watch_registry = new WatchRegistry(this.data_storage.getChangeLog());
         this.clients = new HashSet<ClientConnection>();
+        this.address_statistics = new ConcurrentHashMap<InetAddress, ClientStatistics>();
+        this.address_sweep_size = MIN_ADDRESS_SWEEP_SIZE;
         
         logger.info("Server listening on port: " + this.server_socket.getLocalPort());
         this.online = true;
@@ -53,14 +119,27 @@ public class KVServer implements Runnable {
      */
     @Override
     public void run() {
+        Thread dispatcher = new Thread(this.watch_registry, "WatchRegistry");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        
+        if (this.replication != null) {
+            this.replication.start();
+        }
+        if (this.raft != null) {
+            this.raft.start();
+        }
+        
         while (this.online) {
             try {
                 Socket client = server_socket.accept();
                 ClientConnection connection = new ClientConnection(client, this);
-                new Thread(connection).start();
+                // Registered before its thread starts, so that a connection
+                // closing right away is not left behind in the set
                 synchronized (this.clients) {
                     this.clients.add(connection);
                 }
+                new Thread(connection).start();
                 
                 logger.info("New connection from " + client.getInetAddress().getHostName() +
                             " from port " + client.getPort() + ".");
@@ -73,6 +152,103 @@ public class KVServer implements Runnable {
         logger.info("Server stopped.");
     }
     
+    /**
+     * Returns the port the server is listening on
+     * @return Port number (the actual one, if the server was created with port 0)
+     */
+    public int getPort() {
+        return this.server_socket.getLocalPort();
+    }
+    
+    /**
+     * Returns the number of open client connections
+     * @return Number of connections
+     */
+    public int getClientCount() {
+        synchronized (this.clients) {
+            return this.clients.size();
+        }
+    }
+    
+    /**
+     * Returns the resource usage of all the connections from a remote address,
+     * closed ones included. Once many addresses are known, those without open
+     * connections are forgotten.
+     * @param address The remote address
+     * @return Statistics shared by the connections from the address
+     */
+    public ClientStatistics getAddressStatistics(InetAddress address) {
+        ClientStatistics statistics = this.address_statistics.get(address);
+        
+        if (statistics == null) {
+            ClientStatistics created = new ClientStatistics(address.getHostAddress());
+            statistics = this.address_statistics.putIfAbsent(address, created);
+            if (statistics == null) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+    
+    /**
+     * Records a new connection from a remote address.
+     * @param address The remote address
+     * @return Statistics shared by the connections from the address
+     */
+    ClientStatistics addressConnected(InetAddress address) {
+        synchronized (this.address_statistics) {
+            ClientStatistics statistics = this.getAddressStatistics(address);
+            statistics.connectionOpened();
+            
+            if (this.address_statistics.size() > this.address_sweep_size) {
+                // Forgets the idle addresses; the next sweep waits until
+                // their number doubled, so it costs constant time per address
+                Iterator<ClientStatistics> addresses = this.address_statistics.values().iterator();
+                while (addresses.hasNext()) {
+                    if (addresses.next().getConnections() == 0) {
+                        addresses.remove();
+                    }
+                }
+                this.address_sweep_size = Math.max(MIN_ADDRESS_SWEEP_SIZE, 2 * this.address_statistics.size());
+            }
+            return statistics;
+        }
+    }
+    
+    /**
+     * Returns a human-readable report of the clients which consumed the most
+     * service time, both per remote address and per open connection.
+     * @param limit Maximal number of rows in each table
+     * @return The report
+     */
+    public String getClientReport(int limit) {
+        List<ClientStatistics>  addresses = new ArrayList<ClientStatistics>(this.address_statistics.values());
+        List<ClientStatistics>  connections = new ArrayList<ClientStatistics>();
+        StringBuilder           report = new StringBuilder();
+        String                  header = String.format("%-32s %5s %10s %12s %12s %8s %12s%n", "", "conns",
+                "requests", "bytes in", "bytes out", "errors", "service ms");
+        
+        synchronized (this.clients) {
+            for (ClientConnection client : this.clients) {
+                connections.add(client.getStatistics());
+            }
+        }
+        Collections.sort(addresses, ClientStatistics.BY_SERVICE_TIME);
+        Collections.sort(connections, ClientStatistics.BY_SERVICE_TIME);
+        
+        report.append("Expired requests: ").append(this.getExpiredRequests()).append('\n');
+        report.append("Corrupt frames: ").append(this.getCorruptFrames()).append('\n');
+        report.append("Top addresses:\n").append(header);
+        for (ClientStatistics statistics : addresses.subList(0, Math.min(limit, addresses.size()))) {
+            report.append(statistics).append('\n');
+        }
+        report.append("Top open connections:\n").append(header);
+        for (ClientStatistics statistics : connections.subList(0, Math.min(limit, connections.size()))) {
+            report.append(statistics).append('\n');
+        }
+        return report.toString().trim();
+    }
+    
     /**
      * Returns the key-value storage used by the server
      * @return Key-value map
@@ -81,6 +257,261 @@ public class KVServer implements Runnable {
         return this.data_storage;
     }
     
+    /**
+     * Returns the registry of watched keys
+     * @return Watch registry
+     */
+    public WatchRegistry getWatchRegistry() {
+        return this.watch_registry;
+    }
+    
+    /**
+     * Makes the server a primary which replicates its data to the given backup
+     * servers. Must be called before the server is started.
+     * @param backups Addresses of the backup servers
+     * @param requiredAcks Number of backups which must acknowledge a write
+     *          before it is confirmed to the client (0 for asynchronous mode)
+     */
+    public void enableReplication(List<InetSocketAddress> backups, int requiredAcks) {
+        this.replication = new ReplicationManager(this.data_storage, backups, requiredAcks);
+    }
+    
+    /**
+     * Makes the server a read-only backup of the given primary server. Must be
+     * called before the server is started.
+     * @param primary Address of the primary server
+     */
+    public void enableBackupMode(InetSocketAddress primary) {
+        this.replica_state = new ReplicaState(this.data_storage, primary);
+    }
+    
+    /**
+     * Returns the replication state if the server is a backup
+     * @return Replica state, or null if the server accepts writes
+     */
+    public ReplicaState getReplicaState() {
+        return this.replica_state;
+    }
+    
+    /**
+     * Blocks until the latest write is acknowledged by the backups, if the
+     * server replicates its data semi-synchronously.
+     */
+    public void awaitReplication() {
+        if (this.replication != null) {
+            this.replication.awaitReplication(this.data_storage.getSequence());
+        }
+    }
+    
+    /**
+     * Makes the server a node of a partitioned deployment. The server only
+     * serves the keys the ring assigns to it, and redirects clients asking
+     * for other keys.
+     * @param ring The consistent-hashing ring of the deployment
+     * @param nodeAddress Address of this server on the ring ("host:port")
+     * @throws IllegalArgumentException Thrown if the server is not on the ring
+     */
+    public void enablePartitioning(HashRing ring, String nodeAddress) throws IllegalArgumentException {
+        if (!ring.contains(nodeAddress)) {
+            throw new IllegalArgumentException("Node " + nodeAddress + " is not on the ring.");
+        }
+        this.node_address = nodeAddress;
+        this.metadata = ring;
+    }
+    
+    /**
+     * Returns the ring metadata of the deployment
+     * @return The ring, or null if the server is not partitioned
+     */
+    public HashRing getMetadata() {
+        return this.metadata;
+    }
+    
+    /**
+     * Replaces the ring metadata; used when key ranges are handed over
+     * @param ring The new ring
+     */
+    void setMetadata(HashRing ring) {
+        this.metadata = ring;
+    }
+    
+    /**
+     * Returns the address of this server on the ring
+     * @return Node address, or null if the server is not partitioned
+     */
+    public String getNodeAddress() {
+        return this.node_address;
+    }
+    
+    /**
+     * Checks whether the server is responsible for a key
+     * @param key The key
+     * @return True if the key belongs to this server, or if the server is not
+     *          partitioned
+     */
+    public boolean isResponsible(String key) {
+        HashRing ring = this.metadata;
+        
+        return ring == null || ring.getNode(key).equals(this.node_address)
+                || this.rebalancer.isReceived(key);
+    }
+    
+    /**
+     * Adds the server to a running partitioned deployment. The server must
+     * already be listening, since the members connect to it to transfer the
+     * keys it takes over.
+     * @param seed Address of any member of the deployment ("host:port")
+     * @param nodeAddress Address of this server on the ring ("host:port")
+     * @throws IOException Thrown if the deployment cannot be joined
+     */
+    public void joinCluster(String seed, String nodeAddress) throws IOException {
+        this.node_address = nodeAddress;
+        this.rebalancer.join(seed);
+    }
+    
+    /**
+     * Returns the rebalancing subsystem of the server
+     * @return Rebalancer
+     */
+    public Rebalancer getRebalancer() {
+        return this.rebalancer;
+    }
+    
+    /**
+     * Returns the latencies of the client requests served so far
+     * @return Latency histogram
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return this.latency;
+    }
+    
+    /**
+     * Returns the admission control of the client requests
+     * @return Rate limiter
+     */
+    public RateLimiter getRateLimiter() {
+        return this.rate_limiter;
+    }
+    
+    /**
+     * Returns the scheduler sharing the server between the clients
+     * @return Request scheduler
+     */
+    public RequestScheduler getScheduler() {
+        return this.scheduler;
+    }
+    
+    /**
+     * Counts a request dropped because its deadline passed before it was
+     * executed.
+     */
+    public void recordExpiredRequest() {
+        this.expired_requests.incrementAndGet();
+    }
+    
+    /**
+     * Returns the number of requests dropped because their deadline passed
+     * @return Number of expired requests
+     */
+    public long getExpiredRequests() {
+        return this.expired_requests.get();
+    }
+    
+    /**
+     * Counts a received frame which did not match its checksum.
+     */
+    public void recordCorruptFrame() {
+        this.corrupt_frames.incrementAndGet();
+    }
+    
+    /**
+     * Returns the number of received frames which did not match their
+     * checksum.
+     * @return Number of corrupt frames
+     */
+    public long getCorruptFrames() {
+        return this.corrupt_frames.get();
+    }
+    
+    /**
+     * Restricts the protocol features granted to clients in the handshake.
+     * Connections which already completed it keep their features.
+     * @param features Bitmask of Protocol.FEATURE_* values
+     */
+    public void setProtocolFeatures(int features) {
+        this.protocol_features = features & Protocol.SUPPORTED_FEATURES;
+    }
+    
+    /**
+     * Getter method for the protocol features granted to clients.
+     * @return Bitmask of Protocol.FEATURE_* values
+     */
+    public int getProtocolFeatures() {
+        return this.protocol_features;
+    }
+    
+    /**
+     * Sets the latency above which a request is written to the slow-request
+     * log, together with the time spent in each of its phases.
+     * @param micros Threshold in microseconds, or 0 to disable the log
+     */
+    public void setSlowRequestThreshold(long micros) {
+        this.slow_request_threshold = micros;
+    }
+    
+    /**
+     * Getter method for the threshold of the slow-request log.
+     * @return Threshold in microseconds, 0 if the log is disabled
+     */
+    public long getSlowRequestThreshold() {
+        return this.slow_request_threshold;
+    }
+    
+    /**
+     * Makes the server a member of a consensus group which replicates all
+     * writes with Raft. Must be called before the server is started.
+     * @param group Addresses of all members of the group ("host:port")
+     * @param nodeAddress Address of this server in the group
+     * @param directory Directory for the persistent Raft state
+     * @throws IOException Thrown if the persistent state cannot be loaded
+     */
+    public void enableConsensus(List<String> group, String nodeAddress, File directory) throws IOException {
+        this.raft = new RaftNode(this.data_storage, group, nodeAddress, directory);
+    }
+    
+    /**
+     * Returns the Raft member if the server belongs to a consensus group
+     * @return Raft node, or null
+     */
+    public RaftNode getRaft() {
+        return this.raft;
+    }
+    
+    /**
+     * Returns a human-readable replication status report
+     * @return Status report
+     */
+    public String getReplicationStatus() {
+        if (this.replication != null) {
+            return this.replication.getStatus();
+        }
+        if (this.raft != null) {
+            return "Raft member " + this.raft.getStatus();
+        }
+        if (this.replica_state != null) {
+            ReplicaState state = this.replica_state;
+            return "Backup of " + ClientConnection.formatAddress(state.getPrimary())
+                    + (state.isSyncing() ? ", receiving snapshot" : "")
+                    + ", applied " + state.getAppliedSequence()
+                    + ", lag " + Math.max(0, state.getPrimarySequence() - state.getAppliedSequence())
+                    + ", last contact "
+                    + ((state.getLastContact() == 0) ? "never" :
+                       (System.currentTimeMillis() - state.getLastContact()) + " ms ago")
+                    + ".";
+        }
+        return "Replication is disabled.";
+    }
+    
     /**
      * A callback function triggered by a client thread prior to its termination
      * @param client The client connection which is about to close
@@ -97,6 +528,14 @@ public class KVServer implements Runnable {
      */
     public void shutDown() {
         this.online = false;
+        if (this.replication != null) {
+            this.replication.shutDown();
+        }
+        if (this.raft != null) {
+            this.raft.shutDown();
+        }
+        this.data_storage.shutDown();
+        this.watch_registry.shutDown();
         
         synchronized (this.clients) {
             for (ClientConnection client : this.clients) {
@@ -119,12 +558,29 @@ public class KVServer implements Runnable {
      * @param args Array of command line arguments
      */
     public static void main(String[] args) {
-        Level   log_level = Level.WARN;
-        Integer port = null;
+        Level                   log_level = Level.WARN;
+        Integer                 port = null;
+        List<InetSocketAddress> backups = new ArrayList<InetSocketAddress>();
+        int                     required_acks = 0;
+        InetSocketAddress       primary = null;
+        HashRing                ring = null;
+        String                  node_address = null;
+        String                  seed = null;
+        Long                    latency_budget = null;
+        Long                    slow_threshold = null;
+        double                  client_rate = 0;
+        double                  global_rate = 0;
+        Integer                 slots = null;
+        Integer                 compression = null;
+        boolean                 deduplication = false;
+        Long                    cache_capacity = null;
+        Integer                 features = null;
+        List<String>            group = null;
+        String                  data_directory = null;
         
         // Parse command line arguments
         try {
-            ArgumentParser parser = new ArgumentParser("hl:", args);
+            ArgumentParser parser = new ArgumentParser("hel:b:s:p:c:a:j:t:w:r:R:x:z:f:g:d:v:", args);
             ArgumentParser.Option option;
             
             while ((option = parser.getNextArgument()) != null) {
@@ -144,18 +600,160 @@ public class KVServer implements Runnable {
                     printUsage();
                     System.exit(1);
                     
+                } else if (option.name.equals("e")) {
+                    deduplication = true;
+                    
                 } else if (option.name.equals("l")) {
                     if (LogSetup.isValidLevel(option.argument)) {
                         log_level = Level.toLevel(option.argument);
                     } else {
                         throw new ParseException("Invalid logging level: " + option.argument + ".", 0);
                     }
+                    
+                } else if (option.name.equals("b")) {
+                    try {
+                        for (String address : option.argument.split(",")) {
+                            backups.add(PeerConnection.parseAddress(address));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        throw new ParseException(e.getMessage(), 0);
+                    }
+                    
+                } else if (option.name.equals("s")) {
+                    try {
+                        required_acks = Integer.parseInt(option.argument);
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("Invalid number of acknowledgements: " + option.argument + ".", 0);
+                    }
+                    
+                } else if (option.name.equals("p")) {
+                    try {
+                        primary = PeerConnection.parseAddress(option.argument);
+                    } catch (IllegalArgumentException e) {
+                        throw new ParseException(e.getMessage(), 0);
+                    }
+                    
+                } else if (option.name.equals("c")) {
+                    List<String> nodes = new ArrayList<String>();
+                    try {
+                        for (String address : option.argument.split(",")) {
+                            PeerConnection.parseAddress(address); // Validating
+                            nodes.add(address);
+                        }
+                        ring = new HashRing(1, HashRing.DEFAULT_VIRTUAL_NODES, nodes);
+                    } catch (IllegalArgumentException e) {
+                        throw new ParseException(e.getMessage(), 0);
+                    }
+                    
+                } else if (option.name.equals("a")) {
+                    node_address = option.argument;
+                    
+                } else if (option.name.equals("j")) {
+                    seed = option.argument;
+                    
+                } else if (option.name.equals("g")) {
+                    group = new ArrayList<String>();
+                    try {
+                        for (String address : option.argument.split(",")) {
+                            PeerConnection.parseAddress(address); // Validating
+                            group.add(address);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        throw new ParseException(e.getMessage(), 0);
+                    }
+                    
+                } else if (option.name.equals("d")) {
+                    data_directory = option.argument;
+                    
+                } else if (option.name.equals("t")) {
+                    try {
+                        latency_budget = Long.parseLong(option.argument) * 1000;
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("Invalid latency budget: " + option.argument + ".", 0);
+                    }
+                    
+                } else if (option.name.equals("w")) {
+                    try {
+                        slow_threshold = Long.parseLong(option.argument) * 1000;
+                    } catch (NumberFormatException e) {}
+                    if (slow_threshold == null || slow_threshold < 0) {
+                        throw new ParseException("Invalid slow-request threshold: " + option.argument + ".", 0);
+                    }
+                    
+                } else if (option.name.equals("r") || option.name.equals("R")) {
+                    double rate = -1;
+                    try {
+                        rate = Double.parseDouble(option.argument);
+                    } catch (NumberFormatException e) {}
+                    if (!(rate > 0)) {
+                        throw new ParseException("Invalid rate limit: " + option.argument + ".", 0);
+                    }
+                    if (option.name.equals("r")) {
+                        client_rate = rate;
+                    } else {
+                        global_rate = rate;
+                    }
+                    
+                } else if (option.name.equals("x")) {
+                    try {
+                        slots = Integer.parseInt(option.argument);
+                    } catch (NumberFormatException e) {}
+                    if (slots == null || slots < 1) {
+                        throw new ParseException("Invalid number of concurrent requests: " + option.argument + ".", 0);
+                    }
+                    
+                } else if (option.name.equals("z")) {
+                    try {
+                        compression = Integer.parseInt(option.argument);
+                    } catch (NumberFormatException e) {}
+                    if (compression == null || compression < 0) {
+                        throw new ParseException("Invalid compression threshold: " + option.argument + ".", 0);
+                    }
+                    
+                } else if (option.name.equals("f")) {
+                    try {
+                        cache_capacity = Long.parseLong(option.argument);
+                    } catch (NumberFormatException e) {}
+                    if (cache_capacity == null || cache_capacity < 0) {
+                        throw new ParseException("Invalid response cache size: " + option.argument + ".", 0);
+                    }
+                    
+                } else if (option.name.equals("v")) {
+                    try {
+                        features = Integer.parseInt(option.argument);
+                    } catch (NumberFormatException e) {}
+                    if (features == null || (features & ~Protocol.SUPPORTED_FEATURES) != 0) {
+                        throw new ParseException("Invalid protocol features: " + option.argument + ".", 0);
+                    }
                 }
             }
             
             if (port == null) {
                 throw new ParseException("Port number is not provided.", 0);
             }
+            if (primary != null && !backups.isEmpty()) {
+                throw new ParseException("A backup server cannot have backups of its own.", 0);
+            }
+            if (required_acks < 0 || required_acks > backups.size()) {
+                throw new ParseException("Invalid number of acknowledgements: " + required_acks + ".", 0);
+            }
+            if (group != null && (ring != null || seed != null || primary != null || !backups.isEmpty())) {
+                throw new ParseException("Option -g cannot be combined with -b, -p, -c or -j.", 0);
+            }
+            if (ring != null && seed != null) {
+                throw new ParseException("Options -c and -j are mutually exclusive.", 0);
+            }
+            if (node_address == null) {
+                node_address = "localhost:" + port;
+            }
+            if (ring != null) {
+                if (!ring.contains(node_address)) {
+                    throw new ParseException("Node " + node_address + " is not in the cluster list.", 0);
+                }
+            }
+            if (group != null && !group.contains(node_address)) {
+                throw new ParseException("Node " + node_address + " is not in the group list.", 0);
+            }
             
         } catch (ParseException e) {
             System.out.println("Error parsing command line arguments: " + e.getMessage());
@@ -174,8 +772,49 @@ public class KVServer implements Runnable {
         // Start server
         try {
             KVServer server = new KVServer(port);
+            if (ring != null) {
+                server.enablePartitioning(ring, node_address);
+            }
+            if (group != null) {
+                server.enableConsensus(group, node_address, new File(
+                        (data_directory != null) ? data_directory : "data/" + port));
+            }
+            if (latency_budget != null) {
+                server.getRebalancer().setLatencyBudget(latency_budget);
+            }
+            if (slow_threshold != null) {
+                server.setSlowRequestThreshold(slow_threshold);
+            }
+            server.getRateLimiter().setLimits(client_rate, global_rate);
+            if (slots != null) {
+                server.getScheduler().setSlots(slots);
+            }
+            if (compression != null) {
+                server.getDataStorage().setCompressionThreshold(compression);
+            }
+            server.getDataStorage().setDeduplication(deduplication);
+            if (cache_capacity != null) {
+                server.getDataStorage().getResponseCache().setCapacity(cache_capacity);
+            }
+            if (features != null) {
+                server.setProtocolFeatures(features);
+            }
+            if (!backups.isEmpty()) {
+                server.enableReplication(backups, required_acks);
+            } else if (primary != null) {
+                server.enableBackupMode(primary);
+            }
             new Thread(server).start();
             
+            if (seed != null) {
+                try {
+                    server.joinCluster(seed, node_address);
+                } catch (IOException e) {
+                    logger.error("Error! Unable to join the deployment: " + e.getMessage());
+                    System.out.println("Error! Unable to join the deployment: " + e.getMessage());
+                }
+            }
+            
             BufferedReader  input_reader = new BufferedReader(new InputStreamReader(System.in));
             String          user_query;
             
@@ -187,6 +826,12 @@ public class KVServer implements Runnable {
                     server.shutDown();
                 } else if (user_query.equalsIgnoreCase("dump")) {
                     System.out.println(server.data_storage.dump());
+                } else if (user_query.equalsIgnoreCase("replication")) {
+                    System.out.println(server.getReplicationStatus());
+                } else if (user_query.equalsIgnoreCase("storage")) {
+                    System.out.println(server.data_storage.getStorageReport());
+                } else if (user_query.equalsIgnoreCase("rebalance")) {
+                    System.out.println(server.rebalancer.getStatus());
                 } else if (user_query.startsWith("log")) {
                     String tokens[] = user_query.split("\\s+");
                     if (tokens.length == 2 && LogSetup.isValidLevel(tokens[1])) {
@@ -194,11 +839,35 @@ public class KVServer implements Runnable {
                     } else {
                         System.out.println("Error! Bad command format: '" + user_query + "'.");
                     }
+                } else if (user_query.startsWith("clients")) {
+                    String tokens[] = user_query.split("\\s+");
+                    if (tokens.length == 1) {
+                        System.out.println(server.getClientReport(CLIENT_REPORT_ROWS));
+                    } else if (tokens.length == 2 && tokens[1].matches("\\d+")) {
+                        System.out.println(server.getClientReport(Integer.parseInt(tokens[1])));
+                    } else {
+                        System.out.println("Error! Bad command format: '" + user_query + "'.");
+                    }
+                } else if (user_query.startsWith("slowlog")) {
+                    String tokens[] = user_query.split("\\s+");
+                    if (tokens.length == 1) {
+                        System.out.println("Slow-request threshold: "
+                                + server.getSlowRequestThreshold() / 1000 + " ms.");
+                    } else if (tokens.length == 2 && tokens[1].matches("\\d+")) {
+                        server.setSlowRequestThreshold(Long.parseLong(tokens[1]) * 1000);
+                    } else {
+                        System.out.println("Error! Bad command format: '" + user_query + "'.");
+                    }
                 } else if (user_query.equalsIgnoreCase("help")) {
                     System.out.println("ACCEPTABLE COMMANDS:\n"
                             + "    quit          - Stop server and quit application.\n"
                             + "    dump          - Print the data stored on the server.\n"
+                            + "    replication   - Print the replication status.\n"
+                            + "    storage       - Print the space taken by the values.\n"
+                            + "    rebalance     - Print the status of key range transfers.\n"
                             + "    log <level>   - Change the logging level to <level>.\n"
+                            + "    clients [n]   - Print the <n> clients using the most service time.\n"
+                            + "    slowlog [ms]  - Print or set the slow-request threshold (0 disables).\n"
                             + "    help          - Print this help text.");
                 } else if (!user_query.isEmpty()) {
                     System.out.println("Error! Invalid command: '" + user_query + "'. "
@@ -216,8 +885,38 @@ public class KVServer implements Runnable {
      */
     private static void printUsage() {
         System.out.println(
-                  "Usage: KVServer [-l log_level] <port>\n"
+                  "Usage: KVServer [-l log_level] [-b host:port,... [-s acks] | -p host:port]\n"
+                + "                [-c host:port,... | -j host:port | -g host:port,... [-d dir]]\n"
+                + "                [-a host:port] [-t ms] [-w ms] [-r ops] [-R ops] [-x n]\n"
+                + "                [-z chars] [-e] [-f bytes] [-v features] <port>\n"
                 + "    -l log_level    - Set logging level (default: WARN).\n"
+                + "    -b backups      - Replicate the data to the listed backup servers.\n"
+                + "    -s acks         - Wait for <acks> backups before confirming writes\n"
+                + "                      (default: 0, asynchronous replication).\n"
+                + "    -p primary      - Run as a read-only backup of the given primary server.\n"
+                + "    -c nodes        - Partition the keys across the listed servers (host:port,...),\n"
+                + "                      this one included.\n"
+                + "    -g members      - Replicate all writes with Raft across the listed servers\n"
+                + "                      (host:port,...), this one included.\n"
+                + "    -d directory    - Directory for the Raft state (default: data/<port>).\n"
+                + "    -j member       - Join the partitioned deployment the given server belongs to.\n"
+                + "    -a address      - Address of this server on the ring or in the group\n"
+                + "                      (default: localhost:<port>).\n"
+                + "    -t ms           - Budget for the 99th percentile of the request latency\n"
+                + "                      while transferring keys (default: 10).\n"
+                + "    -w ms           - Log requests slower than <ms> with the time spent in each\n"
+                + "                      phase (default: 100, 0 disables).\n"
+                + "    -r ops          - Limit the requests per second from one client address.\n"
+                + "    -R ops          - Limit the requests per second of all clients together.\n"
+                + "    -x n            - Number of requests executed at the same time; waiting\n"
+                + "                      requests are served fairly across the clients\n"
+                + "                      (default: 4 per processor).\n"
+                + "    -z chars        - Store values of at least <chars> characters compressed.\n"
+                + "    -e              - Store identical values only once.\n"
+                + "    -f bytes        - Keep the encoded replies for keys being read, up to\n"
+                + "                      <bytes> in total (default: 0, disabled).\n"
+                + "    -v features     - Protocol features granted to clients, as a bitmask:\n"
+                + "                      1 = compression, 2 = checksums (default: 3, all).\n"
                 + "    <port>          - Port number for listening for connections."
         );
     }
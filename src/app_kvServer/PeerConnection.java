@@ -0,0 +1,131 @@
+package app_kvServer;
+
+import common.messages.KVMessage;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.text.ParseException;
+
+/**
+ * A request-reply connection from this server to another KVServer, used for
+ * server-to-server traffic such as replication.
+ * @author Danila Klimenko
+ */
+public class PeerConnection {
+    private static final int    CONNECT_TIMEOUT = 2000; // milliseconds
+    private static final int    READ_TIMEOUT = 10000; // milliseconds
+    
+    private final InetSocketAddress address;
+    private Socket                  socket;
+    private InputStream             input;
+    private OutputStream            output;
+    
+    /**
+     * Main constructor. Does not connect yet.
+     * @param address Address of the peer server
+     */
+    public PeerConnection(InetSocketAddress address) {
+        this.address = address;
+        this.socket = null;
+        this.input = null;
+        this.output = null;
+    }
+    
+    /**
+     * Getter method for the peer address.
+     * @return The address
+     */
+    public InetSocketAddress getAddress() {
+        return this.address;
+    }
+    
+    /**
+     * Opens the connection, if it is not open yet.
+     * @throws IOException Thrown if the peer cannot be reached
+     */
+    public synchronized void connect() throws IOException {
+        if (this.socket != null) {
+            return;
+        }
+        
+        Socket new_socket = new Socket();
+        try {
+            new_socket.connect(this.address, CONNECT_TIMEOUT);
+            new_socket.setSoTimeout(READ_TIMEOUT);
+            new_socket.setTcpNoDelay(true);
+            this.input = new BufferedInputStream(new_socket.getInputStream());
+            this.output = new_socket.getOutputStream();
+            this.socket = new_socket;
+        } catch (IOException e) {
+            new_socket.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Sends a message to the peer and waits for its reply. Connects first if
+     * necessary. The connection is closed if the exchange fails.
+     * @param kvmsg The message to send
+     * @return The reply
+     * @throws IOException Thrown if the exchange fails
+     */
+    public synchronized KVMessage request(KVMessage kvmsg) throws IOException {
+        this.connect();
+        
+        try {
+            new NetworkMessage(KVMessageRaw.marshal(kvmsg)).writeTo(this.output);
+            return KVMessageRaw.unmarshal(NetworkMessage.readFrom(this.input).getData());
+        
+        } catch (ParseException e) {
+            this.close();
+            throw new IOException("Invalid reply from " + this.address + ": " + e.getMessage());
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Closes the connection. It is reopened by the next request.
+     */
+    public synchronized void close() {
+        if (this.socket == null) {
+            return;
+        }
+        
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // Nothing to do: the connection is abandoned anyway
+        }
+        
+        this.socket = null;
+        this.input = null;
+        this.output = null;
+    }
+    
+    /**
+     * Parses a "host:port" string.
+     * @param address The address string
+     * @return The socket address
+     * @throws IllegalArgumentException Thrown if the string is malformed
+     */
+    public static InetSocketAddress parseAddress(String address) throws IllegalArgumentException {
+        int separator = address.lastIndexOf(':');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Invalid address: '" + address + "'.");
+        }
+        
+        try {
+            return new InetSocketAddress(address.substring(0, separator),
+                                         Integer.parseInt(address.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid address: '" + address + "'.");
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package app_kvServer;
+
+import common.messages.ChecksumException;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent state of a Raft node: the current term, the vote cast in it, and
+ * the replicated log of write operations.
+ * <p>
+ * The log is an append-only file of records (length, term, key, value); it is
+ * also kept in memory, since the data set of a consensus group is expected to
+ * be small. The log is neither snapshotted nor compacted: every write ever
+ * made stays in the file and in memory, and a member which restarts replays
+ * all of them. A group is therefore limited to a write history which fits the
+ * heap of its members. Appends are written immediately but forced to disk lazily by
+ * sync(), so that concurrent writers share a single flush. A record torn by a
+ * crash is cut off when the log is loaded.
+ * <p>
+ * Every record ends with a CRC32C checksum of its length and fields, and the
+ * state file with one of its contents. A record which does not match its
+ * checksum and is followed by further data is not torn but corrupt, and the
+ * log refuses to load. Logs written before checksums were introduced start
+ * without the header marking the checksummed format; they are loaded and
+ * continued without checksums. A log starting with neither the header nor a
+ * valid record length has a corrupt header and is refused rather than loaded
+ * without checks, and next to a checksummed log the state file must end with
+ * its checksum.
+ * @author Danila Klimenko
+ */
+public class RaftLog {
+    private static final Logger logger = LogSetup.getLogger();
+    private static final String LOG_FILE = "raft.log";
+    private static final String STATE_FILE = "raft.state";
+    private static final int    MAX_RECORD_LENGTH = 1024 * 1024;
+    private static final int    CHECKSUMMED_LOG = 0x52414643; // "RAFC", never a valid record length
+    private static final int    SIZEOF_INT = 4;
+    
+    private final File                          directory;
+    private final FileChannel                   channel;
+    private final List<KVMessageBatch.Entry>    entries;
+    private final List<Long>                    offsets;
+    private final Object                        sync_lock;
+    private long                                size;
+    private boolean                             checksummed;
+    private volatile long                       durable_index;
+    private long                                term;
+    private String                              voted_for;
+    
+    /**
+     * Main constructor. Loads the state and the log from the directory,
+     * creating them if necessary.
+     * @param directory The directory holding the files
+     * @throws IOException Thrown if the files cannot be read or created
+     */
+    public RaftLog(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory + ".");
+        }
+        
+        this.directory = directory;
+        this.entries = new ArrayList<KVMessageBatch.Entry>();
+        this.offsets = new ArrayList<Long>();
+        this.sync_lock = new Object();
+        this.term = 0;
+        this.voted_for = null;
+        this.checksummed = true;
+        
+        this.size = this.loadLog();
+        this.loadState(this.checksummed && this.size > 0);
+        logger.info("Loaded " + this.entries.size() + " Raft log entries, term " + this.term + ".");
+        
+        this.channel = new RandomAccessFile(new File(directory, LOG_FILE), "rw").getChannel();
+        if (this.channel.size() > this.size) {
+            logger.warn("Warning! Cutting off a torn record at the end of the Raft log.");
+            this.channel.truncate(this.size);
+        }
+        this.channel.position(this.size);
+        if (this.size == 0) {
+            this.checksummed = true;
+            ByteBuffer header = ByteBuffer.allocate(SIZEOF_INT).putInt(0, CHECKSUMMED_LOG);
+            while (header.hasRemaining()) {
+                this.channel.write(header);
+            }
+            this.size = SIZEOF_INT;
+        }
+        this.durable_index = this.entries.size();
+    }
+    
+    /**
+     * Getter method for the current term.
+     * @return The term
+     */
+    public synchronized long getTerm() {
+        return this.term;
+    }
+    
+    /**
+     * Getter method for the vote cast in the current term.
+     * @return Address of the candidate, or null
+     */
+    public synchronized String getVotedFor() {
+        return this.voted_for;
+    }
+    
+    /**
+     * Durably stores the current term and vote.
+     * @param term The term
+     * @param votedFor Address of the candidate voted for, or null
+     * @throws IOException Thrown if the state cannot be written
+     */
+    public synchronized void saveState(long term, String votedFor) throws IOException {
+        File                    temp = new File(this.directory, STATE_FILE + ".tmp");
+        FileOutputStream        file = new FileOutputStream(temp);
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        data = new DataOutputStream(bytes);
+        
+        data.writeLong(term);
+        data.writeUTF((votedFor != null) ? votedFor : "");
+        data.writeInt(checksum(bytes.toByteArray(), bytes.size()));
+        
+        try {
+            bytes.writeTo(file);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        
+        if (!temp.renameTo(new File(this.directory, STATE_FILE))) {
+            throw new IOException("Unable to replace " + STATE_FILE + ".");
+        }
+        
+        this.term = term;
+        this.voted_for = votedFor;
+    }
+    
+    /**
+     * Returns the index of the last entry.
+     * @return The index (0 if the log is empty)
+     */
+    public synchronized long getLastIndex() {
+        return this.entries.size();
+    }
+    
+    /**
+     * Returns the term of an entry.
+     * @param index The index of the entry
+     * @return The term, 0 for index 0, or -1 if there is no such entry
+     */
+    public synchronized long getTermAt(long index) {
+        if (index == 0) {
+            return 0;
+        }
+        if (index < 0 || index > this.entries.size()) {
+            return -1;
+        }
+        return this.entries.get((int) index - 1).version;
+    }
+    
+    /**
+     * Returns an entry.
+     * @param index The index of the entry (starting at 1)
+     * @return A PUT entry with the key, the value (null for a deletion) and the
+     *          term as version; a null key marks an empty entry
+     */
+    public synchronized KVMessageBatch.Entry get(long index) {
+        return this.entries.get((int) index - 1);
+    }
+    
+    /**
+     * Returns consecutive entries.
+     * @param from Index of the first entry
+     * @param maxBytes Approximate size limit; at least one entry is returned if
+     *          available
+     * @return The entries
+     */
+    public synchronized List<KVMessageBatch.Entry> getEntries(long from, int maxBytes) {
+        List<KVMessageBatch.Entry>  result = new ArrayList<KVMessageBatch.Entry>();
+        int                         bytes = 0;
+        
+        for (long index = from; index <= this.entries.size(); ++index) {
+            KVMessageBatch.Entry entry = this.entries.get((int) index - 1);
+            int entry_bytes = length(entry.key) + length(entry.value) + 16;
+            
+            if (!result.isEmpty() && bytes + entry_bytes > maxBytes) {
+                break;
+            }
+            bytes += entry_bytes;
+            result.add(entry);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Appends an entry. It is not durable until sync() is called.
+     * @param term The term of the entry
+     * @param key The key (null for an empty entry)
+     * @param value The value (null for a deletion)
+     * @return The index of the entry
+     * @throws IOException Thrown if the entry cannot be written
+     */
+    public synchronized long append(long term, String key, String value) throws IOException {
+        byte[] record = encode(term, key, value, this.checksummed);
+        
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+        
+        this.offsets.add(this.size);
+        this.size += record.length;
+        this.entries.add(new KVMessageBatch.Entry(StatusType.PUT, key, value, term));
+        
+        return this.entries.size();
+    }
+    
+    /**
+     * Removes an entry and all entries following it.
+     * @param index The index of the first removed entry
+     * @throws IOException Thrown if the log cannot be truncated
+     */
+    public synchronized void truncateFrom(long index) throws IOException {
+        if (index > this.entries.size()) {
+            return;
+        }
+        
+        this.size = this.offsets.get((int) index - 1);
+        this.channel.truncate(this.size);
+        this.channel.position(this.size);
+        
+        this.entries.subList((int) index - 1, this.entries.size()).clear();
+        this.offsets.subList((int) index - 1, this.offsets.size()).clear();
+        
+        if (this.durable_index >= index) {
+            this.durable_index = index - 1;
+        }
+    }
+    
+    /**
+     * Forces the log to disk, unless the given entry is durable already.
+     * Concurrent callers are served by a single flush.
+     * @param index Index of the entry which must be durable
+     * @throws IOException Thrown if the log cannot be flushed
+     */
+    public void sync(long index) throws IOException {
+        synchronized (this.sync_lock) {
+            if (this.durable_index >= index) {
+                return;
+            }
+            
+            long last = this.getLastIndex();
+            this.channel.force(false);
+            
+            synchronized (this) {
+                this.durable_index = Math.min(last, this.entries.size());
+            }
+        }
+    }
+    
+    /**
+     * Returns the index of the last entry known to be on disk.
+     * @return The index
+     */
+    public long getDurableIndex() {
+        return this.durable_index;
+    }
+    
+    /**
+     * Closes the log file.
+     */
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            logger.error("Error! Unable to close the Raft log: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Reads the state file.
+     * @param checksumRequired True if the file may not lack its checksum,
+     *          i.e. if it belongs to a checksummed log
+     * @throws ChecksumException Thrown if the file does not match its
+     *          checksum, or lacks a required one
+     */
+    private void loadState(boolean checksumRequired) throws IOException {
+        File file = new File(this.directory, STATE_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        
+        byte[]          bytes = readFile(file);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+        
+        this.term = data.readLong();
+        String vote = data.readUTF();
+        this.voted_for = vote.isEmpty() ? null : vote;
+        
+        // State files written before checksums were introduced end here
+        if (checksumRequired && data.available() != SIZEOF_INT) {
+            throw new ChecksumException("Raft state file " + file + " has no valid checksum.");
+        }
+        if (data.available() >= SIZEOF_INT) {
+            int length = bytes.length - data.available();
+            int expected = data.readInt();
+            int actual = checksum(bytes, length);
+            if (actual != expected) {
+                throw new ChecksumException("Raft state file " + file, expected, actual);
+            }
+        }
+    }
+    
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            new DataInputStream(input).readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+    
+    /**
+     * Reads the log file into memory.
+     * @return Length of the intact part of the file
+     * @throws ChecksumException Thrown if a record in the middle of the log
+     *          does not match its checksum
+     * @throws IOException Thrown if the header is corrupt
+     */
+    private long loadLog() throws IOException {
+        File file = new File(this.directory, LOG_FILE);
+        if (!file.exists() || file.length() == 0) {
+            return 0;
+        }
+        
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long            offset = 0;
+        
+        try {
+            data.mark(SIZEOF_INT);
+            int header = data.readInt();
+            if (header == CHECKSUMMED_LOG) {
+                offset = SIZEOF_INT;
+            } else if (header < 0 || header > MAX_RECORD_LENGTH) {
+                // Neither the header nor the length of a legacy record
+                throw new IOException("Raft log is corrupt: invalid header " + Integer.toHexString(header) + ".");
+            } else {
+                logger.warn("Warning! The Raft log has no checksums; it is continued without them.");
+                this.checksummed = false;
+                data.reset();
+            }
+            
+            while (true) {
+                int length = data.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    if (!this.checksummed || isZeroTail(data)) {
+                        break; // A torn length field
+                    }
+                    throw new IOException("Raft log is corrupt: invalid length " + length + " of record " +
+                                          (this.entries.size() + 1) + " at offset " + offset + ".");
+                }
+                
+                byte[] record = new byte[length];
+                data.readFully(record);
+                
+                if (this.checksummed) {
+                    int expected = data.readInt();
+                    int actual = checksum(length, record);
+                    if (actual != expected) {
+                        if (isZeroTail(data)) {
+                            break; // A torn record
+                        }
+                        throw new ChecksumException("Raft log record " + (this.entries.size() + 1) +
+                                                    " at offset " + offset, expected, actual);
+                    }
+                }
+                
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                long    term = fields.readLong();
+                String  key = readString(fields);
+                String  value = readString(fields);
+                
+                this.entries.add(new KVMessageBatch.Entry(StatusType.PUT, key, value, term));
+                this.offsets.add(offset);
+                offset += SIZEOF_INT + length + (this.checksummed ? SIZEOF_INT : 0);
+            }
+        } catch (EOFException e) {
+            // End of the log, or a torn record which is cut off
+        } finally {
+            data.close();
+        }
+        
+        return offset;
+    }
+    
+    /**
+     * Checks whether the rest of the log consists of zeros, which a crash may
+     * leave behind the last record instead of its data.
+     */
+    private static boolean isZeroTail(DataInputStream data) throws IOException {
+        int b;
+        while ((b = data.read()) >= 0) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static byte[] encode(long term, String key, String value, boolean checksummed) throws IOException {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        data = new DataOutputStream(bytes);
+        
+        data.writeInt(0); // Length placeholder
+        data.writeLong(term);
+        writeString(data, key);
+        writeString(data, value);
+        if (checksummed) {
+            data.writeInt(0); // Checksum placeholder
+        }
+        data.flush();
+        
+        byte[]      record = bytes.toByteArray();
+        int         length = record.length - SIZEOF_INT - (checksummed ? SIZEOF_INT : 0);
+        ByteBuffer  bbuf = ByteBuffer.wrap(record);
+        
+        bbuf.putInt(0, length);
+        if (checksummed) {
+            bbuf.putInt(SIZEOF_INT + length, checksum(record, SIZEOF_INT + length));
+        }
+        return record;
+    }
+    
+    /**
+     * Computes the checksum of a log record: of its length and fields.
+     * Equals the checksum of the encoded record up to its checksum.
+     */
+    private static int checksum(int length, byte[] record) {
+        CRC32C crc = new CRC32C();
+        
+        crc.update(ByteBuffer.allocate(SIZEOF_INT).putInt(0, length));
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+    
+    private static int checksum(byte[] bytes, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+    
+    private static void writeString(DataOutputStream data, String str) throws IOException {
+        if (str == null) {
+            data.writeInt(-1);
+        } else {
+            byte[] bytes = str.getBytes("UTF-8");
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+    }
+    
+    private static String readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+    
+    private static int length(String str) {
+        return (str != null) ? str.length() : 0;
+    }
+}
@@ -0,0 +1,1024 @@
+package app_kvServer;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * A member of a consensus group replicating the writes of the group with the
+ * Raft algorithm: leader election, log replication and commitment by quorum.
+ * <p>
+ * Only the leader accepts requests; other members answer SERVER_NOT_LEADER
+ * with the address of the leader, if known. A write is acknowledged once it
+ * is durable on a majority of the group and applied to the local storage.
+ * Reads confirm the leadership with a round of heartbeats before they are
+ * served (the "read index" method), so they never return stale data.
+ * <p>
+ * Replication to each follower is pipelined: the leader keeps sending batches
+ * of entries over a dedicated connection without waiting for the previous
+ * replies, up to a bounded number of requests in flight. The leader's own
+ * disk flush runs concurrently with the replication and is shared between
+ * concurrent writers.
+ * @author Danila Klimenko
+ */
+public class RaftNode {
+    private static final Logger logger = LogSetup.getLogger();
+    private static final long   ELECTION_TIMEOUT_MIN = 300; // milliseconds
+    private static final long   ELECTION_TIMEOUT_MAX = 600; // milliseconds
+    private static final long   HEARTBEAT_INTERVAL = 50; // milliseconds
+    private static final long   TIMER_RESOLUTION = 10; // milliseconds
+    private static final long   REQUEST_TIMEOUT = 5000; // milliseconds
+    private static final long   RETRY_INTERVAL = 200; // milliseconds
+    private static final int    CONNECT_TIMEOUT = 1000; // milliseconds
+    private static final int    BATCH_BYTES = 64 * 1024;
+    private static final int    MAX_IN_FLIGHT = 8;
+    
+    /**
+     * Role of a group member.
+     */
+    public enum Role {
+        FOLLOWER,
+        CANDIDATE,
+        LEADER
+    }
+    
+    private final KVDataStorage             storage;
+    private final String                    self;
+    private final RaftLog                   log;
+    private final List<Replicator>          replicators;
+    private final Map<Long, PendingWrite>   pending;
+    private final Random                    random;
+    private final int                       quorum;
+    
+    // Guarded by 'this'
+    private Role                            role;
+    private long                            current_term;
+    private String                          voted_for;
+    private String                          leader;
+    private long                            commit_index;
+    private long                            last_applied;
+    private long                            election_deadline;
+    private int                             votes;
+    private long                            read_round;
+    private volatile boolean                online;
+    
+    /**
+     * Main constructor. Loads the persistent state of the member.
+     * @param storage The storage the committed writes are applied to
+     * @param group Addresses of all members of the group ("host:port")
+     * @param self Address of this member
+     * @param directory Directory for the persistent state
+     * @throws IOException Thrown if the persistent state cannot be loaded
+     */
+    public RaftNode(KVDataStorage storage, List<String> group, String self, File directory)
+            throws IOException {
+        if (!group.contains(self)) {
+            throw new IllegalArgumentException("Node " + self + " is not a member of the group.");
+        }
+        
+        this.storage = storage;
+        this.self = self;
+        this.log = new RaftLog(directory);
+        this.replicators = new ArrayList<Replicator>();
+        this.pending = new HashMap<Long, PendingWrite>();
+        this.random = new Random();
+        this.quorum = group.size() / 2 + 1;
+        
+        for (String member : group) {
+            if (!member.equals(self)) {
+                this.replicators.add(new Replicator(member));
+            }
+        }
+        
+        this.role = Role.FOLLOWER;
+        this.current_term = this.log.getTerm();
+        this.voted_for = this.log.getVotedFor();
+        this.leader = null;
+        this.commit_index = 0;
+        this.last_applied = 0;
+        this.votes = 0;
+        this.read_round = 0;
+        this.online = false;
+    }
+    
+    /**
+     * Starts the election timer, the replication and the applier threads.
+     */
+    public void start() {
+        synchronized (this) {
+            this.online = true;
+            this.resetElectionTimer();
+        }
+        
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                runTimer();
+            }
+        }, "Raft-Timer");
+        
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                runApplier();
+            }
+        }, "Raft-Applier");
+        
+        for (Replicator replicator : this.replicators) {
+            startDaemon(replicator, "Raft-Replicator-" + replicator.address);
+        }
+    }
+    
+    /**
+     * Stops all threads of the member and closes its log.
+     */
+    public void shutDown() {
+        synchronized (this) {
+            this.online = false;
+            this.notifyAll();
+        }
+        for (Replicator replicator : this.replicators) {
+            replicator.disconnect(null);
+        }
+        this.log.close();
+    }
+    
+    /**
+     * Returns the address of the current leader.
+     * @return The address, or null if no leader is known
+     */
+    public synchronized String getLeader() {
+        return this.leader;
+    }
+    
+    /**
+     * Returns the role of this member.
+     * @return The role
+     */
+    public synchronized Role getRole() {
+        return this.role;
+    }
+    
+    /**
+     * Returns a human-readable status report.
+     * @return One line describing the state of the member
+     */
+    public synchronized String getStatus() {
+        return this.role + " in term " + this.current_term + ", leader " +
+               ((this.leader != null) ? this.leader : "unknown") + ", log " +
+               this.log.getLastIndex() + ", committed " + this.commit_index +
+               ", applied " + this.last_applied + ".";
+    }
+    
+    /**
+     * Replicates a write to the group and applies it once committed.
+     * @param key The key
+     * @param value The value (null for a deletion)
+     * @return The reply for the client: the result of the write, or
+     *          SERVER_NOT_LEADER if this member is not the leader
+     */
+    public KVMessage submit(String key, String value) {
+        StatusType  error_type = (value != null) ? StatusType.PUT_ERROR : StatusType.DELETE_ERROR;
+        PendingWrite write;
+        long        index;
+        
+        if (key == null) {
+            return new KVMessageRaw(error_type, "", "Illegal key: 'null'.");
+        }
+        
+        synchronized (this) {
+            if (this.role != Role.LEADER) {
+                return this.notLeader(key);
+            }
+            try {
+                index = this.log.append(this.current_term, key, value);
+            } catch (IOException e) {
+                this.fail(e);
+                return new KVMessageRaw(error_type, key, "Raft log failure: " + e.getMessage());
+            }
+            write = new PendingWrite(this.current_term);
+            this.pending.put(index, write);
+            this.notifyAll(); // Wakes the replicators
+        }
+        
+        // Flushed while the followers receive the entry
+        try {
+            this.log.sync(index);
+        } catch (IOException e) {
+            this.fail(e);
+        }
+        
+        synchronized (this) {
+            if (this.role == Role.LEADER) {
+                this.advanceCommitIndex();
+            }
+            
+            long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT;
+            long remaining = REQUEST_TIMEOUT;
+            
+            while (write.result == null && this.online && remaining > 0) {
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            
+            if (write.result == null) {
+                this.pending.remove(index);
+                return new KVMessageRaw(error_type, key,
+                        "Write was not committed in time; it may still take effect.");
+            }
+            return write.result;
+        }
+    }
+    
+    /**
+     * Reads a key once the leadership of this member is confirmed by a
+     * majority, so that the read reflects every acknowledged write.
+     * @param key The key
+     * @return GET_SUCCESS or GET_ERROR, or SERVER_NOT_LEADER if this member is
+     *          not the leader
+     */
+    public KVMessage read(String key) {
+        long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT;
+        
+        synchronized (this) {
+            long term = this.current_term;
+            
+            if (this.role != Role.LEADER) {
+                return this.notLeader(key);
+            }
+            
+            // The commit index is only known once an entry of this term commits
+            while (this.isLeaderOf(term) && this.log.getTermAt(this.commit_index) != term) {
+                if (!this.await(deadline)) {
+                    return this.readTimeout(key);
+                }
+            }
+            
+            long read_index = this.commit_index;
+            long round = ++this.read_round;
+            this.notifyAll(); // Wakes the replicators to send heartbeats
+            
+            while (this.isLeaderOf(term) && this.countReadAcks(round) < this.quorum) {
+                if (!this.await(deadline)) {
+                    return this.readTimeout(key);
+                }
+            }
+            if (!this.isLeaderOf(term)) {
+                return this.notLeader(key);
+            }
+            
+            while (this.last_applied < read_index) {
+                if (!this.await(deadline)) {
+                    return this.readTimeout(key);
+                }
+            }
+        }
+        
+        String value = this.storage.get(key);
+        if (value == null) {
+            return new KVMessageRaw(StatusType.GET_ERROR, (key != null) ? key : "",
+                                    "Requested key is not found or invalid.");
+        }
+        return new KVMessageRaw(StatusType.GET_SUCCESS, key, value);
+    }
+    
+    /**
+     * Handles an AppendEntries request of a leader.
+     * @param leaderAddress Address of the leader
+     * @param term Term of the leader
+     * @param prevIndex Index of the entry preceding the new ones
+     * @param prevTerm Term of the entry preceding the new ones
+     * @param leaderCommit Commit index of the leader
+     * @param entries The new entries (term as version)
+     * @return RAFT_APPEND_REPLY with "term success match", where match is the
+     *          index of the last matching entry on success, or a hint where
+     *          the leader should continue otherwise
+     */
+    public KVMessage handleAppend(String leaderAddress, long term, long prevIndex,
+                                  long prevTerm, long leaderCommit,
+                                  List<KVMessageBatch.Entry> entries) {
+        long index = prevIndex;
+        
+        synchronized (this) {
+            if (term < this.current_term) {
+                return this.appendReply(false, this.log.getLastIndex());
+            }
+            
+            this.becomeFollower(term);
+            this.leader = leaderAddress;
+            this.resetElectionTimer();
+            
+            if (this.log.getTermAt(prevIndex) != prevTerm) {
+                return this.appendReply(false, Math.min(this.log.getLastIndex(), prevIndex - 1));
+            }
+            
+            try {
+                for (KVMessageBatch.Entry entry : entries) {
+                    ++index;
+                    long existing = this.log.getTermAt(index);
+                    if (existing == entry.version) {
+                        continue;
+                    }
+                    if (existing != -1) {
+                        this.log.truncateFrom(index);
+                    }
+                    this.log.append(entry.version, entry.key, entry.value);
+                }
+            } catch (IOException e) {
+                this.fail(e);
+                return this.appendReply(false, prevIndex);
+            }
+        }
+        
+        // Flushed without blocking heartbeats, votes and replies meanwhile
+        try {
+            this.log.sync(index);
+        } catch (IOException e) {
+            this.fail(e);
+            return this.appendReply(false, prevIndex);
+        }
+        
+        synchronized (this) {
+            if (this.current_term != term) {
+                // A newer leader may have replaced the entries meanwhile
+                return this.appendReply(false, prevIndex);
+            }
+            
+            if (leaderCommit > this.commit_index) {
+                this.commit_index = Math.min(leaderCommit, index);
+                this.notifyAll(); // Wakes the applier
+            }
+            
+            return this.appendReply(true, index);
+        }
+    }
+    
+    /**
+     * Handles a RequestVote request of a candidate.
+     * @param candidate Address of the candidate
+     * @param term Term of the candidate
+     * @param lastIndex Index of the last entry of the candidate
+     * @param lastTerm Term of the last entry of the candidate
+     * @return RAFT_VOTE_REPLY with "term granted"
+     */
+    public synchronized KVMessage handleVote(String candidate, long term, long lastIndex, long lastTerm) {
+        boolean granted = false;
+        
+        if (term > this.current_term) {
+            this.becomeFollower(term);
+        }
+        
+        if (term == this.current_term && (this.voted_for == null || this.voted_for.equals(candidate))) {
+            long my_last_index = this.log.getLastIndex();
+            long my_last_term = this.log.getTermAt(my_last_index);
+            
+            if (lastTerm > my_last_term || (lastTerm == my_last_term && lastIndex >= my_last_index)) {
+                granted = this.saveState(this.current_term, candidate);
+                if (granted) {
+                    this.resetElectionTimer();
+                }
+            }
+        }
+        
+        return new KVMessageRaw(StatusType.RAFT_VOTE_REPLY, "",
+                                this.current_term + " " + (granted ? 1 : 0));
+    }
+    
+    private KVMessage appendReply(boolean success, long match) {
+        return new KVMessageRaw(StatusType.RAFT_APPEND_REPLY, "",
+                                this.current_term + " " + (success ? 1 : 0) + " " + match);
+    }
+    
+    private KVMessage notLeader(String key) {
+        return new KVMessageRaw(StatusType.SERVER_NOT_LEADER, (key != null) ? key : "", this.leader);
+    }
+    
+    private KVMessage readTimeout(String key) {
+        return new KVMessageRaw(StatusType.GET_ERROR, (key != null) ? key : "",
+                                "Leadership could not be confirmed in time.");
+    }
+    
+    private boolean isLeaderOf(long term) {
+        return this.online && this.role == Role.LEADER && this.current_term == term;
+    }
+    
+    private int countReadAcks(long round) {
+        int count = 1; // This member
+        for (Replicator replicator : this.replicators) {
+            if (replicator.acked_round >= round) {
+                ++count;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Waits on the monitor until notified or until the deadline.
+     * @return False if the deadline passed
+     */
+    private boolean await(long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0 || !this.online) {
+            return false;
+        }
+        try {
+            this.wait(remaining);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return true;
+    }
+    
+    private void resetElectionTimer() {
+        this.election_deadline = System.currentTimeMillis() + ELECTION_TIMEOUT_MIN +
+                (long) (this.random.nextDouble() * (ELECTION_TIMEOUT_MAX - ELECTION_TIMEOUT_MIN));
+    }
+    
+    private boolean saveState(long term, String votedFor) {
+        try {
+            this.log.saveState(term, votedFor);
+        } catch (IOException e) {
+            this.fail(e);
+            return false;
+        }
+        this.current_term = term;
+        this.voted_for = votedFor;
+        return true;
+    }
+    
+    private void becomeFollower(long term) {
+        if (term > this.current_term) {
+            this.saveState(term, null);
+        }
+        if (this.role != Role.FOLLOWER) {
+            logger.info("Raft member " + this.self + " becomes a follower in term " + this.current_term + ".");
+            this.role = Role.FOLLOWER;
+            this.leader = null;
+            this.notifyAll();
+        }
+    }
+    
+    private void startElection() {
+        if (!this.saveState(this.current_term + 1, this.self)) {
+            return;
+        }
+        
+        this.role = Role.CANDIDATE;
+        this.leader = null;
+        this.votes = 1;
+        this.resetElectionTimer();
+        
+        logger.info("Raft member " + this.self + " starts an election for term " + this.current_term + ".");
+        
+        if (this.votes >= this.quorum) {
+            this.becomeLeader();
+            return;
+        }
+        
+        final long term = this.current_term;
+        final long last_index = this.log.getLastIndex();
+        final long last_term = this.log.getTermAt(last_index);
+        
+        for (final Replicator replicator : this.replicators) {
+            startDaemon(new Runnable() {
+                @Override
+                public void run() {
+                    requestVote(replicator.address, term, last_index, last_term);
+                }
+            }, "Raft-Vote-" + replicator.address);
+        }
+    }
+    
+    private void requestVote(String member, long term, long lastIndex, long lastTerm) {
+        PeerConnection connection = new PeerConnection(PeerConnection.parseAddress(member));
+        
+        try {
+            KVMessage reply = connection.request(new KVMessageRaw(StatusType.RAFT_VOTE, this.self,
+                                                 term + " " + lastIndex + " " + lastTerm));
+            long[] fields = parseReply(reply, StatusType.RAFT_VOTE_REPLY, 2);
+            
+            synchronized (this) {
+                if (fields[0] > this.current_term) {
+                    this.becomeFollower(fields[0]);
+                } else if (fields[1] == 1 && this.role == Role.CANDIDATE && this.current_term == term) {
+                    if (++this.votes >= this.quorum) {
+                        this.becomeLeader();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The member is unreachable: no vote
+        } finally {
+            connection.close();
+        }
+    }
+    
+    private void becomeLeader() {
+        logger.info("Raft member " + this.self + " becomes the leader in term " + this.current_term + ".");
+        
+        this.role = Role.LEADER;
+        this.leader = this.self;
+        
+        for (Replicator replicator : this.replicators) {
+            replicator.reset(this.log.getLastIndex() + 1);
+        }
+        
+        // An empty entry of the new term lets the earlier entries commit
+        final long term = this.current_term;
+        final long index;
+        try {
+            index = this.log.append(term, null, null);
+        } catch (IOException e) {
+            this.fail(e);
+            return;
+        }
+        this.notifyAll(); // Wakes the replicators
+        
+        // Flushed without holding the monitor, which the caller does
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                flush(term, index);
+            }
+        }, "Raft-Flush-" + term);
+    }
+    
+    /**
+     * Forces the log to disk up to the given entry, then counts the entry
+     * of the leader towards its commit.
+     * @param term The term of leadership
+     * @param index Index of the entry
+     */
+    private void flush(long term, long index) {
+        try {
+            this.log.sync(index);
+        } catch (IOException e) {
+            this.fail(e);
+            return;
+        }
+        
+        synchronized (this) {
+            if (this.isLeaderOf(term)) {
+                this.advanceCommitIndex();
+            }
+        }
+    }
+    
+    /**
+     * Commits the newest entry of the current term stored on a majority.
+     */
+    private void advanceCommitIndex() {
+        long durable = this.log.getDurableIndex();
+        
+        for (long index = this.log.getLastIndex(); index > this.commit_index; --index) {
+            if (this.log.getTermAt(index) != this.current_term) {
+                break; // Older entries are only committed along with a newer one
+            }
+            
+            int count = (durable >= index) ? 1 : 0;
+            for (Replicator replicator : this.replicators) {
+                if (replicator.match_index >= index) {
+                    ++count;
+                }
+            }
+            
+            if (count >= this.quorum) {
+                this.commit_index = index;
+                this.notifyAll(); // Wakes the applier
+                break;
+            }
+        }
+    }
+    
+    private void fail(IOException e) {
+        logger.error("Error! Raft log failure, the member stops: " + e.getMessage());
+        synchronized (this) {
+            this.online = false;
+            this.role = Role.FOLLOWER;
+            this.leader = null;
+            this.notifyAll();
+        }
+    }
+    
+    private void runTimer() {
+        while (this.online) {
+            try {
+                Thread.sleep(TIMER_RESOLUTION);
+            } catch (InterruptedException e) {
+                // Checking the 'online' flag
+            }
+            
+            synchronized (this) {
+                if (this.online && this.role != Role.LEADER &&
+                        System.currentTimeMillis() >= this.election_deadline) {
+                    this.startElection();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Applies the committed entries to the storage and completes the pending
+     * writes.
+     */
+    private void runApplier() {
+        while (this.online) {
+            List<KVMessageBatch.Entry>  batch;
+            long                        first;
+            
+            synchronized (this) {
+                while (this.online && this.last_applied >= this.commit_index) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        // Checking the 'online' flag
+                    }
+                }
+                if (!this.online) {
+                    break;
+                }
+                
+                first = this.last_applied + 1;
+                batch = this.log.getEntries(first, BATCH_BYTES);
+                if (batch.size() > this.commit_index - this.last_applied) {
+                    batch = batch.subList(0, (int) (this.commit_index - this.last_applied));
+                }
+            }
+            
+            List<KVMessage> results = new ArrayList<KVMessage>(batch.size());
+            for (KVMessageBatch.Entry entry : batch) {
+                results.add(this.apply(entry));
+            }
+            
+            synchronized (this) {
+                for (int i = 0; i < batch.size(); ++i) {
+                    PendingWrite write = this.pending.remove(first + i);
+                    if (write == null) {
+                        continue;
+                    }
+                    if (write.term == batch.get(i).version) {
+                        write.result = results.get(i);
+                    } else {
+                        write.result = new KVMessageRaw(StatusType.PUT_ERROR, "",
+                                "Leadership changed; the write was discarded.");
+                    }
+                }
+                this.last_applied = first + batch.size() - 1;
+                this.notifyAll();
+            }
+        }
+    }
+    
+    private KVMessage apply(KVMessageBatch.Entry entry) {
+        if (entry.key == null) {
+            return null; // Empty entry of a new leader
+        }
+        
+        if (entry.value != null) {
+            try {
+                String old_value = this.storage.put(entry.key, entry.value);
+                return new KVMessageRaw((old_value == null) ? StatusType.PUT_SUCCESS : StatusType.PUT_UPDATE,
+                                        entry.key, entry.value);
+            } catch (IllegalArgumentException e) {
+                return new KVMessageRaw(StatusType.PUT_ERROR, entry.key, e.getMessage());
+            }
+        }
+        
+        String old_value = this.storage.delete(entry.key);
+        if (old_value == null) {
+            return new KVMessageRaw(StatusType.DELETE_ERROR, entry.key, "Requested key is not found or invalid.");
+        }
+        return new KVMessageRaw(StatusType.DELETE_SUCCESS, entry.key, old_value);
+    }
+    
+    private static long[] parseReply(KVMessage reply, StatusType expected, int count) throws IOException {
+        if (reply.getStatus() != expected || reply.getValue() == null) {
+            throw new IOException("Unexpected reply: " + reply.getStatus() + ".");
+        }
+        
+        String[] tokens = reply.getValue().split(" ");
+        if (tokens.length != count) {
+            throw new IOException("Malformed reply: '" + reply.getValue() + "'.");
+        }
+        
+        long[] fields = new long[count];
+        try {
+            for (int i = 0; i < count; ++i) {
+                fields[i] = Long.parseLong(tokens[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed reply: '" + reply.getValue() + "'.");
+        }
+        return fields;
+    }
+    
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * A write waiting for its entry to be applied.
+     */
+    private static class PendingWrite {
+        final long  term;
+        KVMessage   result;
+        
+        PendingWrite(long term) {
+            this.term = term;
+            this.result = null;
+        }
+    }
+    
+    /**
+     * An AppendEntries request awaiting its reply.
+     */
+    private static class InFlight {
+        final long  prev_index;
+        final long  term;
+        final long  round;
+        final int   epoch;
+        
+        InFlight(long prevIndex, long term, long round, int epoch) {
+            this.prev_index = prevIndex;
+            this.term = term;
+            this.round = round;
+            this.epoch = epoch;
+        }
+    }
+    
+    /**
+     * Pipelined replication to a single follower. The sender thread runs
+     * this; replies are handled by a receiver thread per connection. The
+     * state is guarded by the monitor of the node.
+     */
+    private class Replicator implements Runnable {
+        final String                address;
+        final LinkedList<InFlight>  in_flight;
+        long                        next_index;
+        volatile long               match_index;
+        volatile long               acked_round;
+        long                        sent_round;
+        long                        last_sent;
+        int                         epoch;
+        int                         generation; // Of the requests in flight
+        Socket                      socket;
+        
+        Replicator(String address) {
+            this.address = address;
+            this.in_flight = new LinkedList<InFlight>();
+            this.next_index = 1;
+            this.match_index = 0;
+            this.acked_round = 0;
+            this.sent_round = 0;
+            this.last_sent = 0;
+            this.epoch = 0;
+            this.generation = 0;
+            this.socket = null;
+        }
+        
+        /**
+         * Prepares the replication for a new term of leadership. The
+         * connection is closed, since replies to the requests of the earlier
+         * term would be taken for replies to the new ones.
+         */
+        void reset(long nextIndex) {
+            this.next_index = nextIndex;
+            this.match_index = 0;
+            this.last_sent = 0;
+            this.in_flight.clear();
+            ++this.generation;
+            ++this.epoch; // Replies to earlier requests are ignored
+            
+            if (this.socket != null) {
+                try {
+                    this.socket.close();
+                } catch (IOException e) {
+                    // Nothing to do: the connection is abandoned anyway
+                }
+                this.socket = null;
+            }
+        }
+        
+        @Override
+        public void run() {
+            while (online) {
+                KVMessage   request;
+                int         generation;
+                
+                synchronized (RaftNode.this) {
+                    long wait_time;
+                    while (online && (wait_time = this.timeToNextRequest()) > 0) {
+                        try {
+                            RaftNode.this.wait(wait_time);
+                        } catch (InterruptedException e) {
+                            // Checking the 'online' flag
+                        }
+                    }
+                    if (!online) {
+                        break;
+                    }
+                    request = this.nextRequest();
+                    generation = this.generation;
+                }
+                
+                Socket connection = null;
+                try {
+                    connection = this.connect();
+                    synchronized (RaftNode.this) {
+                        if (generation != this.generation) {
+                            // Forgotten meanwhile; its reply would be taken
+                            // for the reply to a later request
+                            continue;
+                        }
+                    }
+                    new NetworkMessage(KVMessageRaw.marshal(request)).writeTo(connection.getOutputStream());
+                } catch (IOException e) {
+                    this.disconnect(connection);
+                    try {
+                        Thread.sleep(RETRY_INTERVAL);
+                    } catch (InterruptedException ie) {
+                        // Checking the 'online' flag
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Returns how long the sender should wait before the next request.
+         */
+        private long timeToNextRequest() {
+            if (role != Role.LEADER) {
+                return HEARTBEAT_INTERVAL;
+            }
+            if (this.in_flight.size() >= MAX_IN_FLIGHT) {
+                return HEARTBEAT_INTERVAL;
+            }
+            if (this.next_index <= log.getLastIndex() || this.sent_round < read_round) {
+                return 0;
+            }
+            return Math.max(0, this.last_sent + HEARTBEAT_INTERVAL - System.currentTimeMillis());
+        }
+        
+        /**
+         * Builds the next AppendEntries request and records it as in flight.
+         */
+        private KVMessage nextRequest() {
+            long                        prev_index = this.next_index - 1;
+            List<KVMessageBatch.Entry>  entries = log.getEntries(this.next_index, BATCH_BYTES);
+            
+            this.in_flight.add(new InFlight(prev_index, current_term, read_round, this.epoch));
+            this.next_index += entries.size();
+            this.sent_round = read_round;
+            this.last_sent = System.currentTimeMillis();
+            
+            return new KVMessageBatch(StatusType.RAFT_APPEND, self, current_term + " " + prev_index +
+                                      " " + log.getTermAt(prev_index) + " " + commit_index, entries);
+        }
+        
+        private Socket connect() throws IOException {
+            synchronized (RaftNode.this) {
+                if (this.socket != null) {
+                    return this.socket;
+                }
+            }
+            
+            final Socket connection = new Socket();
+            try {
+                connection.connect(PeerConnection.parseAddress(this.address), CONNECT_TIMEOUT);
+                connection.setTcpNoDelay(true);
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            
+            synchronized (RaftNode.this) {
+                this.socket = connection;
+            }
+            
+            final InputStream input = new BufferedInputStream(connection.getInputStream());
+            startDaemon(new Runnable() {
+                @Override
+                public void run() {
+                    receive(connection, input);
+                }
+            }, "Raft-Receiver-" + this.address);
+            
+            return connection;
+        }
+        
+        /**
+         * Closes a connection and rewinds the replication to the first entry
+         * which was not acknowledged. A request which failed to connect is
+         * rewound as well.
+         * @param connection The connection to close, or null for the current one
+         */
+        void disconnect(Socket connection) {
+            synchronized (RaftNode.this) {
+                if (connection == null) {
+                    connection = this.socket;
+                }
+                if (connection == this.socket) {
+                    this.socket = null;
+                    this.rewind();
+                }
+            }
+            
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // Nothing to do: the connection is abandoned anyway
+                }
+            }
+        }
+        
+        /**
+         * Forgets the requests in flight and resumes the replication at the
+         * first entry which was not acknowledged. Called with the monitor of
+         * the node held.
+         */
+        private void rewind() {
+            if (!this.in_flight.isEmpty()) {
+                this.next_index = Math.max(this.match_index + 1, this.in_flight.getFirst().prev_index + 1);
+            }
+            this.in_flight.clear();
+            ++this.generation;
+            ++this.epoch; // Replies to the forgotten requests are ignored
+        }
+        
+        private void receive(Socket connection, InputStream input) {
+            try {
+                while (true) {
+                    KVMessage reply = KVMessageRaw.unmarshal(NetworkMessage.readFrom(input).getData());
+                    this.handleReply(connection, reply);
+                }
+            } catch (IOException e) {
+                if (online) {
+                    logger.debug("Connection to Raft member " + this.address + " lost: " + e.getMessage());
+                }
+            } catch (ParseException e) {
+                logger.error("Error! Invalid reply from Raft member " + this.address + ": " + e.getMessage());
+            }
+            
+            this.disconnect(connection);
+        }
+        
+        private void handleReply(Socket connection, KVMessage reply) throws IOException {
+            long[] fields = parseReply(reply, StatusType.RAFT_APPEND_REPLY, 3);
+            
+            synchronized (RaftNode.this) {
+                if (connection != this.socket) {
+                    return; // The requests sent over it were forgotten
+                }
+                InFlight request = this.in_flight.poll();
+                
+                if (fields[0] > current_term) {
+                    becomeFollower(fields[0]);
+                    return;
+                }
+                if (request == null || request.epoch != this.epoch || role != Role.LEADER ||
+                        request.term != current_term) {
+                    return; // A reply to a request of an earlier term or pipeline
+                }
+                
+                this.acked_round = Math.max(this.acked_round, request.round);
+                
+                if (fields[1] == 1) {
+                    this.match_index = Math.max(this.match_index, fields[2]);
+                    advanceCommitIndex();
+                } else {
+                    // Logs diverge: resend from where the follower suggests;
+                    // the requests still in flight are stale now
+                    this.next_index = Math.max(this.match_index + 1,
+                                               Math.min(fields[2] + 1, request.prev_index));
+                    ++this.epoch;
+                }
+                RaftNode.this.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package app_kvServer;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Admission control of the client requests: a token bucket per remote address
+ * and one for the whole server. Requests over either limit are refused right
+ * away, so that a client flooding the server learns about it from an explicit
+ * reply instead of slowing everybody down.
+ * <p>
+ * Once there are many buckets, the full ones are dropped: a full bucket does
+ * not differ from the new one created for the next request from its address,
+ * so clients from many distinct addresses do not make the server run out of
+ * memory.
+ * @author Danila Klimenko
+ */
+public class RateLimiter {
+    /**
+     * Length of the burst a bucket admits above its rate.
+     */
+    public static final double  BURST_SECONDS = 1.0;
+    
+    private static final int    MIN_SWEEP_SIZE = 1024; // Buckets kept before full ones are dropped
+    
+    private volatile double     client_rate;
+    private volatile TokenBucket global;
+    private final ConcurrentMap<InetAddress, TokenBucket> clients;
+    private volatile int        sweep_size;
+    
+    /**
+     * Main constructor. No limits are enforced until they are set.
+     */
+    public RateLimiter() {
+        this.client_rate = 0;
+        this.global = null;
+        this.clients = new ConcurrentHashMap<InetAddress, TokenBucket>();
+        this.sweep_size = MIN_SWEEP_SIZE;
+    }
+    
+    /**
+     * Sets the rate limits. Buckets of the new rates start full.
+     * @param clientRate Requests per second admitted from one remote address,
+     *          0 for no limit
+     * @param globalRate Requests per second admitted in total, 0 for no limit
+     */
+    public void setLimits(double clientRate, double globalRate) {
+        this.clients.clear();
+        this.client_rate = clientRate;
+        this.global = (globalRate > 0) ? new TokenBucket(globalRate, globalRate * BURST_SECONDS) : null;
+    }
+    
+    /**
+     * Getter method for the limit per remote address.
+     * @return Requests per second, 0 if there is no limit
+     */
+    public double getClientRate() {
+        return this.client_rate;
+    }
+    
+    /**
+     * Getter method for the limit of the whole server.
+     * @return Requests per second, 0 if there is no limit
+     */
+    public double getGlobalRate() {
+        TokenBucket bucket = this.global;
+        return (bucket != null) ? bucket.getRate() : 0;
+    }
+    
+    /**
+     * Returns the number of buckets kept per remote address.
+     * @return The number of buckets
+     */
+    public int getBucketCount() {
+        return this.clients.size();
+    }
+    
+    /**
+     * Decides whether a request is admitted.
+     * @param address Remote address of the client
+     * @return 0 if the request is admitted, otherwise the time after which it
+     *          may be retried, in milliseconds
+     */
+    public long admit(InetAddress address) {
+        TokenBucket client = this.clientBucket(address);
+        TokenBucket server = this.global;
+        long        wait;
+        
+        if (client != null && (wait = client.tryAcquire()) > 0) {
+            return toMillis(wait);
+        }
+        if (server != null && (wait = server.tryAcquire()) > 0) {
+            if (client != null) {
+                client.refund();
+            }
+            return toMillis(wait);
+        }
+        return 0;
+    }
+    
+    private TokenBucket clientBucket(InetAddress address) {
+        double rate = this.client_rate;
+        
+        if (rate <= 0) {
+            return null;
+        }
+        
+        TokenBucket bucket = this.clients.get(address);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(rate, rate * BURST_SECONDS);
+            bucket = this.clients.putIfAbsent(address, created);
+            if (bucket == null) {
+                bucket = created;
+                if (this.clients.size() > this.sweep_size) {
+                    this.sweep();
+                }
+            }
+        }
+        return bucket;
+    }
+    
+    /**
+     * Drops the full buckets. The next sweep waits until the number of
+     * buckets doubled, so that the sweeps take constant time per bucket.
+     */
+    private synchronized void sweep() {
+        if (this.clients.size() <= this.sweep_size) {
+            return; // Swept by another thread meanwhile
+        }
+        
+        for (Map.Entry<InetAddress, TokenBucket> entry : this.clients.entrySet()) {
+            if (entry.getValue().isFull()) {
+                this.clients.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        this.sweep_size = Math.max(MIN_SWEEP_SIZE, 2 * this.clients.size());
+    }
+    
+    private static long toMillis(long nanos) {
+        return Math.max(1, (nanos + 999999) / 1000000);
+    }
+}
@@ -0,0 +1,467 @@
+package app_kvServer;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageRaw;
+import common.metadata.HashRing;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Online rebalancing of a partitioned deployment: moves the key ranges which a
+ * new ring assigns to a joining node while all servers keep serving.
+ * <p>
+ * The joining node asks every member of the current ring to start a transfer.
+ * Each member (source) then streams a snapshot of the moving keys to the new
+ * node in bulk batches, and keeps forwarding the writes to those keys from its
+ * change log. Once the transfer caught up, the source blocks writes for an
+ * instant to switch to the new ring, forwards the last changes and commits
+ * the transfer. From the switch on, forwarding and committing are retried
+ * until they succeed; if the last changes are no longer in the change log, the
+ * source switches back to the old ring and keeps the keys. The new node serves the keys of a source as soon as that
+ * source committed, and adopts the new ring once all of them did.
+ * <p>
+ * Transfers are throttled so that the 99th percentile of the foreground
+ * request latency stays within a configured budget.
+ * @author Danila Klimenko
+ */
+public class Rebalancer {
+    private static final Logger logger = LogSetup.getLogger();
+    private static final int    BATCH_BYTES = 64 * 1024;
+    private static final long   RETRY_INTERVAL = 1000; // milliseconds
+    private static final int    CLEANUP_BATCH_SIZE = 1024;
+    private static final long   HANDOVER_LAG = 128; // commits
+    
+    /**
+     * Default budget for the 99th percentile of the foreground latency.
+     */
+    public static final long    DEFAULT_LATENCY_BUDGET = 10000; // microseconds
+    
+    private final KVServer                  master;
+    private final ReentrantReadWriteLock    ownership;
+    private volatile long                   latency_budget;
+    private volatile Incoming               incoming;
+    private volatile RangeTransfer          outgoing;
+    
+    /**
+     * Main constructor.
+     * @param master The server whose data is rebalanced
+     */
+    public Rebalancer(KVServer master) {
+        this.master = master;
+        this.ownership = new ReentrantReadWriteLock();
+        this.latency_budget = DEFAULT_LATENCY_BUDGET;
+        this.incoming = null;
+        this.outgoing = null;
+    }
+    
+    /**
+     * Sets the budget for the 99th percentile of the foreground latency which
+     * the transfers must respect.
+     * @param micros The budget in microseconds
+     */
+    public void setLatencyBudget(long micros) {
+        this.latency_budget = micros;
+    }
+    
+    /**
+     * Returns the lock which writers hold (shared) while checking key ownership
+     * and applying a write. A source holds it exclusively while switching to
+     * the new ring, so no write to a moving key can slip past the transfer.
+     * @return The shared lock for writers
+     */
+    public Lock getOwnershipLock() {
+        return this.ownership.readLock();
+    }
+    
+    /**
+     * Checks whether a key was moved to this server by a committed transfer,
+     * while the server still waits for other transfers.
+     * @param key The key
+     * @return True if this server is now responsible for the key
+     */
+    public boolean isReceived(String key) {
+        Incoming current = this.incoming;
+        
+        return current != null && current.to.getNode(key).equals(this.master.getNodeAddress())
+                && current.committed.contains(current.from.getNode(key));
+    }
+    
+    /**
+     * Joins the deployment the given server belongs to, taking over the part of
+     * the ring the new node is responsible for. Returns once all transfers were
+     * started; the data arrives in the background.
+     * @param seed Address of any member of the deployment ("host:port")
+     * @throws IOException Thrown if a member cannot be reached or refuses the
+     *          transfer
+     */
+    public void join(String seed) throws IOException {
+        String          self = this.master.getNodeAddress();
+        PeerConnection  connection = new PeerConnection(PeerConnection.parseAddress(seed));
+        HashRing        from;
+        
+        try {
+            KVMessage reply = connection.request(new KVMessageRaw(StatusType.GET_METADATA, "", null));
+            if (reply.getStatus() != StatusType.METADATA || reply.getValue() == null) {
+                throw new IOException("Server " + seed + " is not partitioned.");
+            }
+            from = HashRing.parse(reply.getValue());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            connection.close();
+        }
+        
+        if (from.contains(self)) {
+            throw new IOException("Node " + self + " is already on the ring.");
+        }
+        
+        HashRing to = from.withNode(self);
+        
+        // Not responsible for anything until the first transfer commits
+        this.incoming = new Incoming(from, to);
+        this.master.setMetadata(from);
+        
+        logger.info("Joining ring " + from.getVersion() + " as " + self + ".");
+        
+        for (String node : from.getNodes()) {
+            connection = new PeerConnection(PeerConnection.parseAddress(node));
+            try {
+                KVMessage reply = connection.request(new KVMessageRaw(
+                        StatusType.REBALANCE_START, self, to.serialize()));
+                if (reply.getStatus() != StatusType.REBALANCE_ACK) {
+                    throw new IOException("Node " + node + " refused the transfer: " + reply.getValue());
+                }
+            } finally {
+                connection.close();
+            }
+        }
+    }
+    
+    /**
+     * Starts transferring the keys which the new ring assigns to another node.
+     * @param target Address of the node receiving the keys
+     * @param ring The new ring
+     * @throws IllegalStateException Thrown if the server is not partitioned,
+     *          another transfer is running, or the ring does not follow the
+     *          current one
+     */
+    public synchronized void startTransfer(String target, HashRing ring) throws IllegalStateException {
+        HashRing current = this.master.getMetadata();
+        
+        if (current == null || !current.contains(this.master.getNodeAddress())) {
+            throw new IllegalStateException("Server does not own a part of the ring.");
+        }
+        if (this.outgoing != null) {
+            throw new IllegalStateException("Another transfer is in progress.");
+        }
+        if (ring.getVersion() != current.getVersion() + 1 || !ring.contains(target)) {
+            throw new IllegalStateException("Ring " + ring.getVersion() + " does not follow ring " +
+                                            current.getVersion() + ".");
+        }
+        
+        this.outgoing = new RangeTransfer(target, ring);
+        
+        Thread transfer = new Thread(this.outgoing, "Rebalance-" + target);
+        transfer.setDaemon(true);
+        transfer.start();
+    }
+    
+    /**
+     * Applies a batch of keys transferred by a source.
+     * @param source Address of the source
+     * @param entries The keys and their values (null for deleted keys)
+     * @throws IllegalStateException Thrown if no transfer from the source is
+     *          expected
+     */
+    public void receive(String source, List<KVMessageBatch.Entry> entries) throws IllegalStateException {
+        Incoming current = this.incoming;
+        
+        if (current == null || !current.from.contains(source) || current.committed.contains(source)) {
+            throw new IllegalStateException("No transfer from " + source + " is expected.");
+        }
+        
+        List<KVMessageBatch.Entry> operations = new ArrayList<KVMessageBatch.Entry>(entries.size());
+        for (KVMessageBatch.Entry entry : entries) {
+            operations.add(new KVMessageBatch.Entry(StatusType.PUT, entry.key, entry.value,
+                                                    KVMessageBatch.ANY_VERSION));
+        }
+        
+        try {
+            this.master.getDataStorage().transaction(operations);
+        } catch (VersionConflictException e) {
+            // Cannot happen: no preconditions are used
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Completes the transfer from a source: the keys it sent are served by
+     * this server from now on.
+     * @param source Address of the source
+     * @throws IllegalStateException Thrown if no transfer from the source is
+     *          expected
+     */
+    public synchronized void commit(String source) throws IllegalStateException {
+        Incoming current = this.incoming;
+        
+        if (current == null || !current.from.contains(source)) {
+            throw new IllegalStateException("No transfer from " + source + " is expected.");
+        }
+        
+        current.committed.add(source);
+        logger.info("Transfer from " + source + " committed.");
+        
+        if (current.committed.containsAll(current.from.getNodes())) {
+            this.master.setMetadata(current.to);
+            this.incoming = null;
+            logger.info("Joined ring " + current.to.getVersion() + ".");
+        }
+    }
+    
+    /**
+     * Returns a human-readable rebalancing status report.
+     * @return Status report
+     */
+    public String getStatus() {
+        Incoming        in = this.incoming;
+        RangeTransfer   out = this.outgoing;
+        
+        if (in == null && out == null) {
+            return "No rebalancing in progress.";
+        }
+        
+        StringBuilder report = new StringBuilder();
+        if (in != null) {
+            report.append("Joining ring ").append(in.to.getVersion()).append(", ")
+                  .append(in.committed.size()).append(" of ").append(in.from.getNodes().size())
+                  .append(" transfers committed.");
+        }
+        if (out != null) {
+            if (report.length() > 0) {
+                report.append('\n');
+            }
+            report.append("Transferring to ").append(out.target).append(": ")
+                  .append(out.phase).append(", ").append(out.keys).append(" keys sent, ")
+                  .append(out.throttle.getRate() / 1024).append(" KB/s.");
+        }
+        return report.toString();
+    }
+    
+    /**
+     * Keys expected by a joining node.
+     */
+    private static class Incoming {
+        final HashRing      from;
+        final HashRing      to;
+        final Set<String>   committed;
+        
+        Incoming(HashRing from, HashRing to) {
+            this.from = from;
+            this.to = to;
+            this.committed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        }
+    }
+    
+    /**
+     * Transfer of the moving keys to a single target node.
+     */
+    private class RangeTransfer implements Runnable {
+        final String            target;
+        final HashRing          ring;
+        final PeerConnection    connection;
+        final TransferThrottle  throttle;
+        volatile String         phase;
+        volatile long           keys;
+        
+        RangeTransfer(String target, HashRing ring) {
+            this.target = target;
+            this.ring = ring;
+            this.connection = new PeerConnection(PeerConnection.parseAddress(target));
+            this.throttle = new TransferThrottle(master.getLatencyHistogram(), latency_budget);
+            this.phase = "starting";
+            this.keys = 0;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                this.transfer();
+            } catch (IOException e) {
+                logger.error("Error! Transfer to " + this.target + " aborted: " + e.getMessage());
+            } catch (InterruptedException e) {
+                logger.error("Error! Transfer to " + this.target + " interrupted.");
+            } catch (ChangeLogTruncatedException e) {
+                logger.error("Error! Transfer to " + this.target + " fell behind the change log: " +
+                             e.getMessage());
+            } finally {
+                this.connection.close();
+                outgoing = null;
+            }
+        }
+        
+        private void transfer() throws IOException, InterruptedException, ChangeLogTruncatedException {
+            ChangeLog   change_log = master.getDataStorage().getChangeLog();
+            long        position;
+            
+            logger.info("Transferring keys to " + this.target + ".");
+            
+            // Bulk copy of a snapshot
+            this.phase = "copying";
+            KVDataStorage.Snapshot snapshot = master.getDataStorage().openSnapshot();
+            try {
+                position = snapshot.getSequence();
+                BatchBuilder batches = new BatchBuilder(BATCH_BYTES);
+                
+                for (KVMessageBatch.Entry entry : snapshot) {
+                    if (!this.isMoving(entry.key)) {
+                        continue;
+                    }
+                    // Batches are completed before they outgrow a frame
+                    List<KVMessageBatch.Entry> batch = batches.add(entry);
+                    if (batch != null) {
+                        this.send(batch, batches.getCompletedBytes());
+                    }
+                }
+                this.send(batches.finish(), batches.getCompletedBytes());
+            } finally {
+                snapshot.close();
+            }
+            
+            // Forwarding the writes made meanwhile, until only a few are left
+            this.phase = "catching up";
+            while (change_log.getLastSequence() - position > HANDOVER_LAG) {
+                position = this.forward(change_log.read(position, BATCH_BYTES, 0));
+            }
+            
+            // Handover: once the writers drained, the moving keys are redirected
+            this.phase = "handing over";
+            HashRing    previous;
+            Lock        lock = ownership.writeLock();
+            lock.lock();
+            try {
+                previous = master.getMetadata();
+                master.setMetadata(this.ring);
+            } finally {
+                lock.unlock();
+            }
+            
+            // Every write accepted under the old ring is logged by now. Until
+            // the commit nobody serves the moving keys, so forwarding them must
+            // not give up either.
+            long last = change_log.getLastSequence();
+            while (position < last) {
+                try {
+                    position = this.forward(change_log.read(position, BATCH_BYTES, 0));
+                } catch (IOException e) {
+                    logger.error("Error! Unable to forward the last changes to " + this.target +
+                                 ", retrying: " + e.getMessage());
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (ChangeLogTruncatedException e) {
+                    // The changes are lost, so the keys stay here
+                    lock.lock();
+                    try {
+                        master.setMetadata(previous);
+                    } finally {
+                        lock.unlock();
+                    }
+                    throw e;
+                }
+            }
+            
+            this.phase = "committing";
+            while (true) {
+                try {
+                    this.expectAck(this.connection.request(new KVMessageRaw(
+                            StatusType.REBALANCE_COMMIT, master.getNodeAddress(), null)));
+                    break;
+                } catch (IOException e) {
+                    // The keys are only reachable on the target once it has
+                    // the commit, so this must not give up
+                    logger.error("Error! Unable to commit the transfer to " + this.target +
+                                 ", retrying: " + e.getMessage());
+                    Thread.sleep(RETRY_INTERVAL);
+                }
+            }
+            
+            logger.info("Transfer of " + this.keys + " keys to " + this.target + " committed.");
+            
+            this.phase = "cleaning up";
+            this.removeMovedKeys();
+        }
+        
+        private boolean isMoving(String key) {
+            return this.ring.getNode(key).equals(this.target);
+        }
+        
+        private long forward(List<KVMessageBatch.Entry> changes) throws IOException, InterruptedException {
+            BatchBuilder batches = new BatchBuilder(BATCH_BYTES);
+            
+            for (KVMessageBatch.Entry change : changes) {
+                if (!this.isMoving(change.key)) {
+                    continue;
+                }
+                List<KVMessageBatch.Entry> batch = batches.add(change);
+                if (batch != null) {
+                    this.send(batch, batches.getCompletedBytes());
+                }
+            }
+            this.send(batches.finish(), batches.getCompletedBytes());
+            
+            return changes.get(changes.size() - 1).version;
+        }
+        
+        private void send(List<KVMessageBatch.Entry> batch, int bytes)
+                throws IOException, InterruptedException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            
+            this.throttle.acquire(bytes);
+            this.expectAck(this.connection.request(new KVMessageBatch(
+                    StatusType.REBALANCE_DATA, master.getNodeAddress(), null, batch)));
+            this.keys += batch.size();
+        }
+        
+        private void expectAck(KVMessage reply) throws IOException {
+            if (reply.getStatus() != StatusType.REBALANCE_ACK) {
+                throw new IOException("Node " + this.target + " refused the transfer: " + reply.getValue());
+            }
+        }
+        
+        private void removeMovedKeys() {
+            KVDataStorage               storage = master.getDataStorage();
+            List<KVMessageBatch.Entry>  batch = new ArrayList<KVMessageBatch.Entry>();
+            KVDataStorage.Snapshot      snapshot = storage.openSnapshot();
+            
+            try {
+                for (KVMessageBatch.Entry entry : snapshot) {
+                    if (this.isMoving(entry.key)) {
+                        batch.add(KVMessageBatch.Entry.delete(entry.key));
+                    }
+                    if (batch.size() >= CLEANUP_BATCH_SIZE) {
+                        storage.transaction(batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    storage.transaction(batch);
+                }
+            } catch (VersionConflictException e) {
+                // Cannot happen: no preconditions are used
+                throw new IllegalStateException(e);
+            } finally {
+                snapshot.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package app_kvServer;
+
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Replication state of a backup server. Applies the changes shipped by the
+ * primary and keeps track of the primary's sequence number applied so far.
+ * <p>
+ * Positions are only meaningful within one lifetime ("epoch") of the primary:
+ * when the primary restarts, its sequence numbers start over, so the backup
+ * requests a full snapshot.
+ * @author Danila Klimenko
+ */
+public class ReplicaState {
+    private static final Logger logger = LogSetup.getLogger();
+    
+    /**
+     * Position reported when the backup has to be resynchronized.
+     */
+    public static final long    RESYNC = -1;
+    
+    // A backup which has not heard from the primary for this long cannot tell
+    // how far behind it is (the primary sends heartbeats every 100ms)
+    private static final long   MAX_SILENCE = 1000; // milliseconds
+    
+    private final KVDataStorage     storage;
+    private final InetSocketAddress primary;
+    private long                    epoch;
+    private volatile long           applied_seq;
+    private volatile long           primary_seq;
+    private volatile long           last_contact;
+    private volatile boolean        syncing;
+    
+    /**
+     * Main constructor.
+     * @param storage The local storage to apply the changes to
+     * @param primary Address of the primary server
+     */
+    public ReplicaState(KVDataStorage storage, InetSocketAddress primary) {
+        this.storage = storage;
+        this.primary = primary;
+        this.epoch = 0;
+        this.applied_seq = 0;
+        this.primary_seq = 0;
+        this.last_contact = 0;
+        this.syncing = false;
+    }
+    
+    /**
+     * Getter method for the primary address.
+     * @return The address of the primary server
+     */
+    public InetSocketAddress getPrimary() {
+        return this.primary;
+    }
+    
+    /**
+     * Returns the primary's sequence number of the last applied change.
+     * @return The sequence number
+     */
+    public long getAppliedSequence() {
+        return this.applied_seq;
+    }
+    
+    /**
+     * Returns the latest sequence number of the primary known to the backup.
+     * @return The sequence number
+     */
+    public long getPrimarySequence() {
+        return this.primary_seq;
+    }
+    
+    /**
+     * Returns the time of the last message from the primary.
+     * @return Time in milliseconds, or 0 if the primary never connected
+     */
+    public long getLastContact() {
+        return this.last_contact;
+    }
+    
+    /**
+     * Checks whether a snapshot transfer is in progress.
+     * @return True if the local data is incomplete
+     */
+    public boolean isSyncing() {
+        return this.syncing;
+    }
+    
+    /**
+     * Returns the number of the primary's changes known to be missing locally.
+     * @return The lag, or Long.MAX_VALUE if the local data is incomplete or the
+     *          primary has been silent for too long to tell
+     */
+    public long getLag() {
+        if (this.syncing || System.currentTimeMillis() - this.last_contact > MAX_SILENCE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, this.primary_seq - this.applied_seq);
+    }
+    
+    /**
+     * Handles the greeting of a (re)connecting primary.
+     * @param primaryEpoch Epoch of the primary
+     * @return The position to continue from, or RESYNC if a snapshot is needed
+     */
+    public synchronized long hello(long primaryEpoch) {
+        this.last_contact = System.currentTimeMillis();
+        
+        if (primaryEpoch == this.epoch && !this.syncing) {
+            return this.applied_seq;
+        }
+        if (this.epoch == 0 && this.applied_seq == 0 && !this.syncing) {
+            // Nothing applied yet: the complete log can be replayed
+            this.epoch = primaryEpoch;
+            return 0;
+        }
+        
+        logger.info("Primary epoch changed from " + this.epoch + " to " + primaryEpoch +
+                    "; requesting a snapshot.");
+        this.syncing = true; // The local data belongs to the previous epoch
+        return RESYNC;
+    }
+    
+    /**
+     * Applies a batch of logged changes. Changes sharing a sequence number
+     * belong to the same commit and are applied atomically. Changes which
+     * were already applied are skipped, so batches may be retransmitted.
+     * @param primaryEpoch Epoch of the primary
+     * @param primaryLast The primary's latest sequence number
+     * @param changes The changes in sequence order
+     * @return The new position, or RESYNC if the epoch does not match
+     */
+    public synchronized long applyChanges(long primaryEpoch, long primaryLast,
+                                          List<KVMessageBatch.Entry> changes) {
+        this.last_contact = System.currentTimeMillis();
+        
+        if (primaryEpoch != this.epoch || this.syncing) {
+            return RESYNC;
+        }
+        
+        List<KVMessageBatch.Entry> commit = new ArrayList<KVMessageBatch.Entry>();
+        
+        for (KVMessageBatch.Entry change : changes) {
+            if (change.version <= this.applied_seq) {
+                continue;
+            }
+            if (!commit.isEmpty() && commit.get(0).version != change.version) {
+                this.applyCommit(commit);
+                commit.clear();
+            }
+            commit.add(change);
+        }
+        this.applyCommit(commit);
+        
+        this.primary_seq = Math.max(primaryLast, this.applied_seq);
+        
+        return this.applied_seq;
+    }
+    
+    /**
+     * Applies a chunk of a snapshot transfer. The first chunk clears the local
+     * data; the last one sets the position to the sequence number of the
+     * snapshot.
+     * @param primaryEpoch Epoch of the primary
+     * @param snapshotSeq Sequence number of the snapshot
+     * @param first True for the first chunk of the transfer
+     * @param last True for the last chunk of the transfer
+     * @param entries Keys and values of this chunk
+     * @return The new position (only meaningful after the last chunk)
+     */
+    public synchronized long applySnapshot(long primaryEpoch, long snapshotSeq, boolean first,
+                                           boolean last, List<KVMessageBatch.Entry> entries) {
+        this.last_contact = System.currentTimeMillis();
+        
+        if (first) {
+            logger.info("Receiving snapshot " + snapshotSeq + " from primary " + this.primary + ".");
+            this.syncing = true;
+            this.epoch = primaryEpoch;
+            this.storage.clear();
+        }
+        
+        List<KVMessageBatch.Entry> puts = new ArrayList<KVMessageBatch.Entry>(entries.size());
+        for (KVMessageBatch.Entry entry : entries) {
+            puts.add(KVMessageBatch.Entry.put(entry.key, entry.value));
+        }
+        this.applyOperations(puts);
+        
+        if (last) {
+            this.applied_seq = snapshotSeq;
+            this.primary_seq = Math.max(this.primary_seq, snapshotSeq);
+            this.syncing = false;
+            logger.info("Snapshot " + snapshotSeq + " from primary " + this.primary + " applied.");
+        }
+        
+        return this.applied_seq;
+    }
+    
+    private void applyCommit(List<KVMessageBatch.Entry> commit) {
+        if (commit.isEmpty()) {
+            return;
+        }
+        
+        List<KVMessageBatch.Entry> operations = new ArrayList<KVMessageBatch.Entry>(commit.size());
+        for (KVMessageBatch.Entry change : commit) {
+            operations.add(new KVMessageBatch.Entry(StatusType.PUT, change.key, change.value,
+                                                    KVMessageBatch.ANY_VERSION));
+        }
+        this.applyOperations(operations);
+        
+        this.applied_seq = commit.get(0).version;
+    }
+    
+    private void applyOperations(List<KVMessageBatch.Entry> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        
+        try {
+            this.storage.transaction(operations);
+        } catch (VersionConflictException e) {
+            // Cannot happen: no preconditions are used
+            throw new IllegalStateException(e);
+        }
+    }
+}
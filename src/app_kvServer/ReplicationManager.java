@@ -0,0 +1,307 @@
+package app_kvServer;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageRaw;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Primary side of primary-backup replication. Ships the change log of the local
+ * storage to each backup server over a dedicated connection, in batches, and
+ * tracks the position acknowledged by every backup. A backup which is too far
+ * behind for the change log (or which was restarted) receives a snapshot of the
+ * storage first.
+ * <p>
+ * Replication is asynchronous by default. In semi-synchronous mode, writers
+ * wait until a configured number of backups acknowledged their change; if the
+ * backups do not answer in time, the write is acknowledged anyway.
+ * @author Danila Klimenko
+ */
+public class ReplicationManager {
+    private static final Logger logger = LogSetup.getLogger();
+    private static final int    BATCH_BYTES = 64 * 1024;
+    private static final long   HEARTBEAT_INTERVAL = 100; // milliseconds
+    private static final long   RETRY_INTERVAL = 1000; // milliseconds
+    private static final long   ACK_TIMEOUT = 1000; // milliseconds
+    
+    // Phases of a snapshot transfer, carried in the key field of the
+    // REPLICA_SNAPSHOT messages
+    static final String         SNAPSHOT_FIRST = "first";
+    static final String         SNAPSHOT_NEXT = "next";
+    static final String         SNAPSHOT_LAST = "last";
+    static final String         SNAPSHOT_ONLY = "only";
+    
+    private final KVDataStorage     storage;
+    private final List<BackupLink>  backups;
+    private final int               required_acks;
+    private final long              epoch;
+    private volatile boolean        online;
+    
+    /**
+     * Main constructor.
+     * @param storage The storage to replicate
+     * @param backups Addresses of the backup servers
+     * @param requiredAcks Number of backups which must acknowledge a write
+     *          before it is confirmed to the client (0 for asynchronous mode)
+     */
+    public ReplicationManager(KVDataStorage storage, List<InetSocketAddress> backups, int requiredAcks) {
+        if (requiredAcks < 0 || requiredAcks > backups.size()) {
+            throw new IllegalArgumentException("Invalid number of required acknowledgements: " +
+                                               requiredAcks + ".");
+        }
+        
+        this.storage = storage;
+        this.backups = new ArrayList<BackupLink>();
+        this.required_acks = requiredAcks;
+        this.online = false;
+        
+        long new_epoch = 0;
+        Random random = new Random();
+        while (new_epoch <= 0) {
+            new_epoch = random.nextLong();
+        }
+        this.epoch = new_epoch;
+        
+        for (InetSocketAddress address : backups) {
+            this.backups.add(new BackupLink(address));
+        }
+    }
+    
+    /**
+     * Starts shipping the change log to the backups.
+     */
+    public void start() {
+        this.online = true;
+        
+        for (BackupLink backup : this.backups) {
+            Thread shipper = new Thread(backup, "Replication-" + backup.connection.getAddress());
+            shipper.setDaemon(true);
+            shipper.start();
+        }
+    }
+    
+    /**
+     * Stops replication and closes the connections to the backups.
+     */
+    public void shutDown() {
+        this.online = false;
+        
+        for (BackupLink backup : this.backups) {
+            backup.connection.close();
+        }
+    }
+    
+    /**
+     * Waits until the required number of backups acknowledged the given
+     * sequence number. Returns immediately in asynchronous mode.
+     * @param seq The sequence number of the write
+     * @return True if the write was acknowledged by enough backups, false if
+     *          the wait timed out
+     */
+    public boolean awaitReplication(long seq) {
+        if (this.required_acks == 0) {
+            return true;
+        }
+        
+        long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+        
+        synchronized (this) {
+            long remaining = ACK_TIMEOUT;
+            while (this.countAcknowledged(seq) < this.required_acks && remaining > 0) {
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        
+        if (this.countAcknowledged(seq) < this.required_acks) {
+            logger.warn("Warning! Write " + seq + " was not acknowledged by " +
+                        this.required_acks + " backups in time.");
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns a human-readable replication status report.
+     * @return One line per backup with its position and lag
+     */
+    public String getStatus() {
+        StringBuilder   report = new StringBuilder();
+        long            last = this.storage.getChangeLog().getLastSequence();
+        
+        report.append("Primary at sequence ").append(last).append(", ")
+              .append((this.required_acks == 0) ? "asynchronous" :
+                      "semi-synchronous (" + this.required_acks + " acks)")
+              .append(" replication.");
+        
+        for (BackupLink backup : this.backups) {
+            report.append("\n    ").append(backup.connection.getAddress())
+                  .append(backup.connected ? " connected" : " disconnected")
+                  .append(", acknowledged ").append(backup.acknowledged)
+                  .append(", lag ").append(Math.max(0, last - backup.acknowledged))
+                  .append(", snapshots sent ").append(backup.snapshots);
+        }
+        
+        return report.toString();
+    }
+    
+    private int countAcknowledged(long seq) {
+        int count = 0;
+        for (BackupLink backup : this.backups) {
+            if (backup.acknowledged >= seq) {
+                ++count;
+            }
+        }
+        return count;
+    }
+    
+    private synchronized void acknowledged() {
+        this.notifyAll();
+    }
+    
+    private static long parsePosition(KVMessage reply) throws IOException {
+        if (reply.getStatus() != StatusType.REPLICA_ACK) {
+            throw new IOException("Backup refused replication: " + reply.getStatus() +
+                                  " " + reply.getValue());
+        }
+        try {
+            return Long.parseLong(reply.getValue());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid backup position: '" + reply.getValue() + "'.");
+        }
+    }
+    
+    /**
+     * Replication stream to a single backup.
+     */
+    private class BackupLink implements Runnable {
+        final PeerConnection    connection;
+        volatile long           acknowledged;
+        volatile boolean        connected;
+        volatile int            snapshots;
+        
+        BackupLink(InetSocketAddress address) {
+            this.connection = new PeerConnection(address);
+            this.acknowledged = 0;
+            this.connected = false;
+            this.snapshots = 0;
+        }
+        
+        @Override
+        public void run() {
+            ChangeLog   change_log = storage.getChangeLog();
+            long        position = ReplicaState.RESYNC;
+            
+            while (online) {
+                try {
+                    if (!this.connected) {
+                        KVMessage reply = this.connection.request(new KVMessageRaw(
+                                StatusType.REPLICA_HELLO, "", Long.toString(epoch)));
+                        position = parsePosition(reply);
+                        this.connected = true;
+                        logger.info("Backup " + this.connection.getAddress() +
+                                    " connected at position " + position + ".");
+                    }
+                    
+                    if (position == ReplicaState.RESYNC || position > change_log.getLastSequence()) {
+                        position = this.sendSnapshot();
+                    }
+                    
+                    List<KVMessageBatch.Entry> changes =
+                            change_log.read(position, BATCH_BYTES, HEARTBEAT_INTERVAL);
+                    
+                    // Empty batches serve as heartbeats carrying the primary position
+                    KVMessage reply = this.connection.request(new KVMessageBatch(
+                            StatusType.REPLICATE, "",
+                            epoch + " " + change_log.getLastSequence(), changes));
+                    
+                    position = parsePosition(reply);
+                    this.acknowledge(position);
+                
+                } catch (ChangeLogTruncatedException e) {
+                    logger.warn("Warning! Backup " + this.connection.getAddress() +
+                                " fell behind the change log: " + e.getMessage());
+                    position = ReplicaState.RESYNC;
+                
+                } catch (InterruptedException e) {
+                    // Checking the 'online' flag
+                
+                } catch (IOException e) {
+                    if (this.connected) {
+                        logger.error("Error! Lost connection to backup " +
+                                     this.connection.getAddress() + ": " + e.getMessage());
+                    }
+                    this.connected = false;
+                    this.connection.close();
+                    try {
+                        Thread.sleep(RETRY_INTERVAL);
+                    } catch (InterruptedException ie) {
+                        // Checking the 'online' flag
+                    }
+                }
+            }
+            
+            this.connection.close();
+        }
+        
+        /**
+         * Transfers a snapshot of the storage to the backup.
+         * @return The position of the backup after the transfer
+         * @throws IOException Thrown if the transfer fails
+         */
+        private long sendSnapshot() throws IOException {
+            KVDataStorage.Snapshot snapshot = storage.openSnapshot();
+            
+            try {
+                long    seq = snapshot.getSequence();
+                String  header = epoch + " " + seq;
+                String  phase = SNAPSHOT_FIRST;
+                
+                BatchBuilder                chunks = new BatchBuilder(BATCH_BYTES);
+                List<KVMessageBatch.Entry>  chunk;
+                
+                logger.info("Sending snapshot " + seq + " to backup " +
+                            this.connection.getAddress() + ".");
+                
+                for (KVMessageBatch.Entry entry : snapshot) {
+                    // Chunks are completed before they outgrow a frame
+                    chunk = chunks.add(entry);
+                    if (chunk != null) {
+                        parsePosition(this.connection.request(new KVMessageBatch(
+                                StatusType.REPLICA_SNAPSHOT, phase, header, chunk)));
+                        phase = SNAPSHOT_NEXT;
+                    }
+                }
+                
+                String last_phase = phase.equals(SNAPSHOT_FIRST) ? SNAPSHOT_ONLY : SNAPSHOT_LAST;
+                long position = parsePosition(this.connection.request(new KVMessageBatch(
+                        StatusType.REPLICA_SNAPSHOT, last_phase, header, chunks.finish())));
+                
+                ++this.snapshots;
+                this.acknowledge(position);
+                
+                return position;
+            } finally {
+                snapshot.close();
+            }
+        }
+        
+        private void acknowledge(long position) {
+            if (position != this.acknowledged) {
+                this.acknowledged = position;
+                acknowledged();
+            }
+        }
+    }
+}
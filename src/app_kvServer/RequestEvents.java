@@ -0,0 +1,109 @@
+package app_kvServer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events covering the phases of a request: reading the frame,
+ * unmarshalling it, the storage operation, marshalling the reply and writing
+ * it to the socket. A standard recording ("jcmd <pid> JFR.start") then shows
+ * where each slow request spent its time.
+ * <p>
+ * The events follow the usual pattern: the event object is created and begun
+ * unconditionally, and its fields are only filled in if it is going to be
+ * committed. While no recording is running, the JIT removes the allocation
+ * and the timing altogether.
+ * @author Danila Klimenko
+ */
+final class RequestEvents {
+    private static final String CATEGORY = "KVServer";
+    
+    private RequestEvents() {
+    }
+    
+    /**
+     * Common part of the request phase events.
+     */
+    @Category({ CATEGORY, "Request" })
+    @StackTrace(false)
+    abstract static class Phase extends Event {
+        @Label("Operation")
+        String  operation;
+        
+        @Label("Payload Size")
+        @DataAmount
+        int     payloadSize;
+        
+        /**
+         * Ends the phase and commits the event, if it is recorded.
+         * @param type Type of the message or operation
+         * @param size Size of the payload in bytes (characters for storage
+         *          operations)
+         */
+        void finish(Object type, int size) {
+            this.end();
+            if (this.shouldCommit()) {
+                this.operation = String.valueOf(type);
+                this.payloadSize = size;
+                this.commit();
+            }
+        }
+    }
+    
+    @Name("app_kvServer.FrameRead")
+    @Label("Frame Read")
+    @Description("Reading a request frame from the socket, after its first byte arrived")
+    static final class FrameRead extends Phase {
+    }
+    
+    @Name("app_kvServer.Unmarshal")
+    @Label("Unmarshal")
+    @Description("Decoding a request frame into a KVMessage")
+    static final class Unmarshal extends Phase {
+    }
+    
+    @Name("app_kvServer.StorageOperation")
+    @Label("Storage Operation")
+    @Description("Operation on the key-value storage, including the wait for its locks")
+    static final class StorageOperation extends Phase {
+        @Label("Lock Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long    lockWait;
+        
+        /**
+         * Starts timing a lock acquisition.
+         * @return The current time, or 0 if the event is not recorded
+         */
+        long lockRequested() {
+            return this.isEnabled() ? System.nanoTime() : 0;
+        }
+        
+        /**
+         * Adds the time since lockRequested() to the lock wait.
+         * @param requested The value returned by lockRequested()
+         */
+        void lockAcquired(long requested) {
+            if (requested != 0) {
+                this.lockWait += System.nanoTime() - requested;
+            }
+        }
+    }
+    
+    @Name("app_kvServer.Marshal")
+    @Label("Marshal")
+    @Description("Encoding a reply or a notification")
+    static final class Marshal extends Phase {
+    }
+    
+    @Name("app_kvServer.SocketWrite")
+    @Label("Socket Write")
+    @Description("Writing a reply or a notification frame to the socket")
+    static final class SocketWrite extends Phase {
+    }
+}
@@ -0,0 +1,372 @@
+package app_kvServer;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of client requests executed at the same time, and hands
+ * out the execution slots fairly when requests have to wait for one. Every
+ * connection thread still executes its own requests; it only waits for its
+ * turn here.
+ * <p>
+ * Waiting requests are grouped in flows (one per client) and the flows are
+ * served with deficit round-robin: in every round a flow earns a quantum of
+ * credit, and a request is admitted once its flow has earned its cost. As the
+ * cost is the size of the request, a client sending large requests gets the
+ * same share of the server as one sending small ones, and a client opening
+ * many connections no more than one opening a single connection.
+ * <p>
+ * Requests are also classified into lanes by type and size, each with its own
+ * round-robin. Small reads are served before small writes, and those before
+ * large requests, so that a few clients writing large values cannot hold up
+ * everybody else. Large requests may only take half of the slots, and a lane
+ * passed over too many times in a row is served next, so that no lane starves.
+ * <p>
+ * A slot only covers the execution of a request in the storage: the frame is
+ * received and decoded before, and the wait for replication happens after the
+ * slot was returned.
+ * @author Danila Klimenko
+ */
+public class RequestScheduler {
+    /**
+     * Default credit earned by a flow in every round, in bytes.
+     */
+    public static final int     DEFAULT_QUANTUM = 4096;
+    
+    /**
+     * Default number of slots per processor. Requests also wait for locks and
+     * the network while they execute, so there are more slots than
+     * processors. Writes return their slot before they wait for the
+     * acknowledgement of backups or of a consensus group.
+     */
+    public static final int     DEFAULT_SLOTS_PER_PROCESSOR = 4;
+    
+    /**
+     * Largest request frame, in bytes, which is not a large request.
+     */
+    public static final int     SMALL_REQUEST_LIMIT = 4096;
+    
+    private static final int    MAX_BYPASS = 16;
+    
+    /**
+     * Classes of requests, in the order of their priority.
+     */
+    public enum Lane {
+        SMALL_READ,     /* 'get' requests */
+        SMALL_WRITE,    /* 'put' requests and transactions up to SMALL_REQUEST_LIMIT */
+        LARGE;          /* Larger writes */
+        
+        /**
+         * Classifies a request.
+         * @param kvmsg The request
+         * @param size Size of the request frame
+         * @return The lane of the request
+         */
+        public static Lane of(KVMessage kvmsg, int size) {
+            if (kvmsg.getStatus() == StatusType.GET) {
+                return SMALL_READ;
+            }
+            return (size <= SMALL_REQUEST_LIMIT) ? SMALL_WRITE : LARGE;
+        }
+    }
+    
+    private static final Lane[] LANES = Lane.values();
+    
+    private final ReentrantLock lock;
+    private final int           quantum;
+    private int                 slots;
+    private int                 free_slots;
+    private final Queue[]       queues;
+    private int                 large_running;
+    private boolean             prioritized;
+    private int                 waiting;
+    
+    /**
+     * Main constructor.
+     * @param slots Number of requests executed at the same time
+     * @param quantum Credit earned by a flow in every round, in bytes
+     */
+    public RequestScheduler(int slots, int quantum) {
+        if (slots < 1 || quantum < 1) {
+            throw new IllegalArgumentException("Invalid scheduler parameters: " + slots + " slots, quantum " +
+                                               quantum + ".");
+        }
+        this.lock = new ReentrantLock();
+        this.quantum = quantum;
+        this.slots = slots;
+        this.free_slots = slots;
+        this.queues = new Queue[LANES.length];
+        for (int i = 0; i < LANES.length; ++i) {
+            this.queues[i] = new Queue();
+        }
+        this.large_running = 0;
+        this.prioritized = true;
+        this.waiting = 0;
+    }
+    
+    /**
+     * Changes the number of requests executed at the same time. Requests
+     * already executing keep their slots.
+     * @param slots The new number of slots
+     */
+    public void setSlots(int slots) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("Invalid number of slots: " + slots + ".");
+        }
+        this.lock.lock();
+        try {
+            this.free_slots += slots - this.slots;
+            this.slots = slots;
+            this.dispatch();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Getter method for the number of requests executed at the same time.
+     * @return The number of slots
+     */
+    public int getSlots() {
+        this.lock.lock();
+        try {
+            return this.slots;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Turns the priority lanes on or off. Without them, all requests share a
+     * single round-robin and large requests may take all the slots.
+     * @param prioritized True to serve the lanes by priority
+     */
+    public void setPrioritized(boolean prioritized) {
+        this.lock.lock();
+        try {
+            this.prioritized = prioritized;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of requests waiting for a slot.
+     * @return The number of waiting requests
+     */
+    public int getWaiting() {
+        this.lock.lock();
+        try {
+            return this.waiting;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Waits until the request may be executed. Must be followed by release()
+     * once the request is done.
+     * @param client Identifies the flow of the request
+     * @param lane The class of the request
+     * @param cost Size of the request in bytes
+     * @return The lane the request was scheduled in, to be passed to release()
+     */
+    public Lane acquire(Object client, Lane lane, int cost) {
+        this.lock.lock();
+        try {
+            if (!this.prioritized) {
+                lane = Lane.SMALL_READ;
+            }
+            if (this.waiting == 0 && this.free_slots > 0 && this.mayRun(lane)) {
+                this.grant(lane);
+                return lane;
+            }
+            
+            Queue queue = this.queues[lane.ordinal()];
+            Flow flow = queue.flows.get(client);
+            if (flow == null) {
+                flow = new Flow(client);
+                queue.flows.put(client, flow);
+                queue.active.addLast(flow);
+            }
+            Waiter waiter = new Waiter(cost, this.lock.newCondition());
+            flow.waiters.addLast(waiter);
+            ++this.waiting;
+            
+            this.dispatch();
+            while (!waiter.granted) {
+                waiter.turn.awaitUninterruptibly();
+            }
+            return lane;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the slot of an executed request.
+     * @param lane The lane returned by acquire()
+     */
+    public void release(Lane lane) {
+        this.lock.lock();
+        try {
+            ++this.free_slots;
+            if (lane == Lane.LARGE) {
+                --this.large_running;
+            }
+            this.dispatch();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Checks whether a request of the given lane may take a free slot: large
+     * requests may only take half of the slots.
+     */
+    private boolean mayRun(Lane lane) {
+        return lane != Lane.LARGE || this.large_running < Math.max(1, this.slots / 2);
+    }
+    
+    private void grant(Lane lane) {
+        --this.free_slots;
+        if (lane == Lane.LARGE) {
+            ++this.large_running;
+        }
+    }
+    
+    /**
+     * Hands the free slots to the waiting requests: picks the lane, then the
+     * request in deficit round-robin order within the lane.
+     */
+    private void dispatch() {
+        while (this.free_slots > 0 && this.waiting > 0) {
+            Lane lane = this.nextLane();
+            if (lane == null) {
+                return;
+            }
+            this.dispatch(lane);
+        }
+    }
+    
+    /**
+     * Selects the lane to be served next: the first one with waiting requests
+     * in priority order, unless a lane further down was passed over too often.
+     * @return The lane, or null if no waiting request may run
+     */
+    private Lane nextLane() {
+        Lane selected = null;
+        
+        for (Lane lane : LANES) {
+            Queue queue = this.queues[lane.ordinal()];
+            if (queue.active.isEmpty() || !this.mayRun(lane)) {
+                continue;
+            }
+            if (selected == null) {
+                selected = lane;
+            } else if (queue.bypassed >= MAX_BYPASS) {
+                selected = lane;
+                break;
+            }
+        }
+        
+        if (selected != null) {
+            for (Lane lane : LANES) {
+                Queue queue = this.queues[lane.ordinal()];
+                queue.bypassed = (lane == selected || queue.active.isEmpty()) ? 0 : queue.bypassed + 1;
+            }
+        }
+        return selected;
+    }
+    
+    /**
+     * Hands a free slot to the next request of the lane in deficit round-robin
+     * order. The flow at the head of the round keeps being served while its
+     * credit covers its next request.
+     */
+    private void dispatch(Lane lane) {
+        Queue queue = this.queues[lane.ordinal()];
+        
+        while (true) {
+            Flow    flow = queue.active.peekFirst();
+            Waiter  waiter = flow.waiters.peekFirst();
+            
+            if (!flow.visited) {
+                flow.deficit += this.quantum;
+                flow.visited = true;
+            }
+            if (waiter.cost > flow.deficit) {
+                // Credit used up for this round
+                flow.visited = false;
+                queue.active.addLast(queue.active.pollFirst());
+                continue;
+            }
+            
+            flow.deficit -= waiter.cost;
+            flow.waiters.pollFirst();
+            --this.waiting;
+            this.grant(lane);
+            waiter.granted = true;
+            waiter.turn.signal();
+            
+            if (flow.waiters.isEmpty()) {
+                // An idle flow does not keep its credit
+                queue.active.pollFirst();
+                queue.flows.remove(flow.client);
+            }
+            return;
+        }
+    }
+    
+    /**
+     * Waiting requests of one lane.
+     */
+    private static class Queue {
+        final Map<Object, Flow>     flows;
+        final ArrayDeque<Flow>      active; // Flows with waiting requests, in round order
+        int                         bypassed; // Grants to other lanes while requests waited here
+        
+        Queue() {
+            this.flows = new HashMap<Object, Flow>();
+            this.active = new ArrayDeque<Flow>();
+            this.bypassed = 0;
+        }
+    }
+    
+    /**
+     * Waiting requests of one client.
+     */
+    private static class Flow {
+        final Object                client;
+        final ArrayDeque<Waiter>    waiters;
+        long                        deficit;
+        boolean                     visited; // Credit earned in the current round
+        
+        Flow(Object client) {
+            this.client = client;
+            this.waiters = new ArrayDeque<Waiter>();
+            this.deficit = 0;
+            this.visited = false;
+        }
+    }
+    
+    /**
+     * A request waiting for a slot.
+     */
+    private static class Waiter {
+        final int       cost;
+        final Condition turn;
+        boolean         granted;
+        
+        Waiter(int cost, Condition turn) {
+            this.cost = cost;
+            this.turn = turn;
+            this.granted = false;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package app_kvServer;
+
+import common.messages.NetworkMessage;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the encoded replies to 'get' requests, so that reading a hot key
+ * comes down to writing a prepared frame to the socket. Every entry is tagged
+ * with the version of the value it was encoded from and is only served for
+ * that version; writes also remove the entries of the keys they modify.
+ * <p>
+ * Lookups are lock-free. The entries fit in a memory bound and are evicted
+ * with the clock algorithm: an entry read since the clock hand last passed it
+ * gets a second chance, so keys read often stay while others are evicted.
+ * @author Danila Klimenko
+ */
+public class ResponseCache {
+    private static final int    ENTRY_OVERHEAD = 96; // Approximate size of an entry besides the frame, in bytes
+    private static final int    MAX_ENTRY_SHARE = 8; // Larger replies than capacity / MAX_ENTRY_SHARE are not cached
+    
+    private final ConcurrentMap<String, Entry>  entries;
+    private final LinkedHashMap<String, Entry>  clock; // The same entries, in the order of the clock hand
+    private volatile long                       capacity;
+    private long                                size;
+    private final AtomicLong                    hits;
+    private final AtomicLong                    misses;
+    private long                                evictions;
+    
+    /**
+     * Main constructor. The cache is disabled until it is given a capacity.
+     */
+    public ResponseCache() {
+        this.entries = new ConcurrentHashMap<String, Entry>();
+        this.clock = new LinkedHashMap<String, Entry>();
+        this.capacity = 0;
+        this.size = 0;
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = 0;
+    }
+    
+    /**
+     * Sets the memory bound of the cache, evicting entries as needed.
+     * @param capacity Total size of the entries in bytes, or 0 to disable the
+     *          cache
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid cache capacity: " + capacity + ".");
+        }
+        this.capacity = capacity;
+        this.evict();
+    }
+    
+    /**
+     * Getter method for the memory bound of the cache.
+     * @return Total size of the entries in bytes, 0 if the cache is disabled
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+    
+    /**
+     * Checks whether the cache is enabled.
+     * @return True if the cache has a capacity
+     */
+    public boolean isEnabled() {
+        return this.capacity > 0;
+    }
+    
+    /**
+     * Looks up the encoded reply for a key.
+     * @param key The key
+     * @param version The current version of the key
+     * @return The reply, or null if the cache has none for this version
+     */
+    public NetworkMessage get(String key, long version) {
+        Entry entry = this.entries.get(key);
+        
+        if (entry == null || entry.version != version) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        this.hits.incrementAndGet();
+        return entry.frame;
+    }
+    
+    /**
+     * Adds the encoded reply for a key. An entry for a newer version is kept.
+     * @param key The key
+     * @param version The version the reply was encoded from, or an older one
+     * @param frame The reply
+     */
+    public void put(String key, long version, NetworkMessage frame) {
+        long cost = ENTRY_OVERHEAD + 2 * key.length() + frame.getFrameSize();
+        
+        if (cost > this.capacity / MAX_ENTRY_SHARE) {
+            return;
+        }
+        synchronized (this) {
+            Entry old = this.entries.get(key);
+            if (old != null) {
+                if (old.version > version) {
+                    return;
+                }
+                this.remove(old);
+            }
+            
+            Entry entry = new Entry(key, version, frame, cost);
+            this.entries.put(key, entry);
+            this.clock.put(key, entry);
+            this.size += cost;
+            this.evict();
+        }
+    }
+    
+    /**
+     * Removes the encoded reply for a key, after the key was modified.
+     * @param key The key
+     */
+    public void invalidate(String key) {
+        if (!this.entries.containsKey(key)) {
+            return;
+        }
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry != null) {
+                this.remove(entry);
+            }
+        }
+    }
+    
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.clock.clear();
+        this.size = 0;
+    }
+    
+    /**
+     * Returns the number of cached replies.
+     * @return The number of entries
+     */
+    public int getEntryCount() {
+        return this.entries.size();
+    }
+    
+    /**
+     * Returns the memory taken by the cached replies.
+     * @return Total size of the entries in bytes
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+    
+    /**
+     * Getter method for the number of lookups which found a reply.
+     * @return The number of hits
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+    
+    /**
+     * Getter method for the number of lookups which found no reply.
+     * @return The number of misses
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+    
+    /**
+     * Returns a description of the cache usage.
+     * @return One line of statistics
+     */
+    public synchronized String getReport() {
+        long    hits = this.hits.get();
+        long    lookups = hits + this.misses.get();
+        
+        return String.format("Response cache: %d entries, %d of %d bytes, hit ratio %.1f%% (%d lookups), %d evictions",
+                             this.entries.size(), this.size, this.capacity,
+                             (lookups > 0) ? 100.0 * hits / lookups : 0.0, lookups, this.evictions);
+    }
+    
+    private void remove(Entry entry) {
+        this.entries.remove(entry.key, entry);
+        this.clock.remove(entry.key);
+        this.size -= entry.cost;
+    }
+    
+    /**
+     * Advances the clock hand until the entries fit in the capacity: entries
+     * read since the last pass are moved behind the hand, others are removed.
+     */
+    private void evict() {
+        while (this.size > this.capacity) {
+            Entry entry = this.clock.values().iterator().next();
+            
+            if (entry.referenced) {
+                entry.referenced = false;
+                this.clock.remove(entry.key);
+                this.clock.put(entry.key, entry);
+            } else {
+                this.remove(entry);
+                ++this.evictions;
+            }
+        }
+    }
+    
+    /**
+     * An encoded reply.
+     */
+    private static class Entry {
+        final String            key;
+        final long              version;
+        final NetworkMessage    frame;
+        final long              cost;
+        volatile boolean        referenced; // Read since the clock hand last passed
+        
+        Entry(String key, long version, NetworkMessage frame, long cost) {
+            this.key = key;
+            this.version = version;
+            this.frame = frame;
+            this.cost = cost;
+            this.referenced = false;
+        }
+    }
+}
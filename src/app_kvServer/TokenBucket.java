@@ -0,0 +1,77 @@
+package app_kvServer;
+
+/**
+ * Token bucket enforcing a rate limit: tokens are added at a constant rate up
+ * to the capacity of the bucket, and every admitted request takes one. The
+ * capacity allows short bursts above the rate.
+ * @author Danila Klimenko
+ */
+public class TokenBucket {
+    private static final double NANOS_PER_SECOND = 1e9;
+    
+    private final double    rate; // tokens per nanosecond
+    private final double    capacity;
+    private double          tokens;
+    private long            last_refill;
+    
+    /**
+     * Main constructor. The bucket starts full.
+     * @param rate Tokens added per second
+     * @param capacity Maximal number of tokens (at least 1)
+     */
+    public TokenBucket(double rate, double capacity) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("Invalid rate: " + rate + ".");
+        }
+        this.rate = rate / NANOS_PER_SECOND;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.last_refill = System.nanoTime();
+    }
+    
+    /**
+     * Takes a token if one is available.
+     * @return 0 if a token was taken, otherwise the time until the next token
+     *          becomes available, in nanoseconds
+     */
+    public synchronized long tryAcquire() {
+        this.refill();
+        if (this.tokens >= 1) {
+            this.tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - this.tokens) / this.rate));
+    }
+    
+    /**
+     * Returns a token taken for a request which was not admitted after all.
+     */
+    public synchronized void refund() {
+        this.tokens = Math.min(this.capacity, this.tokens + 1);
+    }
+    
+    /**
+     * Checks whether the bucket refilled completely, so that it no longer
+     * differs from a new one.
+     * @return True if the bucket is full
+     */
+    public synchronized boolean isFull() {
+        this.refill();
+        return this.tokens >= this.capacity;
+    }
+    
+    /**
+     * Getter method for the rate.
+     * @return Tokens added per second
+     */
+    public double getRate() {
+        return this.rate * NANOS_PER_SECOND;
+    }
+    
+    private void refill() {
+        long now = System.nanoTime();
+        
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.last_refill) * this.rate);
+        this.last_refill = now;
+    }
+}
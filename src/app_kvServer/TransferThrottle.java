@@ -0,0 +1,91 @@
+package app_kvServer;
+
+import common.metrics.LatencyHistogram;
+
+/**
+ * Rate limiter for background data transfers which keeps the foreground
+ * request latency within a budget. Every adjustment interval the 99th
+ * percentile of the foreground latencies recorded meanwhile is compared to the
+ * budget: the transfer rate grows by a constant step while the budget is met,
+ * and is halved when it is exceeded (additive increase, multiplicative
+ * decrease).
+ * @author Danila Klimenko
+ */
+public class TransferThrottle {
+    private static final long   ADJUST_INTERVAL = 100; // milliseconds
+    private static final long   MIN_RATE = 64 * 1024; // bytes per second
+    private static final long   MAX_RATE = 256 * 1024 * 1024; // bytes per second
+    private static final long   RATE_STEP = 1024 * 1024; // bytes per second
+    
+    private final LatencyHistogram  foreground;
+    private final long              budget;
+    private long                    rate;
+    private long[]                  last_counts;
+    private long                    last_adjust;
+    private long                    window_start;
+    private long                    window_bytes;
+    
+    /**
+     * Main constructor.
+     * @param foreground Latencies of the foreground requests
+     * @param p99Budget Budget for the 99th percentile of the foreground
+     *          latency, in microseconds
+     */
+    public TransferThrottle(LatencyHistogram foreground, long p99Budget) {
+        this.foreground = foreground;
+        this.budget = p99Budget;
+        this.rate = RATE_STEP;
+        this.last_counts = foreground.getCounts();
+        this.last_adjust = System.currentTimeMillis();
+        this.window_start = this.last_adjust;
+        this.window_bytes = 0;
+    }
+    
+    /**
+     * Returns the current transfer rate.
+     * @return The rate in bytes per second
+     */
+    public synchronized long getRate() {
+        return this.rate;
+    }
+    
+    /**
+     * Accounts for transferred data, sleeping as long as needed to keep the
+     * current rate.
+     * @param bytes Number of bytes about to be transferred
+     * @throws InterruptedException Thrown if the thread is interrupted
+     */
+    public synchronized void acquire(int bytes) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        
+        if (now - this.last_adjust >= ADJUST_INTERVAL) {
+            this.adjust(now);
+        }
+        
+        this.window_bytes += bytes;
+        long due = this.window_start + this.window_bytes * 1000 / this.rate;
+        
+        if (due > now) {
+            this.wait(due - now);
+        }
+    }
+    
+    private void adjust(long now) {
+        long[]  counts = this.foreground.getCounts();
+        long[]  interval = LatencyHistogram.difference(counts, this.last_counts);
+        long    p99 = LatencyHistogram.percentile(interval, 99.0);
+        
+        if (p99 > this.budget) {
+            this.rate = Math.max(MIN_RATE, this.rate / 2);
+        } else {
+            this.rate = Math.min(MAX_RATE, this.rate + RATE_STEP);
+        }
+        
+        this.last_counts = counts;
+        this.last_adjust = now;
+        
+        // The new rate applies from now on
+        this.window_start = now;
+        this.window_bytes = 0;
+    }
+}
@@ -0,0 +1,192 @@
+package app_kvServer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content-addressed pool of stored values, so that identical values share a
+ * single copy. Values are identified by their SHA-256 digest, and every entry
+ * counts the versions referring to it; the last version to go removes the
+ * entry from the pool.
+ * <p>
+ * The pool is lock-free. An entry whose count dropped to zero is dead: it can
+ * no longer be acquired, and whoever finds it replaces it with a new one.
+ * @author Danila Klimenko
+ */
+public class ValuePool {
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to support SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    
+    private final ConcurrentMap<Digest, Entry> entries;
+    
+    /**
+     * Main constructor.
+     */
+    public ValuePool() {
+        this.entries = new ConcurrentHashMap<Digest, Entry>();
+    }
+    
+    /**
+     * Computes the digest identifying a value.
+     * @param value The value
+     * @return The digest
+     */
+    public static Digest digestOf(String value) {
+        return digestOf(value.getBytes());
+    }
+    
+    /**
+     * Computes the digest identifying an encoded value. Equals the digest of
+     * the string the bytes encode.
+     * @param value The bytes of the value
+     * @return The digest
+     */
+    public static Digest digestOf(byte[] value) {
+        return new Digest(digests.get().digest(value));
+    }
+    
+    /**
+     * Takes a reference to the stored form of a value, if the pool has it.
+     * @param digest The digest of the value
+     * @return The entry, which must be released once no longer referred to,
+     *          or null if the value is not in the pool
+     */
+    public Entry acquire(Digest digest) {
+        while (true) {
+            Entry entry = this.entries.get(digest);
+            
+            if (entry == null) {
+                return null;
+            }
+            if (entry.retain()) {
+                return entry;
+            }
+            this.entries.remove(digest, entry); // Dead entry
+        }
+    }
+    
+    /**
+     * Adds the stored form of a value to the pool, or takes a reference to the
+     * one already there.
+     * @param digest The digest of the value
+     * @param data The stored form of the value
+     * @return The entry, which must be released once no longer referred to;
+     *          its data may be an equal copy added concurrently
+     */
+    public Entry add(Digest digest, Object data) {
+        Entry created = new Entry(digest, data);
+        
+        while (true) {
+            Entry entry = this.entries.putIfAbsent(digest, created);
+            
+            if (entry == null) {
+                return created;
+            }
+            if (entry.retain()) {
+                return entry;
+            }
+            this.entries.remove(digest, entry); // Dead entry
+        }
+    }
+    
+    /**
+     * Drops a reference taken by acquire() or add().
+     * @param entry The entry
+     */
+    public void release(Entry entry) {
+        if (entry.references.decrementAndGet() == 0) {
+            this.entries.remove(entry.digest, entry);
+        }
+    }
+    
+    /**
+     * Returns the number of distinct values in the pool.
+     * @return The number of entries
+     */
+    public int size() {
+        return this.entries.size();
+    }
+    
+    /**
+     * SHA-256 digest of a value.
+     */
+    public static final class Digest {
+        private final byte[]    bytes;
+        private final int       hash;
+        
+        private Digest(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Digest && Arrays.equals(this.bytes, ((Digest) other).bytes);
+        }
+        
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+    
+    /**
+     * A shared value and the number of versions referring to it.
+     */
+    public static final class Entry {
+        private final Digest        digest;
+        private final Object        data;
+        private final AtomicInteger references;
+        
+        private Entry(Digest digest, Object data) {
+            this.digest = digest;
+            this.data = data;
+            this.references = new AtomicInteger(1);
+        }
+        
+        /**
+         * Getter method for the stored form of the value.
+         * @return The string, its bytes, or a CompressedValue
+         */
+        public Object getData() {
+            return this.data;
+        }
+        
+        /**
+         * Getter method for the number of references.
+         * @return The number of versions referring to the value
+         */
+        public int getReferences() {
+            return this.references.get();
+        }
+        
+        /**
+         * Takes a reference, unless the entry is already dead.
+         * @return True if the reference was taken
+         */
+        private boolean retain() {
+            while (true) {
+                int count = this.references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (this.references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package app_kvServer;
+
+/**
+ * Exception thrown when a transaction precondition is not satisfied, i.e. a key
+ * does not have the version the client expected.
+ * @author Danila Klimenko
+ */
+public class VersionConflictException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    private final String    key;
+    private final long      expected_version;
+    private final long      actual_version;
+    
+    /**
+     * Main constructor.
+     * @param key The key whose version did not match
+     * @param expectedVersion The version expected by the client
+     * @param actualVersion The version actually stored
+     */
+    public VersionConflictException(String key, long expectedVersion, long actualVersion) {
+        super("Version conflict on key '" + key + "': expected " + expectedVersion +
+              ", found " + actualVersion + ".");
+        this.key = key;
+        this.expected_version = expectedVersion;
+        this.actual_version = actualVersion;
+    }
+    
+    /**
+     * Getter method for the conflicting key.
+     * @return The key
+     */
+    public String getKey() {
+        return this.key;
+    }
+    
+    /**
+     * Getter method for the version expected by the client.
+     * @return The expected version
+     */
+    public long getExpectedVersion() {
+        return this.expected_version;
+    }
+    
+    /**
+     * Getter method for the version actually stored.
+     * @return The actual version
+     */
+    public long getActualVersion() {
+        return this.actual_version;
+    }
+}
@@ -0,0 +1,234 @@
+package app_kvServer;
+
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageRaw;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of clients watching keys or key prefixes for changes.
+ * <p>
+ * The registry does not hook into the write path: a single dispatcher thread
+ * follows the storage change log and pushes a notification to every matching
+ * client connection. While nobody is watching, the dispatcher skips straight
+ * to the end of the log, so writes cost nothing. Otherwise each change costs
+ * one lookup for the key plus one per key prefix, independent of the number of
+ * registered watchers.
+ * <p>
+ * Every watch remembers the position of the change log when it was
+ * registered, so that a client is not notified about changes which were made
+ * before it started watching, even if the dispatcher is lagging behind.
+ * @author Danila Klimenko
+ */
+public class WatchRegistry implements Runnable {
+    private static final Logger logger = LogSetup.getLogger();
+    private static final int    DISPATCH_BATCH_BYTES = 256 * 1024;
+    private static final long   DISPATCH_WAIT_TIME = 1000; // milliseconds
+    
+    private final ChangeLog                                         change_log;
+    // Watching clients by key or prefix, with the position of the change log
+    // when they started watching
+    private final ConcurrentMap<String, ConcurrentMap<ClientConnection, Long>>  key_watchers;
+    private final ConcurrentMap<String, ConcurrentMap<ClientConnection, Long>>  prefix_watchers;
+    private volatile int                                                        key_count;
+    private volatile int                                                        prefix_count;
+    private volatile boolean                                                    online;
+    
+    /**
+     * Main constructor.
+     * @param changeLog The change log to follow
+     */
+    public WatchRegistry(ChangeLog changeLog) {
+        this.change_log = changeLog;
+        this.key_watchers = new ConcurrentHashMap<String, ConcurrentMap<ClientConnection, Long>>();
+        this.prefix_watchers = new ConcurrentHashMap<String, ConcurrentMap<ClientConnection, Long>>();
+        this.key_count = 0;
+        this.prefix_count = 0;
+        this.online = true;
+    }
+    
+    /**
+     * Registers a client's interest in a key or a key prefix. The client is
+     * notified about the changes logged from now on.
+     * @param client The client connection to notify
+     * @param key The key or the key prefix
+     * @param prefix True if the key is a prefix
+     * @return True if the watch was not registered before
+     */
+    public synchronized boolean watch(ClientConnection client, String key, boolean prefix) {
+        ConcurrentMap<String, ConcurrentMap<ClientConnection, Long>> watchers =
+                prefix ? this.prefix_watchers : this.key_watchers;
+        
+        ConcurrentMap<ClientConnection, Long> clients = watchers.get(key);
+        if (clients == null) {
+            clients = new ConcurrentHashMap<ClientConnection, Long>();
+            watchers.put(key, clients);
+        }
+        
+        if (clients.putIfAbsent(client, this.change_log.getLastSequence()) != null) {
+            return false;
+        }
+        
+        if (prefix) {
+            ++this.prefix_count;
+        } else {
+            ++this.key_count;
+        }
+        return true;
+    }
+    
+    /**
+     * Removes a client's interest in a key or a key prefix.
+     * @param client The client connection
+     * @param key The key or the key prefix
+     * @param prefix True if the key is a prefix
+     * @return True if the watch was registered
+     */
+    public synchronized boolean unwatch(ClientConnection client, String key, boolean prefix) {
+        ConcurrentMap<String, ConcurrentMap<ClientConnection, Long>> watchers =
+                prefix ? this.prefix_watchers : this.key_watchers;
+        
+        ConcurrentMap<ClientConnection, Long> clients = watchers.get(key);
+        if (clients == null || clients.remove(client) == null) {
+            return false;
+        }
+        
+        if (clients.isEmpty()) {
+            watchers.remove(key);
+        }
+        
+        if (prefix) {
+            --this.prefix_count;
+        } else {
+            --this.key_count;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the number of registered watches.
+     * @return Number of key and prefix watches
+     */
+    public int getWatchCount() {
+        return this.key_count + this.prefix_count;
+    }
+    
+    /**
+     * Stops the dispatcher.
+     */
+    public void shutDown() {
+        this.online = false;
+    }
+    
+    /**
+     * Override for run() method from Runnable interface. Dispatches changes
+     * from the change log to the watching clients.
+     */
+    @Override
+    public void run() {
+        long cursor = this.change_log.getLastSequence();
+        
+        while (this.online) {
+            try {
+                // The position is read before the watcher count, so a change
+                // committed right after a new watch is never skipped
+                long last = this.change_log.getLastSequence();
+                
+                if (this.getWatchCount() == 0) {
+                    // Nobody is watching: skip everything logged so far
+                    cursor = last;
+                    this.change_log.awaitSequence(cursor + 1, DISPATCH_WAIT_TIME);
+                    continue;
+                }
+                
+                List<KVMessageBatch.Entry> changes =
+                        this.change_log.read(cursor, DISPATCH_BATCH_BYTES, DISPATCH_WAIT_TIME);
+                
+                for (KVMessageBatch.Entry change : changes) {
+                    this.dispatch(change);
+                    cursor = change.version;
+                }
+            
+            } catch (ChangeLogTruncatedException e) {
+                logger.warn("Warning! Watch dispatcher fell behind the change log: " + e.getMessage());
+                this.overflowAll();
+                cursor = this.change_log.getLastSequence();
+            
+            } catch (InterruptedException e) {
+                // Checking the 'online' flag
+            }
+        }
+    }
+    
+    /**
+     * Sends a notification about a single change to all matching watchers.
+     * @param change The change
+     */
+    private void dispatch(KVMessageBatch.Entry change) {
+        KVMessageRaw notification = null;
+        
+        if (this.key_count > 0) {
+            ConcurrentMap<ClientConnection, Long> clients = this.key_watchers.get(change.key);
+            if (clients != null) {
+                notification = notify(clients, change, notification);
+            }
+        }
+        
+        if (this.prefix_count > 0) {
+            for (int len = 0; len <= change.key.length(); ++len) {
+                ConcurrentMap<ClientConnection, Long> clients =
+                        this.prefix_watchers.get(change.key.substring(0, len));
+                if (clients != null) {
+                    notification = notify(clients, change, notification);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sends a notification about a change to the clients which started
+     * watching before it was made.
+     * @param clients The watching clients
+     * @param change The change
+     * @param notification The notification, or null if not built yet
+     * @return The notification, or null if nobody was notified
+     */
+    private static KVMessageRaw notify(ConcurrentMap<ClientConnection, Long> clients,
+                                       KVMessageBatch.Entry change, KVMessageRaw notification) {
+        for (Map.Entry<ClientConnection, Long> client : clients.entrySet()) {
+            if (change.version <= client.getValue()) {
+                continue; // Made before the watch
+            }
+            if (notification == null) {
+                notification = new KVMessageRaw(StatusType.WATCH_NOTIFY, change.key, change.value);
+            }
+            client.getKey().pushNotification(notification);
+        }
+        return notification;
+    }
+    
+    /**
+     * Tells every watching client that notifications were lost.
+     */
+    private void overflowAll() {
+        Set<ClientConnection> clients = new HashSet<ClientConnection>();
+        
+        for (ConcurrentMap<ClientConnection, Long> watchers : this.key_watchers.values()) {
+            clients.addAll(watchers.keySet());
+        }
+        for (ConcurrentMap<ClientConnection, Long> watchers : this.prefix_watchers.values()) {
+            clients.addAll(watchers.keySet());
+        }
+        
+        for (ClientConnection client : clients) {
+            client.pushOverflow();
+        }
+    }
+}
@@ -1,22 +1,51 @@
 package client;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
 
+import common.messages.ChecksumException;
+import common.messages.FrameCompressor;
 import common.messages.KVMessage;
+import common.messages.KVMessageBatch;
 import common.messages.KVMessageRaw;
 import common.messages.NetworkMessage;
+import common.messages.Protocol;
+import common.metadata.HashRing;
 import java.text.ParseException;
+import java.util.List;
 
 public class KVStore implements KVCommInterface {
 
+    private static final String WATCH_PREFIX = "prefix";
+    private static final int MAX_REDIRECTS = 10;
+    private static final long REDIRECT_BACKOFF = 20; // milliseconds
+
     private Socket objSocketClient;
-    private InputStream objSocketInputStream;
+    private BufferedInputStream objSocketInputStream;
     private OutputStream objSocketOutPutStream;
     private final String strServerAdress;
     private final int nServerPort;
+    private final Queue<KVMessage> objNotifications = new LinkedList<KVMessage>();
+    private HashRing objMetadata;
+    private String strLeader;
+    private final Map<String, KVStore> objRoutes = new HashMap<String, KVStore>();
+    private final List<KVStore> objReplicas = new ArrayList<KVStore>();
+    private long nMaxStaleness = 0;
+    private int nNextReader = 0;
+    private int nCompressionThreshold = -1;
+    private FrameCompressor objCompressor;
+    private boolean bChecksums = false;
+    private int nProtocolVersion = 0;
+    private int nFeatures = 0;
 
     /**
      * Get the IP address of server.
@@ -55,18 +84,147 @@ public class KVStore implements KVCommInterface {
         nServerPort = port;
     }
 
+    /**
+     * Connects to the KVServer and fetches the ring metadata, if the server
+     * is a node of a partitioned deployment.
+     */
     @Override
     public void connect() throws Exception {
 
         if (objSocketClient == null && !strServerAdress.isEmpty() && nServerPort != -1) {
-            objSocketClient = new Socket(strServerAdress, nServerPort);
-            objSocketInputStream = objSocketClient.getInputStream();
-            objSocketOutPutStream = objSocketClient.getOutputStream();
+            open();
+            fetchMetadata();
         }
     }
 
-    @Override
-    public void disconnect() {
+    private void open() throws IOException {
+        objSocketClient = new Socket(strServerAdress, nServerPort);
+        objSocketInputStream = new BufferedInputStream(objSocketClient.getInputStream());
+        objSocketOutPutStream = objSocketClient.getOutputStream();
+        
+        negotiateProtocol();
+    }
+    
+    /**
+     * Agrees with the server on the protocol version and on the features
+     * used on this connection. Servers predating the handshake reply with a
+     * protocol error; the connection then uses the legacy format, and only
+     * compression is asked for with its own handshake.
+     */
+    private void negotiateProtocol() throws IOException {
+        int requested = 0;
+        if (nCompressionThreshold >= 0) {
+            requested |= Protocol.FEATURE_COMPRESSION;
+        }
+        if (bChecksums) {
+            requested |= Protocol.FEATURE_CHECKSUMS;
+        }
+        
+        KVMessage reply = this.kvRequest(new KVMessageRaw(KVMessage.StatusType.HELLO,
+                Integer.toString(Protocol.VERSION),
+                Protocol.formatFeatures(requested, Math.max(nCompressionThreshold, 0))));
+        
+        if (reply.getStatus() != KVMessage.StatusType.HELLO_SUCCESS) {
+            nProtocolVersion = Protocol.LEGACY_VERSION;
+            if (nCompressionThreshold >= 0) {
+                negotiateCompression();
+            }
+            return;
+        }
+        
+        try {
+            nProtocolVersion = Math.min(Protocol.parseVersion(reply.getKey()), Protocol.VERSION);
+            // Features which were not asked for are ignored
+            nFeatures = Protocol.parseFeatures(reply.getValue())[0] & requested;
+        } catch (ParseException e) {
+            close();
+            throw new IOException("Invalid handshake reply: " + e.getMessage());
+        }
+        if ((nFeatures & Protocol.FEATURE_COMPRESSION) != 0) {
+            objCompressor = new FrameCompressor(nCompressionThreshold);
+        }
+    }
+    
+    /**
+     * Asks the server to compress the frames of this connection, if it
+     * predates the protocol handshake. Servers which do not support
+     * compression reply with an error, and the frames then stay
+     * uncompressed.
+     */
+    private void negotiateCompression() throws IOException {
+        KVMessage reply = this.kvRequest(new KVMessageRaw(KVMessage.StatusType.COMPRESSION,
+                FrameCompressor.CODEC, Integer.toString(nCompressionThreshold)));
+        
+        if (reply.getStatus() == KVMessage.StatusType.COMPRESSION_SUCCESS) {
+            objCompressor = new FrameCompressor(nCompressionThreshold);
+        }
+    }
+    
+    /**
+     * Enables compression of the frames exchanged with the servers, if they
+     * support it. Takes effect for connections opened afterwards, so it
+     * should be called before connect(). Only frames of at least the given
+     * size are compressed; compression pays off for large, compressible
+     * values when the network is the bottleneck.
+     *
+     * @param threshold minimal size of a compressed frame, in bytes, or -1
+     * to turn compression off.
+     */
+    public void setCompression(int threshold) {
+        nCompressionThreshold = threshold;
+        for (KVStore replica : objReplicas) {
+            replica.setCompression(threshold);
+        }
+    }
+    
+    /**
+     * Appends a CRC32C checksum to the frames sent to the servers, which then
+     * also send their frames with a checksum. A frame which does not match its
+     * checksum fails the request with a ChecksumException. Takes effect for
+     * connections opened afterwards, and only with servers granting checksums
+     * in the handshake.
+     *
+     * @param enabled true to send frames with a checksum.
+     */
+    public void setChecksums(boolean enabled) {
+        bChecksums = enabled;
+        for (KVStore replica : objReplicas) {
+            replica.setChecksums(enabled);
+        }
+    }
+    
+    /**
+     * Checks whether the frames exchanged with the KVServer are compressed.
+     *
+     * @return true if compression was negotiated on the current connection.
+     */
+    public boolean isCompressed() {
+        return objCompressor != null;
+    }
+    
+    /**
+     * Returns the protocol version agreed on with the KVServer.
+     *
+     * @return the version of the current connection, or 0 if not connected.
+     */
+    public int getProtocolVersion() {
+        return nProtocolVersion;
+    }
+    
+    /**
+     * Returns the protocol features used on the current connection.
+     *
+     * @return bitmask of Protocol.FEATURE_* values.
+     */
+    public int getProtocolFeatures() {
+        return nFeatures;
+    }
+
+    /**
+     * Closes the connection to the KVServer, leaving the connections to other
+     * servers open.
+     */
+    private void close() {
         try {
             if (objSocketInputStream != null) {
                 objSocketInputStream.close();
@@ -79,39 +237,472 @@ public class KVStore implements KVCommInterface {
             }
         } catch (IOException ex) {
         }
+        if (objCompressor != null) {
+            objCompressor.end();
+        }
 
+        objCompressor = null;
+        nProtocolVersion = 0;
+        nFeatures = 0;
         objSocketInputStream = null;
         objSocketOutPutStream = null;
         objSocketClient = null;
     }
 
+    @Override
+    public void disconnect() {
+        close();
+        objNotifications.clear();
+
+        for (KVStore route : objRoutes.values()) {
+            route.disconnect();
+        }
+        objRoutes.clear();
+        objMetadata = null;
+        strLeader = null;
+
+        for (KVStore replica : objReplicas) {
+            replica.disconnect();
+        }
+    }
+
     @Override
     public KVMessage put(String key, String value) throws Exception {
         KVMessage kvmsg = new KVMessageRaw(KVMessage.StatusType.PUT, key, value);
         
-        return this.kvRequest(kvmsg);
+        return this.routedRequest(key, kvmsg);
+    }
+    
+    /**
+     * Inserts a key-value pair, giving up if the reply does not arrive in
+     * time. The deadline is sent along, so that the server drops the request
+     * instead of executing it after the client stopped waiting.
+     *
+     * @param key the key that identifies the given value.
+     * @param value the value that is indexed by the given key.
+     * @param timeout time to wait for the reply, in milliseconds (0 waits
+     * forever).
+     * @return a message that confirms the insertion of the tuple, an error,
+     * or DEADLINE_EXCEEDED if the server did not get to the request in time.
+     * @throws SocketTimeoutException if the reply did not arrive in time; the
+     * request may or may not have been executed.
+     * @throws Exception if the request cannot be executed.
+     */
+    public KVMessage put(String key, String value, long timeout) throws Exception {
+        KVMessageRaw kvmsg = new KVMessageRaw(KVMessage.StatusType.PUT, key, value);
+        
+        kvmsg.setTimeout(timeout);
+        return this.routedRequest(key, kvmsg);
     }
 
     @Override
     public KVMessage get(String key) throws Exception {
-        KVMessage   kvmsg = new KVMessageRaw(KVMessage.StatusType.GET, key, null);
+        return this.get(key, 0);
+    }
+    
+    /**
+     * Retrieves the value for a given key, giving up if the reply does not
+     * arrive in time. The deadline is sent along, as for put().
+     *
+     * @param key the key that identifies the value.
+     * @param timeout time to wait for the reply, in milliseconds (0 waits
+     * forever).
+     * @return the value, which is indexed by the given key, or
+     * DEADLINE_EXCEEDED if the server did not get to the request in time.
+     * @throws SocketTimeoutException if the reply did not arrive in time.
+     * @throws Exception if the request cannot be executed.
+     */
+    public KVMessage get(String key, long timeout) throws Exception {
+        KVMessageRaw kvmsg = new KVMessageRaw(KVMessage.StatusType.GET, key, null);
+        
+        kvmsg.setTimeout(timeout);
+        if (!objReplicas.isEmpty() && objMetadata == null && strLeader == null) {
+            return this.replicaRequest(key, kvmsg);
+        }
+        return this.routedRequest(key, kvmsg);
+    }
+    
+    /**
+     * Adds a backup of the KVServer to serve 'get' requests. Reads are then
+     * spread over the KVServer and its backups in turn. A backup which is
+     * further behind than the staleness bound refuses the read, which is
+     * then sent to the KVServer instead.
+     *
+     * @param address the address of the backup.
+     * @param port the port of the backup.
+     */
+    public void addReadReplica(String address, int port) {
+        KVStore replica = new KVStore(address, port);
+        
+        replica.setCompression(nCompressionThreshold);
+        replica.setChecksums(bChecksums);
+        objReplicas.add(replica);
+    }
+    
+    /**
+     * Set the staleness bound of reads served by backups.
+     *
+     * @param maxLag maximal number of changes of the KVServer that a backup
+     * may be missing (0 by default: the backup must have applied every change
+     * it knows about).
+     */
+    public void setMaxStaleness(long maxLag) {
+        nMaxStaleness = maxLag;
+    }
+    
+    /**
+     * Fetches the ring metadata from the KVServer. Requests are then sent
+     * directly to the server responsible for the key.
+     *
+     * @return the ring, or null if the server is not partitioned.
+     * @throws Exception if the request cannot be executed.
+     */
+    public HashRing fetchMetadata() throws Exception {
+        KVMessage reply = this.kvRequest(new KVMessageRaw(KVMessage.StatusType.GET_METADATA, "", null));
+        
+        if (reply.getStatus() == KVMessage.StatusType.METADATA && reply.getValue() != null) {
+            updateMetadata(reply.getValue());
+        }
+        return objMetadata;
+    }
+    
+    /**
+     * Get the ring metadata currently used for routing.
+     *
+     * @return the ring, or null if the server is not partitioned.
+     */
+    public HashRing getMetadata() {
+        return objMetadata;
+    }
+    
+    /**
+     * Applies a batch of operations atomically: either all of them take
+     * effect, or none does.
+     *
+     * @param operations the operations to apply (see KVMessageBatch.Entry).
+     * @return TRANSACTION_SUCCESS with the new version as value, or
+     * TRANSACTION_ERROR with the conflicting key and the reason.
+     * @throws Exception if the request cannot be executed.
+     */
+    public KVMessage transaction(List<KVMessageBatch.Entry> operations) throws Exception {
+        KVMessage   kvmsg = new KVMessageBatch(KVMessage.StatusType.TRANSACTION, null, null, operations);
+        
+        return this.routedRequest(operations.isEmpty() ? null : operations.get(0).key, kvmsg);
+    }
+    
+    /**
+     * Fetches the next batch of changes applied on the KVServer. Waits for
+     * a short while if there are no new changes yet.
+     *
+     * @param after sequence number of the last change already seen (0 to
+     * start from the oldest retained change, -1 to start from now on).
+     * @return CDC_BATCH with the changes as entries and the sequence number
+     * to continue from as value, or CDC_TRUNCATED if the requested changes
+     * are no longer retained by the server.
+     * @throws Exception if the request cannot be executed.
+     */
+    public KVMessage fetchChanges(long after) throws Exception {
+        KVMessage   kvmsg = new KVMessageRaw(KVMessage.StatusType.CDC_FETCH, "", Long.toString(after));
         
         return this.kvRequest(kvmsg);
     }
     
+    /**
+     * Asks the KVServer to push a notification whenever the given key
+     * changes. Notifications are retrieved with awaitNotification().
+     *
+     * @param key the key to watch.
+     * @return WATCH_SUCCESS or WATCH_ERROR.
+     * @throws Exception if the request cannot be executed.
+     */
+    public KVMessage watch(String key) throws Exception {
+        return this.kvRequest(new KVMessageRaw(KVMessage.StatusType.WATCH, key, null));
+    }
+    
+    /**
+     * Asks the KVServer to push a notification whenever any key starting
+     * with the given prefix changes.
+     *
+     * @param prefix the key prefix to watch ("" for all keys).
+     * @return WATCH_SUCCESS or WATCH_ERROR.
+     * @throws Exception if the request cannot be executed.
+     */
+    public KVMessage watchPrefix(String prefix) throws Exception {
+        return this.kvRequest(new KVMessageRaw(KVMessage.StatusType.WATCH, prefix, WATCH_PREFIX));
+    }
+    
+    /**
+     * Stops notifications for the given key.
+     *
+     * @param key the watched key.
+     * @return WATCH_SUCCESS or WATCH_ERROR.
+     * @throws Exception if the request cannot be executed.
+     */
+    public KVMessage unwatch(String key) throws Exception {
+        return this.kvRequest(new KVMessageRaw(KVMessage.StatusType.UNWATCH, key, null));
+    }
+    
+    /**
+     * Stops notifications for the given key prefix.
+     *
+     * @param prefix the watched key prefix.
+     * @return WATCH_SUCCESS or WATCH_ERROR.
+     * @throws Exception if the request cannot be executed.
+     */
+    public KVMessage unwatchPrefix(String prefix) throws Exception {
+        return this.kvRequest(new KVMessageRaw(KVMessage.StatusType.UNWATCH, prefix, WATCH_PREFIX));
+    }
+    
+    /**
+     * Waits for a notification about a watched key.
+     *
+     * @param timeout maximum time to wait, in milliseconds (0 waits forever).
+     * @return WATCH_NOTIFY with the changed key and its new value (null if
+     * the key was deleted), WATCH_OVERFLOW if notifications were lost, or
+     * null if no notification arrived in time.
+     * @throws IOException if the connection is broken.
+     */
+    public KVMessage awaitNotification(long timeout) throws IOException {
+        if (!objNotifications.isEmpty()) {
+            return objNotifications.poll();
+        }
+        
+        // Wait for the first byte of a message without consuming it, so that
+        // a timeout never leaves a partially read message behind
+        objSocketClient.setSoTimeout((int) timeout);
+        try {
+            objSocketInputStream.mark(1);
+            if (objSocketInputStream.read() < 0) {
+                throw new IOException("Connection closed by the server.");
+            }
+            objSocketInputStream.reset();
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            objSocketClient.setSoTimeout(0);
+        }
+        
+        KVMessage kv_in = this.receive();
+        if (!isNotification(kv_in)) {
+            throw new IOException("Unexpected message from server: " + kv_in.getStatus() + ".");
+        }
+        
+        return kv_in;
+    }
+    
     public KVMessage kvRequest(KVMessage kv_out) throws IOException {
-        NetworkMessage netmsg = new NetworkMessage(KVMessageRaw.marshal(kv_out));
+        NetworkMessage netmsg = (objCompressor != null) ? objCompressor.compress(KVMessageRaw.marshal(kv_out))
+                : new NetworkMessage(KVMessageRaw.marshal(kv_out));
+        long timeout = timeoutOf(kv_out);
+        if ((nFeatures & Protocol.FEATURE_CHECKSUMS) != 0) {
+            netmsg = netmsg.withChecksum();
+        }
         netmsg.writeTo(objSocketOutPutStream);
         
+        // Notifications pushed before the reply are kept for later
+        KVMessage kv_in;
+        objSocketClient.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+        try {
+            kv_in = this.receive();
+            while (isNotification(kv_in)) {
+                objNotifications.add(kv_in);
+                kv_in = this.receive();
+            }
+        } catch (SocketTimeoutException e) {
+            // The late reply would be taken for the reply to the next request
+            close();
+            open();
+            throw new SocketTimeoutException("No reply to '" + kv_out.getStatus() + "' within " + timeout + " ms.");
+        } catch (ChecksumException e) {
+            // The frame boundaries cannot be trusted any more
+            close();
+            open();
+            throw e;
+        } finally {
+            if (objSocketClient != null) {
+                objSocketClient.setSoTimeout(0);
+            }
+        }
+        
+        return kv_in;
+    }
+    
+    private static long timeoutOf(KVMessage kvmsg) {
+        return (kvmsg instanceof KVMessageRaw) ? ((KVMessageRaw) kvmsg).getTimeout() : 0;
+    }
+    
+    /**
+     * Sends a request to the server responsible for the key. Follows
+     * SERVER_NOT_RESPONSIBLE replies, updating the ring metadata, and
+     * SERVER_NOT_LEADER replies of a consensus group. While keys are being
+     * handed over between servers, or while the group elects a leader, a
+     * redirect may not point anywhere new; the request is then retried after
+     * a short pause.
+     */
+    private KVMessage routedRequest(String key, KVMessage kv_out) throws IOException {
+        for (int attempt = 0; attempt <= MAX_REDIRECTS; ++attempt) {
+            KVStore owner = null;
+            KVMessage kv_in;
+            
+            try {
+                owner = route(key);
+                kv_in = owner.kvRequest(kv_out);
+            } catch (IOException e) {
+                if (owner != null && owner != this) { // Reconnect on the next request
+                    owner.disconnect();
+                    objRoutes.values().remove(owner);
+                }
+                strLeader = null;
+                throw e;
+            }
+            
+            boolean redirected;
+            if (kv_in.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                redirected = updateMetadata(kv_in.getValue());
+            } else if (kv_in.getStatus() == KVMessage.StatusType.SERVER_NOT_LEADER) {
+                redirected = kv_in.getValue() != null && !kv_in.getValue().equals(strLeader);
+                strLeader = kv_in.getValue();
+            } else {
+                return kv_in;
+            }
+            if (!redirected) {
+                try {
+                    Thread.sleep(REDIRECT_BACKOFF * (attempt + 1));
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for a handover.");
+                }
+            }
+        }
+        
+        throw new IOException("Unable to find the server responsible for '" + key + "'.");
+    }
+    
+    /**
+     * Sends a 'get' request to the next server in turn: one of the backups,
+     * carrying the staleness bound, or the KVServer itself. Falls back to the
+     * KVServer if the backup is too far behind or cannot be reached.
+     */
+    private KVMessage replicaRequest(String key, KVMessage kv_out) throws IOException {
+        int reader = nNextReader;
+        nNextReader = (nNextReader + 1) % (objReplicas.size() + 1);
+        
+        if (reader < objReplicas.size()) {
+            KVStore replica = objReplicas.get(reader);
+            try {
+                if (replica.objSocketClient == null) {
+                    replica.open();
+                }
+                KVMessageRaw bounded = new KVMessageRaw(KVMessage.StatusType.GET,
+                        key, Long.toString(nMaxStaleness));
+                bounded.setTimeout(timeoutOf(kv_out));
+                KVMessage kv_in = replica.kvRequest(bounded);
+                if (kv_in.getStatus() != KVMessage.StatusType.REPLICA_STALE) {
+                    return kv_in;
+                }
+            } catch (SocketTimeoutException e) {
+                throw e; // No time left to ask another server
+            } catch (IOException e) {
+                replica.disconnect(); // Reconnect on the next request
+            }
+        }
+        
+        return this.routedRequest(key, kv_out);
+    }
+    
+    /**
+     * Returns the connection to the server responsible for the key: the
+     * leader of a consensus group, or the owner of the key on the ring.
+     */
+    private KVStore route(String key) throws IOException {
+        if (strLeader != null) {
+            return connectionTo(strLeader);
+        }
+        if (objMetadata == null || key == null) {
+            return this;
+        }
+        
+        return connectionTo(objMetadata.getNode(key));
+    }
+    
+    /**
+     * Returns the connection to the given server, opening it if necessary.
+     */
+    private KVStore connectionTo(String node) throws IOException {
+        if (node.equals(strServerAdress + ":" + nServerPort)) {
+            return this;
+        }
+        
+        KVStore route = objRoutes.get(node);
+        if (route == null) {
+            int separator = node.lastIndexOf(':');
+            try {
+                route = new KVStore(node.substring(0, separator),
+                        Integer.parseInt(node.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid node address in ring metadata: '" + node + "'.");
+            }
+            route.setCompression(nCompressionThreshold);
+            route.setChecksums(bChecksums);
+            route.open();
+            objRoutes.put(node, route);
+        }
+        return route;
+    }
+    
+    /**
+     * Replaces the ring metadata if the given one is newer, and closes the
+     * connections to servers which left the ring.
+     *
+     * @return true if the metadata was replaced.
+     */
+    private boolean updateMetadata(String encoded) throws IOException {
+        HashRing ring;
+        try {
+            ring = HashRing.parse(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        
+        if (objMetadata != null && objMetadata.getVersion() >= ring.getVersion()) {
+            return false;
+        }
+        objMetadata = ring;
+        
+        Iterator<Map.Entry<String, KVStore>> it = objRoutes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, KVStore> route = it.next();
+            if (!ring.contains(route.getKey())) {
+                route.getValue().disconnect();
+                it.remove();
+            }
+        }
+        return true;
+    }
+    
+    private static boolean isNotification(KVMessage kvmsg) {
+        return kvmsg.getStatus() == KVMessage.StatusType.WATCH_NOTIFY
+                || kvmsg.getStatus() == KVMessage.StatusType.WATCH_OVERFLOW;
+    }
+    
+    private KVMessage receive() throws IOException {
         KVMessage kv_in;
-        netmsg = NetworkMessage.readFrom(objSocketInputStream);
+        NetworkMessage netmsg = NetworkMessage.readFrom(objSocketInputStream,
+                (nFeatures & Protocol.FEATURE_CHECKSUMS) != 0);
+        byte[] data;
+        if (objCompressor != null) {
+            data = objCompressor.decompress(netmsg);
+        } else if (!netmsg.isCompressed()) {
+            data = netmsg.getData();
+        } else {
+            throw new IOException("Received a compressed frame, but compression was not negotiated.");
+        }
         try {
-            kv_in = KVMessageRaw.unmarshal(netmsg.getData());
+            kv_in = KVMessageRaw.unmarshal(data);
             // TODO: remove the next line!
             //System.out.println(kv_in.getStatus() + " " + kv_in.getKey() + " " + kv_in.getValue());
         } catch (ParseException e) {
             kv_in = null;
-            String error_message = new String(netmsg.getData());
+            String error_message = new String(data);
             // TODO: remove the next line!
             //System.out.println(error_message);
             throw new IOException(error_message);
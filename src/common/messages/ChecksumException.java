@@ -0,0 +1,55 @@
+package common.messages;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when data does not match the checksum stored with it, e.g.
+ * a corrupt frame or log record.
+ * @author Danila Klimenko
+ */
+public class ChecksumException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    private final int   expected;
+    private final int   actual;
+    
+    /**
+     * Main constructor.
+     * @param what Description of the corrupt data
+     * @param expected The checksum stored with the data
+     * @param actual The checksum computed from the data
+     */
+    public ChecksumException(String what, int expected, int actual) {
+        super(what + " is corrupt: checksum " + Integer.toHexString(expected) + " expected, " +
+              Integer.toHexString(actual) + " computed.");
+        this.expected = expected;
+        this.actual = actual;
+    }
+    
+    /**
+     * Constructor for data which lacks the checksum it must carry. Both
+     * checksums are reported as 0.
+     * @param message The detail message
+     */
+    public ChecksumException(String message) {
+        super(message);
+        this.expected = 0;
+        this.actual = 0;
+    }
+    
+    /**
+     * Getter method for the stored checksum.
+     * @return The checksum stored with the data
+     */
+    public int getExpected() {
+        return this.expected;
+    }
+    
+    /**
+     * Getter method for the computed checksum.
+     * @return The checksum of the data as it was read
+     */
+    public int getActual() {
+        return this.actual;
+    }
+}
@@ -0,0 +1,133 @@
+package common.messages;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A value kept in compressed form: the encoded value, deflated with the codec
+ * of FrameCompressor. As frames use the same codec, a compressed value can be
+ * put into a compressed frame without being decompressed.
+ * <p>
+ * The compressor state is kept per thread, so that compressing a value does
+ * not allocate a new one.
+ * @author Danila Klimenko
+ */
+public final class CompressedValue {
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+    
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+    
+    private final byte[]    data;
+    private final int       length;
+    
+    private CompressedValue(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+    }
+    
+    /**
+     * Compresses a value.
+     * @param value The value
+     * @return The compressed value, or null if the value does not get smaller
+     */
+    public static CompressedValue compress(String value) {
+        return compress(value.getBytes());
+    }
+    
+    /**
+     * Compresses an encoded value.
+     * @param encoded The bytes of the value
+     * @return The compressed value, or null if the value does not get smaller
+     */
+    public static CompressedValue compress(byte[] encoded) {
+        byte[]      buffer = new byte[encoded.length];
+        Deflater    deflater = deflaters.get();
+        int         size = 0;
+        
+        deflater.reset();
+        deflater.setInput(encoded);
+        deflater.finish();
+        while (!deflater.finished() && size < buffer.length) {
+            size += deflater.deflate(buffer, size, buffer.length - size);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        
+        return new CompressedValue(Arrays.copyOf(buffer, size), encoded.length);
+    }
+    
+    /**
+     * Decompresses the value.
+     * @return The value
+     */
+    public String decode() {
+        return new String(this.decodeBytes());
+    }
+    
+    /**
+     * Decompresses the value without decoding it.
+     * @return The bytes of the value
+     */
+    public byte[] decodeBytes() {
+        byte[]      encoded = new byte[this.length];
+        Inflater    inflater = inflaters.get();
+        int         size = 0;
+        
+        inflater.reset();
+        inflater.setInput(this.data);
+        try {
+            while (size < this.length && !inflater.finished()) {
+                int inflated = inflater.inflate(encoded, size, this.length - size);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed value is corrupt: " + e.getMessage());
+        }
+        if (size != this.length) {
+            throw new IllegalStateException("Compressed value is corrupt: expected length = " + this.length +
+                                            "; decompressed = " + size + ".");
+        }
+        
+        return encoded;
+    }
+    
+    /**
+     * Getter method for the compressed data.
+     * @return The deflated value; must not be modified
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+    
+    /**
+     * Getter method for the size of the encoded value.
+     * @return The size before compression, in bytes
+     */
+    public int getLength() {
+        return this.length;
+    }
+    
+    /**
+     * Returns the size of the compressed value.
+     * @return The size after compression, in bytes
+     */
+    public int getCompressedSize() {
+        return this.data.length;
+    }
+}
@@ -0,0 +1,204 @@
+package common.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the frames of one connection, once both sides agreed on it.
+ * Frames above a size threshold are deflated at the fastest level and marked
+ * as compressed; smaller frames and frames that do not shrink are sent as
+ * they are. The compressor and decompressor state is kept for the lifetime of
+ * the connection instead of being allocated for every frame.
+ * <p>
+ * A compressed frame carries the length of the original frame, followed by
+ * the deflated data. Messages carrying a compressed value are sent without
+ * compressing the value again: the deflated data then consists of the rest of
+ * the message in an uncompressed block, followed by the compressed value.
+ * @author Danila Klimenko
+ */
+public class FrameCompressor {
+    /**
+     * Name of the codec, sent in the handshake.
+     */
+    public static final String  CODEC = "deflate";
+    
+    /**
+     * Default size above which frames are compressed, in bytes.
+     */
+    public static final int     DEFAULT_THRESHOLD = 1024;
+    
+    private static final int    SIZEOF_LENGTH = 4;
+    private static final int    SIZEOF_STORED_BLOCK_HEADER = 5;
+    private static final int    MAX_STORED_BLOCK = 0xFFFF;
+    
+    private final int       threshold;
+    private final Deflater  deflater;
+    private final Inflater  inflater;
+    private byte[]          buffer;
+    private boolean         ended;
+    
+    /**
+     * Main constructor.
+     * @param threshold Frames of at least this size are compressed, in bytes
+     */
+    public FrameCompressor(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid compression threshold: " + threshold + ".");
+        }
+        this.threshold = threshold;
+        this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+        this.inflater = new Inflater(true);
+        this.buffer = new byte[0];
+        this.ended = false;
+    }
+    
+    /**
+     * Getter method for the compression threshold.
+     * @return Size above which frames are compressed, in bytes
+     */
+    public int getThreshold() {
+        return this.threshold;
+    }
+    
+    /**
+     * Builds the frame of a message, compressing it if it is large enough and
+     * gets smaller.
+     * @param data The marshalled message
+     * @return The frame
+     * @throws IOException Thrown if the message exceeds the frame size limit,
+     *          or if the compressor was freed
+     */
+    public synchronized NetworkMessage compress(byte[] data) throws IOException {
+        if (data.length < this.threshold || data.length <= SIZEOF_LENGTH) {
+            return new NetworkMessage(data);
+        }
+        this.checkOpen();
+        if (this.buffer.length < data.length) {
+            this.buffer = new byte[data.length];
+        }
+        
+        this.deflater.reset();
+        this.deflater.setInput(data);
+        this.deflater.finish();
+        
+        int size = SIZEOF_LENGTH;
+        while (!this.deflater.finished() && size < data.length) {
+            size += this.deflater.deflate(this.buffer, size, data.length - size);
+        }
+        if (!this.deflater.finished()) {
+            // Not compressible
+            return new NetworkMessage(data);
+        }
+        
+        ByteBuffer.wrap(this.buffer).putInt(data.length);
+        return new NetworkMessage(Arrays.copyOf(this.buffer, size), true);
+    }
+    
+    /**
+     * Builds the frame of a message. A compressed value is put into the frame
+     * as it is, otherwise the message is compressed if it is large enough.
+     * @param kvmsg The message
+     * @return The frame
+     * @throws IOException Thrown if the message exceeds the frame size limit,
+     *          or if the compressor was freed
+     */
+    public NetworkMessage compress(KVMessage kvmsg) throws IOException {
+        if (kvmsg instanceof KVMessageCompressed) {
+            KVMessageCompressed compressed = (KVMessageCompressed) kvmsg;
+            byte[]              header = compressed.marshalHeader();
+            
+            if (header.length <= MAX_STORED_BLOCK) {
+                return splice(header, compressed.getCompressedValue());
+            }
+        }
+        return this.compress(KVMessageRaw.marshal(kvmsg));
+    }
+    
+    /**
+     * Builds a compressed frame from the marshalled beginning of a message and
+     * its compressed value. The beginning goes into a stored (uncompressed),
+     * non-final deflate block, which ends on a byte boundary, so that the
+     * deflate stream of the value can follow it directly.
+     */
+    private static NetworkMessage splice(byte[] header, CompressedValue value) throws IOException {
+        ByteBuffer bbuf = ByteBuffer.allocate(SIZEOF_LENGTH + SIZEOF_STORED_BLOCK_HEADER + header.length +
+                                              value.getCompressedSize());
+        
+        bbuf.putInt(header.length + value.getLength());
+        bbuf.put((byte) 0); // Not the final block, stored
+        bbuf.put((byte) header.length).put((byte) (header.length >>> 8));
+        bbuf.put((byte) ~header.length).put((byte) (~header.length >>> 8));
+        bbuf.put(header);
+        bbuf.put(value.getData());
+        
+        return new NetworkMessage(bbuf.array(), true);
+    }
+    
+    /**
+     * Returns the contents of a frame, decompressing it if it is compressed.
+     * @param netmsg The frame
+     * @return The marshalled message
+     * @throws IOException Thrown if the compressed data is corrupt, or if the
+     *          compressor was freed
+     */
+    public synchronized byte[] decompress(NetworkMessage netmsg) throws IOException {
+        byte[] data = netmsg.getData();
+        
+        if (!netmsg.isCompressed()) {
+            return data;
+        }
+        if (data.length < SIZEOF_LENGTH) {
+            throw new IOException("Compressed frame is truncated.");
+        }
+        this.checkOpen();
+        
+        int length = ByteBuffer.wrap(data).getInt();
+        if (length < 0 || length > NetworkMessage.MAX_MESSAGE_SIZE) {
+            throw new IOException("Compressed frame is invalid: original length = " + length + ".");
+        }
+        
+        byte[] original = new byte[length];
+        this.inflater.reset();
+        this.inflater.setInput(data, SIZEOF_LENGTH, data.length - SIZEOF_LENGTH);
+        try {
+            int size = 0;
+            while (size < length && !this.inflater.finished()) {
+                int inflated = this.inflater.inflate(original, size, length - size);
+                if (inflated == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+            if (size != length) {
+                throw new IOException("Compressed frame is corrupt: expected length = " + length +
+                                      "; decompressed = " + size + ".");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed frame is corrupt: " + e.getMessage());
+        }
+        
+        return original;
+    }
+    
+    /**
+     * Frees the compressor and decompressor state. Frames which need them
+     * cannot be processed afterwards.
+     */
+    public synchronized void end() {
+        if (!this.ended) {
+            this.ended = true;
+            this.deflater.end();
+            this.inflater.end();
+        }
+    }
+    
+    private void checkOpen() throws IOException {
+        if (this.ended) {
+            throw new IOException("Connection is closed.");
+        }
+    }
+}
@@ -12,7 +12,46 @@ public interface KVMessage {
 		PUT_ERROR, 		/* Put - request not successful */
 		DELETE_SUCCESS, /* Delete - request successful */
 		DELETE_ERROR, 	/* Delete - request successful */
-                PROTOCOL_ERROR  /* Returned after receiving an inconsistent message */
+                PROTOCOL_ERROR, /* Returned after receiving an inconsistent message */
+		TRANSACTION, 	/* Transaction - request carrying a batch of operations */
+		TRANSACTION_SUCCESS, /* Transaction - all operations applied atomically */
+		TRANSACTION_ERROR, 	/* Transaction - rejected, no operation applied */
+		CDC_FETCH, 		/* Change capture - request for changes after a sequence number */
+		CDC_BATCH, 		/* Change capture - batch of changes in sequence order */
+		CDC_TRUNCATED, 	/* Change capture - requested changes are no longer retained */
+		WATCH, 			/* Watch - request to be notified about changes of a key or prefix */
+		UNWATCH, 		/* Watch - request to stop notifications for a key or prefix */
+		WATCH_SUCCESS, 	/* Watch - request successful */
+		WATCH_ERROR, 	/* Watch - request not successful */
+		WATCH_NOTIFY, 	/* Watch - pushed by the server: a watched key has changed */
+		WATCH_OVERFLOW, /* Watch - pushed by the server: notifications were dropped */
+		SERVER_WRITE_LOCK, /* Server is read-only (e.g. a backup); value names the primary */
+		REPLICA_HELLO, 	/* Replication - primary connects to a backup */
+		REPLICATE, 		/* Replication - batch of changes shipped to a backup */
+		REPLICA_SNAPSHOT, /* Replication - chunk of a snapshot shipped to a backup */
+		REPLICA_ACK, 	/* Replication - position acknowledged by a backup */
+		REPLICA_ERROR, 	/* Replication - request refused by the server */
+		SERVER_NOT_RESPONSIBLE, /* Key belongs to another server; value carries the ring metadata */
+		GET_METADATA, 	/* Partitioning - request for the ring metadata */
+		METADATA, 		/* Partitioning - ring metadata (empty if not partitioned) */
+		REBALANCE_START, /* Rebalancing - joining node asks a member to transfer its keys */
+		REBALANCE_DATA, /* Rebalancing - batch of transferred keys */
+		REBALANCE_COMMIT, /* Rebalancing - transfer complete, ownership handed over */
+		REBALANCE_ACK, 	/* Rebalancing - request accepted */
+		REBALANCE_ERROR, /* Rebalancing - request refused */
+		SERVER_NOT_LEADER, /* Consensus - server is a follower; value names the leader, if known */
+		RAFT_APPEND, 	/* Consensus - AppendEntries request of the leader */
+		RAFT_APPEND_REPLY, /* Consensus - AppendEntries reply */
+		RAFT_VOTE, 		/* Consensus - RequestVote request of a candidate */
+		RAFT_VOTE_REPLY, /* Consensus - RequestVote reply */
+		REPLICA_STALE, 	/* Replication - backup too far behind for a bounded-staleness read; value carries its position */
+		SERVER_THROTTLED, /* Request rate limit exceeded; value carries the milliseconds after which to retry */
+		DEADLINE_EXCEEDED, /* Request expired before the server got to it; it was not executed */
+		COMPRESSION, 	/* Handshake - request to compress frames; key names the codec, value the size threshold */
+		COMPRESSION_SUCCESS, /* Handshake - compression enabled for the rest of the connection */
+		COMPRESSION_ERROR, /* Handshake - compression refused, frames stay uncompressed */
+		HELLO, 			/* Handshake - key carries the client's protocol version, value the requested features */
+		HELLO_SUCCESS 	/* Handshake - key carries the agreed version, value the granted features */
 	}
 
 	/**
@@ -0,0 +1,129 @@
+package common.messages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * KVMessage implementation carrying an ordered list of entries in addition to
+ * the usual key and value fields. Used for requests and replies that refer to
+ * several keys at once (e.g. transactions).
+ * @author Danila Klimenko
+ */
+public class KVMessageBatch extends KVMessageRaw {
+    /**
+     * Version value meaning "no version information".
+     */
+    public static final long    ANY_VERSION = -1;
+    /**
+     * Version value meaning "the key must not be present".
+     */
+    public static final long    ABSENT_VERSION = 0;
+    
+    // Operation, version, and the lengths of the key and of the value
+    private static final int    SIZEOF_ENTRY_HEADER = 1 + 8 + 4 + 4;
+    
+    private final List<Entry>   entries;
+    
+    /**
+     * Main constructor for the class.
+     * @param type Message type
+     * @param key The key (may be null)
+     * @param value The value (may be null)
+     * @param entries The list of entries carried by the message
+     */
+    public KVMessageBatch(StatusType type, String key, String value, List<Entry> entries) {
+        super(type, key, value);
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+    
+    /**
+     * Getter method for the entries of the batch.
+     * @return An unmodifiable list of entries
+     */
+    public List<Entry> getEntries() {
+        return this.entries;
+    }
+    
+    /**
+     * Checks whether messages of the given type carry a list of entries.
+     * @param type Message type
+     * @return True if the message type is a batch type
+     */
+    public static boolean isBatchType(StatusType type) {
+        return type == StatusType.TRANSACTION || type == StatusType.TRANSACTION_SUCCESS ||
+               type == StatusType.CDC_BATCH || type == StatusType.REPLICATE ||
+               type == StatusType.REPLICA_SNAPSHOT || type == StatusType.REBALANCE_DATA ||
+               type == StatusType.RAFT_APPEND;
+    }
+    
+    /**
+     * A single operation within a batch.
+     * <p>
+     * The meaning of the version field depends on the message type. For a
+     * transaction it is the version the key is expected to have before the
+     * operation is applied: ANY_VERSION disables the check, ABSENT_VERSION
+     * requires the key to be missing. In a transaction reply it is the version
+     * read (GET) or written (PUT) by the operation. In a change capture or
+     * replication batch it is the sequence number of the change.
+     */
+    public static class Entry {
+        public final StatusType op;
+        public final String     key;
+        public final String     value;
+        public final long       version;
+        
+        /**
+         * Main constructor.
+         * @param op Operation type: PUT (a null value means 'delete'), or
+         *          GET (version check only)
+         * @param key The key
+         * @param value The value
+         * @param version The version associated with the entry
+         */
+        public Entry(StatusType op, String key, String value, long version) {
+            this.op = op;
+            this.key = key;
+            this.value = value;
+            this.version = version;
+        }
+        
+        /**
+         * Creates an unconditional 'put' operation.
+         * @param key The key
+         * @param value The value
+         * @return New entry
+         */
+        public static Entry put(String key, String value) {
+            return new Entry(StatusType.PUT, key, value, ANY_VERSION);
+        }
+        
+        /**
+         * Creates an unconditional 'delete' operation.
+         * @param key The key
+         * @return New entry
+         */
+        public static Entry delete(String key) {
+            return new Entry(StatusType.PUT, key, null, ANY_VERSION);
+        }
+        
+        /**
+         * Creates a version check which does not modify the key.
+         * @param key The key
+         * @param version Expected version of the key
+         * @return New entry
+         */
+        public static Entry check(String key, long version) {
+            return new Entry(StatusType.GET, key, null, version);
+        }
+        
+        /**
+         * Returns the size of the entry in a marshalled batch.
+         * @return The size in bytes
+         */
+        public int getEncodedSize() {
+            return SIZEOF_ENTRY_HEADER + ((this.key != null) ? this.key.getBytes().length : 0) +
+                   ((this.value != null) ? this.value.getBytes().length : 0);
+        }
+    }
+}
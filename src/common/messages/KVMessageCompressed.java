@@ -0,0 +1,64 @@
+package common.messages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * KVMessage implementation carrying a value in compressed form. The value is
+ * only decompressed if it is read; on a connection with frame compression the
+ * message is sent with the compressed value as it is.
+ * @author Danila Klimenko
+ */
+public class KVMessageCompressed extends KVMessageRaw {
+    private static final int SIZEOF_STATUSTYPE = 1;
+    private static final int SIZEOF_INT = 4;
+    
+    private final CompressedValue   compressed;
+    
+    /**
+     * Main constructor for the class.
+     * @param type Message type
+     * @param key The key
+     * @param compressed The compressed value
+     */
+    public KVMessageCompressed(StatusType type, String key, CompressedValue compressed) {
+        super(type, key, null);
+        this.compressed = compressed;
+    }
+    
+    /**
+     * Getter method for the value. Decompresses the value on the first call.
+     * @return The value
+     */
+    @Override
+    public String getValue() {
+        if (this.value == null) {
+            this.value = this.compressed.decode();
+        }
+        return this.value;
+    }
+    
+    /**
+     * Getter method for the compressed value.
+     * @return The compressed value
+     */
+    public CompressedValue getCompressedValue() {
+        return this.compressed;
+    }
+    
+    /**
+     * Marshals everything preceding the bytes of the value: the type, the key
+     * and the length of the value.
+     * @return The beginning of the marshalled message
+     */
+    byte[] marshalHeader() {
+        byte[]      key_data = (this.key != null) ? this.key.getBytes() : new byte[0];
+        ByteBuffer  bbuf = ByteBuffer.allocate(SIZEOF_STATUSTYPE + SIZEOF_INT + key_data.length + SIZEOF_INT);
+        
+        bbuf.put((byte) this.type.ordinal());
+        bbuf.putInt(key_data.length);
+        bbuf.put(key_data);
+        bbuf.putInt(this.compressed.getLength());
+        
+        return bbuf.array();
+    }
+}
@@ -0,0 +1,66 @@
+package common.messages;
+
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * KVMessage implementation carrying its own encoded frame, so that a message
+ * sent many times is marshalled only once. The value is only unmarshalled from
+ * the frame if it is read.
+ * @author Danila Klimenko
+ */
+public class KVMessageEncoded extends KVMessageRaw {
+    private final NetworkMessage    frame;
+    
+    private KVMessageEncoded(StatusType type, String key, NetworkMessage frame) {
+        super(type, key, null);
+        this.frame = frame;
+    }
+    
+    /**
+     * Encodes a message.
+     * @param kvmsg The message
+     * @return The message with its frame built in advance
+     * @throws IOException Thrown if the message exceeds the frame size limit
+     */
+    public static KVMessageEncoded encode(KVMessage kvmsg) throws IOException {
+        NetworkMessage frame = new NetworkMessage(KVMessageRaw.marshal(kvmsg)).preEncode();
+        return new KVMessageEncoded(kvmsg.getStatus(), kvmsg.getKey(), frame);
+    }
+    
+    /**
+     * Wraps a frame encoded earlier by encode().
+     * @param type Message type
+     * @param key The key
+     * @param frame The frame of the message
+     * @return The message
+     */
+    public static KVMessageEncoded of(StatusType type, String key, NetworkMessage frame) {
+        return new KVMessageEncoded(type, key, frame);
+    }
+    
+    /**
+     * Getter method for the value. Unmarshals the frame on the first call.
+     * @return The value
+     */
+    @Override
+    public String getValue() {
+        if (this.value == null) {
+            try {
+                this.value = KVMessageRaw.unmarshal(this.frame.getData()).getValue();
+            } catch (ParseException e) {
+                // The frame was marshalled from a valid message
+                throw new IllegalStateException(e);
+            }
+        }
+        return this.value;
+    }
+    
+    /**
+     * Getter method for the frame.
+     * @return The frame of the message, ready to be written
+     */
+    public NetworkMessage getFrame() {
+        return this.frame;
+    }
+}
@@ -2,6 +2,8 @@ package common.messages;
 
 import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * KVMessage implementation based on pure byte streams
@@ -11,6 +13,7 @@ public class KVMessageRaw implements KVMessage {
     StatusType  type;
     String      key;
     String      value;
+    long        timeout;
     
     /**
      * Main constructor for the class. Used for a known key-value pair.
@@ -22,8 +25,9 @@ public class KVMessageRaw implements KVMessage {
         this.type = type;
         this.key = key;
         this.value = value;
+        this.timeout = 0;
     }
-
+    
     /**
      * Getter method for the key.
      * @return The key
@@ -32,7 +36,7 @@ public class KVMessageRaw implements KVMessage {
     public String getKey() {
         return this.key;
     }
-
+    
     /**
      * Getter method for the value.
      * @return The value
@@ -41,7 +45,7 @@ public class KVMessageRaw implements KVMessage {
     public String getValue() {
         return this.value;
     }
-
+    
     /**
      * Getter method for the message type.
      * @return The type of the message
@@ -51,6 +55,26 @@ public class KVMessageRaw implements KVMessage {
         return this.type;
     }
     
+    /**
+     * Getter method for the deadline of a request.
+     * @return Time the client waits for the reply, in milliseconds from the
+     *          moment the request is sent, or 0 if it waits forever
+     */
+    public long getTimeout() {
+        return this.timeout;
+    }
+    
+    /**
+     * Sets the deadline of a request. It is sent relative to the moment the
+     * request is sent, so that the clocks of client and server do not matter.
+     * Servers that do not know the field ignore it.
+     * @param timeout Time the client waits for the reply, in milliseconds, or
+     *          0 to wait forever
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+    
     /**
      * The following are the static methods for marshaling and un-marshaling of
      * the KVMessages, respectively, to and from byte arrays.
@@ -58,26 +82,65 @@ public class KVMessageRaw implements KVMessage {
     //<editor-fold defaultstate="collapsed" desc="Marshalling routines">
     private static final int SIZEOF_STATUSTYPE = 1;
     private static final int SIZEOF_INT = 4;
+    private static final int SIZEOF_LONG = 8;
     
     /**
      * Converts KVMessage to an array of bytes.
      * @param kvmsg The message to be converted
      * @return Byte array representation of the message
+     * @throws IllegalArgumentException Thrown if a non-batch message has no key
      */
     public static byte[] marshal(KVMessage kvmsg) {
+        if (kvmsg instanceof KVMessageSlice) {
+            return ((KVMessageSlice) kvmsg).marshalSlices();
+        }
+        
         int     size = SIZEOF_STATUSTYPE;
         String  key = kvmsg.getKey();
         String  value = kvmsg.getValue();
         
-        size += SIZEOF_INT + key.getBytes().length;
+        if (key == null && !(kvmsg instanceof KVMessageBatch)) {
+            throw new IllegalArgumentException("Message key must not be null.");
+        }
+        
+        size += SIZEOF_INT + ((key != null) ? key.getBytes().length : 0);
         size += SIZEOF_INT + ((value != null) ? value.getBytes().length : 0);
         
+        long timeout = (kvmsg instanceof KVMessageRaw) ? ((KVMessageRaw) kvmsg).getTimeout() : 0;
+        if (timeout > 0) {
+            size += SIZEOF_LONG;
+        }
+        
+        List<KVMessageBatch.Entry> entries = null;
+        if (kvmsg instanceof KVMessageBatch) {
+            entries = ((KVMessageBatch) kvmsg).getEntries();
+            size += SIZEOF_INT;
+            for (KVMessageBatch.Entry entry : entries) {
+                size += entry.getEncodedSize();
+            }
+        }
+        
         ByteBuffer bbuf = ByteBuffer.allocate(size);
         
         marshalType(bbuf, kvmsg.getStatus());
         marshalString(bbuf, kvmsg.getKey());
         marshalString(bbuf, kvmsg.getValue());
         
+        if (entries != null) {
+            bbuf.putInt(entries.size());
+            for (KVMessageBatch.Entry entry : entries) {
+                marshalType(bbuf, entry.op);
+                marshalString(bbuf, entry.key);
+                marshalString(bbuf, entry.value);
+                bbuf.putLong(entry.version);
+            }
+        }
+        
+        // Optional trailing fields
+        if (timeout > 0) {
+            bbuf.putLong(timeout);
+        }
+        
         return bbuf.array();
     }
     
@@ -95,7 +158,44 @@ public class KVMessageRaw implements KVMessage {
         String      key = unmarshalString(bbuf);
         String      value = unmarshalString(bbuf);
         
-        return new KVMessageRaw(type, key, value);
+        KVMessageRaw kvmsg;
+        if (KVMessageBatch.isBatchType(type)) {
+            kvmsg = new KVMessageBatch(type, key, value, unmarshalEntries(bbuf));
+        } else {
+            kvmsg = new KVMessageRaw(type, key, value);
+        }
+        
+        if (bbuf.remaining() >= SIZEOF_LONG) {
+            kvmsg.setTimeout(bbuf.getLong());
+        }
+        return kvmsg;
+    }
+    
+    private static List<KVMessageBatch.Entry> unmarshalEntries(ByteBuffer bbuf) throws ParseException {
+        if (bbuf.remaining() < SIZEOF_INT) {
+            throw new ParseException("Entry count is invalid.", bbuf.position());
+        }
+        
+        int count = bbuf.getInt();
+        if (count < 0 || count > bbuf.remaining()) {
+            throw new ParseException("Entry count is invalid: " + count + ".", bbuf.position());
+        }
+        
+        List<KVMessageBatch.Entry> entries = new ArrayList<KVMessageBatch.Entry>(count);
+        
+        for (int i = 0; i < count; ++i) {
+            StatusType  op = unmarshalType(bbuf);
+            String      key = unmarshalString(bbuf);
+            String      value = unmarshalString(bbuf);
+            
+            if (bbuf.remaining() < SIZEOF_LONG) {
+                throw new ParseException("Entry version is invalid.", bbuf.position());
+            }
+            
+            entries.add(new KVMessageBatch.Entry(op, key, value, bbuf.getLong()));
+        }
+        
+        return entries;
     }
     
     private static void marshalType(ByteBuffer bbuf, StatusType stype) {
@@ -0,0 +1,204 @@
+package common.messages;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * KVMessage implementation keeping the key and the value as slices of the
+ * buffer the message was received in. They are only decoded into strings if
+ * they are read as such, so a server which stores the bytes of the value as
+ * they are never transcodes it; replies built from a slice are marshalled by
+ * copying the bytes back.
+ * @author Danila Klimenko
+ */
+public class KVMessageSlice extends KVMessageRaw {
+    private static final int SIZEOF_STATUSTYPE = 1;
+    private static final int SIZEOF_INT = 4;
+    private static final int SIZEOF_LONG = 8;
+    private static final StatusType[] STATUS_TYPES = StatusType.values();
+    
+    private final byte[]    data;
+    private final int       key_offset;
+    private final int       key_length; // 0 if the key is null or was given as a string
+    private final int       value_offset;
+    private final int       value_length; // 0 if the value is null
+    
+    private KVMessageSlice(StatusType type, String key, byte[] data, int keyOffset, int keyLength,
+                           int valueOffset, int valueLength) {
+        super(type, key, null);
+        this.data = data;
+        this.key_offset = keyOffset;
+        this.key_length = keyLength;
+        this.value_offset = valueOffset;
+        this.value_length = valueLength;
+    }
+    
+    /**
+     * Parses a KVMessage from a byte array without decoding its key and value.
+     * Batches are parsed by KVMessageRaw.unmarshal().
+     * @param data Byte array containing the message; it is referred to by the
+     *          message and must not be modified
+     * @return The parsed KVMessage
+     * @throws ParseException Thrown if the given byte array does not represent
+     *          a valid KVMessage.
+     */
+    public static KVMessage unmarshal(byte[] data) throws ParseException {
+        if (data.length < SIZEOF_STATUSTYPE) {
+            throw new ParseException("Message is empty.", 0);
+        }
+        
+        int type_data = data[0];
+        if (type_data < 0 || type_data >= STATUS_TYPES.length) {
+            throw new ParseException("Invalid message type.", 0);
+        }
+        
+        StatusType type = STATUS_TYPES[type_data];
+        if (KVMessageBatch.isBatchType(type)) {
+            return KVMessageRaw.unmarshal(data);
+        }
+        
+        ByteBuffer  bbuf = ByteBuffer.wrap(data, SIZEOF_STATUSTYPE, data.length - SIZEOF_STATUSTYPE);
+        int         key_length = sliceLength(bbuf);
+        int         key_offset = bbuf.position() - key_length;
+        int         value_length = sliceLength(bbuf);
+        int         value_offset = bbuf.position() - value_length;
+        
+        KVMessageSlice kvmsg = new KVMessageSlice(type, null, data, key_offset, key_length,
+                                                  value_offset, value_length);
+        if (bbuf.remaining() >= SIZEOF_LONG) {
+            kvmsg.setTimeout(bbuf.getLong());
+        }
+        return kvmsg;
+    }
+    
+    /**
+     * Builds a message carrying a value in encoded form.
+     * @param type Message type
+     * @param key The key
+     * @param value The encoded value; it is referred to by the message and must
+     *          not be modified
+     * @return The message
+     */
+    public static KVMessageSlice of(StatusType type, String key, byte[] value) {
+        return new KVMessageSlice(type, key, value, 0, 0, 0, value.length);
+    }
+    
+    /**
+     * Builds a reply carrying the same key and value as this message.
+     * @param type Type of the reply
+     * @return The reply, sharing the buffer of this message
+     */
+    public KVMessageSlice reply(StatusType type) {
+        return new KVMessageSlice(type, this.key, this.data, this.key_offset, this.key_length,
+                                  this.value_offset, this.value_length);
+    }
+    
+    /**
+     * Getter method for the key. Decodes the key on the first call.
+     * @return The key
+     */
+    @Override
+    public String getKey() {
+        if (this.key == null && this.key_length > 0) {
+            this.key = new String(this.data, this.key_offset, this.key_length);
+        }
+        return this.key;
+    }
+    
+    /**
+     * Getter method for the value. Decodes the value on the first call.
+     * @return The value
+     */
+    @Override
+    public String getValue() {
+        if (this.value == null && this.value_length > 0) {
+            this.value = new String(this.data, this.value_offset, this.value_length);
+        }
+        return this.value;
+    }
+    
+    /**
+     * Checks whether the message carries a value, without decoding it.
+     * @return True if the value is not null
+     */
+    public boolean hasValue() {
+        return this.value_length > 0;
+    }
+    
+    /**
+     * Returns the size of the encoded value.
+     * @return The size in bytes, 0 if the value is null
+     */
+    public int getValueLength() {
+        return this.value_length;
+    }
+    
+    /**
+     * Returns a copy of the encoded value.
+     * @return The bytes of the value, or null if the value is null
+     */
+    public byte[] getValueBytes() {
+        if (this.value_length == 0) {
+            return null;
+        }
+        return Arrays.copyOfRange(this.data, this.value_offset, this.value_offset + this.value_length);
+    }
+    
+    /**
+     * Converts the message to an array of bytes, copying the key and the value
+     * as they are.
+     * @return Byte array representation of the message
+     * @throws IllegalArgumentException Thrown if the message has no key
+     */
+    byte[] marshalSlices() {
+        if (this.key_length == 0 && this.key == null) {
+            throw new IllegalArgumentException("Message key must not be null.");
+        }
+        
+        byte[]  key_data = (this.key_length == 0 && this.key != null) ? this.key.getBytes() : null;
+        int     key_size = (key_data != null) ? key_data.length : this.key_length;
+        long    timeout = this.getTimeout();
+        
+        ByteBuffer bbuf = ByteBuffer.allocate(SIZEOF_STATUSTYPE + SIZEOF_INT + key_size + SIZEOF_INT +
+                                              this.value_length + ((timeout > 0) ? SIZEOF_LONG : 0));
+        
+        bbuf.put((byte) this.type.ordinal());
+        bbuf.putInt(key_size);
+        if (key_data != null) {
+            bbuf.put(key_data);
+        } else {
+            bbuf.put(this.data, this.key_offset, this.key_length);
+        }
+        bbuf.putInt(this.value_length);
+        bbuf.put(this.data, this.value_offset, this.value_length);
+        
+        if (timeout > 0) {
+            bbuf.putLong(timeout);
+        }
+        
+        return bbuf.array();
+    }
+    
+    /**
+     * Reads the length of a string and skips its bytes.
+     * @return The length, 0 for a null string
+     */
+    private static int sliceLength(ByteBuffer bbuf) throws ParseException {
+        if (bbuf.remaining() < SIZEOF_INT) {
+            throw new ParseException("String length is invalid.", bbuf.position());
+        }
+        
+        int len = bbuf.getInt();
+        
+        if (len <= 0) {
+            return 0;
+        }
+        if (bbuf.remaining() < len) {
+            throw new ParseException("String id incomplete: expected length: " + len +
+                    "; available: " + bbuf.remaining() + ".", bbuf.position());
+        }
+        bbuf.position(bbuf.position() + len);
+        return len;
+    }
+}
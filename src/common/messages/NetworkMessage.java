@@ -5,17 +5,33 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
 
 /**
  * Special class representing low-level message format for client-server interaction
+ * <p>
+ * A frame may end with a CRC32C checksum of its length field and contents,
+ * which is verified when the frame is read. Peers which never send frames
+ * with a checksum never receive any.
  * @author Danila Klimenko
  */
 public class NetworkMessage {
-    private static final int    MAX_MESSAGE_SIZE = 128 * 1024;
+    /**
+     * Largest message, in bytes.
+     */
+    public static final int     MAX_MESSAGE_SIZE = 128 * 1024;
+    
     private static final int    SIZEOF_LENGTH = 4;
+    private static final int    SIZEOF_CHECKSUM = 4;
+    private static final int    COMPRESSED_FLAG = 0x80000000; // In the length field
+    private static final int    CHECKSUM_FLAG = 0x40000000; // In the length field
     
     private final int       length;
-    private final byte[]    data;
+    private final byte[]    data; // Null if the message was encoded in advance
+    private final byte[]    frame; // The encoded message, or null
+    private final boolean   compressed;
+    private final boolean   checksummed;
     
     /**
      * Main constructor from a byte array.
@@ -23,12 +39,71 @@ public class NetworkMessage {
      * @throws IOException Thrown if data size exceeds the limit
      */
     public NetworkMessage(byte[] data) throws IOException {
+        this(data, false);
+    }
+    
+    /**
+     * Constructor for a message which may be compressed. Compressed messages
+     * may only be sent once the peer agreed to compression.
+     * @param data Array of bytes to be sent
+     * @param compressed True if the data is compressed
+     * @throws IOException Thrown if data size exceeds the limit
+     */
+    public NetworkMessage(byte[] data, boolean compressed) throws IOException {
+        this(data, compressed, false);
+    }
+    
+    /**
+     * Constructor for a message which may be compressed and may carry a
+     * checksum.
+     * @param data Array of bytes to be sent
+     * @param compressed True if the data is compressed
+     * @param checksummed True to append a checksum to the frame
+     * @throws IOException Thrown if data size exceeds the limit
+     */
+    public NetworkMessage(byte[] data, boolean compressed, boolean checksummed) throws IOException {
         if (data.length > MAX_MESSAGE_SIZE) {
             throw new IOException("Message size limit exceeded.");
         }
         
         this.data = data;
+        this.frame = null;
         this.length = data.length;
+        this.compressed = compressed;
+        this.checksummed = checksummed;
+    }
+    
+    private NetworkMessage(byte[] frame, int length, boolean compressed, boolean checksummed) {
+        this.data = null;
+        this.frame = frame;
+        this.length = length;
+        this.compressed = compressed;
+        this.checksummed = checksummed;
+    }
+    
+    /**
+     * Returns the same message with a checksum appended to its frame.
+     * @return The message with a checksum
+     * @throws IOException Thrown if data size exceeds the limit
+     */
+    public NetworkMessage withChecksum() throws IOException {
+        if (this.checksummed) {
+            return this;
+        }
+        return new NetworkMessage(this.getData(), this.compressed, true);
+    }
+    
+    /**
+     * Returns an equivalent message whose frame, length field included, is
+     * built in advance, so that writing it only copies the frame to the
+     * stream. Meant for messages which are sent many times.
+     * @return The encoded message
+     */
+    public NetworkMessage preEncode() {
+        if (this.frame != null) {
+            return this;
+        }
+        return new NetworkMessage(this.encodeFrame(), this.length, this.compressed, this.checksummed);
     }
     
     /**
@@ -36,34 +111,123 @@ public class NetworkMessage {
      * @return Message contents as an array of bytes
      */
     public byte[] getData() {
+        if (this.data == null) {
+            return Arrays.copyOfRange(this.frame, SIZEOF_LENGTH, this.frame.length);
+        }
         return this.data;
     }
     
+    /**
+     * Getter method for the size of the contents of the message.
+     * @return Message size in bytes, without the length field
+     */
+    public int getLength() {
+        return this.length;
+    }
+    
+    /**
+     * Checks whether the contents of the message are compressed.
+     * @return True if the message is compressed
+     */
+    public boolean isCompressed() {
+        return this.compressed;
+    }
+    
+    /**
+     * Checks whether the frame of the message carries a checksum.
+     * @return True if the frame ends with a checksum
+     */
+    public boolean hasChecksum() {
+        return this.checksummed;
+    }
+    
+    /**
+     * Returns the number of bytes the message takes on the wire.
+     * @return Size of the message including its length field and checksum
+     */
+    public int getFrameSize() {
+        return SIZEOF_LENGTH + this.length + (this.checksummed ? SIZEOF_CHECKSUM : 0);
+    }
+    
     /**
      * Write the message to the given OutputStream.
      * @param os Output stream to write the message to
      * @throws IOException Thrown if OutputStream malfunctions
      */
     public void writeTo(OutputStream os) throws IOException {
-        ByteBuffer bbuf = ByteBuffer.allocate(SIZEOF_LENGTH + this.length);
+        os.write((this.frame != null) ? this.frame : this.encodeFrame());
+        os.flush();
+    }
+    
+    private byte[] encodeFrame() {
+        ByteBuffer  bbuf = ByteBuffer.allocate(this.getFrameSize());
+        int         header = this.length;
         
-        bbuf.putInt(this.length);
+        if (this.compressed) {
+            header |= COMPRESSED_FLAG;
+        }
+        if (this.checksummed) {
+            header |= CHECKSUM_FLAG;
+        }
+        bbuf.putInt(header);
         bbuf.put(this.data);
         
-        os.write(bbuf.array());
-        os.flush();
+        if (this.checksummed) {
+            bbuf.putInt(checksum(header, this.data));
+        }
+        
+        return bbuf.array();
+    }
+    
+    /**
+     * Computes the checksum of a frame: of its length field and contents.
+     */
+    private static int checksum(int header, byte[] data) {
+        CRC32C crc = new CRC32C();
+        
+        crc.update(header >>> 24);
+        crc.update(header >>> 16);
+        crc.update(header >>> 8);
+        crc.update(header);
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
     }
     
     /**
      * Static method reading a message from the given InputStream.
      * @param is Input stream to read the message from
      * @return A valid NetworkMessage instance
+     * @throws ChecksumException Thrown if the frame does not match its
+     *          checksum
      * @throws IOException Thrown if InputStream malfunctions
      */
     public static NetworkMessage readFrom(InputStream is) throws IOException {
+        return readFrom(is, false);
+    }
+    
+    /**
+     * Static method reading a message from the given InputStream, on a
+     * connection which may require every frame to carry a checksum. Without
+     * this, a corrupt length field with the checksum flag cleared would pass
+     * as an unchecked frame.
+     * @param is Input stream to read the message from
+     * @param checksumRequired True if frames without a checksum are rejected
+     * @return A valid NetworkMessage instance
+     * @throws ChecksumException Thrown if the frame does not match its
+     *          checksum, or lacks a required one
+     * @throws IOException Thrown if InputStream malfunctions
+     */
+    public static NetworkMessage readFrom(InputStream is, boolean checksumRequired) throws IOException {
         DataInputStream dis = new DataInputStream(is);
         
-        int length = dis.readInt();
+        int     header = dis.readInt();
+        int     length = header & ~(COMPRESSED_FLAG | CHECKSUM_FLAG);
+        boolean compressed = (header & COMPRESSED_FLAG) != 0;
+        boolean checksummed = (header & CHECKSUM_FLAG) != 0;
+        if (checksumRequired && !checksummed) {
+            // The length cannot be trusted, so the data is not read
+            throw new ChecksumException("Frame header " + Integer.toHexString(header) + " has no checksum.");
+        }
         if (length > MAX_MESSAGE_SIZE) {
             throw new IOException("Message size limit exceeded.");
         }
@@ -88,6 +252,14 @@ public class NetworkMessage {
                                     length + "; available = " + total_read_bytes + ".");
         }
         
-        return new NetworkMessage(data);
+        if (checksummed) {
+            int expected = dis.readInt();
+            int actual = checksum(header, data);
+            if (actual != expected) {
+                throw new ChecksumException("Frame of " + length + " bytes", expected, actual);
+            }
+        }
+        
+        return new NetworkMessage(data, compressed, checksummed);
     }
 }
@@ -0,0 +1,102 @@
+package common.messages;
+
+import java.text.ParseException;
+
+/**
+ * Versions and optional features of the client protocol, agreed on in the
+ * handshake which opens a connection.
+ * <p>
+ * The client sends a 'HELLO' message with the highest version it speaks as
+ * the key, and the features it would like to use as the value. The server
+ * answers 'HELLO_SUCCESS' with the version both speak and the features it
+ * grants, which are used in both directions once the reply has been sent.
+ * Servers predating the handshake answer 'PROTOCOL_ERROR'; the connection
+ * then stays at LEGACY_VERSION, without any of the features. Unknown feature
+ * bits are not granted, so that new features can be rolled out one server at
+ * a time.
+ * <p>
+ * The features are sent as a bitmask followed by the compression threshold,
+ * e.g. "3 1024".
+ * @author Danila Klimenko
+ */
+public final class Protocol {
+    /**
+     * Version spoken by peers which do not know the handshake.
+     */
+    public static final int LEGACY_VERSION = 1;
+    
+    /**
+     * Version introducing the handshake.
+     */
+    public static final int VERSION = 2;
+    
+    /**
+     * Frames above the threshold are compressed with FrameCompressor.
+     */
+    public static final int FEATURE_COMPRESSION = 0x1;
+    
+    /**
+     * Frames end with a CRC32C checksum.
+     */
+    public static final int FEATURE_CHECKSUMS = 0x2;
+    
+    /**
+     * Features implemented by this version.
+     */
+    public static final int SUPPORTED_FEATURES = FEATURE_COMPRESSION | FEATURE_CHECKSUMS;
+    
+    private Protocol() {
+    }
+    
+    /**
+     * Builds the value of a handshake message.
+     * @param features The bitmask of features
+     * @param threshold Compression threshold, in bytes
+     * @return The value
+     */
+    public static String formatFeatures(int features, int threshold) {
+        return Integer.toString(features) + " " + Integer.toString(threshold);
+    }
+    
+    /**
+     * Parses the value of a handshake message.
+     * @param value The value
+     * @return The bitmask of features and the compression threshold
+     * @throws ParseException Thrown if the value is malformed, or if the
+     *          threshold is out of range
+     */
+    public static int[] parseFeatures(String value) throws ParseException {
+        String[] fields = (value != null) ? value.split(" ") : new String[0];
+        
+        if (fields.length != 2) {
+            throw new ParseException("Invalid protocol features: '" + value + "'.", 0);
+        }
+        try {
+            int features = Integer.parseInt(fields[0]);
+            int threshold = Integer.parseInt(fields[1]);
+            
+            if (threshold < 0 || threshold > NetworkMessage.MAX_MESSAGE_SIZE) {
+                throw new ParseException("Invalid compression threshold: '" + fields[1] + "'.", 0);
+            }
+            return new int[] { features, threshold };
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid protocol features: '" + value + "'.", 0);
+        }
+    }
+    
+    /**
+     * Parses the version in a handshake message.
+     * @param key The key of the message
+     * @return The version, at least LEGACY_VERSION
+     * @throws ParseException Thrown if the version is malformed
+     */
+    public static int parseVersion(String key) throws ParseException {
+        try {
+            int version = Integer.parseInt(key);
+            if (version >= LEGACY_VERSION) {
+                return version;
+            }
+        } catch (NumberFormatException e) {}
+        throw new ParseException("Invalid protocol version: '" + key + "'.", 0);
+    }
+}
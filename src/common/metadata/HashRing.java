@@ -0,0 +1,221 @@
+package common.metadata;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent-hashing ring describing which server node is
+ * responsible for which keys. Every node is placed on the ring at several
+ * points (virtual nodes); a key belongs to the first point at or after the
+ * hash of the key, wrapping around at the end of the ring.
+ * <p>
+ * Nodes are identified by their "host:port" address. The ring is fully
+ * determined by the node list and the number of virtual nodes, so only those
+ * are exchanged between servers and clients. The version number grows with
+ * every change of the membership, letting the receiver of two rings tell
+ * which one is newer.
+ * @author Danila Klimenko
+ */
+public class HashRing {
+    /**
+     * Default number of points every node occupies on the ring.
+     */
+    public static final int     DEFAULT_VIRTUAL_NODES = 64;
+    
+    // Digests are not thread-safe, and looking one up costs more than hashing a key
+    private static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // MD5 is mandatory on every platform
+            }
+        }
+    };
+    
+    private final long                  version;
+    private final int                   virtual_nodes;
+    private final List<String>          nodes;
+    private final TreeMap<Long, String> ring;
+    
+    /**
+     * Main constructor.
+     * @param version Version of the membership
+     * @param virtualNodes Number of points every node occupies on the ring
+     * @param nodes Addresses of the nodes ("host:port")
+     * @throws IllegalArgumentException Thrown if the node list is empty or
+     *          contains duplicates
+     */
+    public HashRing(long version, int virtualNodes, List<String> nodes)
+            throws IllegalArgumentException {
+        if (nodes.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("A ring needs at least one node and one virtual node.");
+        }
+        
+        this.version = version;
+        this.virtual_nodes = virtualNodes;
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+        this.ring = new TreeMap<Long, String>();
+        
+        for (String node : this.nodes) {
+            if (node.indexOf(',') >= 0 || node.indexOf(' ') >= 0) {
+                throw new IllegalArgumentException("Invalid node address: '" + node + "'.");
+            }
+            for (int i = 0; i < virtualNodes; ++i) {
+                if (this.ring.put(hash(node + "#" + i), node) != null) {
+                    throw new IllegalArgumentException("Duplicate node on the ring: '" + node + "'.");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Getter method for the membership version.
+     * @return The version
+     */
+    public long getVersion() {
+        return this.version;
+    }
+    
+    /**
+     * Getter method for the node list.
+     * @return Unmodifiable list of node addresses
+     */
+    public List<String> getNodes() {
+        return this.nodes;
+    }
+    
+    /**
+     * Returns the node responsible for a key.
+     * @param key The key
+     * @return Address of the node
+     */
+    public String getNode(String key) {
+        return this.getNodeAt(hash(key));
+    }
+    
+    /**
+     * Returns the node responsible for a position on the ring.
+     * @param position The position (a key hash)
+     * @return Address of the node
+     */
+    public String getNodeAt(long position) {
+        Map.Entry<Long, String> point = this.ring.ceilingEntry(position);
+        
+        return (point != null) ? point.getValue() : this.ring.firstEntry().getValue();
+    }
+    
+    /**
+     * Checks whether a node is a member of the ring.
+     * @param node Address of the node
+     * @return True if the node owns a part of the ring
+     */
+    public boolean contains(String node) {
+        return this.nodes.contains(node);
+    }
+    
+    /**
+     * Returns a new ring with one more node and a higher version.
+     * @param node Address of the added node
+     * @return The new ring
+     */
+    public HashRing withNode(String node) {
+        List<String> new_nodes = new ArrayList<String>(this.nodes);
+        new_nodes.add(node);
+        
+        return new HashRing(this.version + 1, this.virtual_nodes, new_nodes);
+    }
+    
+    /**
+     * Returns a new ring without the given node and with a higher version.
+     * @param node Address of the removed node
+     * @return The new ring
+     */
+    public HashRing withoutNode(String node) {
+        List<String> new_nodes = new ArrayList<String>(this.nodes);
+        new_nodes.remove(node);
+        
+        return new HashRing(this.version + 1, this.virtual_nodes, new_nodes);
+    }
+    
+    /**
+     * Returns the ring points of every node, in ring order. A node owns the
+     * hashes from the previous point (exclusive) up to each of its points.
+     * @return Map of ring positions to node addresses
+     */
+    public SortedMap<Long, String> getPoints() {
+        return Collections.unmodifiableSortedMap(this.ring);
+    }
+    
+    /**
+     * Encodes the ring as "version virtual_nodes host:port,host:port,...".
+     * @return The encoded ring
+     */
+    public String serialize() {
+        StringBuilder result = new StringBuilder();
+        
+        result.append(this.version).append(' ').append(this.virtual_nodes).append(' ');
+        for (int i = 0; i < this.nodes.size(); ++i) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(this.nodes.get(i));
+        }
+        
+        return result.toString();
+    }
+    
+    /**
+     * Decodes a ring produced by serialize().
+     * @param encoded The encoded ring
+     * @return The ring
+     * @throws IllegalArgumentException Thrown if the string is malformed
+     */
+    public static HashRing parse(String encoded) throws IllegalArgumentException {
+        String[] fields = (encoded != null) ? encoded.trim().split(" ") : new String[0];
+        
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("Invalid ring metadata: '" + encoded + "'.");
+        }
+        
+        List<String> nodes = new ArrayList<String>();
+        Collections.addAll(nodes, fields[2].split(","));
+        
+        try {
+            return new HashRing(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), nodes);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid ring metadata: '" + encoded + "'.");
+        }
+    }
+    
+    /**
+     * Computes the ring position of a string: the first 8 bytes of its MD5
+     * digest.
+     * @param str The string (a key, or a virtual node name)
+     * @return The ring position
+     */
+    public static long hash(String str) {
+        byte[] digest;
+        
+        try {
+            digest = md5.get().digest(str.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is mandatory on every platform
+        }
+        
+        long position = 0;
+        for (int i = 0; i < 8; ++i) {
+            position = (position << 8) | (digest[i] & 0xFF);
+        }
+        
+        return position;
+    }
+}
@@ -0,0 +1,151 @@
+package common.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds, with logarithmic buckets
+ * (8 per power of two, so any reported value is within 12.5% of the recorded
+ * one). Recording costs one atomic increment, so it can be shared by all
+ * request threads.
+ * <p>
+ * Percentiles over a time interval are obtained by taking two snapshots of the
+ * counts and computing the percentile of their difference.
+ * @author Danila Klimenko
+ */
+public class LatencyHistogram {
+    private static final int    SUB_BUCKET_BITS = 3;
+    private static final int    SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int    BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    
+    private final AtomicLongArray   counts;
+    
+    /**
+     * Main constructor.
+     */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+    }
+    
+    /**
+     * Records a single latency.
+     * @param micros The latency in microseconds (negative values count as 0)
+     */
+    public void record(long micros) {
+        this.counts.incrementAndGet(bucketOf(Math.max(0, micros)));
+    }
+    
+    /**
+     * Returns a snapshot of the bucket counts.
+     * @return Copy of the counts
+     */
+    public long[] getCounts() {
+        long[] snapshot = new long[BUCKETS];
+        
+        for (int i = 0; i < BUCKETS; ++i) {
+            snapshot[i] = this.counts.get(i);
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Returns the number of recorded latencies.
+     * @return The count
+     */
+    public long getCount() {
+        return count(this.getCounts());
+    }
+    
+    /**
+     * Returns a percentile of all recorded latencies.
+     * @param percentile The percentile, between 0 and 100
+     * @return The latency in microseconds, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        return percentile(this.getCounts(), percentile);
+    }
+    
+    /**
+     * Discards all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            this.counts.set(i, 0);
+        }
+    }
+    
+    /**
+     * Computes the counts recorded between two snapshots.
+     * @param later The later snapshot
+     * @param earlier The earlier snapshot
+     * @return The difference of the counts
+     */
+    public static long[] difference(long[] later, long[] earlier) {
+        long[] result = new long[BUCKETS];
+        
+        for (int i = 0; i < BUCKETS; ++i) {
+            result[i] = later[i] - earlier[i];
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the number of latencies in a snapshot.
+     * @param counts The snapshot
+     * @return The count
+     */
+    public static long count(long[] counts) {
+        long total = 0;
+        
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+    
+    /**
+     * Computes a percentile of a snapshot.
+     * @param counts The snapshot
+     * @param percentile The percentile, between 0 and 100
+     * @return The upper bound of the bucket holding the percentile, in
+     *          microseconds, or 0 if the snapshot is empty
+     */
+    public static long percentile(long[] counts, double percentile) {
+        long total = count(counts);
+        if (total == 0) {
+            return 0;
+        }
+        
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+    
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub_bucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub_bucket;
+    }
+    
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        
+        int     exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long    lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -28,6 +28,23 @@ public class AllTests {
 		clientSuite.addTestSuite(ConnectionTest.class);
 		clientSuite.addTestSuite(InteractionTest.class); 
 		clientSuite.addTestSuite(AdditionalTest.class); 
+		clientSuite.addTestSuite(TransactionTest.class);
+		clientSuite.addTestSuite(ChangeCaptureTest.class);
+		clientSuite.addTestSuite(WatchTest.class);
+		clientSuite.addTestSuite(ReplicationTest.class);
+		clientSuite.addTestSuite(PartitionTest.class);
+		clientSuite.addTestSuite(RebalanceTest.class);
+		clientSuite.addTestSuite(LoadGeneratorTest.class);
+		clientSuite.addTestSuite(StressTest.class);
+		clientSuite.addTestSuite(SlowRequestTest.class);
+		clientSuite.addTestSuite(ThrottlingTest.class);
+		clientSuite.addTestSuite(DeadlineTest.class);
+		clientSuite.addTestSuite(CompressionTest.class);
+		clientSuite.addTestSuite(DedupTest.class);
+		clientSuite.addTestSuite(ResponseCacheTest.class);
+		clientSuite.addTestSuite(MessageSliceTest.class);
+		clientSuite.addTestSuite(ChecksumTest.class);
+		clientSuite.addTestSuite(ProtocolTest.class);
 		return clientSuite;
 	}
 	
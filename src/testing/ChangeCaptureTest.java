@@ -0,0 +1,128 @@
+package testing;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.ChangeLog;
+import app_kvServer.ChangeLogTruncatedException;
+import app_kvServer.KVDataStorage;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageBatch.Entry;
+
+
+public class ChangeCaptureTest extends TestCase {
+
+	private KVStore kvClient;
+	
+	public void setUp() {
+		kvClient = new KVStore("localhost", 50000);
+		try {
+			kvClient.connect();
+		} catch (Exception e) {
+		}
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+	}
+	
+	
+	@Test
+	public void testChangesInOrder() {
+		KVMessage start = null;
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			start = kvClient.fetchChanges(-1);
+			kvClient.put("cdcKey", "first");
+			kvClient.put("cdcKey", "second");
+			kvClient.put("cdcKey", null);
+			response = kvClient.fetchChanges(Long.parseLong(start.getValue()));
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.CDC_BATCH);
+		
+		List<Entry> changes = ((KVMessageBatch) response).getEntries();
+		assertEquals(3, changes.size());
+		assertEquals("first", changes.get(0).value);
+		assertEquals("second", changes.get(1).value);
+		assertNull(changes.get(2).value);
+		assertTrue(changes.get(0).version < changes.get(1).version
+				&& changes.get(1).version < changes.get(2).version);
+		assertEquals(Long.toString(changes.get(2).version), response.getValue());
+	}
+	
+	@Test
+	public void testTransactionSharesSequence() {
+		KVMessage start = null;
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			start = kvClient.fetchChanges(-1);
+			kvClient.transaction(Arrays.asList(
+					Entry.put("cdcTxA", "a"), Entry.put("cdcTxB", "b")));
+			response = kvClient.fetchChanges(Long.parseLong(start.getValue()));
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.CDC_BATCH);
+		
+		List<Entry> changes = ((KVMessageBatch) response).getEntries();
+		assertEquals(2, changes.size());
+		assertEquals(changes.get(0).version, changes.get(1).version);
+	}
+	
+	@Test
+	public void testEmptyBatchAtTail() {
+		KVMessage start = null;
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			start = kvClient.fetchChanges(-1);
+			response = kvClient.fetchChanges(Long.parseLong(start.getValue()));
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.CDC_BATCH
+				&& ((KVMessageBatch) response).getEntries().isEmpty()
+				&& response.getValue().equals(start.getValue()));
+	}
+
+	@Test
+	public void testLogBoundedBySize() throws Exception {
+		// Room for 1024 commits, but only for about three of the values
+		KVDataStorage storage = new KVDataStorage(1024, 100000);
+		try {
+			for (int i = 0; i < 10; ++i) {
+				storage.put("cdcLarge", TestData.blob(30000, i));
+			}
+			ChangeLog log = storage.getChangeLog();
+			try {
+				log.read(0, Integer.MAX_VALUE, 0);
+				fail("Old changes were retained.");
+			} catch (ChangeLogTruncatedException e) {
+				assertTrue(e.getOldestAvailable() > 5);
+			}
+
+			List<Entry> changes = log.read(7, Integer.MAX_VALUE, 0);
+			assertEquals(3, changes.size());
+			assertEquals(TestData.blob(30000, 9), changes.get(2).value);
+		} finally {
+			storage.shutDown();
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Level;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import common.messages.KVMessage.StatusType;
+import common.messages.NetworkMessage;
+import logger.LogSetup;
+
+
+/**
+ * Measures the cost of frame checksums: first the throughput of writing and
+ * reading frames of several sizes in memory, then the rate of requests to a
+ * server over loopback, each with and without checksums.
+ * Usage: ChecksumBenchmark [requests [value size]]
+ */
+public class ChecksumBenchmark {
+
+	private static final int[] FRAME_SIZES = { 1024, 16 * 1024, 120 * 1024 };
+	private static final long FRAME_BYTES = 2L * 1024 * 1024 * 1024; // Per measurement
+	private static final int KEYS = 32;
+	private static final int WARMUP = 2000;
+
+	public static void main(String[] args) throws Exception {
+		int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int size = (args.length > 1) ? Integer.parseInt(args[1]) : 16 * 1024;
+
+		try {
+			LogSetup.initialize("logs/testing/benchmark.log", Level.WARN);
+		} catch (IOException e) {
+			System.out.println("Error! Unable to initialize logger: " + e.getMessage());
+			System.exit(1);
+		}
+
+		for (int frameSize : FRAME_SIZES) {
+			byte[] data = TestData.blob(frameSize, 1).getBytes();
+			frames(data, false); // Warm-up
+			frames(data, true);
+			System.out.println(String.format("%6d byte frames  %8.1f MB/s plain  %8.1f MB/s checksummed",
+					frameSize, frames(data, false), frames(data, true)));
+		}
+
+		String[] values = new String[KEYS];
+		for (int i = 0; i < KEYS; ++i) {
+			values[i] = TestData.blob(size, i);
+		}
+		run("plain", false, requests, values);
+		run("checksummed", true, requests, values);
+		System.exit(0);
+	}
+
+	/**
+	 * Writes and reads back frames of the given contents.
+	 * @return Throughput in MB/s
+	 */
+	private static double frames(byte[] data, boolean checksummed) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(data.length + 8);
+		long count = FRAME_BYTES / data.length;
+		long start = System.nanoTime();
+
+		for (long i = 0; i < count; ++i) {
+			output.reset();
+			new NetworkMessage(data, false, checksummed).writeTo(output);
+			NetworkMessage.readFrom(new ByteArrayInputStream(output.toByteArray()));
+		}
+
+		return count * data.length / 1e6 / ((System.nanoTime() - start) / 1e9);
+	}
+
+	private static void run(String mode, boolean checksummed, int requests, String[] values) throws Exception {
+		KVServer server = new KVServer(0);
+		new Thread(server).start();
+
+		KVStore kvStore = new KVStore("localhost", server.getPort());
+		kvStore.setChecksums(checksummed);
+		kvStore.connect();
+
+		try {
+			execute(kvStore, WARMUP, values);
+
+			long start = System.nanoTime();
+			execute(kvStore, requests, values);
+			long elapsed = System.nanoTime() - start;
+
+			System.out.println(String.format("%-12s %8d requests  %8.1f requests/s", mode, requests,
+					requests / (elapsed / 1e9)));
+		} finally {
+			kvStore.disconnect();
+			server.shutDown();
+		}
+	}
+
+	/**
+	 * Alternates 'put' and 'get' requests over the values.
+	 */
+	private static void execute(KVStore kvStore, int requests, String[] values) throws Exception {
+		for (int i = 0; i < requests; ++i) {
+			StatusType status;
+			if (i % 2 == 0) {
+				status = kvStore.put("key" + (i / 2 % KEYS), values[(i / 2 + i / 64) % KEYS]).getStatus();
+			} else {
+				status = kvStore.get("key" + (i / 2 % KEYS)).getStatus();
+			}
+
+			if (status != StatusType.GET_SUCCESS && status != StatusType.PUT_SUCCESS
+					&& status != StatusType.PUT_UPDATE) {
+				throw new IOException("Request failed with " + status + ".");
+			}
+		}
+	}
+}
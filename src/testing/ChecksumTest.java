@@ -0,0 +1,265 @@
+package testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import app_kvServer.RaftLog;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.ChecksumException;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+
+
+public class ChecksumTest extends TestCase {
+
+	private KVServer server;
+	private File directory;
+
+	public void setUp() throws Exception {
+		server = new KVServer(0);
+		new Thread(server).start();
+
+		directory = File.createTempFile("raftlog", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	public void tearDown() {
+		server.shutDown();
+		RaftCluster.deleteRecursively(directory);
+	}
+
+	private static byte[] frame(NetworkMessage netmsg) throws IOException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		netmsg.writeTo(frame);
+		return frame.toByteArray();
+	}
+
+	private static byte[] request(StatusType type, String key, String value) throws IOException {
+		return frame(new NetworkMessage(KVMessageRaw.marshal(new KVMessageRaw(type, key, value))).withChecksum());
+	}
+
+
+	@Test
+	public void testFrameRoundTrip() throws Exception {
+		byte[] data = TestData.blob(5000, 1).getBytes();
+		byte[] frame = frame(new NetworkMessage(data, true).withChecksum());
+
+		NetworkMessage netmsg = NetworkMessage.readFrom(new ByteArrayInputStream(frame));
+		assertTrue(netmsg.hasChecksum() && netmsg.isCompressed());
+		assertEquals(frame.length, netmsg.getFrameSize());
+		assertTrue(Arrays.equals(data, netmsg.getData()));
+
+		// Frames without a checksum stay as they were
+		assertEquals(4 + data.length, frame(new NetworkMessage(data)).length);
+	}
+
+	@Test
+	public void testCorruptFrameDetected() throws Exception {
+		byte[] frame = frame(new NetworkMessage(TestData.blob(5000, 2).getBytes()).withChecksum());
+
+		for (int position : new int[] { 0, 100, frame.length - 1 }) {
+			byte[] corrupt = frame.clone();
+			corrupt[position] ^= (position == 0) ? 0x80 : 0x01; // The compression flag, or a data bit
+			try {
+				NetworkMessage.readFrom(new ByteArrayInputStream(corrupt));
+				fail("Corruption at " + position + " was not detected.");
+			} catch (ChecksumException e) {
+				assertTrue(e.getExpected() != e.getActual());
+			}
+		}
+	}
+
+	@Test
+	public void testServerMirrorsChecksums() throws Exception {
+		KVStore kvClient = new KVStore("localhost", server.getPort());
+		kvClient.setChecksums(true);
+		kvClient.connect();
+		try {
+			assertEquals(StatusType.PUT_SUCCESS, kvClient.put("key", "value").getStatus());
+			assertEquals("value", kvClient.get("key").getValue());
+		} finally {
+			kvClient.disconnect();
+		}
+
+		Socket socket = new Socket("localhost", server.getPort());
+		try {
+			socket.getOutputStream().write(request(StatusType.GET, "key", null));
+			NetworkMessage reply = NetworkMessage.readFrom(socket.getInputStream());
+			assertTrue(reply.hasChecksum());
+			assertEquals("value", KVMessageRaw.unmarshal(reply.getData()).getValue());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testServerClosesOnCorruptFrame() throws Exception {
+		byte[] corrupt = request(StatusType.PUT, "key", "value");
+		corrupt[10] ^= 0x01;
+
+		Socket socket = new Socket("localhost", server.getPort());
+		try {
+			socket.getOutputStream().write(corrupt);
+			InputStream input = socket.getInputStream();
+			assertEquals(-1, input.read());
+		} finally {
+			socket.close();
+		}
+		assertEquals(1, server.getCorruptFrames());
+		assertNull(server.getDataStorage().get("key"));
+	}
+
+	@Test
+	public void testUncheckedFrameRejected() throws Exception {
+		byte[] plain = frame(new NetworkMessage(KVMessageRaw.marshal(new KVMessageRaw(StatusType.PUT, "other", "value"))));
+		try {
+			NetworkMessage.readFrom(new ByteArrayInputStream(plain), true);
+			fail("A frame without checksum was accepted.");
+		} catch (ChecksumException e) {
+		}
+
+		// Once the client sent checksums, frames without them are corrupt
+		Socket socket = new Socket("localhost", server.getPort());
+		try {
+			socket.getOutputStream().write(request(StatusType.PUT, "key", "value"));
+			NetworkMessage reply = NetworkMessage.readFrom(socket.getInputStream());
+			assertEquals(StatusType.PUT_SUCCESS, KVMessageRaw.unmarshal(reply.getData()).getStatus());
+
+			socket.getOutputStream().write(plain);
+			assertEquals(-1, socket.getInputStream().read());
+		} finally {
+			socket.close();
+		}
+		assertEquals(1, server.getCorruptFrames());
+		assertNull(server.getDataStorage().get("other"));
+	}
+
+	@Test
+	public void testRaftLogChecksums() throws Exception {
+		RaftLog log = new RaftLog(directory);
+		log.saveState(3, "localhost:50000");
+		for (int i = 1; i <= 3; ++i) {
+			log.append(3, "key" + i, "value" + i);
+		}
+		log.close();
+
+		log = new RaftLog(directory);
+		assertEquals(3, log.getLastIndex());
+		assertEquals("value2", log.get(2).value);
+		assertEquals("localhost:50000", log.getVotedFor());
+		log.close();
+
+		// A corrupt record followed by others is reported
+		File file = new File(directory, "raft.log");
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		long length = raw.length();
+		raw.seek(length / 2);
+		int b = raw.read();
+		raw.seek(length / 2);
+		raw.write(b ^ 0x01);
+		raw.close();
+		try {
+			new RaftLog(directory).close();
+			fail("Corruption was not detected.");
+		} catch (ChecksumException e) {
+		}
+	}
+
+	@Test
+	public void testRaftLogCorruptHeader() throws Exception {
+		RaftLog log = new RaftLog(directory);
+		log.saveState(2, "localhost:50000");
+		log.append(2, "key", "value");
+		log.close();
+
+		// A corrupt header does not turn the log into a legacy one
+		File file = new File(directory, "raft.log");
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		int b = raw.read();
+		raw.seek(0);
+		raw.write(b ^ 0x40);
+		raw.close();
+		try {
+			new RaftLog(directory).close();
+			fail("Corrupt header was not detected.");
+		} catch (IOException e) {
+		}
+		raw = new RandomAccessFile(file, "rw");
+		raw.write(b);
+		raw.close();
+
+		// Neither does the state file of a checksummed log lose its checksum
+		raw = new RandomAccessFile(new File(directory, "raft.state"), "rw");
+		raw.setLength(raw.length() - 4);
+		raw.close();
+		try {
+			new RaftLog(directory).close();
+			fail("Missing state checksum was not detected.");
+		} catch (ChecksumException e) {
+		}
+		// The log was not cut off either
+		assertEquals(4 + 4 + 8 + 4 + 3 + 4 + 5 + 4, file.length());
+	}
+
+	@Test
+	public void testRaftLogTornRecordCutOff() throws Exception {
+		RaftLog log = new RaftLog(directory);
+		for (int i = 1; i <= 3; ++i) {
+			log.append(1, "key" + i, "value" + i);
+		}
+		log.close();
+
+		RandomAccessFile raw = new RandomAccessFile(new File(directory, "raft.log"), "rw");
+		raw.seek(raw.length() - 2);
+		raw.write(0xFF);
+		raw.close();
+
+		log = new RaftLog(directory);
+		assertEquals(2, log.getLastIndex());
+		log.append(1, "key3", "again");
+		log.close();
+
+		log = new RaftLog(directory);
+		assertEquals("again", log.get(3).value);
+		log.close();
+	}
+
+	@Test
+	public void testLegacyRaftLog() throws Exception {
+		// A record without checksum: length, term, key, value
+		DataOutputStream data = new DataOutputStream(new FileOutputStream(new File(directory, "raft.log")));
+		data.writeInt(8 + 4 + 3 + 4 + 5);
+		data.writeLong(2);
+		data.writeInt(3);
+		data.write("key".getBytes());
+		data.writeInt(5);
+		data.write("value".getBytes());
+		data.close();
+
+		RaftLog log = new RaftLog(directory);
+		assertEquals(1, log.getLastIndex());
+		log.append(2, "next", "entry");
+		log.close();
+
+		log = new RaftLog(directory);
+		assertEquals(2, log.getLastIndex());
+		assertEquals("value", log.get(1).value);
+		assertEquals("entry", log.get(2).value);
+		log.close();
+	}
+}
@@ -0,0 +1,111 @@
+package testing;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+
+import org.apache.log4j.Level;
+
+import app_kvServer.ClientStatistics;
+import app_kvServer.KVServer;
+import client.KVStore;
+import common.messages.FrameCompressor;
+import common.messages.KVMessage.StatusType;
+import logger.LogSetup;
+
+
+/**
+ * Writes and reads JSON documents of about 100 KB, with and without frame
+ * compression, and with compressed storage, and reports the bytes on the wire
+ * and the CPU time (of client and server together) per request, as well as the
+ * space taken by the stored values.
+ * Usage: CompressionBenchmark [requests [document size]]
+ */
+public class CompressionBenchmark {
+
+	private static final int KEYS = 32;
+	private static final int WARMUP = 200;
+
+	public static void main(String[] args) throws Exception {
+		int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		int size = (args.length > 1) ? Integer.parseInt(args[1]) : 100 * 1024;
+
+		try {
+			LogSetup.initialize("logs/testing/benchmark.log", Level.WARN);
+		} catch (IOException e) {
+			System.out.println("Error! Unable to initialize logger: " + e.getMessage());
+			System.exit(1);
+		}
+
+		String[] documents = new String[KEYS];
+		for (int i = 0; i < KEYS; ++i) {
+			documents[i] = CompressionTest.document(size + i);
+		}
+
+		run("uncompressed", -1, -1, requests, documents);
+		run("deflate", FrameCompressor.DEFAULT_THRESHOLD, -1, requests, documents);
+		run("deflate+store", FrameCompressor.DEFAULT_THRESHOLD, FrameCompressor.DEFAULT_THRESHOLD,
+				requests, documents);
+		System.exit(0);
+	}
+
+	private static void run(String mode, int threshold, int storageThreshold, int requests,
+			String[] documents) throws Exception {
+		KVServer server = new KVServer(0);
+		server.getDataStorage().setCompressionThreshold(storageThreshold);
+		new Thread(server).start();
+
+		KVStore kvStore = new KVStore("localhost", server.getPort());
+		kvStore.setCompression(threshold);
+		kvStore.connect();
+
+		try {
+			execute(kvStore, WARMUP, documents);
+
+			ClientStatistics statistics = server.getAddressStatistics(InetAddress.getByName("127.0.0.1"));
+			long bytes = statistics.getBytesIn() + statistics.getBytesOut();
+			long cpu = processCpuTime();
+			long start = System.nanoTime();
+
+			execute(kvStore, requests, documents);
+
+			long elapsed = System.nanoTime() - start;
+			cpu = processCpuTime() - cpu;
+			bytes = statistics.getBytesIn() + statistics.getBytesOut() - bytes;
+
+			System.out.println(String.format("%-14s %8d requests  %9d bytes/request  %7.1f us CPU/request" +
+					"  %8.1f requests/s", mode, requests, bytes / requests, cpu / 1e3 / requests,
+					requests / (elapsed / 1e9)));
+			if (storageThreshold >= 0) {
+				System.out.println(server.getDataStorage().getStorageReport());
+			}
+		} finally {
+			kvStore.disconnect();
+			server.shutDown();
+		}
+	}
+
+	/**
+	 * Alternates 'put' and 'get' requests over the documents.
+	 */
+	private static void execute(KVStore kvStore, int requests, String[] documents) throws Exception {
+		for (int i = 0; i < requests; ++i) {
+			StatusType status;
+			if (i % 2 == 0) {
+				status = kvStore.put("doc" + (i / 2 % KEYS), documents[(i / 2 + i / 64) % KEYS]).getStatus();
+			} else {
+				status = kvStore.get("doc" + (i / 2 % KEYS)).getStatus();
+			}
+
+			if (status != StatusType.GET_SUCCESS && status != StatusType.PUT_SUCCESS
+					&& status != StatusType.PUT_UPDATE) {
+				throw new IOException("Request failed with " + status + ".");
+			}
+		}
+	}
+
+	private static long processCpuTime() {
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+				.getProcessCpuTime();
+	}
+}
@@ -0,0 +1,200 @@
+package testing;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import app_kvServer.ClientStatistics;
+import app_kvServer.KVServer;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.CompressedValue;
+import common.messages.FrameCompressor;
+import common.messages.KVMessage;
+import common.messages.KVMessageCompressed;
+import common.messages.KVMessageRaw;
+import common.messages.KVMessage.StatusType;
+import common.messages.NetworkMessage;
+
+
+public class CompressionTest extends TestCase {
+
+	private KVServer server;
+	private KVStore kvClient;
+
+	public void setUp() throws Exception {
+		server = new KVServer(0);
+		new Thread(server).start();
+		kvClient = new KVStore("localhost", server.getPort());
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+		server.shutDown();
+	}
+
+	/**
+	 * Builds a JSON document of about the given size.
+	 */
+	static String document(int size) {
+		StringBuilder json = new StringBuilder("[");
+
+		for (int i = 0; json.length() < size - 100; ++i) {
+			json.append("{\"id\":").append(i).append(",\"name\":\"user-").append(i)
+				.append("\",\"tags\":[\"default\",\"config\"],\"active\":").append(i % 3 == 0).append("},");
+		}
+		json.setCharAt(json.length() - 1, ']');
+		return json.toString();
+	}
+
+	/**
+	 * Waits until the server recorded the given number of requests from the
+	 * local address, as they are recorded after the reply was written.
+	 */
+	private ClientStatistics awaitRequests(long requests) throws Exception {
+		ClientStatistics statistics = server.getAddressStatistics(InetAddress.getByName("127.0.0.1"));
+
+		for (int i = 0; i < 100 && statistics.getRequests() < requests; ++i) {
+			Thread.sleep(10);
+		}
+		return statistics;
+	}
+
+
+	@Test
+	public void testCompressedRoundTrip() {
+		String value = document(100 * 1024);
+		KVMessage put = null;
+		KVMessage get = null;
+		ClientStatistics statistics = null;
+		Exception ex = null;
+
+		try {
+			kvClient.setCompression(FrameCompressor.DEFAULT_THRESHOLD);
+			kvClient.connect();
+			put = kvClient.put("doc", value);
+			get = kvClient.get("doc");
+			// Handshake, metadata, put and get
+			statistics = awaitRequests(4);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && kvClient.isCompressed());
+		assertEquals(StatusType.PUT_SUCCESS, put.getStatus());
+		assertTrue(get.getStatus() == StatusType.GET_SUCCESS && get.getValue().equals(value));
+
+		// The value crossed the wire in both directions, in compressed form
+		assertTrue(statistics.getBytesIn() < value.length() / 2);
+		assertTrue(statistics.getBytesOut() < value.length() / 2);
+	}
+
+	@Test
+	public void testUncompressedByDefault() {
+		String value = document(10 * 1024);
+		KVMessage get = null;
+		ClientStatistics statistics = null;
+		Exception ex = null;
+
+		try {
+			kvClient.connect();
+			kvClient.put("doc", value);
+			get = kvClient.get("doc");
+			statistics = awaitRequests(3);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && !kvClient.isCompressed());
+		assertTrue(get.getStatus() == StatusType.GET_SUCCESS && get.getValue().equals(value));
+		assertTrue(statistics.getBytesIn() > value.length() && statistics.getBytesOut() > value.length());
+	}
+
+	@Test
+	public void testCompressedStorage() {
+		String value = document(100 * 1024);
+		KVMessage plain = null;
+		KVMessage direct = null;
+		KVMessage deleted = null;
+		ClientStatistics statistics = null;
+		String report = null;
+		Exception ex = null;
+
+		try {
+			server.getDataStorage().setCompressionThreshold(FrameCompressor.DEFAULT_THRESHOLD);
+			KVStore plainClient = new KVStore("localhost", server.getPort());
+			plainClient.connect();
+			try {
+				plainClient.put("doc", value);
+				plainClient.put("small", "value");
+				plain = plainClient.get("doc");
+			} finally {
+				plainClient.disconnect();
+			}
+			report = server.getDataStorage().getStorageReport();
+
+			// The stored compressed value is sent as it is
+			kvClient.setCompression(FrameCompressor.DEFAULT_THRESHOLD);
+			kvClient.connect();
+			direct = kvClient.get("doc");
+			statistics = awaitRequests(6);
+			deleted = kvClient.put("doc", null);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertTrue(plain.getStatus() == StatusType.GET_SUCCESS && plain.getValue().equals(value));
+		assertTrue(direct.getStatus() == StatusType.GET_SUCCESS && direct.getValue().equals(value));
+		assertTrue(deleted.getStatus() == StatusType.DELETE_SUCCESS && deleted.getValue().equals(value));
+		assertTrue(report, report.contains("Values: 2, shared: 0, distinct: 2, compressed: 1"));
+		assertTrue(statistics.getBytesOut() < 2 * value.length() + value.length() / 4);
+	}
+
+	@Test
+	public void testFrameCompressor() {
+		FrameCompressor compressor = new FrameCompressor(64);
+		byte[] small = "small".getBytes();
+		byte[] text = document(8 * 1024).getBytes();
+		byte[] random = new byte[8 * 1024];
+		new Random(42).nextBytes(random);
+		Exception ex = null;
+
+		try {
+			assertFalse(compressor.compress(small).isCompressed());
+			assertFalse(compressor.compress(random).isCompressed());
+
+			NetworkMessage frame = compressor.compress(text);
+			assertTrue(frame.isCompressed() && frame.getData().length < text.length / 2);
+			// The state is reused for the next frame
+			assertTrue(Arrays.equals(text, compressor.decompress(frame)));
+			assertTrue(Arrays.equals(text, compressor.decompress(compressor.compress(text))));
+
+			// A compressed value is spliced into the frame
+			String document = new String(text);
+			KVMessage reply = new KVMessageCompressed(StatusType.GET_SUCCESS, "doc",
+					CompressedValue.compress(document));
+			KVMessage decoded = KVMessageRaw.unmarshal(compressor.decompress(compressor.compress(reply)));
+			assertTrue(decoded.getStatus() == StatusType.GET_SUCCESS && decoded.getKey().equals("doc")
+					&& decoded.getValue().equals(document));
+
+			byte[] corrupt = frame.getData().clone();
+			corrupt[corrupt.length / 2] ^= 0x55;
+			corrupt[corrupt.length / 2 + 1] ^= 0x55;
+			try {
+				compressor.decompress(new NetworkMessage(corrupt, true));
+				fail("Corrupt frame was accepted.");
+			} catch (IOException e) {
+			}
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			compressor.end();
+		}
+
+		assertNull(ex);
+	}
+}
@@ -0,0 +1,135 @@
+package testing;
+
+import java.io.BufferedInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import app_kvServer.RequestScheduler;
+import app_kvServer.RequestScheduler.Lane;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+
+
+public class DeadlineTest extends TestCase {
+
+	private KVServer server;
+	private KVStore kvClient;
+
+	public void setUp() throws Exception {
+		server = new KVServer(0);
+		new Thread(server).start();
+		server.getScheduler().setSlots(1);
+		kvClient = new KVStore("localhost", server.getPort());
+		kvClient.connect();
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+		server.shutDown();
+	}
+
+	/**
+	 * Waits until the server counted the given number of expired requests.
+	 */
+	private boolean awaitExpired(long expected) throws InterruptedException {
+		for (int i = 0; i < 100 && server.getExpiredRequests() < expected; ++i) {
+			Thread.sleep(20);
+		}
+		return server.getExpiredRequests() == expected;
+	}
+
+
+	@Test
+	public void testGenerousTimeout() {
+		KVMessage put = null;
+		KVMessage get = null;
+		Exception ex = null;
+
+		try {
+			put = kvClient.put("key", "value", 5000);
+			get = kvClient.get("key", 5000);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && put.getStatus() == StatusType.PUT_SUCCESS
+				&& get.getStatus() == StatusType.GET_SUCCESS && get.getValue().equals("value"));
+		assertEquals(0, server.getExpiredRequests());
+	}
+
+	@Test
+	public void testClientGivesUp() {
+		RequestScheduler scheduler = server.getScheduler();
+		Lane lane = scheduler.acquire("busy", Lane.SMALL_READ, 100);
+		Exception timeout = null;
+		KVMessage get = null;
+		boolean expired = false;
+		Exception ex = null;
+
+		try {
+			try {
+				kvClient.put("late", "value", 200);
+			} catch (SocketTimeoutException e) {
+				timeout = e;
+			}
+			scheduler.release(lane);
+			lane = null;
+
+			// The server dropped the put once it got to it
+			expired = awaitExpired(1);
+			get = kvClient.get("late", 5000);
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			if (lane != null) {
+				scheduler.release(lane);
+			}
+		}
+
+		assertTrue(ex == null && timeout != null && expired);
+		assertEquals(StatusType.GET_ERROR, get.getStatus());
+	}
+
+	@Test
+	public void testDeadlineExceededReply() {
+		RequestScheduler scheduler = server.getScheduler();
+		Lane lane = scheduler.acquire("busy", Lane.SMALL_READ, 100);
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			// A client which keeps waiting learns that its request expired
+			Socket socket = new Socket("localhost", server.getPort());
+			try {
+				KVMessageRaw request = new KVMessageRaw(StatusType.PUT, "late", "value");
+				request.setTimeout(100);
+				new NetworkMessage(KVMessageRaw.marshal(request)).writeTo(socket.getOutputStream());
+
+				Thread.sleep(300);
+				scheduler.release(lane);
+				lane = null;
+
+				NetworkMessage reply = NetworkMessage.readFrom(new BufferedInputStream(socket.getInputStream()));
+				response = KVMessageRaw.unmarshal(reply.getData());
+			} finally {
+				socket.close();
+			}
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			if (lane != null) {
+				scheduler.release(lane);
+			}
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.DEADLINE_EXCEEDED);
+		assertEquals(1, server.getExpiredRequests());
+	}
+}
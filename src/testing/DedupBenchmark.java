@@ -0,0 +1,71 @@
+package testing;
+
+import java.util.Random;
+
+import app_kvLoad.ZipfianGenerator;
+import app_kvServer.KVDataStorage;
+
+
+/**
+ * Loads a synthetic dataset with many duplicate values into the storage, with
+ * and without deduplication and compression, and reports the space taken by
+ * the values, the heap used and the time per 'put'.
+ * Usage: DedupBenchmark [keys [distinct values [value size [unique %]]]]
+ */
+public class DedupBenchmark {
+
+	// The change log keeps the values of recent writes as they were written
+	private static final int CHANGE_LOG_CAPACITY = 16;
+
+	public static void main(String[] args) throws Exception {
+		int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int distinct = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+		int size = (args.length > 2) ? Integer.parseInt(args[2]) : 4096;
+		int unique = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+
+		System.out.println(keys + " keys, " + distinct + " shared values (Zipfian), " + unique
+				+ "% unique values, " + size + " characters each");
+		run("plain", false, -1, keys, distinct, size, unique);
+		run("dedup", true, -1, keys, distinct, size, unique);
+		run("dedup+compress", true, 1024, keys, distinct, size, unique);
+	}
+
+	private static void run(String mode, boolean deduplicated, int compression, int keys, int distinct,
+			int size, int unique) throws Exception {
+		Random random = new Random(42);
+		ZipfianGenerator popularity = new ZipfianGenerator(distinct, ZipfianGenerator.DEFAULT_THETA, true);
+		String[] shared = new String[distinct];
+		for (int i = 0; i < distinct; ++i) {
+			shared[i] = TestData.blob(size, i);
+		}
+
+		long heap = usedHeap();
+		KVDataStorage storage = new KVDataStorage(CHANGE_LOG_CAPACITY);
+		storage.setDeduplication(deduplicated);
+		storage.setCompressionThreshold(compression);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < keys; ++i) {
+			String value = (random.nextInt(100) < unique) ? TestData.blob(size, distinct + i)
+					: new String(shared[(int) popularity.next(random)].toCharArray());
+			storage.put("key" + i, value);
+		}
+		long elapsed = System.nanoTime() - start;
+		heap = usedHeap() - heap;
+
+		System.out.println(mode + ": " + String.format("%.1f us/put, heap %.1f MB", elapsed / 1e3 / keys,
+				heap / 1048576.0));
+		System.out.println("    " + storage.getStorageReport().replace("\n", "\n    "));
+		storage.shutDown();
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,165 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.KVDataStorage;
+import app_kvServer.KVServer;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+
+public class DedupTest extends TestCase {
+
+	private KVServer server;
+	private KVStore kvClient;
+
+	public void setUp() throws Exception {
+		server = new KVServer(0);
+		server.getDataStorage().setDeduplication(true);
+		new Thread(server).start();
+		kvClient = new KVStore("localhost", server.getPort());
+		kvClient.connect();
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+		server.shutDown();
+	}
+
+	/**
+	 * Waits until the garbage collector dropped the old versions, so that the
+	 * pool holds the given number of values.
+	 */
+	private boolean awaitShared(int expected) throws InterruptedException {
+		KVDataStorage storage = server.getDataStorage();
+
+		for (int i = 0; i < 100 && storage.getSharedValueCount() != expected; ++i) {
+			Thread.sleep(50);
+		}
+		return storage.getSharedValueCount() == expected;
+	}
+
+
+	@Test
+	public void testIdenticalValuesShared() {
+		String common = TestData.blob(4096, 1);
+		String unique = TestData.blob(4096, 2);
+		KVMessage get = null;
+		String report = null;
+		Exception ex = null;
+
+		try {
+			for (int i = 0; i < 10; ++i) {
+				kvClient.put("key" + i, common);
+			}
+			kvClient.put("unique", unique);
+			kvClient.put("small", "value");
+			get = kvClient.get("key7");
+			report = server.getDataStorage().getStorageReport();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && get.getValue().equals(common));
+		assertTrue(report, report.contains("Values: 12, shared: 11, distinct: 3"));
+		assertEquals(2, server.getDataStorage().getSharedValueCount());
+	}
+
+	@Test
+	public void testReferencesReleased() {
+		String first = TestData.blob(1024, 1);
+		String second = TestData.blob(1024, 2);
+		boolean replaced = false;
+		boolean released = false;
+		KVMessage get = null;
+		Exception ex = null;
+
+		try {
+			for (int i = 0; i < 10; ++i) {
+				kvClient.put("key" + i, first);
+			}
+			for (int i = 0; i < 10; ++i) {
+				kvClient.put("key" + i, second);
+			}
+			replaced = awaitShared(1);
+			get = kvClient.get("key3");
+
+			for (int i = 0; i < 10; ++i) {
+				kvClient.put("key" + i, null);
+			}
+			released = awaitShared(0);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && replaced && released);
+		assertEquals(second, get.getValue());
+	}
+
+	@Test
+	public void testConcurrentUpdates() {
+		final String[] values = { TestData.blob(2048, 1), TestData.blob(2048, 2), TestData.blob(2048, 3) };
+		final List<String> errors = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		boolean released = false;
+		Exception ex = null;
+
+		try {
+			for (int t = 0; t < 4; ++t) {
+				final int client = t;
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						KVStore store = new KVStore("localhost", server.getPort());
+						try {
+							store.connect();
+							for (int i = 0; i < 200; ++i) {
+								String key = "key" + (i % 8);
+								if (i % 5 == 4) {
+									store.put(key, null);
+								} else {
+									store.put(key, values[(i + client) % values.length]);
+								}
+								KVMessage get = store.get("key" + ((i + 3) % 8));
+								if (get.getStatus() == StatusType.GET_SUCCESS
+										&& !get.getValue().equals(values[0])
+										&& !get.getValue().equals(values[1])
+										&& !get.getValue().equals(values[2])) {
+									synchronized (errors) {
+										errors.add("Corrupt value of " + get.getKey());
+									}
+								}
+							}
+						} catch (Exception e) {
+							synchronized (errors) {
+								errors.add(e.getMessage());
+							}
+						} finally {
+							store.disconnect();
+						}
+					}
+				});
+				thread.start();
+				threads.add(thread);
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+
+			for (int i = 0; i < 8; ++i) {
+				kvClient.put("key" + i, null);
+			}
+			released = awaitShared(0);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(errors.toString(), ex == null && errors.isEmpty());
+		assertTrue(released);
+	}
+}
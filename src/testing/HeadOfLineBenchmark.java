@@ -0,0 +1,143 @@
+package testing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import common.messages.KVMessage.StatusType;
+import common.metrics.LatencyHistogram;
+import logger.LogSetup;
+
+
+/**
+ * Runs a mix of small 'get' requests, small 'put' requests and 120 KB 'put'
+ * requests against one server, with and without the priority lanes of the
+ * request scheduler, and reports the latency percentiles of each class.
+ * Usage: HeadOfLineBenchmark [seconds [slots [large writers]]]
+ */
+public class HeadOfLineBenchmark {
+
+	private static final int SMALL_READERS = 8;
+	private static final int SMALL_WRITERS = 4;
+	private static final int SMALL_VALUE = 100;
+	private static final int LARGE_VALUE = 120 * 1024;
+	private static final int KEYS = 64;
+
+	private static final String[] CLASSES = { "small get", "small put", "large put" };
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+		int slots = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+		int large_writers = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+
+		try {
+			LogSetup.initialize("logs/testing/benchmark.log", Level.WARN);
+		} catch (IOException e) {
+			System.out.println("Error! Unable to initialize logger: " + e.getMessage());
+			System.exit(1);
+		}
+
+		run("fifo", false, seconds, slots, large_writers);
+		run("prioritized", true, seconds, slots, large_writers);
+		System.exit(0);
+	}
+
+	private static void run(String mode, boolean prioritized, int seconds, int slots,
+			int largeWriters) throws Exception {
+		final KVServer server = new KVServer(0);
+		server.getScheduler().setSlots(slots);
+		server.getScheduler().setPrioritized(prioritized);
+		new Thread(server).start();
+
+		KVStore loader = new KVStore("localhost", server.getPort());
+		loader.connect();
+		for (int i = 0; i < KEYS; ++i) {
+			loader.put("small" + i, value(SMALL_VALUE, i));
+		}
+		loader.disconnect();
+
+		final LatencyHistogram[] latencies = new LatencyHistogram[CLASSES.length];
+		for (int i = 0; i < latencies.length; ++i) {
+			latencies[i] = new LatencyHistogram();
+		}
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final List<Exception> errors = new ArrayList<Exception>();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		int clients = SMALL_READERS + SMALL_WRITERS + largeWriters;
+		for (int i = 0; i < clients; ++i) {
+			final int type = (i < SMALL_READERS) ? 0 : (i < SMALL_READERS + SMALL_WRITERS) ? 1 : 2;
+			final int client = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						runClient(server.getPort(), type, client, deadline, latencies[type]);
+					} catch (Exception e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		server.shutDown();
+
+		if (!errors.isEmpty()) {
+			throw errors.get(0);
+		}
+
+		System.out.println(mode + " (" + slots + " slots, " + largeWriters + " large writers):");
+		for (int i = 0; i < CLASSES.length; ++i) {
+			LatencyHistogram histogram = latencies[i];
+			System.out.println(String.format("    %-10s %8d requests  p50 %7d us  p99 %7d us  p99.9 %7d us",
+					CLASSES[i], histogram.getCount(), histogram.getPercentile(50),
+					histogram.getPercentile(99), histogram.getPercentile(99.9)));
+		}
+	}
+
+	private static void runClient(int port, int type, int client, long deadline,
+			LatencyHistogram latency) throws Exception {
+		KVStore kvStore = new KVStore("localhost", port);
+		kvStore.connect();
+		String large = value(LARGE_VALUE, client);
+		String small = value(SMALL_VALUE, client);
+
+		try {
+			for (int i = 0; System.nanoTime() < deadline; ++i) {
+				long start = System.nanoTime();
+				StatusType status;
+				if (type == 0) {
+					status = kvStore.get("small" + (i % KEYS)).getStatus();
+				} else {
+					status = kvStore.put(((type == 1) ? "small" : "large") + (i % KEYS),
+							(type == 1) ? small : large).getStatus();
+				}
+				latency.record((System.nanoTime() - start) / 1000);
+
+				if (status != StatusType.GET_SUCCESS && status != StatusType.PUT_SUCCESS
+						&& status != StatusType.PUT_UPDATE) {
+					throw new IOException("Request failed with " + status + ".");
+				}
+			}
+		} finally {
+			kvStore.disconnect();
+		}
+	}
+
+	private static String value(int length, int seed) {
+		char[] chars = new char[length];
+		Arrays.fill(chars, (char) ('a' + seed % 26));
+		return new String(chars);
+	}
+}
@@ -0,0 +1,286 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import common.messages.KVMessage.StatusType;
+
+
+/**
+ * Checks histories of 'put', 'get' and 'delete' operations against the
+ * sequential specification of the key-value store. Linearizability is
+ * compositional, so every key is checked on its own, with the algorithm of
+ * Wing and Gong as improved by Lowe (depth-first search over the possible
+ * linearization points, with a cache of already explored states).
+ * <p>
+ * The replies of the server carry more than the read values: 'put' tells
+ * whether the key existed (PUT_SUCCESS or PUT_UPDATE), and 'delete' whether it
+ * was removed. All of them are checked.
+ */
+public class LinearizabilityChecker {
+
+	/**
+	 * A completed operation of a history.
+	 */
+	public static class Operation {
+		final int client;
+		final String key;
+		final String value; // Written value, null for 'get' and 'delete'
+		final boolean read;
+		final long invoked; // nanoseconds
+		final long completed;
+		final StatusType status;
+		final String result;
+		int id;
+
+		/**
+		 * @param client the client which executed the operation.
+		 * @param key the key.
+		 * @param value the written value (null for 'delete').
+		 * @param read true for 'get', false for 'put' and 'delete'.
+		 * @param invoked time the request was sent.
+		 * @param completed time the reply was received.
+		 * @param status the status of the reply.
+		 * @param result the value of the reply.
+		 */
+		public Operation(int client, String key, String value, boolean read,
+				long invoked, long completed, StatusType status, String result) {
+			this.client = client;
+			this.key = key;
+			this.value = value;
+			this.read = read;
+			this.invoked = invoked;
+			this.completed = completed;
+			this.status = status;
+			this.result = result;
+		}
+
+		@Override
+		public String toString() {
+			String call = read ? "get(" + key + ")" : (value != null) ? "put(" + key + ", "
+					+ value + ")" : "delete(" + key + ")";
+			return "client " + client + ": " + call + " -> " + status + " " + result
+					+ " [" + invoked + ", " + completed + "]";
+		}
+	}
+
+	private static final Object ABSENT = new Object();
+
+	/**
+	 * Checks a history.
+	 *
+	 * @param history the completed operations of all clients.
+	 * @return null if the history is linearizable, otherwise a description
+	 *         of the first key whose history is not.
+	 */
+	public static String check(List<Operation> history) {
+		Map<String, List<Operation>> keys = new HashMap<String, List<Operation>>();
+		for (Operation op : history) {
+			List<Operation> ops = keys.get(op.key);
+			if (ops == null) {
+				ops = new ArrayList<Operation>();
+				keys.put(op.key, ops);
+			}
+			ops.add(op);
+		}
+
+		for (Map.Entry<String, List<Operation>> key : keys.entrySet()) {
+			if (!checkKey(key.getValue())) {
+				StringBuilder report = new StringBuilder("History of key '"
+						+ key.getKey() + "' is not linearizable:");
+				List<Operation> ops = new ArrayList<Operation>(key.getValue());
+				Collections.sort(ops, new Comparator<Operation>() {
+					@Override
+					public int compare(Operation a, Operation b) {
+						return (a.invoked < b.invoked) ? -1 : (a.invoked > b.invoked) ? 1 : 0;
+					}
+				});
+				for (Operation op : ops) {
+					report.append("\n    ").append(op);
+				}
+				return report.toString();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Applies an operation to the state of a key.
+	 *
+	 * @return the new state, or null if the reply is impossible in the
+	 *         given state.
+	 */
+	private static Object apply(Object state, Operation op) {
+		boolean exists = (state != ABSENT);
+
+		if (op.read) {
+			if (op.status == StatusType.GET_SUCCESS) {
+				return (exists && state.equals(op.result)) ? state : null;
+			}
+			return (op.status == StatusType.GET_ERROR && !exists) ? state : null;
+		}
+		if (op.value == null) {
+			if (op.status == StatusType.DELETE_SUCCESS) {
+				return exists ? ABSENT : null;
+			}
+			return (op.status == StatusType.DELETE_ERROR && !exists) ? state : null;
+		}
+		if (op.status == StatusType.PUT_SUCCESS) {
+			return !exists ? op.value : null;
+		}
+		return (op.status == StatusType.PUT_UPDATE && exists) ? op.value : null;
+	}
+
+	/**
+	 * Event of the history: invocation or completion of an operation, in a
+	 * doubly linked list ordered by time.
+	 */
+	private static class Event {
+		final Operation op;
+		final boolean call;
+		Event match; // The completion of a call
+		Event prev;
+		Event next;
+
+		Event(Operation op, boolean call) {
+			this.op = op;
+			this.call = call;
+		}
+
+		long time() {
+			return call ? op.invoked : op.completed;
+		}
+
+		/** Removes the call and its completion from the list. */
+		void lift() {
+			prev.next = next;
+			next.prev = prev;
+			match.prev.next = match.next;
+			if (match.next != null) {
+				match.next.prev = match.prev;
+			}
+		}
+
+		/** Puts the call and its completion back into the list. */
+		void unlift() {
+			match.prev.next = match;
+			if (match.next != null) {
+				match.next.prev = match;
+			}
+			prev.next = this;
+			next.prev = this;
+		}
+	}
+
+	/**
+	 * Explored combination of linearized operations and resulting state.
+	 */
+	private static class Configuration {
+		final BitSet linearized;
+		final Object state;
+
+		Configuration(BitSet linearized, Object state) {
+			this.linearized = linearized;
+			this.state = state;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Configuration)) {
+				return false;
+			}
+			Configuration that = (Configuration) other;
+			return linearized.equals(that.linearized) && state.equals(that.state);
+		}
+
+		@Override
+		public int hashCode() {
+			return linearized.hashCode() * 31 + state.hashCode();
+		}
+	}
+
+	private static boolean checkKey(List<Operation> ops) {
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < ops.size(); ++i) {
+			Operation op = ops.get(i);
+			op.id = i;
+			Event call = new Event(op, true);
+			Event completion = new Event(op, false);
+			call.match = completion;
+			events.add(call);
+			events.add(completion);
+		}
+
+		// Calls sort before completions at the same time: such operations
+		// are treated as concurrent
+		Collections.sort(events, new Comparator<Event>() {
+			@Override
+			public int compare(Event a, Event b) {
+				if (a.time() != b.time()) {
+					return (a.time() < b.time()) ? -1 : 1;
+				}
+				return (a.call == b.call) ? 0 : a.call ? -1 : 1;
+			}
+		});
+
+		Event head = new Event(null, true);
+		Event last = head;
+		for (Event event : events) {
+			last.next = event;
+			event.prev = last;
+			last = event;
+		}
+
+		BitSet linearized = new BitSet(ops.size());
+		Set<Configuration> explored = new HashSet<Configuration>();
+		LinkedList<Event> calls = new LinkedList<Event>();
+		LinkedList<Object> states = new LinkedList<Object>();
+		Object state = ABSENT;
+		Event entry = head.next;
+
+		while (head.next != null) {
+			if (entry.call) {
+				Object next_state = apply(state, entry.op);
+				boolean progress = false;
+
+				if (next_state != null) {
+					BitSet next_linearized = (BitSet) linearized.clone();
+					next_linearized.set(entry.op.id);
+					progress = explored.add(new Configuration(next_linearized, next_state));
+				}
+
+				if (progress) {
+					calls.push(entry);
+					states.push(state);
+					state = next_state;
+					linearized.set(entry.op.id);
+					entry.lift();
+					entry = head.next;
+				} else {
+					entry = entry.next;
+				}
+
+			} else {
+				// An operation completed before any of the remaining ones
+				// could take effect: undo the last linearization point
+				if (calls.isEmpty()) {
+					return false;
+				}
+				entry = calls.pop();
+				state = states.pop();
+				linearized.clear(entry.op.id);
+				entry.unlift();
+				entry = entry.next;
+			}
+		}
+		return true;
+	}
+}
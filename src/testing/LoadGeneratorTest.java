@@ -0,0 +1,76 @@
+package testing;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import app_kvLoad.LoadGenerator;
+import app_kvLoad.LoadReport;
+import app_kvLoad.Workload;
+import app_kvLoad.ZipfianGenerator;
+import junit.framework.TestCase;
+
+
+public class LoadGeneratorTest extends TestCase {
+
+	@Test
+	public void testZipfianSkew() {
+		ZipfianGenerator zipf = new ZipfianGenerator(1000, ZipfianGenerator.DEFAULT_THETA, false);
+		Random random = new Random(1);
+		int[] counts = new int[1000];
+		boolean inRange = true;
+
+		for (int i = 0; i < 100000; ++i) {
+			long item = zipf.next(random);
+			if (item < 0 || item >= 1000) {
+				inRange = false;
+				break;
+			}
+			++counts[(int) item];
+		}
+
+		// With theta close to 1 the first item is about 1000 times more
+		// popular than the last one
+		assertTrue(inRange && counts[0] > 10000 && counts[0] > 100 * Math.max(1, counts[999]));
+	}
+	
+	@Test
+	public void testClosedLoopRun() {
+		LoadReport report = null;
+		Exception ex = null;
+
+		try {
+			Workload workload = new Workload(0.5, 100, Workload.KeyDistribution.ZIPFIAN,
+					ZipfianGenerator.DEFAULT_THETA, Workload.SizeDistribution.UNIFORM, 10, 1000,
+					Workload.ArrivalMode.CLOSED, 0);
+			LoadGenerator generator = new LoadGenerator(workload, "localhost", 50000, 2, 1);
+			generator.preload();
+			report = generator.run(0, 1);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && report.getOperations() > 0 && report.getErrors() == 0
+				&& report.getFailures() == 0 && report.toJson().contains("\"throughput_ops\""));
+	}
+	
+	@Test
+	public void testOpenLoopRate() {
+		LoadReport report = null;
+		Exception ex = null;
+
+		try {
+			Workload workload = new Workload(0.9, 100, Workload.KeyDistribution.UNIFORM,
+					ZipfianGenerator.DEFAULT_THETA, Workload.SizeDistribution.FIXED, 100, 100,
+					Workload.ArrivalMode.OPEN, 400);
+			LoadGenerator generator = new LoadGenerator(workload, "localhost", 50000, 2, 2);
+			report = generator.run(0, 2);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		// Poisson arrivals at 400 requests per second, over two seconds
+		assertTrue(ex == null && report.getOperations() > 600 && report.getOperations() < 1000
+				&& report.getFailures() == 0);
+	}
+}
@@ -0,0 +1,128 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageRaw;
+import common.messages.KVMessageSlice;
+
+
+public class MessageSliceTest extends TestCase {
+
+	private static final String TEXT = "Stored as it was received; ";
+
+	private KVServer server;
+	private KVStore kvClient;
+
+	public void setUp() throws Exception {
+		server = new KVServer(0);
+		new Thread(server).start();
+		kvClient = new KVStore("localhost", server.getPort());
+		kvClient.connect();
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+		server.shutDown();
+	}
+
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		KVMessageRaw request = new KVMessageRaw(StatusType.PUT, "key", TEXT);
+		request.setTimeout(250);
+
+		KVMessage parsed = KVMessageSlice.unmarshal(KVMessageRaw.marshal(request));
+		assertTrue(parsed instanceof KVMessageSlice);
+
+		KVMessageSlice slice = (KVMessageSlice) parsed;
+		assertTrue(slice.hasValue());
+		assertEquals(TEXT.getBytes().length, slice.getValueLength());
+		assertEquals(250, slice.getTimeout());
+
+		KVMessage reply = KVMessageRaw.unmarshal(KVMessageRaw.marshal(slice.reply(StatusType.PUT_SUCCESS)));
+		assertEquals(StatusType.PUT_SUCCESS, reply.getStatus());
+		assertEquals("key", reply.getKey());
+		assertEquals(TEXT, reply.getValue());
+		assertEquals(TEXT, slice.getValue());
+
+		KVMessageSlice delete = (KVMessageSlice) KVMessageSlice.unmarshal(
+				KVMessageRaw.marshal(new KVMessageRaw(StatusType.PUT, "key", null)));
+		assertFalse(delete.hasValue());
+		assertNull(delete.getValueBytes());
+		assertNull(delete.getValue());
+	}
+
+	@Test
+	public void testBatchesParsedAsUsual() throws Exception {
+		List<KVMessageBatch.Entry> operations = new ArrayList<KVMessageBatch.Entry>();
+		operations.add(KVMessageBatch.Entry.put("a", "1"));
+
+		KVMessage parsed = KVMessageSlice.unmarshal(KVMessageRaw.marshal(
+				new KVMessageBatch(StatusType.TRANSACTION, null, null, operations)));
+		assertTrue(parsed instanceof KVMessageBatch);
+		assertEquals(1, ((KVMessageBatch) parsed).getEntries().size());
+	}
+
+	@Test
+	public void testEncodedValuesStored() {
+		KVMessage put = null, update = null, get = null, changes = null;
+		List<KVMessageBatch.Entry> operations = new ArrayList<KVMessageBatch.Entry>();
+		KVMessage transactional = null;
+		Exception ex = null;
+
+		try {
+			put = kvClient.put("text", TEXT);
+			update = kvClient.put("text", TEXT + TEXT);
+			get = kvClient.get("text");
+			changes = kvClient.fetchChanges(0);
+
+			// Values written as strings and as bytes are read the same way
+			operations.add(KVMessageBatch.Entry.put("other", TEXT));
+			kvClient.transaction(operations);
+			transactional = kvClient.get("other");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null);
+		assertEquals(StatusType.PUT_SUCCESS, put.getStatus());
+		assertEquals(TEXT, put.getValue());
+		assertEquals(StatusType.PUT_UPDATE, update.getStatus());
+		assertEquals(TEXT + TEXT, get.getValue());
+		assertEquals(TEXT, ((KVMessageBatch) changes).getEntries().get(0).value);
+		assertEquals(TEXT, transactional.getValue());
+		assertEquals(TEXT + TEXT, server.getDataStorage().get("text"));
+	}
+
+	@Test
+	public void testEncodedValuesCompressedAndShared() {
+		String value = TestData.blob(8192, 1) + TEXT;
+		KVMessage first = null, second = null;
+		String report = null;
+		Exception ex = null;
+
+		server.getDataStorage().setCompressionThreshold(1024);
+		server.getDataStorage().setDeduplication(true);
+		try {
+			kvClient.put("first", value);
+			kvClient.put("second", value);
+			first = kvClient.get("first");
+			second = kvClient.get("second");
+			report = server.getDataStorage().getStorageReport();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && first.getValue().equals(value) && second.getValue().equals(value));
+		assertTrue(report, report.contains("Values: 2, shared: 2, distinct: 1, compressed: 1"));
+	}
+}
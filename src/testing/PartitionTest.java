@@ -0,0 +1,123 @@
+package testing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageRaw;
+import common.metadata.HashRing;
+
+
+public class PartitionTest extends TestCase {
+
+	private static final int[] PORTS = { 50030, 50031, 50032 };
+	private static HashRing ring;
+
+	static {
+		List<String> nodes = new ArrayList<String>();
+		for (int port : PORTS) {
+			nodes.add("localhost:" + port);
+		}
+		ring = new HashRing(1, HashRing.DEFAULT_VIRTUAL_NODES, nodes);
+
+		try {
+			for (int port : PORTS) {
+				KVServer server = new KVServer(port);
+				server.enablePartitioning(ring, "localhost:" + port);
+				new Thread(server).start();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private KVStore kvClient;
+
+	public void setUp() {
+		kvClient = new KVStore("localhost", PORTS[0]);
+		try {
+			kvClient.connect();
+		} catch (Exception e) {
+		}
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+	}
+
+	/**
+	 * Returns a key owned by the given node.
+	 */
+	private static String keyOwnedBy(String node) {
+		for (int i = 0;; ++i) {
+			if (ring.getNode("part" + i).equals(node)) {
+				return "part" + i;
+			}
+		}
+	}
+
+
+	@Test
+	public void testClientRouting() {
+		boolean allFound = true;
+		Exception ex = null;
+
+		try {
+			for (int i = 0; i < 30; ++i) {
+				kvClient.put("routed" + i, "value" + i);
+			}
+			for (int i = 0; i < 30; ++i) {
+				KVMessage response = kvClient.get("routed" + i);
+				allFound &= response.getStatus() == StatusType.GET_SUCCESS
+						&& response.getValue().equals("value" + i);
+			}
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && allFound && kvClient.getMetadata() != null
+				&& kvClient.getMetadata().getNodes().size() == PORTS.length);
+	}
+
+	@Test
+	public void testNotResponsible() {
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			// Bypassing the routing of the client
+			String key = keyOwnedBy("localhost:" + PORTS[1]);
+			response = kvClient.kvRequest(new KVMessageRaw(StatusType.PUT, key, "misrouted"));
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE
+				&& HashRing.parse(response.getValue()).getVersion() == ring.getVersion());
+	}
+
+	@Test
+	public void testTransactionAcrossPartitions() {
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			List<KVMessageBatch.Entry> operations = new ArrayList<KVMessageBatch.Entry>();
+			operations.add(KVMessageBatch.Entry.put(keyOwnedBy("localhost:" + PORTS[1]), "a"));
+			operations.add(KVMessageBatch.Entry.put(keyOwnedBy("localhost:" + PORTS[2]), "b"));
+			response = kvClient.transaction(operations);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.TRANSACTION_ERROR);
+	}
+}
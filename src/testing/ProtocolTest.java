@@ -0,0 +1,140 @@
+package testing;
+
+import java.net.Socket;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.FrameCompressor;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+import common.messages.Protocol;
+
+
+public class ProtocolTest extends TestCase {
+
+	private KVServer server;
+
+	public void setUp() throws Exception {
+		server = new KVServer(0);
+		new Thread(server).start();
+	}
+
+	public void tearDown() {
+		server.shutDown();
+	}
+
+	private static KVMessage exchange(Socket socket, KVMessage request) throws Exception {
+		new NetworkMessage(KVMessageRaw.marshal(request)).writeTo(socket.getOutputStream());
+		NetworkMessage reply = NetworkMessage.readFrom(socket.getInputStream());
+		return KVMessageRaw.unmarshal(reply.getData());
+	}
+
+	private static void checkPutGet(KVStore kvClient, String key) throws Exception {
+		String value = TestData.blob(4000, key.length());
+		assertEquals(StatusType.PUT_SUCCESS, kvClient.put(key, value).getStatus());
+		assertEquals(value, kvClient.get(key).getValue());
+	}
+
+
+	@Test
+	public void testHandshakeGrantsFeatures() throws Exception {
+		KVStore kvClient = new KVStore("localhost", server.getPort());
+		kvClient.setCompression(FrameCompressor.DEFAULT_THRESHOLD);
+		kvClient.setChecksums(true);
+		kvClient.connect();
+		try {
+			assertEquals(Protocol.VERSION, kvClient.getProtocolVersion());
+			assertEquals(Protocol.FEATURE_COMPRESSION | Protocol.FEATURE_CHECKSUMS, kvClient.getProtocolFeatures());
+			assertTrue(kvClient.isCompressed());
+			checkPutGet(kvClient, "key");
+		} finally {
+			kvClient.disconnect();
+		}
+		assertEquals(0, kvClient.getProtocolVersion());
+
+		// Without options, the handshake grants nothing
+		KVStore plainClient = new KVStore("localhost", server.getPort());
+		plainClient.connect();
+		try {
+			assertEquals(Protocol.VERSION, plainClient.getProtocolVersion());
+			assertEquals(0, plainClient.getProtocolFeatures());
+			checkPutGet(plainClient, "plain");
+		} finally {
+			plainClient.disconnect();
+		}
+	}
+
+	@Test
+	public void testServerRestrictsFeatures() throws Exception {
+		server.setProtocolFeatures(Protocol.FEATURE_CHECKSUMS);
+
+		KVStore kvClient = new KVStore("localhost", server.getPort());
+		kvClient.setCompression(FrameCompressor.DEFAULT_THRESHOLD);
+		kvClient.setChecksums(true);
+		kvClient.connect();
+		try {
+			assertEquals(Protocol.FEATURE_CHECKSUMS, kvClient.getProtocolFeatures());
+			assertFalse(kvClient.isCompressed());
+			checkPutGet(kvClient, "key");
+		} finally {
+			kvClient.disconnect();
+		}
+	}
+
+	@Test
+	public void testNewerClientAndUnknownFeatures() throws Exception {
+		Socket socket = new Socket("localhost", server.getPort());
+		try {
+			KVMessage reply = exchange(socket, new KVMessageRaw(StatusType.HELLO,
+					Integer.toString(Protocol.VERSION + 5), Protocol.formatFeatures(0x100 | Protocol.FEATURE_COMPRESSION, 0)));
+			assertEquals(StatusType.HELLO_SUCCESS, reply.getStatus());
+			assertEquals(Integer.toString(Protocol.VERSION), reply.getKey());
+			assertEquals(Protocol.formatFeatures(Protocol.FEATURE_COMPRESSION, 0), reply.getValue());
+
+			// Only one handshake per connection
+			reply = new KVMessageRaw(StatusType.HELLO, Integer.toString(Protocol.VERSION), Protocol.formatFeatures(0, 0));
+			FrameCompressor compressor = new FrameCompressor(0);
+			compressor.compress(KVMessageRaw.marshal(reply)).writeTo(socket.getOutputStream());
+			byte[] data = compressor.decompress(NetworkMessage.readFrom(socket.getInputStream()));
+			assertEquals(StatusType.PROTOCOL_ERROR, KVMessageRaw.unmarshal(data).getStatus());
+			compressor.end();
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testLegacyClient() throws Exception {
+		Socket socket = new Socket("localhost", server.getPort());
+		try {
+			assertEquals(StatusType.PUT_SUCCESS, exchange(socket, new KVMessageRaw(StatusType.PUT, "key", "value")).getStatus());
+			assertEquals("value", exchange(socket, new KVMessageRaw(StatusType.GET, "key", null)).getValue());
+
+			// The compression handshake of older clients still works
+			KVMessage reply = exchange(socket, new KVMessageRaw(StatusType.COMPRESSION, FrameCompressor.CODEC, "0"));
+			assertEquals(StatusType.COMPRESSION_SUCCESS, reply.getStatus());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testMalformedHandshake() throws Exception {
+		Socket socket = new Socket("localhost", server.getPort());
+		try {
+			assertEquals(StatusType.PROTOCOL_ERROR,
+					exchange(socket, new KVMessageRaw(StatusType.HELLO, "0", "0 0")).getStatus());
+			assertEquals(StatusType.PROTOCOL_ERROR,
+					exchange(socket, new KVMessageRaw(StatusType.HELLO, "2", "x")).getStatus());
+			// The connection is still usable in the legacy format
+			assertEquals(StatusType.PUT_SUCCESS, exchange(socket, new KVMessageRaw(StatusType.PUT, "key", "value")).getStatus());
+		} finally {
+			socket.close();
+		}
+	}
+}
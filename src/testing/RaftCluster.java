@@ -0,0 +1,183 @@
+package testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+import client.KVStore;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+
+
+/**
+ * Test harness running a Raft consensus group as separate local KVServer
+ * processes, which can be killed and restarted individually. The class path
+ * of the servers is taken from the "raft.classpath" system property, or from
+ * the class path of the running JVM.
+ */
+public class RaftCluster {
+
+	private static final long START_TIMEOUT = 10000;
+
+	private final int[] ports;
+	private final File directory;
+	private final Process[] processes;
+	private final String group;
+
+	public RaftCluster(int basePort, int size, File directory) {
+		this.ports = new int[size];
+		this.directory = directory;
+		this.processes = new Process[size];
+
+		StringBuilder members = new StringBuilder();
+		for (int i = 0; i < size; ++i) {
+			ports[i] = basePort + i;
+			members.append((i > 0) ? "," : "").append(address(i));
+		}
+		this.group = members.toString();
+	}
+
+	public int size() {
+		return ports.length;
+	}
+
+	public int port(int i) {
+		return ports[i];
+	}
+
+	public String address(int i) {
+		return "localhost:" + ports[i];
+	}
+
+	public boolean isRunning(int i) {
+		return processes[i] != null;
+	}
+
+	/**
+	 * Starts the server process of a member and waits until it accepts
+	 * connections. Its Raft state survives restarts.
+	 */
+	public void start(int i) throws IOException, InterruptedException {
+		File home = new File(directory, "node" + i);
+		home.mkdirs();
+
+		ProcessBuilder builder = new ProcessBuilder(
+				new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", absoluteClassPath(), "app_kvServer.KVServer",
+				"-l", "WARN", "-g", group, "-a", address(i),
+				"-d", new File(home, "raft").getAbsolutePath(),
+				Integer.toString(ports[i]));
+		builder.directory(home);
+		builder.redirectErrorStream(true);
+
+		final Process process = builder.start();
+		processes[i] = process;
+
+		// The output must be consumed, or the server blocks once the pipe is full
+		Thread drain = new Thread() {
+			public void run() {
+				InputStream output = process.getInputStream();
+				byte[] buffer = new byte[4096];
+				try {
+					while (output.read(buffer) >= 0) {
+					}
+				} catch (IOException e) {
+				}
+			}
+		};
+		drain.setDaemon(true);
+		drain.start();
+
+		long deadline = System.currentTimeMillis() + START_TIMEOUT;
+		while (true) {
+			try {
+				new Socket("localhost", ports[i]).close();
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("Member " + i + " did not start in time.");
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	public void startAll() throws IOException, InterruptedException {
+		for (int i = 0; i < ports.length; ++i) {
+			start(i);
+		}
+	}
+
+	/**
+	 * Terminates the server process of a member.
+	 */
+	public void kill(int i) throws InterruptedException {
+		if (processes[i] != null) {
+			processes[i].destroy();
+			processes[i].waitFor();
+			processes[i] = null;
+		}
+	}
+
+	public void killAll() throws InterruptedException {
+		for (int i = 0; i < ports.length; ++i) {
+			kill(i);
+		}
+	}
+
+	/**
+	 * Waits until a running member reports itself as the leader.
+	 * @return The index of the leader, or -1 if none was elected in time
+	 */
+	public int findLeader(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (System.currentTimeMillis() < deadline) {
+			for (int i = 0; i < ports.length; ++i) {
+				if (processes[i] == null) {
+					continue;
+				}
+				KVStore probe = new KVStore("localhost", ports[i]);
+				try {
+					probe.connect();
+					KVMessage reply = probe.kvRequest(
+							new KVMessageRaw(StatusType.GET, "leaderProbe", null));
+					if (reply.getStatus() != StatusType.SERVER_NOT_LEADER) {
+						return i;
+					}
+				} catch (Exception e) {
+				} finally {
+					probe.disconnect();
+				}
+			}
+			Thread.sleep(100);
+		}
+		return -1;
+	}
+
+	public static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static String absoluteClassPath() {
+		String classpath = System.getProperty("raft.classpath",
+				System.getProperty("java.class.path"));
+		StringBuilder result = new StringBuilder();
+
+		for (String entry : classpath.split(File.pathSeparator)) {
+			if (entry.length() > 0) {
+				result.append((result.length() > 0) ? File.pathSeparator : "")
+						.append(new File(entry).getAbsolutePath());
+			}
+		}
+		return result.toString();
+	}
+}
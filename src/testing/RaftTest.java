@@ -0,0 +1,185 @@
+package testing;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+
+
+/**
+ * Tests of the Raft consensus mode. The members run as separate processes,
+ * so this suite is run by the "test-raft" build target rather than AllTests.
+ */
+public class RaftTest extends TestCase {
+
+	private static final int BASE_PORT = 50050;
+
+	private File directory;
+	private RaftCluster cluster;
+
+	public void setUp() throws Exception {
+		directory = File.createTempFile("raft", "");
+		directory.delete();
+		directory.mkdirs();
+
+		cluster = new RaftCluster(BASE_PORT, 3, directory);
+		cluster.startAll();
+	}
+
+	public void tearDown() throws Exception {
+		cluster.killAll();
+		RaftCluster.deleteRecursively(directory);
+	}
+
+	/**
+	 * Retries a write until the group accepts it, e.g. while a new leader is
+	 * elected.
+	 */
+	private KVMessage putWithRetry(KVStore kvStore, String key, String value)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 15000;
+		KVMessage response = null;
+
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				response = kvStore.put(key, value);
+				if (response.getStatus() == StatusType.PUT_SUCCESS
+						|| response.getStatus() == StatusType.PUT_UPDATE) {
+					return response;
+				}
+			} catch (Exception e) {
+			}
+			Thread.sleep(100);
+		}
+		return response;
+	}
+
+
+	@Test
+	public void testReplicatedWrite() {
+		KVMessage put = null;
+		KVMessage get = null;
+		Exception ex = null;
+
+		try {
+			KVStore kvClient = new KVStore("localhost", cluster.port(0));
+			kvClient.connect();
+			put = putWithRetry(kvClient, "consensus", "agreed");
+			get = kvClient.get("consensus");
+			kvClient.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && put.getStatus() == StatusType.PUT_SUCCESS
+				&& get.getStatus() == StatusType.GET_SUCCESS
+				&& get.getValue().equals("agreed"));
+	}
+
+	@Test
+	public void testFollowerRedirect() {
+		KVMessage response = null;
+		int leader = -1;
+		Exception ex = null;
+
+		try {
+			leader = cluster.findLeader(10000);
+			KVStore kvFollower = new KVStore("localhost", cluster.port((leader + 1) % cluster.size()));
+			kvFollower.connect();
+			// Bypassing the redirection of the client
+			response = kvFollower.kvRequest(new KVMessageRaw(StatusType.PUT, "redirected", "value"));
+			kvFollower.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && leader >= 0
+				&& response.getStatus() == StatusType.SERVER_NOT_LEADER
+				&& response.getValue().equals(cluster.address(leader)));
+	}
+
+	@Test
+	public void testLeaderFailover() {
+		KVMessage before = null;
+		KVMessage after = null;
+		KVMessage recovered = null;
+		KVMessage read = null;
+		Exception ex = null;
+
+		try {
+			int leader = cluster.findLeader(10000);
+			int survivor = (leader + 1) % cluster.size();
+			int other = (leader + 2) % cluster.size();
+
+			KVStore kvClient = new KVStore("localhost", cluster.port(survivor));
+			kvClient.connect();
+			before = putWithRetry(kvClient, "beforeCrash", "kept");
+
+			// The remaining two members elect a new leader
+			cluster.kill(leader);
+			after = putWithRetry(kvClient, "afterCrash", "written");
+
+			// The restarted member must catch up to form a majority again
+			cluster.start(leader);
+			Thread.sleep(1000);
+			cluster.kill(other);
+			recovered = putWithRetry(kvClient, "afterRestart", "written");
+			read = kvClient.get("beforeCrash");
+
+			kvClient.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && before.getStatus() == StatusType.PUT_SUCCESS
+				&& after.getStatus() == StatusType.PUT_SUCCESS
+				&& recovered.getStatus() == StatusType.PUT_SUCCESS
+				&& read.getStatus() == StatusType.GET_SUCCESS
+				&& read.getValue().equals("kept"));
+	}
+
+	@Test
+	public void testFollowerRestartCatchUp() {
+		KVMessage lagging = null;
+		KVMessage recovered = null;
+		KVMessage read = null;
+		Exception ex = null;
+
+		try {
+			int leader = cluster.findLeader(10000);
+			int follower = (leader + 1) % cluster.size();
+			int other = (leader + 2) % cluster.size();
+
+			KVStore kvClient = new KVStore("localhost", cluster.port(leader));
+			kvClient.connect();
+
+			// The leader keeps failing to connect to the stopped member
+			cluster.kill(follower);
+			for (int i = 0; i < 10; ++i) {
+				lagging = putWithRetry(kvClient, "lagging" + i, "value" + i);
+			}
+			Thread.sleep(3000);
+
+			// Writes only commit once the restarted member caught up
+			cluster.start(follower);
+			Thread.sleep(1000);
+			cluster.kill(other);
+			recovered = putWithRetry(kvClient, "caughtUp", "written");
+			read = kvClient.get("lagging0");
+
+			kvClient.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && lagging.getStatus() == StatusType.PUT_SUCCESS
+				&& recovered.getStatus() == StatusType.PUT_SUCCESS
+				&& read.getStatus() == StatusType.GET_SUCCESS
+				&& read.getValue().equals("value0"));
+	}
+}
@@ -0,0 +1,163 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.metadata.HashRing;
+
+
+public class RebalanceTest extends TestCase {
+
+	private static final int SIZE = 2;
+
+	private List<KVServer> servers = new ArrayList<KVServer>();
+	private int[] ports = new int[SIZE];
+
+	public void setUp() throws Exception {
+		// The servers listen on ephemeral ports, which the ring is built from
+		List<String> nodes = new ArrayList<String>();
+		for (int i = 0; i < SIZE; ++i) {
+			KVServer server = new KVServer(0);
+			servers.add(server);
+			ports[i] = server.getPort();
+			nodes.add("localhost:" + ports[i]);
+		}
+		HashRing ring = new HashRing(1, HashRing.DEFAULT_VIRTUAL_NODES, nodes);
+
+		for (int i = 0; i < SIZE; ++i) {
+			servers.get(i).enablePartitioning(ring, nodes.get(i));
+			new Thread(servers.get(i)).start();
+		}
+	}
+
+	private KVServer join() throws Exception {
+		KVServer joining = new KVServer(0);
+		servers.add(joining);
+		new Thread(joining).start();
+		joining.joinCluster("localhost:" + ports[0], "localhost:" + joining.getPort());
+		return joining;
+	}
+
+	public void tearDown() {
+		for (KVServer server : servers) {
+			server.shutDown();
+		}
+	}
+
+
+	@Test
+	public void testJoinUnderLoad() {
+		final int keys = 200;
+		final long[] written = new long[keys];
+		final Exception[] writerError = new Exception[1];
+		final boolean[] stop = new boolean[1];
+		boolean allFound = true;
+		KVMessage direct = null;
+		Exception ex = null;
+
+		try {
+			KVStore kvClient = new KVStore("localhost", ports[0]);
+			kvClient.connect();
+			for (int i = 0; i < keys; ++i) {
+				kvClient.put("moving" + i, "0");
+			}
+
+			// Keeps updating the keys while they are moved
+			final KVStore kvWriter = new KVStore("localhost", ports[1]);
+			kvWriter.connect();
+			Thread writer = new Thread() {
+				public void run() {
+					try {
+						for (long round = 1; !stop[0]; ++round) {
+							for (int i = 0; i < keys; i += 7) {
+								kvWriter.put("moving" + i, Long.toString(round));
+								written[i] = round;
+							}
+						}
+					} catch (Exception e) {
+						writerError[0] = e;
+					}
+				}
+			};
+			writer.start();
+
+			KVServer joining = this.join();
+
+			long deadline = System.currentTimeMillis() + 20000;
+			while (System.currentTimeMillis() < deadline
+					&& joining.getMetadata().getVersion() != 2) {
+				Thread.sleep(50);
+			}
+			Thread.sleep(200);
+			stop[0] = true;
+			writer.join();
+			kvWriter.disconnect();
+
+			for (int i = 0; i < keys; ++i) {
+				KVMessage response = kvClient.get("moving" + i);
+				allFound &= response.getStatus() == StatusType.GET_SUCCESS
+						&& response.getValue().equals(Long.toString(written[i]));
+			}
+
+			// The new node serves its keys itself
+			String owned = null;
+			for (int i = 0; owned == null; ++i) {
+				if (joining.isResponsible("moving" + i)) {
+					owned = "moving" + i;
+				}
+			}
+			KVStore kvJoined = new KVStore("localhost", joining.getPort());
+			kvJoined.connect();
+			direct = kvJoined.kvRequest(new KVMessageRaw(StatusType.GET, owned, null));
+			kvJoined.disconnect();
+			kvClient.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && writerError[0] == null && allFound
+				&& direct.getStatus() == StatusType.GET_SUCCESS);
+	}
+
+	@Test
+	public void testJoinWithLargeValues() throws Exception {
+		final int keys = 24;
+		String[] values = new String[keys];
+
+		KVStore kvClient = new KVStore("localhost", ports[0]);
+		kvClient.connect();
+		// Batches of the bulk copy must not outgrow a frame
+		for (int i = 0; i < keys; ++i) {
+			values[i] = TestData.blob((i % 2 == 0) ? 60000 : 100000, i);
+			assertEquals(StatusType.PUT_SUCCESS, kvClient.put("large" + i, values[i]).getStatus());
+		}
+
+		KVServer joining = this.join();
+
+		long deadline = System.currentTimeMillis() + 20000;
+		while (System.currentTimeMillis() < deadline
+				&& joining.getMetadata().getVersion() != 2) {
+			Thread.sleep(50);
+		}
+		assertEquals(2, joining.getMetadata().getVersion());
+
+		int moved = 0;
+		for (int i = 0; i < keys; ++i) {
+			if (joining.isResponsible("large" + i)) {
+				assertEquals(values[i], joining.getDataStorage().get("large" + i));
+				++moved;
+			}
+			assertEquals(values[i], kvClient.get("large" + i).getValue());
+		}
+		assertTrue(moved > 1);
+		kvClient.disconnect();
+	}
+}
@@ -0,0 +1,80 @@
+package testing;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import org.apache.log4j.Level;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import logger.LogSetup;
+
+
+/**
+ * Measures the write throughput of a primary server and the replication lag
+ * of its backup, in asynchronous and semi-synchronous mode.
+ * Usage: ReplicationBenchmark [writes]
+ */
+public class ReplicationBenchmark {
+
+	private static final int PRIMARY_PORT = 50020;
+	private static final int BACKUP_PORT = 50021;
+
+	public static void main(String[] args) throws Exception {
+		int writes = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+
+		try {
+			LogSetup.initialize("logs/testing/benchmark.log", Level.WARN);
+		} catch (IOException e) {
+			System.out.println("Error! Unable to initialize logger: " + e.getMessage());
+			System.exit(1);
+		}
+
+		run("asynchronous", 0, writes, PRIMARY_PORT, BACKUP_PORT);
+		run("semi-synchronous", 1, writes, PRIMARY_PORT + 2, BACKUP_PORT + 2);
+		System.exit(0);
+	}
+
+	private static void run(String mode, int acks, int writes, int primaryPort,
+			int backupPort) throws Exception {
+		KVServer backup = new KVServer(backupPort);
+		backup.enableBackupMode(new InetSocketAddress("localhost", primaryPort));
+		new Thread(backup).start();
+
+		KVServer primary = new KVServer(primaryPort);
+		primary.enableReplication(Collections.singletonList(
+				new InetSocketAddress("localhost", backupPort)), acks);
+		new Thread(primary).start();
+
+		KVStore kvPrimary = new KVStore("localhost", primaryPort);
+		kvPrimary.connect();
+
+		long max_lag = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < writes; ++i) {
+			kvPrimary.put("bench" + (i % 1000), "value" + i);
+			if (i % 100 == 0) {
+				max_lag = Math.max(max_lag, primary.getDataStorage().getSequence()
+						- backup.getReplicaState().getAppliedSequence());
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// Time until the backup caught up with the last write
+		long target = primary.getDataStorage().getSequence();
+		long catch_up = System.nanoTime();
+		while (backup.getReplicaState().getAppliedSequence() < target) {
+			Thread.sleep(1);
+		}
+		catch_up = System.nanoTime() - catch_up;
+
+		System.out.println(mode + ": " + writes + " writes in " + (elapsed / 1000000) + " ms ("
+				+ (writes * 1000000000L / Math.max(1, elapsed)) + " writes/s), max lag "
+				+ max_lag + " changes, final catch-up " + (catch_up / 1000) + " us");
+
+		kvPrimary.disconnect();
+		primary.shutDown();
+		backup.shutDown();
+	}
+}
@@ -0,0 +1,338 @@
+package testing;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessageRaw;
+import common.messages.KVMessage.StatusType;
+
+
+public class ReplicationTest extends TestCase {
+
+	private KVServer primary;
+	private KVServer backup;
+	
+	/**
+	 * Starts a primary server and its backup on the given ports.
+	 */
+	private void startPair(int primaryPort, int backupPort, int changeLogCapacity,
+			boolean startBackup) throws Exception {
+		startPair(primaryPort, backupPort, changeLogCapacity, startBackup, 0);
+	}
+	
+	/**
+	 * Starts a primary server, confirming writes after the given number of
+	 * acknowledgements, and its backup on the given ports.
+	 */
+	private void startPair(int primaryPort, int backupPort, int changeLogCapacity,
+			boolean startBackup, int requiredAcks) throws Exception {
+		backup = new KVServer(backupPort);
+		backup.enableBackupMode(new InetSocketAddress("localhost", primaryPort));
+		if (startBackup) {
+			new Thread(backup).start();
+		}
+		
+		primary = new KVServer(primaryPort, changeLogCapacity);
+		primary.enableReplication(Collections.singletonList(
+				new InetSocketAddress("localhost", backupPort)), requiredAcks);
+		new Thread(primary).start();
+	}
+	
+	/**
+	 * Polls the given server until the key has the expected value.
+	 */
+	private KVMessage awaitValue(KVStore kvStore, String key, String value)
+			throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		KVMessage response = kvStore.get(key);
+		
+		while (System.currentTimeMillis() < deadline
+				&& (response.getValue() == null || !response.getValue().equals(value))) {
+			Thread.sleep(50);
+			response = kvStore.get(key);
+		}
+		return response;
+	}
+
+	public void tearDown() {
+		if (primary != null) {
+			primary.shutDown();
+		}
+		if (backup != null) {
+			backup.shutDown();
+		}
+	}
+	
+	
+	@Test
+	public void testWriteReachesBackup() {
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			startPair(50010, 50011, 1024, true);
+			KVStore kvPrimary = new KVStore("localhost", 50010);
+			KVStore kvBackup = new KVStore("localhost", 50011);
+			kvPrimary.connect();
+			kvBackup.connect();
+			
+			kvPrimary.put("replicated", "original");
+			kvPrimary.put("replicated", "updated");
+			response = awaitValue(kvBackup, "replicated", "updated");
+			
+			kvPrimary.disconnect();
+			kvBackup.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.GET_SUCCESS
+				&& response.getValue().equals("updated"));
+	}
+	
+	@Test
+	public void testSemiSynchronousWrites() {
+		String put = null;
+		String delete = "deleted";
+		long unacknowledged = 0;
+		Exception ex = null;
+
+		try {
+			startPair(50024, 50025, 1024, true, 1);
+			KVStore kvPrimary = new KVStore("localhost", 50024);
+			kvPrimary.connect();
+			
+			// Confirmed writes are already on the backup
+			kvPrimary.put("synchronous", "value");
+			put = backup.getDataStorage().get("synchronous");
+			kvPrimary.put("synchronous", null);
+			delete = backup.getDataStorage().get("synchronous");
+			
+			// Without the backup, writes wait for the acknowledgement
+			backup.shutDown();
+			Thread.sleep(100);
+			long start = System.currentTimeMillis();
+			kvPrimary.put("unacknowledged", "value");
+			unacknowledged = System.currentTimeMillis() - start;
+			
+			kvPrimary.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals("value", put);
+		assertNull(delete);
+		assertTrue("Write confirmed after " + unacknowledged + " ms.", unacknowledged >= 900);
+	}
+	
+	@Test
+	public void testWaitingWriteReleasesSlot() throws Exception {
+		startPair(50028, 50029, 1024, true, 1);
+		backup.shutDown();
+		primary.getScheduler().setSlots(1);
+		KVStore kvWriter = new KVStore("localhost", 50028);
+		kvWriter.connect();
+		final KVStore kvReader = new KVStore("localhost", 50028);
+		kvReader.connect();
+		final long[] readTime = new long[1];
+
+		// The write waits for the missing backup, the read must not wait for it
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+					long start = System.currentTimeMillis();
+					kvReader.get("unacknowledged");
+					readTime[0] = System.currentTimeMillis() - start;
+				} catch (Exception e) {
+					readTime[0] = -1;
+				}
+			}
+		};
+		reader.start();
+		long start = System.currentTimeMillis();
+		kvWriter.put("unacknowledged", "value");
+		long writeTime = System.currentTimeMillis() - start;
+		reader.join();
+		kvWriter.disconnect();
+		kvReader.disconnect();
+
+		assertTrue("Write confirmed after " + writeTime + " ms.", writeTime >= 900);
+		assertTrue("Read took " + readTime[0] + " ms.", readTime[0] >= 0 && readTime[0] < 500);
+	}
+	
+	@Test
+	public void testBackupRejectsWrites() {
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			startPair(50012, 50013, 1024, true);
+			KVStore kvBackup = new KVStore("localhost", 50013);
+			kvBackup.connect();
+			response = kvBackup.put("forbidden", "value");
+			kvBackup.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.SERVER_WRITE_LOCK
+				&& response.getValue().equals("localhost:50012"));
+	}
+	
+	@Test
+	public void testLateBackupReceivesSnapshot() {
+		KVMessage first = null;
+		KVMessage last = null;
+		Exception ex = null;
+
+		try {
+			// The change log holds far fewer changes than were written
+			startPair(50014, 50015, 16, false);
+			KVStore kvPrimary = new KVStore("localhost", 50014);
+			kvPrimary.connect();
+			for (int i = 0; i < 100; ++i) {
+				kvPrimary.put("late" + i, "value" + i);
+			}
+			
+			new Thread(backup).start();
+			KVStore kvBackup = new KVStore("localhost", 50015);
+			kvBackup.connect();
+			last = awaitValue(kvBackup, "late99", "value99");
+			first = kvBackup.get("late0");
+			
+			kvPrimary.disconnect();
+			kvBackup.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && last.getStatus() == StatusType.GET_SUCCESS
+				&& first.getStatus() == StatusType.GET_SUCCESS
+				&& first.getValue().equals("value0"));
+	}
+	
+	@Test
+	public void testSnapshotOfLargeValues() {
+		String[] values = new String[6];
+		KVMessage first = null;
+		KVMessage last = null;
+		Exception ex = null;
+
+		try {
+			startPair(50026, 50027, 16, false);
+			KVStore kvPrimary = new KVStore("localhost", 50026);
+			kvPrimary.connect();
+			// Chunks of the snapshot must not outgrow a frame
+			for (int i = 0; i < values.length; ++i) {
+				values[i] = TestData.blob((i % 2 == 0) ? 60000 : 100000, i);
+				kvPrimary.put("large" + i, values[i]);
+			}
+			for (int i = 0; i < 20; ++i) {
+				kvPrimary.put("small" + i, "value" + i);
+			}
+			
+			new Thread(backup).start();
+			KVStore kvBackup = new KVStore("localhost", 50027);
+			kvBackup.connect();
+			last = awaitValue(kvBackup, "large5", values[5]);
+			first = kvBackup.get("large0");
+			
+			kvPrimary.disconnect();
+			kvBackup.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals(values[5], last.getValue());
+		assertEquals(values[0], first.getValue());
+	}
+	
+	@Test
+	public void testReadsFromReplica() {
+		KVMessage direct = null;
+		KVMessage spread = null;
+		Exception ex = null;
+
+		try {
+			startPair(50016, 50017, 1024, true);
+			KVStore kvPrimary = new KVStore("localhost", 50016);
+			KVStore kvBackup = new KVStore("localhost", 50017);
+			kvPrimary.connect();
+			kvBackup.connect();
+			kvPrimary.put("spread", "value");
+			awaitValue(kvBackup, "spread", "value");
+			
+			// A backup which is up to date serves bounded-staleness reads
+			direct = kvBackup.kvRequest(new KVMessageRaw(StatusType.GET, "spread", "0"));
+			
+			kvPrimary.addReadReplica("localhost", 50017);
+			for (int i = 0; i < 4; ++i) {
+				spread = kvPrimary.get("spread");
+				if (spread.getStatus() != StatusType.GET_SUCCESS) {
+					break;
+				}
+			}
+			
+			kvPrimary.disconnect();
+			kvBackup.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && direct.getStatus() == StatusType.GET_SUCCESS
+				&& spread.getStatus() == StatusType.GET_SUCCESS
+				&& spread.getValue().equals("value"));
+	}
+	
+	@Test
+	public void testStaleReplicaFallsBack() {
+		KVMessage direct = null;
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			// The primary does not replicate, so the lag of the backup is unknown
+			primary = new KVServer(50018);
+			new Thread(primary).start();
+			backup = new KVServer(50019);
+			backup.enableBackupMode(new InetSocketAddress("localhost", 50018));
+			new Thread(backup).start();
+			backup.getDataStorage().put("fallback", "outdated");
+			
+			KVStore kvPrimary = new KVStore("localhost", 50018);
+			KVStore kvBackup = new KVStore("localhost", 50019);
+			kvPrimary.connect();
+			kvBackup.connect();
+			kvPrimary.put("fallback", "current");
+			
+			direct = kvBackup.kvRequest(new KVMessageRaw(StatusType.GET, "fallback", "1000"));
+			
+			kvPrimary.addReadReplica("localhost", 50019);
+			kvPrimary.setMaxStaleness(1000);
+			for (int i = 0; i < 4; ++i) {
+				response = kvPrimary.get("fallback");
+				if (!response.getValue().equals("current")) {
+					break;
+				}
+			}
+			
+			kvPrimary.disconnect();
+			kvBackup.disconnect();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && direct.getStatus() == StatusType.REPLICA_STALE
+				&& response.getStatus() == StatusType.GET_SUCCESS
+				&& response.getValue().equals("current"));
+	}
+}
@@ -0,0 +1,114 @@
+package testing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+
+import org.apache.log4j.Level;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+import logger.LogSetup;
+
+
+/**
+ * Reads a few hot keys with values of 120 KB, with and without the response
+ * cache, and reports the CPU time (of client and server together) per read.
+ * The client sends prepared requests and does not unmarshal the replies, so
+ * that the time is mostly spent by the server.
+ * Usage: ResponseCacheBenchmark [requests [value size]]
+ */
+public class ResponseCacheBenchmark {
+
+	private static final int KEYS = 8;
+	private static final int WARMUP = 2000;
+
+	public static void main(String[] args) throws Exception {
+		int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int size = (args.length > 1) ? Integer.parseInt(args[1]) : 120 * 1024;
+
+		try {
+			LogSetup.initialize("logs/testing/benchmark.log", Level.WARN);
+		} catch (IOException e) {
+			System.out.println("Error! Unable to initialize logger: " + e.getMessage());
+			System.exit(1);
+		}
+
+		run("uncached", 0, requests, size);
+		run("cached", 16 * 1024 * 1024, requests, size);
+		System.exit(0);
+	}
+
+	private static void run(String mode, long capacity, int requests, int size) throws Exception {
+		KVServer server = new KVServer(0);
+		server.getDataStorage().getResponseCache().setCapacity(capacity);
+		new Thread(server).start();
+
+		KVStore kvStore = new KVStore("localhost", server.getPort());
+		kvStore.connect();
+		for (int i = 0; i < KEYS; ++i) {
+			kvStore.put("hot" + i, TestData.blob(size - i, i));
+		}
+		kvStore.disconnect();
+
+		byte[][] frames = new byte[KEYS][];
+		for (int i = 0; i < KEYS; ++i) {
+			frames[i] = frame(new KVMessageRaw(StatusType.GET, "hot" + i, null));
+		}
+
+		Socket socket = new Socket("localhost", server.getPort());
+		try {
+			OutputStream output = socket.getOutputStream();
+			InputStream input = new BufferedInputStream(socket.getInputStream());
+
+			execute(output, input, WARMUP, frames);
+
+			long cpu = processCpuTime();
+			long start = System.nanoTime();
+
+			execute(output, input, requests, frames);
+
+			long elapsed = System.nanoTime() - start;
+			cpu = processCpuTime() - cpu;
+
+			System.out.println(String.format("%-10s %8d reads  %7.1f us CPU/read  %8.1f reads/s", mode,
+					requests, cpu / 1e3 / requests, requests / (elapsed / 1e9)));
+			System.out.println(server.getDataStorage().getResponseCache().getReport());
+		} finally {
+			socket.close();
+			server.shutDown();
+		}
+	}
+
+	private static void execute(OutputStream output, InputStream input, int requests, byte[][] frames)
+			throws IOException {
+		for (int i = 0; i < requests; ++i) {
+			output.write(frames[i % KEYS]);
+			output.flush();
+
+			byte[] reply = NetworkMessage.readFrom(input).getData();
+			if (reply[0] != (byte) StatusType.GET_SUCCESS.ordinal()) {
+				throw new IOException("Request failed with " + StatusType.values()[reply[0]] + ".");
+			}
+		}
+	}
+
+	private static byte[] frame(KVMessage kvmsg) throws IOException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		new NetworkMessage(KVMessageRaw.marshal(kvmsg)).writeTo(frame);
+		return frame.toByteArray();
+	}
+
+	private static long processCpuTime() {
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+				.getProcessCpuTime();
+	}
+}
@@ -0,0 +1,125 @@
+package testing;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import app_kvServer.ResponseCache;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+
+
+public class ResponseCacheTest extends TestCase {
+
+	private KVServer server;
+	private KVStore kvClient;
+
+	public void setUp() throws Exception {
+		server = new KVServer(0);
+		server.getDataStorage().getResponseCache().setCapacity(1024 * 1024);
+		new Thread(server).start();
+		kvClient = new KVStore("localhost", server.getPort());
+		kvClient.connect();
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+		server.shutDown();
+	}
+
+	private static NetworkMessage frame(String key, String value) throws Exception {
+		return new NetworkMessage(KVMessageRaw.marshal(
+				new KVMessageRaw(StatusType.GET_SUCCESS, key, value))).preEncode();
+	}
+
+
+	@Test
+	public void testHotKeyServedFromCache() {
+		ResponseCache cache = server.getDataStorage().getResponseCache();
+		String value = TestData.blob(64 * 1024, 1);
+		KVMessage get = null;
+		boolean same = true;
+		Exception ex = null;
+
+		try {
+			kvClient.put("hot", value);
+			for (int i = 0; i < 10; ++i) {
+				get = kvClient.get("hot");
+				same &= get.getStatus() == StatusType.GET_SUCCESS && get.getValue().equals(value);
+			}
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && same);
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(9, cache.getHits());
+	}
+
+	@Test
+	public void testInvalidatedOnWrite() {
+		ResponseCache cache = server.getDataStorage().getResponseCache();
+		KVMessage first = null, updated = null, deleted = null;
+		int cachedAfterUpdate = -1;
+		Exception ex = null;
+
+		try {
+			kvClient.put("key", "old");
+			kvClient.get("key");
+			first = kvClient.get("key");
+			kvClient.put("key", "new");
+			cachedAfterUpdate = cache.getEntryCount();
+			updated = kvClient.get("key");
+			kvClient.put("key", null);
+			deleted = kvClient.get("key");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && first.getValue().equals("old"));
+		assertEquals(0, cachedAfterUpdate);
+		assertTrue(updated.getStatus() == StatusType.GET_SUCCESS && updated.getValue().equals("new"));
+		assertEquals(StatusType.GET_ERROR, deleted.getStatus());
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	@Test
+	public void testServedOnlyForItsVersion() throws Exception {
+		ResponseCache cache = new ResponseCache();
+
+		cache.setCapacity(64 * 1024);
+		cache.put("key", 5, frame("key", "value"));
+		assertNull(cache.get("key", 6));
+		assertNotNull(cache.get("key", 5));
+
+		// A reply for an older version does not replace a newer one
+		cache.put("key", 4, frame("key", "older"));
+		assertNotNull(cache.get("key", 5));
+	}
+
+	@Test
+	public void testCapacityBound() throws Exception {
+		ResponseCache cache = new ResponseCache();
+		String value = TestData.blob(1000, 2);
+
+		cache.setCapacity(16 * 1024);
+		cache.put("hot", 1, frame("hot", value));
+		for (int i = 0; i < 100; ++i) {
+			cache.put("key" + i, 1, frame("key" + i, value));
+			assertNotNull(cache.get("hot", 1));
+			assertTrue(cache.getSize() <= cache.getCapacity());
+		}
+
+		assertTrue(cache.getEntryCount() < 16);
+
+		// Replies too large for the bound are not cached
+		cache.put("large", 1, frame("large", TestData.blob(8 * 1024, 3)));
+		assertNull(cache.get("large", 1));
+
+		cache.setCapacity(0);
+		assertEquals(0, cache.getEntryCount());
+	}
+}
@@ -0,0 +1,111 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import junit.framework.TestCase;
+import logger.LogSetup;
+
+
+public class SlowRequestTest extends TestCase {
+
+	private KVServer server;
+	private KVStore kvClient;
+	private final List<String> slowRequests = Collections.synchronizedList(new ArrayList<String>());
+
+	private final AppenderSkeleton capture = new AppenderSkeleton() {
+		@Override
+		protected void append(LoggingEvent event) {
+			String message = event.getRenderedMessage();
+			if (message != null && message.startsWith("Slow request:")) {
+				slowRequests.add(message);
+			}
+		}
+
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	public void setUp() throws Exception {
+		server = new KVServer(0);
+		new Thread(server).start();
+		LogSetup.getLogger().addAppender(capture);
+
+		kvClient = new KVStore("localhost", server.getPort());
+		kvClient.connect();
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+		LogSetup.getLogger().removeAppender(capture);
+		server.shutDown();
+	}
+
+
+	@Test
+	public void testSlowRequestLogged() {
+		Exception ex = null;
+
+		try {
+			// Every request is slower than a microsecond
+			server.setSlowRequestThreshold(1);
+			kvClient.put("slowKey", "slowValue");
+			// The line is written after the reply was sent
+			long deadline = System.currentTimeMillis() + 1000;
+			while (findLine(" op=PUT ") == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		String line = findLine(" op=PUT ");
+		assertTrue(ex == null && line != null);
+		for (String field : new String[] { "total=", " read=", " decode=", " storage=",
+				" encode=", " write=", " status=PUT_SUCCESS", " key='slowKey'",
+				" value_size=9", "127.0.0.1:" }) {
+			assertTrue(line, line.contains(field));
+		}
+	}
+
+	@Test
+	public void testFastRequestNotLogged() {
+		Exception ex = null;
+
+		try {
+			server.setSlowRequestThreshold(60 * 1000000L);
+			slowRequests.clear();
+			kvClient.put("fastKey", "fastValue");
+			server.setSlowRequestThreshold(0);
+			kvClient.get("fastKey");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && slowRequests.isEmpty());
+	}
+
+	private String findLine(String field) {
+		synchronized (slowRequests) {
+			for (String line : slowRequests) {
+				if (line.contains(field)) {
+					return line;
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,189 @@
+package testing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import common.messages.KVMessage;
+import logger.LogSetup;
+
+
+/**
+ * Runs many concurrent clients doing random 'put', 'get' and 'delete'
+ * requests on a small set of keys, records the history of every operation
+ * and checks it for linearizability. Clients reconnect now and then, so that
+ * the connection handling of the server is exercised as well.
+ * Usage: StressHarness [clients [operations [keys [rounds]]]]
+ */
+public class StressHarness {
+
+	private final String host;
+	private final int port;
+	private final int clients;
+	private final int operations;
+	private final int keys;
+	private final String keyPrefix;
+	private final int reconnectEvery;
+	private final long seed;
+
+	/**
+	 * @param host the address of the KVServer.
+	 * @param port the port of the KVServer.
+	 * @param clients number of concurrent clients.
+	 * @param operations number of operations per client.
+	 * @param keys number of distinct keys.
+	 * @param keyPrefix prefix of the keys; the keys must not exist yet, as
+	 *        the checker starts from an empty store.
+	 * @param reconnectEvery number of operations after which a client
+	 *        reconnects (0 to keep the connection).
+	 * @param seed seed of the random choices.
+	 */
+	public StressHarness(String host, int port, int clients, int operations, int keys,
+			String keyPrefix, int reconnectEvery, long seed) {
+		this.host = host;
+		this.port = port;
+		this.clients = clients;
+		this.operations = operations;
+		this.keys = keys;
+		this.keyPrefix = keyPrefix;
+		this.reconnectEvery = reconnectEvery;
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs the clients until each of them completed its operations.
+	 *
+	 * @return the history of all operations.
+	 * @throws Exception if a client fails.
+	 */
+	public List<LinearizabilityChecker.Operation> run() throws Exception {
+		final List<LinearizabilityChecker.Operation> history = Collections
+				.synchronizedList(new ArrayList<LinearizabilityChecker.Operation>());
+		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < clients; ++i) {
+			final int client = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						runClient(client, history);
+					} catch (Exception e) {
+						errors.add(e);
+					}
+				}
+			}, "Stress-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (!errors.isEmpty()) {
+			throw errors.get(0);
+		}
+		return history;
+	}
+
+	private void runClient(int client, List<LinearizabilityChecker.Operation> history)
+			throws Exception {
+		Random random = new Random(seed + client);
+		KVStore kvStore = new KVStore(host, port);
+		kvStore.connect();
+
+		try {
+			for (int i = 0; i < operations; ++i) {
+				if (reconnectEvery > 0 && i > 0 && i % reconnectEvery == 0) {
+					kvStore.disconnect();
+					kvStore.connect();
+				}
+
+				String key = keyPrefix + random.nextInt(keys);
+				int choice = random.nextInt(20);
+				boolean read = choice < 10;
+				// Written values are unique, so that every read names its write
+				String value = (read || choice >= 17) ? null : "c" + client + "-" + i;
+
+				long invoked = System.nanoTime();
+				KVMessage reply = read ? kvStore.get(key) : kvStore.put(key, value);
+				long completed = System.nanoTime();
+
+				history.add(new LinearizabilityChecker.Operation(client, key, value, read,
+						invoked, completed, reply.getStatus(), reply.getValue()));
+			}
+		} finally {
+			kvStore.disconnect();
+		}
+	}
+
+	/**
+	 * Waits until the server has no open client connections.
+	 *
+	 * @param server the server.
+	 * @param timeout maximum time to wait, in milliseconds.
+	 * @return true if all connections were released in time.
+	 */
+	public static boolean awaitConnectionsReleased(KVServer server, long timeout)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (server.getClientCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return server.getClientCount() == 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+		int operations = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+		int keys = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+		int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+
+		try {
+			LogSetup.initialize("logs/testing/stress.log", Level.OFF);
+		} catch (IOException e) {
+			System.out.println("Error! Unable to initialize logger: " + e.getMessage());
+			System.exit(1);
+		}
+
+		KVServer server = new KVServer(0);
+		new Thread(server).start();
+		int failures = 0;
+
+		for (int round = 0; round < rounds; ++round) {
+			long seed = System.nanoTime();
+			StressHarness harness = new StressHarness("localhost", server.getPort(), clients,
+					operations, keys, "round" + round + "-", 50, seed);
+			List<LinearizabilityChecker.Operation> history = harness.run();
+
+			long start = System.nanoTime();
+			String violation = LinearizabilityChecker.check(history);
+			long elapsed = (System.nanoTime() - start) / 1000000;
+
+			if (violation != null) {
+				++failures;
+				System.out.println("Round " + round + " (seed " + seed + "): " + violation);
+			} else {
+				System.out.println("Round " + round + " (seed " + seed + "): "
+						+ history.size() + " operations linearizable, checked in " + elapsed + " ms");
+			}
+		}
+
+		if (!awaitConnectionsReleased(server, 5000)) {
+			++failures;
+			System.out.println("Server still tracks " + server.getClientCount()
+					+ " closed connections.");
+		}
+
+		server.shutDown();
+		System.exit((failures > 0) ? 1 : 0);
+	}
+}
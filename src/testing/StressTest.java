@@ -0,0 +1,106 @@
+package testing;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.ClientStatistics;
+import app_kvServer.KVServer;
+import junit.framework.TestCase;
+import common.messages.KVMessage.StatusType;
+
+
+public class StressTest extends TestCase {
+
+	private KVServer server;
+
+	public void setUp() throws Exception {
+		// Ephemeral port, so that the harness never collides with other tests
+		server = new KVServer(0);
+		new Thread(server).start();
+	}
+
+	public void tearDown() {
+		server.shutDown();
+	}
+
+
+	@Test
+	public void testCheckerRejectsStaleRead() {
+		List<LinearizabilityChecker.Operation> history = new ArrayList<LinearizabilityChecker.Operation>();
+		history.add(new LinearizabilityChecker.Operation(0, "k", "v", false, 0, 10,
+				StatusType.PUT_SUCCESS, "v"));
+		history.add(new LinearizabilityChecker.Operation(1, "k", null, true, 20, 30,
+				StatusType.GET_ERROR, null));
+		String stale = LinearizabilityChecker.check(history);
+
+		// The same read overlapping the write may be ordered before it
+		history.set(1, new LinearizabilityChecker.Operation(1, "k", null, true, 5, 30,
+				StatusType.GET_ERROR, null));
+		String concurrent = LinearizabilityChecker.check(history);
+
+		assertTrue(stale != null && concurrent == null);
+	}
+
+	@Test
+	public void testConcurrentHistoryIsLinearizable() {
+		List<LinearizabilityChecker.Operation> history = null;
+		String violation = null;
+		Exception ex = null;
+
+		try {
+			StressHarness harness = new StressHarness("localhost", server.getPort(), 8, 250,
+					4, "linear", 50, 42);
+			history = harness.run();
+			violation = LinearizabilityChecker.check(history);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && history.size() == 8 * 250);
+		assertNull(violation, violation);
+	}
+
+	@Test
+	public void testConnectionsReleased() {
+		boolean released = false;
+		Exception ex = null;
+
+		try {
+			// Reconnecting after every operation
+			new StressHarness("localhost", server.getPort(), 8, 100, 4, "reconnect",
+					1, 7).run();
+			released = StressHarness.awaitConnectionsReleased(server, 5000);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && released);
+	}
+
+	@Test
+	public void testClientStatistics() {
+		ClientStatistics statistics = null;
+		boolean released = false;
+		Exception ex = null;
+
+		try {
+			new StressHarness("localhost", server.getPort(), 4, 50, 4, "accounting",
+					10, 3).run();
+			released = StressHarness.awaitConnectionsReleased(server, 5000);
+			statistics = server.getAddressStatistics(InetAddress.getByName("127.0.0.1"));
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		// Every frame carries at least its length, the status and two string lengths
+		assertTrue(ex == null && released);
+		assertTrue(statistics.getRequests() >= 4 * 50 && statistics.getConnections() == 0);
+		assertTrue(statistics.getBytesIn() >= statistics.getRequests() * 13
+				&& statistics.getBytesOut() >= statistics.getRequests() * 13);
+		assertTrue(statistics.getErrors() == 0 && statistics.getServiceTime() > 0);
+		assertTrue(server.getClientReport(10).contains("127.0.0.1"));
+	}
+}
@@ -0,0 +1,24 @@
+package testing;
+
+
+/**
+ * Values shared by the tests and benchmarks.
+ */
+public class TestData {
+
+	private TestData() {
+	}
+
+	/**
+	 * Builds a value of the given length which differs for every seed, but
+	 * still compresses well.
+	 */
+	static String blob(int length, int seed) {
+		StringBuilder value = new StringBuilder(length);
+
+		while (value.length() < length) {
+			value.append("blob").append(seed).append('-').append(value.length()).append(';');
+		}
+		return value.substring(0, length);
+	}
+}
@@ -0,0 +1,258 @@
+package testing;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import app_kvServer.RateLimiter;
+import app_kvServer.RequestScheduler;
+import app_kvServer.RequestScheduler.Lane;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+
+public class ThrottlingTest extends TestCase {
+
+	private KVServer server;
+	private KVStore kvClient;
+
+	public void setUp() throws Exception {
+		server = new KVServer(0);
+		new Thread(server).start();
+		kvClient = new KVStore("localhost", server.getPort());
+		kvClient.connect();
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+		server.shutDown();
+	}
+
+	/**
+	 * Sends requests as fast as possible and returns the throttled replies.
+	 */
+	private List<KVMessage> flood(int requests) throws Exception {
+		List<KVMessage> throttled = new ArrayList<KVMessage>();
+
+		for (int i = 0; i < requests; ++i) {
+			KVMessage response = kvClient.put("flood" + (i % 4), "value" + i);
+			if (response.getStatus() == StatusType.SERVER_THROTTLED) {
+				throttled.add(response);
+			}
+		}
+		return throttled;
+	}
+
+
+	@Test
+	public void testClientRateLimit() {
+		List<KVMessage> throttled = null;
+		Exception ex = null;
+
+		try {
+			// The bucket admits a burst of 10 requests, then 10 per second
+			server.getRateLimiter().setLimits(10, 0);
+			throttled = flood(40);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && throttled.size() > 0 && throttled.size() <= 30);
+		assertTrue(Long.parseLong(throttled.get(0).getValue()) > 0);
+	}
+
+	@Test
+	public void testGlobalRateLimit() {
+		List<KVMessage> throttled = null;
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			server.getRateLimiter().setLimits(1000, 10);
+			throttled = flood(40);
+
+			// Lifting the limits admits the client again
+			server.getRateLimiter().setLimits(0, 0);
+			response = kvClient.get("flood0");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && throttled.size() > 0
+				&& response.getStatus() == StatusType.GET_SUCCESS);
+	}
+
+	@Test
+	public void testDeficitRoundRobin() {
+		final RequestScheduler scheduler = new RequestScheduler(1, 100);
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		Exception ex = null;
+
+		try {
+			// Client A queues three requests before client B queues one
+			scheduler.acquire("busy", Lane.SMALL_WRITE, 100);
+			String[] requests = { "A1", "A2", "A3", "B1" };
+			for (final String request : requests) {
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Lane lane = scheduler.acquire(request.substring(0, 1), Lane.SMALL_WRITE, 100);
+						order.add(request);
+						scheduler.release(lane);
+					}
+				});
+				thread.start();
+				threads.add(thread);
+
+				long deadline = System.currentTimeMillis() + 5000;
+				while (scheduler.getWaiting() < threads.size()
+						&& System.currentTimeMillis() < deadline) {
+					Thread.sleep(5);
+				}
+			}
+			scheduler.release(Lane.SMALL_WRITE);
+
+			for (Thread thread : threads) {
+				thread.join(5000);
+			}
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null);
+		assertEquals("[A1, B1, A2, A3]", order.toString());
+	}
+
+	/**
+	 * Queues the requests one after another, then frees the given slots and
+	 * returns the order in which the requests were served.
+	 */
+	private List<String> serve(final RequestScheduler scheduler, String[] requests,
+			Lane[] lanes, int held) throws Exception {
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < requests.length; ++i) {
+			final String request = requests[i];
+			final Lane lane = lanes[i];
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Lane granted = scheduler.acquire(request, lane, 100);
+					order.add(request);
+					scheduler.release(granted);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (scheduler.getWaiting() < threads.size()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+		}
+		for (int i = 0; i < held; ++i) {
+			scheduler.release(Lane.SMALL_READ);
+		}
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+		return order;
+	}
+
+	@Test
+	public void testSmallReadsFirst() {
+		List<String> prioritized = null;
+		List<String> fifo = null;
+		Exception ex = null;
+
+		try {
+			String[] requests = { "large", "write", "read" };
+			Lane[] lanes = { Lane.LARGE, Lane.SMALL_WRITE, Lane.SMALL_READ };
+
+			RequestScheduler scheduler = new RequestScheduler(1, 100);
+			scheduler.acquire("busy", Lane.SMALL_READ, 100);
+			prioritized = serve(scheduler, requests, lanes, 1);
+
+			scheduler = new RequestScheduler(1, 100);
+			scheduler.setPrioritized(false);
+			scheduler.acquire("busy", Lane.SMALL_READ, 100);
+			fifo = serve(scheduler, requests, lanes, 1);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null);
+		assertEquals("[read, write, large]", prioritized.toString());
+		assertEquals("[large, write, read]", fifo.toString());
+	}
+
+	@Test
+	public void testLargeRequestsLeaveSlots() {
+		RequestScheduler scheduler = new RequestScheduler(2, 100);
+		final Lane[] second = new Lane[1];
+		int waiting = -1;
+		Exception ex = null;
+
+		try {
+			// The first large request takes one of the two slots ...
+			Lane first = scheduler.acquire("a", Lane.LARGE, 10000);
+			final RequestScheduler shared = scheduler;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					second[0] = shared.acquire("b", Lane.LARGE, 10000);
+					shared.release(second[0]);
+				}
+			});
+			thread.start();
+
+			// ... the second one waits, while a small read gets the other
+			long deadline = System.currentTimeMillis() + 5000;
+			while (scheduler.getWaiting() < 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			scheduler.release(scheduler.acquire("c", Lane.SMALL_READ, 100));
+			waiting = scheduler.getWaiting();
+
+			scheduler.release(first);
+			thread.join(5000);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && waiting == 1 && second[0] == Lane.LARGE);
+	}
+
+	@Test
+	public void testIdleBucketsDropped() throws Exception {
+		RateLimiter limiter = new RateLimiter();
+		limiter.setLimits(1000, 0);
+
+		for (int i = 0; i < 3000; ++i) {
+			InetAddress address = InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i });
+			assertEquals(0, limiter.admit(address));
+			if (i == 1500) {
+				Thread.sleep(100); // The buckets so far refill
+			}
+		}
+		assertTrue("Buckets kept: " + limiter.getBucketCount(), limiter.getBucketCount() < 2000);
+
+		// A busy address keeps its bucket
+		InetAddress busy = InetAddress.getByAddress(new byte[] { 10, 1, 0, 1 });
+		limiter.setLimits(1, 0);
+		assertEquals(0, limiter.admit(busy));
+		for (int i = 0; i < 3000; ++i) {
+			limiter.admit(InetAddress.getByAddress(new byte[] { 10, 2, (byte) (i >> 8), (byte) i }));
+		}
+		assertTrue(limiter.admit(busy) > 0);
+	}
+}
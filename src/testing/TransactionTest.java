@@ -0,0 +1,161 @@
+package testing;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.KVDataStorage;
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageBatch;
+import common.messages.KVMessageBatch.Entry;
+
+
+public class TransactionTest extends TestCase {
+
+	private KVStore kvClient;
+	
+	public void setUp() {
+		kvClient = new KVStore("localhost", 50000);
+		try {
+			kvClient.connect();
+		} catch (Exception e) {
+		}
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+	}
+	
+	
+	@Test
+	public void testCommit() {
+		KVMessage response = null;
+		KVMessage first = null;
+		KVMessage second = null;
+		Exception ex = null;
+
+		try {
+			response = kvClient.transaction(Arrays.asList(
+					Entry.put("txA", "1"), Entry.put("txB", "2")));
+			first = kvClient.get("txA");
+			second = kvClient.get("txB");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.TRANSACTION_SUCCESS
+				&& first.getValue().equals("1") && second.getValue().equals("2"));
+	}
+	
+	@Test
+	public void testVersionPrecondition() {
+		KVMessage created = null;
+		KVMessage updated = null;
+		KVMessage stale = null;
+		Exception ex = null;
+
+		try {
+			created = kvClient.transaction(Arrays.asList(
+					new Entry(StatusType.PUT, "txVersion", "v1", KVMessageBatch.ABSENT_VERSION)));
+			long version = Long.parseLong(created.getValue());
+			updated = kvClient.transaction(Arrays.asList(
+					new Entry(StatusType.PUT, "txVersion", "v2", version)));
+			stale = kvClient.transaction(Arrays.asList(
+					new Entry(StatusType.PUT, "txVersion", "v3", version)));
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && created.getStatus() == StatusType.TRANSACTION_SUCCESS
+				&& updated.getStatus() == StatusType.TRANSACTION_SUCCESS
+				&& stale.getStatus() == StatusType.TRANSACTION_ERROR
+				&& stale.getKey().equals("txVersion"));
+	}
+	
+	@Test
+	public void testAllOrNothing() {
+		KVMessage response = null;
+		KVMessage untouched = null;
+		Exception ex = null;
+
+		try {
+			kvClient.put("txGuard", "present");
+			response = kvClient.transaction(Arrays.asList(
+					Entry.put("txPartial", "should not appear"),
+					Entry.check("txGuard", KVMessageBatch.ABSENT_VERSION)));
+			untouched = kvClient.get("txPartial");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.TRANSACTION_ERROR
+				&& untouched.getStatus() == StatusType.GET_ERROR);
+	}
+	
+	@Test
+	public void testDeleteInTransaction() {
+		KVMessage response = null;
+		KVMessage deleted = null;
+		Exception ex = null;
+
+		try {
+			kvClient.put("txDelete", "doomed");
+			response = kvClient.transaction(Arrays.asList(
+					Entry.delete("txDelete"), Entry.put("txReplace", "new")));
+			deleted = kvClient.get("txDelete");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getStatus() == StatusType.TRANSACTION_SUCCESS
+				&& deleted.getStatus() == StatusType.GET_ERROR);
+	}
+
+	@Test
+	public void testReadOnlyTransaction() {
+		KVMessage written = null;
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			written = kvClient.transaction(Arrays.asList(
+					Entry.put("txReadA", "a"), Entry.put("txReadB", "b")));
+			response = kvClient.transaction(Arrays.asList(
+					new Entry(StatusType.GET, "txReadA", null, KVMessageBatch.ANY_VERSION),
+					new Entry(StatusType.GET, "txReadB", null, KVMessageBatch.ANY_VERSION)));
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		List<Entry> entries = ((KVMessageBatch) response).getEntries();
+		long version = Long.parseLong(written.getValue());
+		assertTrue(response.getStatus() == StatusType.TRANSACTION_SUCCESS
+				&& entries.get(0).value.equals("a") && entries.get(0).version == version
+				&& entries.get(1).value.equals("b") && entries.get(1).version == version);
+	}
+
+	@Test
+	public void testDeleteOfAbsentKeyCollected() throws Exception {
+		KVDataStorage storage = new KVDataStorage();
+		try {
+			// An older reader keeps the deletion while the collector runs
+			KVDataStorage.Snapshot snapshot = storage.openSnapshot();
+			storage.transaction(Arrays.asList(Entry.delete("txAbsent")));
+			Thread.sleep(1200);
+			snapshot.close();
+
+			for (int i = 0; i < 100 && storage.getRecordCount() != 0; ++i) {
+				Thread.sleep(50);
+			}
+			assertEquals(0, storage.getRecordCount());
+		} finally {
+			storage.shutDown();
+		}
+	}
+
+}
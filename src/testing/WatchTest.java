@@ -0,0 +1,107 @@
+package testing;
+
+import org.junit.Test;
+
+import client.KVStore;
+import junit.framework.TestCase;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+
+public class WatchTest extends TestCase {
+
+	private KVStore kvClient;
+	private KVStore kvWatcher;
+	
+	public void setUp() {
+		kvClient = new KVStore("localhost", 50000);
+		kvWatcher = new KVStore("localhost", 50000);
+		try {
+			kvClient.connect();
+			kvWatcher.connect();
+		} catch (Exception e) {
+		}
+	}
+
+	public void tearDown() {
+		kvClient.disconnect();
+		kvWatcher.disconnect();
+	}
+	
+	
+	@Test
+	public void testWatchKey() {
+		KVMessage registered = null;
+		KVMessage notification = null;
+		Exception ex = null;
+
+		try {
+			registered = kvWatcher.watch("watchFlag");
+			kvClient.put("watchFlag", "raised");
+			notification = kvWatcher.awaitNotification(5000);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && registered.getStatus() == StatusType.WATCH_SUCCESS
+				&& notification != null && notification.getStatus() == StatusType.WATCH_NOTIFY
+				&& notification.getKey().equals("watchFlag")
+				&& notification.getValue().equals("raised"));
+	}
+	
+	@Test
+	public void testWatchPrefixDelete() {
+		KVMessage notification = null;
+		Exception ex = null;
+
+		try {
+			kvClient.put("watchDir/a", "doomed");
+			kvWatcher.watchPrefix("watchDir/");
+			kvClient.put("watchDir/a", null);
+			notification = kvWatcher.awaitNotification(5000);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && notification != null
+				&& notification.getStatus() == StatusType.WATCH_NOTIFY
+				&& notification.getKey().equals("watchDir/a")
+				&& notification.getValue() == null);
+	}
+	
+	@Test
+	public void testUnwatch() {
+		KVMessage notification = null;
+		Exception ex = null;
+
+		try {
+			kvWatcher.watch("watchGone");
+			kvWatcher.unwatch("watchGone");
+			kvClient.put("watchGone", "unnoticed");
+			notification = kvWatcher.awaitNotification(500);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && notification == null);
+	}
+	
+	@Test
+	public void testNotificationBeforeReply() {
+		KVMessage reply = null;
+		KVMessage notification = null;
+		Exception ex = null;
+
+		try {
+			kvWatcher.watch("watchSelf");
+			reply = kvWatcher.put("watchSelf", "mine");
+			notification = kvWatcher.awaitNotification(5000);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && reply.getStatus() == StatusType.PUT_SUCCESS
+				&& notification != null && notification.getValue().equals("mine"));
+	}
+
+}